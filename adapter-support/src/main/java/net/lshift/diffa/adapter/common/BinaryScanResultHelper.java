@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.common;
+
+import net.lshift.diffa.adapter.scanning.ScanResultEntry;
+import net.lshift.diffa.adapter.scanning.ScanResultHandler;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Helper for serializing scanning results in a compact binary form, as an alternative to JSON for large entity-level
+ * scans. A participant will only respond in this form when the request accepts the BINARY_CONTENT_TYPE.
+ *
+ * The result starts with a header, followed by a record for each entry and an end marker. Strings are written as
+ * their UTF-8 length (plus one, so that zero can denote null) and bytes. Attribute names are written in full the
+ * first time they appear, and are thereafter referred to by their position in the order they first appeared.
+ */
+public class BinaryScanResultHelper {
+  public static final String BINARY_CONTENT_TYPE = "application/vnd.diffa.scan-result";
+
+  private static final byte[] HEADER = { 'D', 'S', 'R', 1 };
+  private static final int ENTRY = 1;
+  private static final int END = 0;
+
+  private static Logger log = LoggerFactory.getLogger(BinaryScanResultHelper.class);
+
+  /**
+   * Determines whether the given Accept header allows for a binary response.
+   */
+  public static boolean acceptsBinary(String acceptHeader) {
+    return acceptHeader != null && acceptHeader.contains(BINARY_CONTENT_TYPE);
+  }
+
+  /**
+   * Determines whether the given stream starts with a binary result, without consuming any of the stream.
+   * @param stream a stream that supports mark and reset.
+   */
+  public static boolean isBinary(InputStream stream) throws IOException {
+    stream.mark(HEADER.length);
+    try {
+      for (byte expected : HEADER) {
+        if (stream.read() != expected) return false;
+      }
+      return true;
+    } finally {
+      stream.reset();
+    }
+  }
+
+  public static void writeQueryResult(OutputStream responseStream, Iterable<ScanResultEntry> entries)
+      throws IOException {
+    QueryResultWriter writer = new QueryResultWriter(responseStream);
+    for (ScanResultEntry entry : entries) {
+      writer.write(entry);
+    }
+    writer.finish();
+  }
+
+  public static List<ScanResultEntry> readQueryResult(InputStream stream, ScanEntityValidator validator)
+      throws IOException {
+    final List<ScanResultEntry> scanResultEntries = new ArrayList<ScanResultEntry>();
+    readQueryResult(stream, validator, new ScanResultHandler() {
+      @Override
+      public void handle(ScanResultEntry entry) {
+        scanResultEntries.add(entry);
+      }
+    });
+
+    return scanResultEntries;
+  }
+
+  /**
+   * Parses a query result incrementally, passing each entry to the given handler as soon as it has been read and
+   * validated. Any exception raised by the handler itself is propagated unchanged.
+   * @return the number of entries read.
+   */
+  public static int readQueryResult(InputStream stream, ScanEntityValidator validator, ScanResultHandler handler)
+      throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+    List<String> names = new ArrayList<String>();
+    int count = 0;
+
+    for (byte expected : HEADER) {
+      if (input.readByte() != expected) {
+        throw new IOException("Failed to deserialize result: missing binary result header");
+      }
+    }
+
+    while (true) {
+      ScanResultEntry entry;
+      try {
+        int marker = input.readByte();
+        if (marker == END) {
+          break;
+        } else if (marker != ENTRY) {
+          throw new Exception("Unexpected record marker " + marker);
+        }
+        entry = readEntry(input, names);
+        validator.process(entry);
+      } catch (IOException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IOException(String.format("Failed to deserialize result: %s", ex.getMessage()), ex);
+      }
+
+      handler.handle(entry);
+      count++;
+    }
+
+    if (log.isTraceEnabled()) {
+      log.trace("ScanResultEntry readQueryResult [count = " + count + "]");
+    }
+
+    return count;
+  }
+
+  private static ScanResultEntry readEntry(DataInputStream input, List<String> names) throws IOException {
+    String id = readString(input);
+    String version = readString(input);
+    DateTime lastUpdated = input.readBoolean() ? new DateTime(input.readLong(), DateTimeZone.UTC) : null;
+
+    Map<String, String> attributes = null;
+    int attributeCount = readLength(input);
+    if (attributeCount > 0) {
+      attributes = new LinkedHashMap<String, String>();
+      for (int i = 1; i < attributeCount; i++) {
+        int nameRef = readVarInt(input);
+        String name;
+        if (nameRef == names.size()) {
+          name = readString(input);
+          names.add(name);
+        } else if (nameRef < names.size()) {
+          name = names.get(nameRef);
+        } else {
+          throw new IOException("Failed to deserialize result: unknown attribute name reference " + nameRef);
+        }
+        attributes.put(name, readString(input));
+      }
+    }
+
+    return new ScanResultEntry(id, version, lastUpdated, attributes);
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    int length = readLength(input);
+    if (length == 0) return null;
+
+    byte[] bytes = new byte[length - 1];
+    input.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static int readLength(DataInputStream input) throws IOException {
+    int length = readVarInt(input);
+    if (length < 0) throw new IOException("Failed to deserialize result: negative length");
+    return length;
+  }
+
+  private static int readVarInt(DataInputStream input) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = input.readByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Failed to deserialize result: malformed integer");
+  }
+
+  /**
+   * Writes entries to a stream one at a time, so that a result never needs to be held in memory in full. The result
+   * is only complete once finish has been called.
+   */
+  public static class QueryResultWriter {
+    private final DataOutputStream output;
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+
+    public QueryResultWriter(OutputStream stream) throws IOException {
+      this.output = new DataOutputStream(new BufferedOutputStream(stream));
+      output.write(HEADER);
+    }
+
+    public void write(ScanResultEntry entry) throws IOException {
+      output.writeByte(ENTRY);
+      writeString(entry.getId());
+      writeString(entry.getVersion());
+
+      DateTime lastUpdated = entry.getLastUpdated();
+      output.writeBoolean(lastUpdated != null);
+      if (lastUpdated != null) {
+        output.writeLong(lastUpdated.getMillis());
+      }
+
+      Map<String, String> attributes = entry.getAttributes();
+      if (attributes == null) {
+        writeVarInt(0);
+      } else {
+        writeVarInt(attributes.size() + 1);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+          Integer nameRef = names.get(attribute.getKey());
+          if (nameRef == null) {
+            writeVarInt(names.size());
+            writeString(attribute.getKey());
+            names.put(attribute.getKey(), names.size());
+          } else {
+            writeVarInt(nameRef);
+          }
+          writeString(attribute.getValue());
+        }
+      }
+    }
+
+    public void finish() throws IOException {
+      output.writeByte(END);
+      output.flush();
+    }
+
+    private void writeString(String value) throws IOException {
+      if (value == null) {
+        writeVarInt(0);
+      } else {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarInt(bytes.length + 1);
+        output.write(bytes);
+      }
+    }
+
+    private void writeVarInt(int value) throws IOException {
+      while ((value & ~0x7f) != 0) {
+        output.writeByte((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      output.writeByte(value);
+    }
+  }
+}
@@ -18,7 +18,10 @@ package net.lshift.diffa.adapter.common;
 import net.lshift.diffa.adapter.changes.ChangeEvent;
 import net.lshift.diffa.adapter.correlation.ProcessingResponse;
 import net.lshift.diffa.adapter.scanning.ScanResultEntry;
+import net.lshift.diffa.adapter.scanning.ScanResultHandler;
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
@@ -41,12 +44,15 @@ import java.util.List;
 public class JSONHelper {
   private static ObjectMapper mapper = new ObjectMapper();
   private static ObjectMapper prettyMapper = new ObjectMapper();
+  private static ObjectMapper streamingMapper = new ObjectMapper();
   private static JsonFactory jsonFactory = new JsonFactory();
   private static Logger log = LoggerFactory.getLogger(JSONHelper.class);
   static {
     mapper.getSerializationConfig().set(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
     prettyMapper.getSerializationConfig().set(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
     prettyMapper.getSerializationConfig().set(SerializationConfig.Feature.INDENT_OUTPUT, true);
+    streamingMapper.getSerializationConfig().set(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
+    streamingMapper.getSerializationConfig().set(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
   }
 
   public static void writeQueryResult(OutputStream responseStream, Iterable<ScanResultEntry> entries)
@@ -73,30 +79,60 @@ public class JSONHelper {
 
   public static List<ScanResultEntry> readQueryResult(InputStream stream, ScanEntityValidator validator)
       throws IOException {
+    final List<ScanResultEntry> scanResultEntries = new ArrayList<ScanResultEntry>();
+    readQueryResult(stream, validator, new ScanResultHandler() {
+      @Override
+      public void handle(ScanResultEntry entry) {
+        scanResultEntries.add(entry);
+      }
+    });
+
+    return scanResultEntries;
+  }
+
+  /**
+   * Parses a query result incrementally, passing each entry to the given handler as soon as it has been read and
+   * validated. Any exception raised by the handler itself is propagated unchanged.
+   * @return the number of entries read.
+   */
+  public static int readQueryResult(InputStream stream, ScanEntityValidator validator, ScanResultHandler handler)
+      throws IOException {
+    int count = 0;
+    JsonParser parser;
     try {
-      List<ScanResultEntry> scanResultEntries = new ArrayList<ScanResultEntry>();
-      JsonParser parser = jsonFactory.createJsonParser(stream);
+      parser = jsonFactory.createJsonParser(stream);
       if (parser.nextToken() != JsonToken.START_ARRAY) {
         throw new Exception("Expected '[' (JSON array start)");
       }
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException(String.format("Failed to deserialize result from JSON: %s", ex.getMessage()), ex);
+    }
 
-      while (parser.nextToken() != JsonToken.END_ARRAY) {
-          ScanResultEntry entry = mapper.readValue(parser, ScanResultEntry.class);
-          validator.process(entry);
-          scanResultEntries.add(entry);
-
+    while (true) {
+      ScanResultEntry entry;
+      try {
+        if (parser.nextToken() == JsonToken.END_ARRAY) {
+          break;
+        }
+        entry = mapper.readValue(parser, ScanResultEntry.class);
+        validator.process(entry);
+      } catch (IOException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IOException(String.format("Failed to deserialize result from JSON: %s", ex.getMessage()), ex);
       }
 
-      if (log.isTraceEnabled()) {
-        log.trace("ScanResultEntry readQueryResult [count = " + scanResultEntries.size() + "]");
-      }
+      handler.handle(entry);
+      count++;
+    }
 
-      return scanResultEntries;
-    } catch (IOException ex) {
-      throw ex;
-    } catch (Exception ex) {
-      throw new IOException("Failed to deserialize result from JSON: %s".format(ex.getMessage()), ex);
+    if (log.isTraceEnabled()) {
+      log.trace("ScanResultEntry readQueryResult [count = " + count + "]");
     }
+
+    return count;
   }
 
   public static void writeProcessingResponse(OutputStream responseStream, ProcessingResponse response)
@@ -187,4 +223,31 @@ public class JSONHelper {
     }
   }
 
+  /**
+   * Writes the entries of a query result one at a time, so that a result never needs to be held in memory in full.
+   * The result is only complete once finish has been called.
+   */
+  public static class QueryResultWriter {
+    private final JsonGenerator generator;
+
+    public QueryResultWriter(OutputStream responseStream) throws IOException {
+      this.generator = jsonFactory.createJsonGenerator(responseStream, JsonEncoding.UTF8);
+      generator.writeStartArray();
+    }
+
+    public void write(ScanResultEntry entry) throws IOException {
+      try {
+        streamingMapper.writeValue(generator, entry);
+      } catch (IOException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IOException("Failed to serialize result to JSON", ex);
+      }
+    }
+
+    public void finish() throws IOException {
+      generator.writeEndArray();
+      generator.flush();
+    }
+  }
 }
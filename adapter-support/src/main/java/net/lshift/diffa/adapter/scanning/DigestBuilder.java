@@ -38,17 +38,44 @@ import java.util.*;
  * [a b A B].sortBy(unicodeOrdering) -> [A a B b]
  * [a b A B].sortBy(asciiOrdering) -> [A B a b]
  *
+ * Since this sits on the hot path of every aggregate scan, adding an entity avoids allocation wherever possible:
+ * buckets are located via a reusable lookup key (so the attribute map is only copied when a new bucket is created),
+ * the bucket name of the most recent attribute value is remembered per aggregation, digests are cloned from a
+ * prototype instead of being looked up from the security providers, ASCII versions are encoded into a reused
+ * buffer, and the ordering of ids is checked against the sort key of the previous id where the collation has them.
  */
 @NotThreadSafe
-public class DigestBuilder {
+public class DigestBuilder implements ScanResultHandler {
   private final static Logger log = LoggerFactory.getLogger(DigestBuilder.class);
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+  private final static String DIGEST_ALGORITHM = "MD5";
+  private final static MessageDigest DIGEST_PROTOTYPE;
+
+  static {
+    try {
+      DIGEST_PROTOTYPE = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException("MD5 digest algorithm no available");
+    }
+  }
+
   private final Map<BucketKey, Bucket> digestBuckets;
   private final List<ScanAggregation> aggregations;
   // this should be a Comparator<String>, but both ICU and the JDK's Collators
   // implement Comparator<Object>. Even  though they both compare strings.
   // So much for Type safety.
   private final Collation collation;
+  private final KeyedCollation keyedCollation;
   private String previousId = null;
+  private byte[] previousKey = null;
+
+  // Per-aggregation state that is reused between calls to add
+  private final String[] aggregatedNames;
+  private final String[] previousValues;
+  private final String[] previousBuckets;
+  private final String[] currentBuckets;
+  private final BucketKey lookupKey;
+  private byte[] encodingBuffer = new byte[64];
 
 
   public DigestBuilder(List<ScanAggregation> aggregations) {
@@ -64,6 +91,17 @@ public class DigestBuilder {
       throw new NullPointerException("Collator is null");
     }
     this.collation = collation;
+    this.keyedCollation = collation instanceof KeyedCollation ? (KeyedCollation) collation : null;
+
+    int count = aggregations.size();
+    this.aggregatedNames = new String[count];
+    this.previousValues = new String[count];
+    this.previousBuckets = new String[count];
+    this.currentBuckets = new String[count];
+    for (int i = 0; i < count; i++) {
+      aggregatedNames[i] = aggregations.get(i).getAttributeName();
+    }
+    this.lookupKey = new BucketKey(aggregatedNames, currentBuckets);
   }
 
   /**
@@ -75,6 +113,16 @@ public class DigestBuilder {
     add(entry.getId(), entry.getAttributes(), entry.getVersion());
   }
 
+  /**
+   * Adds a scan result entry, allowing the builder to be handed entities as they are read, such as from a database
+   * cursor, so that the digests can be built in a single pass without the entities being held in memory.
+   * @param entry the entry to add.
+   */
+  @Override
+  public void handle(ScanResultEntry entry) {
+    add(entry);
+  }
+
   /**
    * Adds a new version into the builder.
    * @param id the id of the entity being added
@@ -83,57 +131,157 @@ public class DigestBuilder {
    * @param vsn the version of the entity
    */
   public void add(String id, Map<String, String> attributes, String vsn) {
-    log.trace("Adding to bucket: " + id + ", " + attributes + ", " + vsn);
+    if (log.isTraceEnabled()) {
+      log.trace("Adding to bucket: " + id + ", " + attributes + ", " + vsn);
+    }
 
     if (!isCorrectlyOrdered(id)) {
      throw new OutOfOrderException(previousId,id);
     }
     previousId = id;
 
-    Map<String, String> partitions = new HashMap<String, String>();
-    partitions.putAll(attributes);    // Default partitions to the initial attribute set
-    for (ScanAggregation aggregation : aggregations) {
-      String attrVal = attributes.get(aggregation.getAttributeName());
+    for (int i = 0; i < aggregatedNames.length; i++) {
+      String attrVal = attributes.get(aggregatedNames[i]);
       if (attrVal == null) {
-        throw new MissingAttributeException(id, aggregation.getAttributeName());
+        throw new MissingAttributeException(id, aggregatedNames[i]);
       }
 
-      String bucket = aggregation.bucket(attrVal);
-      partitions.put(aggregation.getAttributeName(), bucket);
+      if (!attrVal.equals(previousValues[i])) {
+        previousValues[i] = attrVal;
+        previousBuckets[i] = aggregations.get(i).bucket(attrVal);
+      }
+      currentBuckets[i] = previousBuckets[i];
     }
 
-    BucketKey key = new BucketKey(partitions);
-    Bucket bucket = digestBuckets.get(key);
+    lookupKey.reset(attributes);
+    Bucket bucket = digestBuckets.get(lookupKey);
     if (bucket == null) {
+      // Only a new bucket requires its own copy of the partitions
+      Map<String, String> partitions = new HashMap<String, String>();
+      partitions.putAll(attributes);    // Default partitions to the initial attribute set
+      for (int i = 0; i < aggregatedNames.length; i++) {
+        partitions.put(aggregatedNames[i], currentBuckets[i]);
+      }
+
+      BucketKey key = new BucketKey(partitions);
       bucket = new Bucket(key, partitions);
       digestBuckets.put(key, bucket);
     }
 
-    bucket.add(vsn);
+    // Encoding may replace the buffer with a larger one, so it must happen before the buffer is read
+    int length = encode(vsn);
+    bucket.add(vsn, encodingBuffer, length);
   }
 
     private boolean isCorrectlyOrdered(String id) {
-      if (previousId != null) {
+      if (keyedCollation != null) {
+        // Each id's key is computed once, rather than once for each of the two comparisons it takes part in
+        byte[] key = keyedCollation.sortKey(id);
+        boolean ordered = previousKey == null || SortKeys.compare(key, previousKey) >= 0;
+        previousKey = key;
+        return ordered;
+      } else if (previousId != null) {
         return !collation.sortsBefore(id, previousId);
       } else {
         return true;
       }
     }
 
-    public List<ScanResultEntry> toDigests() {
-    List<ScanResultEntry> result = new ArrayList<ScanResultEntry>();
-    for (Bucket bucket : digestBuckets.values()) {
-      result.add(bucket.toDigest());
+  /**
+   * Encodes the given version as UTF-8 into the encoding buffer, returning the number of bytes written. Versions are
+   * almost always ASCII, so they are copied directly; anything else falls back to the general purpose encoder.
+   */
+  private int encode(String vsn) {
+    int length = vsn.length();
+    if (length > encodingBuffer.length) {
+      encodingBuffer = new byte[Math.max(length, encodingBuffer.length * 2)];
+    }
+
+    for (int i = 0; i < length; i++) {
+      char c = vsn.charAt(i);
+      if (c >= 0x80) {
+        byte[] vsnBytes = vsn.getBytes(UTF8);
+        if (vsnBytes.length > encodingBuffer.length) {
+          encodingBuffer = vsnBytes;
+        } else {
+          System.arraycopy(vsnBytes, 0, encodingBuffer, 0, vsnBytes.length);
+        }
+        return vsnBytes.length;
+      }
+      encodingBuffer[i] = (byte) c;
     }
 
+    return length;
+  }
+
+    public List<ScanResultEntry> toDigests() {
+    final List<ScanResultEntry> result = new ArrayList<ScanResultEntry>();
+    writeDigests(new ScanResultHandler() {
+      @Override
+      public void handle(ScanResultEntry entry) {
+        result.add(entry);
+      }
+    });
+
     return result;
   }
 
+  /**
+   * Passes the digest of each bucket to the given handler, such as the handler of a streaming scan response.
+   * @param handler the handler to pass the digests to.
+   */
+  public void writeDigests(ScanResultHandler handler) {
+    for (Bucket bucket : digestBuckets.values()) {
+      handler.handle(bucket.toDigest());
+    }
+  }
+
+  /**
+   * Identifies a bucket by its partitioned attributes. A stored key simply holds the partitions of its bucket, whilst
+   * the builder's lookup key is pointed at an entity's attributes and overlays the bucket names of the aggregated
+   * attributes, so that an existing bucket can be found without building its partitions first. Both forms hash and
+   * compare as the equivalent partition map would.
+   */
   private static class BucketKey {
-    private final Map<String, String> attributes;
+    private final String[] overlaidNames;
+    private final String[] overlaidValues;
+    private Map<String, String> attributes;
+    private int hash;
 
     public BucketKey(Map<String, String> attributes) {
+      this.overlaidNames = null;
+      this.overlaidValues = null;
+      this.attributes = attributes;
+      this.hash = computeHash();
+    }
+
+    private BucketKey(String[] overlaidNames, String[] overlaidValues) {
+      this.overlaidNames = overlaidNames;
+      this.overlaidValues = overlaidValues;
+    }
+
+    void reset(Map<String, String> attributes) {
       this.attributes = attributes;
+      this.hash = computeHash();
+    }
+
+    private String get(String name) {
+      if (overlaidNames != null) {
+        for (int i = 0; i < overlaidNames.length; i++) {
+          if (overlaidNames[i].equals(name)) return overlaidValues[i];
+        }
+      }
+      return attributes.get(name);
+    }
+
+    private int computeHash() {
+      // Matches Map.hashCode for the partitions this key represents
+      int h = 0;
+      for (String name : attributes.keySet()) {
+        String value = get(name);
+        h += (name == null ? 0 : name.hashCode()) ^ (value == null ? 0 : value.hashCode());
+      }
+      return h;
     }
 
     @Override
@@ -143,46 +291,58 @@ public class DigestBuilder {
 
       BucketKey bucketKey = (BucketKey) o;
 
-      if (attributes != null ? !attributes.equals(bucketKey.attributes) : bucketKey.attributes != null) return false;
+      if (hash != bucketKey.hash || attributes.size() != bucketKey.attributes.size()) return false;
+      for (String name : attributes.keySet()) {
+        String value = get(name);
+        String otherValue = bucketKey.get(name);
+        if (value != null ? !value.equals(otherValue) : otherValue != null || !bucketKey.attributes.containsKey(name)) return false;
+      }
 
       return true;
     }
 
     @Override
     public int hashCode() {
-      return attributes != null ? attributes.hashCode() : 0;
+      return hash;
     }
   }
 
   private static class Bucket {
     private final BucketKey key;
     private final Map<String, String> attributes;
-    private final String digestAlgorithm = "MD5";
     private final MessageDigest messageDigest;
     private String digest = null;
 
     public Bucket(BucketKey key, Map<String, String> attributes) {
       this.key = key;
       this.attributes = attributes;
+      this.messageDigest = newDigest();
+    }
 
+    private static MessageDigest newDigest() {
       try {
-        this.messageDigest = MessageDigest.getInstance(digestAlgorithm);
-      } catch (NoSuchAlgorithmException ex) {
-        throw new RuntimeException("MD5 digest algorithm no available");
+        return (MessageDigest) DIGEST_PROTOTYPE.clone();
+      } catch (CloneNotSupportedException ex) {
+        try {
+          return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+          throw new RuntimeException("MD5 digest algorithm no available");
+        }
       }
     }
 
     /**
      * Adds a version to be included the digest computation
      * @param vsn  The version string to add.
+     * @param vsnBytes a buffer holding the UTF-8 encoding of the version.
+     * @param length the number of bytes of the buffer that are in use.
      * @throws SealedBucketException When the digest for the current builder instance has already been computed.
      */
-    public void add(String vsn) {
+    public void add(String vsn, byte[] vsnBytes, int length) {
       if (digest != null) {
         throw new SealedBucketException(vsn, getLabel());
       }
-      byte[] vsnBytes = vsn.getBytes(Charset.forName("UTF-8"));
-      messageDigest.update(vsnBytes, 0, vsnBytes.length);
+      messageDigest.update(vsnBytes, 0, length);
     }
 
     public ScanResultEntry toDigest() {
@@ -207,4 +367,3 @@ public class DigestBuilder {
     }
   }
 }
-
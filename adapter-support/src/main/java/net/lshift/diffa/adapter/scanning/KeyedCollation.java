@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+/**
+ * A collation whose ordering can be captured as a binary sort key for each value, such that comparing the keys of
+ * two values byte by byte (as unsigned bytes) orders them the same way as sortsBefore would.
+ *
+ * Computing a key costs about as much as a single comparison, so when many comparisons are to be made against the
+ * same values, such as when sorting or checking that a series of ids is correctly ordered, computing each value's key
+ * once and comparing the keys is far cheaper than comparing the values themselves.
+ */
+public interface KeyedCollation extends Collation {
+  /**
+   * Computes the sort key of the given value.
+   */
+  public byte[] sortKey(String value);
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+import net.lshift.diffa.adapter.common.BinaryScanResultHelper;
+import net.lshift.diffa.adapter.common.JSONHelper;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Writes the entries of a scan response as they are handed to it, in whichever form the request accepts. Since a
+ * ScanResultHandler can't throw checked exceptions, a failure to write an entry is raised as a WriteFailedException,
+ * which the servlet unwraps again.
+ */
+abstract class ScanResponseWriter implements ScanResultHandler {
+
+  static ScanResponseWriter forRequest(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (BinaryScanResultHelper.acceptsBinary(req.getHeader("Accept"))) {
+      resp.setContentType(BinaryScanResultHelper.BINARY_CONTENT_TYPE);
+      final BinaryScanResultHelper.QueryResultWriter writer =
+          new BinaryScanResultHelper.QueryResultWriter(resp.getOutputStream());
+
+      return new ScanResponseWriter() {
+        @Override protected void write(ScanResultEntry entry) throws IOException { writer.write(entry); }
+        @Override public void finish() throws IOException { writer.finish(); }
+      };
+    } else {
+      resp.setContentType("application/json");
+      final JSONHelper.QueryResultWriter writer = new JSONHelper.QueryResultWriter(resp.getOutputStream());
+
+      return new ScanResponseWriter() {
+        @Override protected void write(ScanResultEntry entry) throws IOException { writer.write(entry); }
+        @Override public void finish() throws IOException { writer.finish(); }
+      };
+    }
+  }
+
+  @Override
+  public void handle(ScanResultEntry entry) {
+    try {
+      write(entry);
+    } catch (IOException ex) {
+      throw new WriteFailedException(ex);
+    }
+  }
+
+  protected abstract void write(ScanResultEntry entry) throws IOException;
+
+  public abstract void finish() throws IOException;
+
+  static class WriteFailedException extends RuntimeException {
+    WriteFailedException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+}
@@ -15,8 +15,6 @@
  */
 package net.lshift.diffa.adapter.scanning;
 
-import net.lshift.diffa.adapter.common.JSONHelper;
-
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -26,7 +24,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Base support servlet for implementing a Diffa scanning adapter.
+ * Base support servlet for implementing a Diffa scanning adapter. Results are written as JSON, unless the request
+ * accepts the more compact binary form.
  */
 public abstract class ScanningParticipantServlet extends HttpServlet {
   @Override
@@ -36,9 +35,13 @@ public abstract class ScanningParticipantServlet extends HttpServlet {
     List<ScanConstraint> constraints = determineConstraints(req);
     List<ScanAggregation> aggregations = determineAggregations(req);
 
-    List<ScanResultEntry> entries = doQuery(constraints, aggregations);
-    resp.setContentType("application/json");
-    JSONHelper.writeQueryResult(resp.getOutputStream(), entries);
+    ScanResponseWriter writer = ScanResponseWriter.forRequest(req, resp);
+    try {
+      doQuery(constraints, aggregations, writer);
+    } catch (ScanResponseWriter.WriteFailedException ex) {
+      throw ex.getCause();
+    }
+    writer.finish();
   }
 
   /**
@@ -66,4 +69,19 @@ public abstract class ScanningParticipantServlet extends HttpServlet {
    * @return the result entries.
    */
   protected abstract List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations);
+
+  /**
+   * Queries for data relevant to this query, passing each entry to the given handler to be written to the response.
+   * The default implementation passes on the entries of the list returned by doQuery; see
+   * StreamingScanningParticipantServlet for adapters that would rather produce their entries incrementally.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param handler the handler to pass each result entry to.
+   */
+  protected void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                         ScanResultHandler handler) {
+    for (ScanResultEntry entry : doQuery(constraints, aggregations)) {
+      handler.handle(entry);
+    }
+  }
 }
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+import java.util.Comparator;
+
+/**
+ * Orders the sort keys of a KeyedCollation.
+ */
+public final class SortKeys {
+  public static final Comparator<byte[]> ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] left, byte[] right) {
+      return SortKeys.compare(left, right);
+    }
+  };
+
+  private SortKeys() {}
+
+  /**
+   * Compares two sort keys as a series of unsigned bytes.
+   */
+  public static int compare(byte[] left, byte[] right) {
+    int length = Math.min(left.length, right.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (left[i] & 0xff) - (right[i] & 0xff);
+      if (diff != 0) return diff;
+    }
+    return left.length - right.length;
+  }
+}
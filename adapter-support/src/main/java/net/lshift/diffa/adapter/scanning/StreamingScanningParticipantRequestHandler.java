@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+import org.springframework.web.HttpRequestHandler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Base Spring HttpRequestHandler support for Diffa participants that produce their results incrementally. Extends
+ * off the streaming Servlet implementation.
+ */
+public abstract class StreamingScanningParticipantRequestHandler
+    extends StreamingScanningParticipantServlet
+    implements HttpRequestHandler {
+
+  /**
+   * Delegate the Spring handleRequest implementation to the standard service dispatcher method.
+   */
+  @Override
+  public void handleRequest(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    service(request, response);
+  }
+}
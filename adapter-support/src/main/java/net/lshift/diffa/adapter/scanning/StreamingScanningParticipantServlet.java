@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base support servlet for implementing a Diffa scanning adapter whose results are produced incrementally, such as
+ * from a database cursor. Each entry is written to the response as soon as it is handed to the handler, so neither
+ * the whole result needs to be held in memory, nor does the response need to wait for the query to complete.
+ *
+ * Aggregated queries can be answered in a single pass by adding each entity to a DigestBuilder, then writing its
+ * digests to the handler.
+ */
+public abstract class StreamingScanningParticipantServlet extends ScanningParticipantServlet {
+
+  /**
+   * Callback to be implemented by sub-classes to query for data relevant to this query.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param handler the handler to pass each result entry to, in the order that they should be returned.
+   */
+  @Override
+  protected abstract void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                                  ScanResultHandler handler);
+
+  /**
+   * Collects the entries produced by the streaming query into a list.
+   */
+  @Override
+  protected final List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations) {
+    final List<ScanResultEntry> entries = new ArrayList<ScanResultEntry>();
+    doQuery(constraints, aggregations, new ScanResultHandler() {
+      @Override
+      public void handle(ScanResultEntry entry) {
+        entries.add(entry);
+      }
+    });
+    return entries;
+  }
+}
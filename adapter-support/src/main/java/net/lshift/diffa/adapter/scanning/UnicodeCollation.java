@@ -18,11 +18,21 @@ package net.lshift.diffa.adapter.scanning;
 import com.ibm.icu.text.Collator;
 import java.util.Locale;
 
-public class UnicodeCollation implements Collation {
-  private Collator coll = Collator.getInstance(Locale.ROOT);
+/**
+ * Orders ids according to the root locale of the Unicode Collation Algorithm.
+ *
+ * The underlying collator is frozen, which makes it safe to share between threads without any locking.
+ */
+public class UnicodeCollation implements KeyedCollation {
+  private final Collator coll = Collator.getInstance(Locale.ROOT).freeze();
 
   @Override
   public boolean sortsBefore(String left, String right) {
     return coll.compare(left, right) < 0;
   }
+
+  @Override
+  public byte[] sortKey(String value) {
+    return coll.getCollationKey(value).toByteArray();
+  }
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.common;
+
+import net.lshift.diffa.adapter.changes.ChangeEvent;
+import net.lshift.diffa.adapter.scanning.ScanResultEntry;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary serialisation support.
+ */
+public class BinaryScanResultHelperTest {
+  private final static ScanEntityValidator nullValidator = new ScanEntityValidator () {
+    public void process(ScanResultEntry e) {}
+    public void process(ChangeEvent e)  {}
+  };
+
+  @Test
+  public void shouldRoundTripEmptyResult() throws Exception {
+    assertEquals(new ArrayList<ScanResultEntry>(), roundTrip(new ArrayList<ScanResultEntry>()));
+  }
+
+  @Test
+  public void shouldRoundTripEntitiesAndAggregates() throws Exception {
+    Map<String, String> firstAttrs = new HashMap<String, String>();
+    firstAttrs.put("bizDate", "2011-06-05T15:34:44.000Z");
+    firstAttrs.put("name", "\u00e9t\u00e9");
+    Map<String, String> secondAttrs = new HashMap<String, String>();
+    secondAttrs.put("name", "winter");
+    secondAttrs.put("empty", null);
+
+    List<ScanResultEntry> entries = Arrays.asList(
+      ScanResultEntry.forEntity("id1", "v1", new DateTime(2011, 6, 5, 15, 34, 44, 0, DateTimeZone.UTC), firstAttrs),
+      ScanResultEntry.forEntity("id2", "v2", new DateTime(2011, 6, 6, 12, 0, 0, 0, DateTimeZone.UTC), secondAttrs),
+      ScanResultEntry.forEntity("id3", "v3", null),
+      ScanResultEntry.forAggregate("digest", Collections.<String, String>emptyMap())
+    );
+
+    assertEquals(entries, roundTrip(entries));
+  }
+
+  @Test
+  public void shouldOnlyWriteAttributeNamesOnce() throws Exception {
+    List<ScanResultEntry> entries = new ArrayList<ScanResultEntry>();
+    for (int i = 0; i < 100; i++) {
+      entries.add(ScanResultEntry.forAggregate("v" + i, Collections.singletonMap("someAttributeName", "x")));
+    }
+
+    String written = new String(write(entries), "ISO-8859-1");
+    assertEquals(written.indexOf("someAttributeName"), written.lastIndexOf("someAttributeName"));
+  }
+
+  @Test
+  public void shouldRecogniseBinaryResult() throws Exception {
+    byte[] binary = write(new ArrayList<ScanResultEntry>());
+    BufferedInputStream stream = new BufferedInputStream(new ByteArrayInputStream(binary));
+
+    assertTrue(BinaryScanResultHelper.isBinary(stream));
+    assertEquals(binary[0], stream.read());   // Nothing should have been consumed
+  }
+
+  @Test
+  public void shouldNotRecogniseJsonResult() throws Exception {
+    BufferedInputStream stream = new BufferedInputStream(new ByteArrayInputStream("[]".getBytes("UTF-8")));
+
+    assertFalse(BinaryScanResultHelper.isBinary(stream));
+    assertEquals('[', stream.read());
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldRejectTruncatedResult() throws Exception {
+    byte[] binary = write(Arrays.asList(ScanResultEntry.forEntity("id1", "v1", null)));
+    BinaryScanResultHelper.readQueryResult(
+      new ByteArrayInputStream(Arrays.copyOf(binary, binary.length - 1)), nullValidator);
+  }
+
+  private static byte[] write(List<ScanResultEntry> entries) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    BinaryScanResultHelper.writeQueryResult(baos, entries);
+    return baos.toByteArray();
+  }
+
+  private static List<ScanResultEntry> roundTrip(List<ScanResultEntry> entries) throws IOException {
+    return BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream(write(entries)), nullValidator);
+  }
+}
@@ -146,6 +146,22 @@ public class JSONHelperTest {
     assertEquals(entry, deserialised.get(0));
   }
 
+  @Test
+  public void shouldWriteEntriesIncrementallyAsTheWholeResultWouldBeWritten() throws Exception {
+    List<ScanResultEntry> entries = Arrays.asList(
+      ScanResultEntry.forEntity("id1", "v1", new DateTime(2011, 6, 5, 15, 3, 0, 0, DateTimeZone.UTC), generateAttributes("a1v1", "a2v2")),
+      ScanResultEntry.forAggregate("v2", generateAttributes("a1v1", "a2v3")));
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    JSONHelper.QueryResultWriter writer = new JSONHelper.QueryResultWriter(baos);
+    for (ScanResultEntry entry : entries) {
+      writer.write(entry);
+    }
+    writer.finish();
+
+    assertJSONEquals(serialiseResult(entries), new String(baos.toByteArray(), "UTF-8"));
+  }
+
   @Test
   public void shouldRoundtripProcessingResponseWithoutAttributes() throws Exception {
     ProcessingResponse resp = new ProcessingResponse("id1", "uv1", "dv1");
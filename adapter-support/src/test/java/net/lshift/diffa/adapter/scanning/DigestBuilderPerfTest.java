@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeThat;
+
+/**
+ * Measures the throughput of the digest builder, along with the number of bytes it allocates per entity where the
+ * JVM is able to report it.
+ */
+public class DigestBuilderPerfTest {
+  private static final DateTime START = new DateTime(2009, 6, 6, 0, 0, 0, 0, DateTimeZone.UTC);
+  private static final List<ScanAggregation> aggregations = Arrays.<ScanAggregation>asList(
+      new DateAggregation("bizDate", DateGranularityEnum.Daily),
+      new ByNameAggregation("someString"));
+
+  private final int entityCount = Integer.valueOf(System.getProperty("diffa.perf.entityCount", "1000000"));
+
+  @Before
+  public void checkPerformanceTestingEnabled() {
+    assumeThat(System.getProperty("diffa.perftest"), is(equalTo("1")));
+  }
+
+  @Test
+  public void shouldDigestLargeNumbersOfEntities() {
+    digestLargeNumbersOfEntities(new AsciiCollation());
+  }
+
+  @Test
+  public void shouldDigestLargeNumbersOfEntitiesWithUnicodeCollation() {
+    digestLargeNumbersOfEntities(new UnicodeCollation());
+  }
+
+  private void digestLargeNumbersOfEntities(Collation collation) {
+    List<ScanResultEntry> entities = new ArrayList<ScanResultEntry>(entityCount);
+    for (int i = 0; i < entityCount; i++) {
+      Map<String, String> attributes = new HashMap<String, String>();
+      attributes.put("bizDate", START.plusMinutes(i).toString());
+      attributes.put("someString", "s" + (i % 10));
+      entities.add(ScanResultEntry.forEntity(String.format("id%09d", i), "vsn" + i, null, attributes));
+    }
+
+    // Warm up, so that the measured run reflects compiled code
+    digest(entities, collation);
+
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    int digests = digest(entities, collation);
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocatedBefore;
+
+    System.out.println(String.format("Digested %d entities into %d buckets with %s in %dms (%d entities/sec)",
+        entityCount, digests, collation.getClass().getSimpleName(), elapsed / 1000000, (long) (entityCount / (elapsed / 1e9))));
+    if (allocatedBefore >= 0) {
+      System.out.println(String.format("Allocated %d bytes per entity", allocated / entityCount));
+    }
+
+    assertEquals(10 * ((entityCount - 1) / (24 * 60) + 1), digests, 10);
+  }
+
+  private int digest(List<ScanResultEntry> entities, Collation collation) {
+    DigestBuilder builder = new DigestBuilder(aggregations, collation);
+    for (ScanResultEntry entity : entities) {
+      builder.add(entity);
+    }
+    return builder.toDigests().size();
+  }
+
+  /**
+   * Retrieves the number of bytes allocated by the current thread, or -1 if the JVM doesn't support reporting it.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -89,6 +89,22 @@ public class DigestBuilderTest {
       new HashSet<ScanResultEntry>(builder.toDigests()));
   }
 
+  @Test
+  public void shouldDigestNonAsciiAndLongVersionsAsUtf8() {
+    DigestBuilder builder = new DigestBuilder(aggregations);
+    StringBuilder longVsn = new StringBuilder();
+    for (int i = 0; i < 100; i++) longVsn.append("vsn").append(i);
+
+    builder.add("id1", createAttrMap(JUN_6_2009_1, "a"), "vsn1");
+    builder.add("id2", createAttrMap(JUN_6_2009_2, "a"), "vsn\u00e9\u4e2d");
+    builder.add("id3", createAttrMap(JUN_6_2009_2, "a"), longVsn.toString());
+
+    assertEquals(
+      Arrays.asList(
+        ScanResultEntry.forAggregate(DigestUtils.md5Hex("vsn1" + "vsn\u00e9\u4e2d" + longVsn), createAttrMap("2009-06-06", "a"))),
+      builder.toDigests());
+  }
+
   /**
    * The idea behind this is that a bucket should be immutable after it
    * has been digested, hence adding a new item to the same bucket
@@ -126,6 +142,26 @@ public class DigestBuilderTest {
       new HashSet<ScanResultEntry>(builder.toDigests()));
   }
 
+  @Test
+  public void shouldStreamDigestsOfHandledEntries() {
+    DigestBuilder builder = new DigestBuilder(aggregations);
+
+    builder.handle(ScanResultEntry.forEntity("id1", "vsn1", null, createAttrMap(JUN_6_2009_1, "a")));
+    builder.handle(ScanResultEntry.forEntity("id2", "vsn2", null, createAttrMap(JUN_6_2009_2, "a")));
+
+    final List<ScanResultEntry> digests = new ArrayList<ScanResultEntry>();
+    builder.writeDigests(new ScanResultHandler() {
+      @Override
+      public void handle(ScanResultEntry entry) {
+        digests.add(entry);
+      }
+    });
+
+    assertEquals(
+      Arrays.asList(ScanResultEntry.forAggregate(DigestUtils.md5Hex("vsn1" + "vsn2"), createAttrMap("2009-06-06", "a"))),
+      digests);
+  }
+
   @Test(expected = OutOfOrderException.class)
   public void shouldRejectOutOfOrderIds() {
     DigestBuilder builder = new DigestBuilder(aggregations);
@@ -17,8 +17,10 @@ package net.lshift.diffa.adapter.scanning;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 public class UnicodeCollationTest {
-  private Collation collation = new UnicodeCollation();
+  private UnicodeCollation collation = new UnicodeCollation();
   @Test
   public void trivial() {
     assert(collation.sortsBefore("a", "b"));
@@ -34,4 +36,14 @@ public class UnicodeCollationTest {
     assert(!collation.sortsBefore("C", "b"));
   }
 
+  @Test public void sortKeysShouldOrderValuesAsSortsBefore() {
+    String[] values = { "a", "A", "b", "B", "ab", "aB", "\u00e9", "e", "f", "10", "9", "", "a-b", "a b" };
+    for (String left : values) {
+      for (String right : values) {
+        int expected = collation.sortsBefore(left, right) ? -1 : (collation.sortsBefore(right, left) ? 1 : 0);
+        int actual = Integer.signum(SortKeys.compare(collation.sortKey(left), collation.sortKey(right)));
+        assertEquals(left + " vs " + right, expected, actual);
+      }
+    }
+  }
 }
@@ -68,9 +68,7 @@ class AccentReceiver(con: AccentConnection,
         def run() {
           try {
 
-            JSONHelper.readChangeEvents(new ByteArrayInputStream(body), EntityValidator).foreach(
-              changes.onChange(space, endpoint, _)
-            )
+            changes.onChanges(space, endpoint, JSONHelper.readChangeEvents(new ByteArrayInputStream(body), EntityValidator))
 
             consumer.reliableAck(header.getDeliveryTag, false)
           }
@@ -59,6 +59,34 @@ class ChangesResource(changes:Changes, space:Long, rateLimiterFactory: DomainRat
     }
     responseBuilder.`type`("text/plain").build()
   }
+
+  /**
+   * Accepts a batch of changes for the endpoint. Each event in the batch counts towards the change event rate limit,
+   * and the batch is rejected as a whole if it would exceed it.
+   */
+  @POST
+  @Path("/{endpoint}/batch")
+  @Consumes(Array("application/json"))
+  def submitChanges(@PathParam("endpoint") endpoint: String, events:Array[ChangeEvent]) = {
+    ensurePrivilege(permissionEvaluator, Privileges.POST_CHANGE_EVENT, new EndpointTarget(space, endpoint))
+
+    val limiter = ServiceLimiterRegistry.get(
+      ServiceLimiterKey(ChangeEventRate, Some(space), None),
+      () => rateLimiterFactory.createRateLimiter(space))
+
+    val responseBuilder = if (limiter.accept(events.length)) {
+      try {
+        events.foreach(validator.process(_))
+        changes.onChanges(space, endpoint, events)
+        Response.status(Response.Status.ACCEPTED)
+      } catch {
+        case e: InvalidEntityException => Response.status(400).entity(e.getMessage + "\n")
+      }
+    } else {
+      Response.status(420)
+    }
+    responseBuilder.`type`("text/plain").build()
+  }
 }
 
 
@@ -28,20 +28,17 @@ import collection.mutable.ListBuffer
 import org.joda.time.format.ISODateTimeFormat
 import java.util.HashMap
 import net.lshift.diffa.kernel.frontend.InvalidInventoryException
-import net.lshift.diffa.kernel.differencing.EntityValidator
-import net.lshift.diffa.adapter.common.{InvalidEntityException, ScanEntityValidator}
 
 /**
- * Provider for encoding and decoding Diffa inventory submissions blocks.
+ * Provider for encoding and decoding Diffa inventory submissions blocks. Only the header is read up front; the entries
+ * are parsed as the resulting list is iterated, so that an inventory never needs to be held in memory in full. The
+ * entries themselves are validated by whatever they are submitted to.
  */
 @Provider
 @Consumes(Array("text/csv", "text/comma-separated-values"))
-class InventoryReader(resultValidator:ScanEntityValidator)
-  extends MessageBodyReader[ScanResultList] {
+class InventoryReader extends MessageBodyReader[ScanResultList] {
   val updatedParser = ISODateTimeFormat.dateTimeNoMillis().withZoneUTC()
 
-  def this() { this(EntityValidator) }
-
   def isReadable(propType : Class[_], genericType: Type, annotations: Array[Annotation], mediaType: MediaType) =
     classOf[ScanResultList].isAssignableFrom(propType)
 
@@ -66,43 +63,37 @@ class InventoryReader(resultValidator:ScanEntityValidator)
         case _               => true
       }
 
-    val result = ListBuffer[ScanResultEntry]()
-    var lineCounter = 2     // We're already on line 2, since we read the header
-    var line:Array[String] = null
-    do {
-      line = reader.readNext()
-
-      if (line != null) {
-        if (line.length != header.length) {
-            throw new InvalidInventoryException("Line %s has %s elements, but the header had %s".format(
-              lineCounter, line.length, header.length))
-        }
+    new ScanResultList(handler => {
+      var lineCounter = 2     // We're already on line 2, since we read the header
+      var line:Array[String] = null
+      do {
+        line = reader.readNext()
 
-        val entry = new ScanResultEntry
-        idPosition.foreach(p => entry.setId(line(p)))
-        entry.setVersion(line(vsnPosition))
-        updatedPosition.foreach(p => {
-          try {
-            entry.setLastUpdated(updatedParser.parseDateTime(line(p)))
-          } catch {
-            case ex => throw new InvalidInventoryException("Invalid updated timestamp '%s' on line %s: %s".format(
-              line(p), lineCounter, ex.getMessage))
+        if (line != null) {
+          if (line.length != header.length) {
+              throw new InvalidInventoryException("Line %s has %s elements, but the header had %s".format(
+                lineCounter, line.length, header.length))
           }
-        })
-        entry.setAttributes(new HashMap[String, String])
-        headerIndex.foreach { case (fieldName, idx) => entry.getAttributes.put(fieldName, line(idx)) }
-        try {
-          resultValidator.process(entry)
-        } catch { case error:InvalidEntityException =>
-          throw new InvalidInventoryException("Invalid parsed result on line: %s: %s".format(lineCounter, error.getMessage))
-        }
-        result += entry
 
-        lineCounter += 1
-      }
-    } while (line != null)
+          val entry = new ScanResultEntry
+          idPosition.foreach(p => entry.setId(line(p)))
+          entry.setVersion(line(vsnPosition))
+          updatedPosition.foreach(p => {
+            try {
+              entry.setLastUpdated(updatedParser.parseDateTime(line(p)))
+            } catch {
+              case ex => throw new InvalidInventoryException("Invalid updated timestamp '%s' on line %s: %s".format(
+                line(p), lineCounter, ex.getMessage))
+            }
+          })
+          entry.setAttributes(new HashMap[String, String])
+          headerIndex.foreach { case (fieldName, idx) => entry.getAttributes.put(fieldName, line(idx)) }
+          handler(entry)
 
-    new ScanResultList(result.toSeq)
+          lineCounter += 1
+        }
+      } while (line != null)
+    })
   }
 
   private def requireField(name:String, header:Array[String]) = header.indexOf(name) match {
@@ -117,6 +108,18 @@ class InventoryReader(resultValidator:ScanEntityValidator)
 
 /**
  * Simple container class of scan results that ensure we won't run afoul of type erasure when working out whether our
- * reader is appropriate.
+ * reader is appropriate. The results are read from the underlying source as they are iterated, so can only be
+ * iterated once.
  */
-case class ScanResultList(results:Seq[ScanResultEntry])
\ No newline at end of file
+class ScanResultList(source:(ScanResultEntry => Unit) => Unit) {
+  def foreach(handler:ScanResultEntry => Unit) { source(handler) }
+
+  /**
+   * Reads all of the results into memory.
+   */
+  def results:Seq[ScanResultEntry] = {
+    val result = ListBuffer[ScanResultEntry]()
+    foreach(result += _)
+    result.toSeq
+  }
+}
@@ -70,7 +70,7 @@ class InventoryResource(changes:Changes, configStore:DomainConfigStore, space:Lo
     ep.buildAggregations(aggregationBuilder)
 
     val nextRequests = changes.submitInventory(space, endpoint, if (view != null) Some(view) else None,
-      constraintsBuilder.toList.toSeq, aggregationBuilder.toList.toSeq, content.results)
+      constraintsBuilder.toList.toSeq, aggregationBuilder.toList.toSeq, content.foreach)
     
     Response.status(Response.Status.ACCEPTED).
       `type`("text/plain").
@@ -93,7 +93,8 @@ class ScanningResource(val pairPolicyClient:PairPolicyClient,
   def cancelScanning(@PathParam("pairKey") pairKey:String) = {
     ensurePrivilege(permissionEvaluator, Privileges.CANCEL_SCAN, new PairTarget(space, pairKey))
 
-    pairPolicyClient.cancelScans(PairRef(pairKey, space))
+    val pair = PairRef(pairKey, space)
+    PairPolicyClient.await(pair, pairPolicyClient.cancelScans(pair))
     Response.status(Response.Status.OK).build
   }
 
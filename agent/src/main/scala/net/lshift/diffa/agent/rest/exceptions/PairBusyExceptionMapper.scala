@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.agent.rest.exceptions
+
+import javax.ws.rs.ext.{Provider, ExceptionMapper}
+import javax.ws.rs.core.Response
+import net.lshift.diffa.kernel.actors.{PairPolicyClient, PairBusyException}
+
+/**
+ * This transforms all PairBusyExceptions that occur in the application and returns an HTTP 503 to the requester,
+ * suggesting that the request be retried once the pair has had time to finish what it is doing.
+ */
+@Provider
+class PairBusyExceptionMapper extends ExceptionMapper[PairBusyException] {
+
+  def toResponse(x: PairBusyException) = {
+    Response.status(Response.Status.SERVICE_UNAVAILABLE).
+      header("Retry-After", PairPolicyClient.responseTimeout.toSeconds.toString).
+      entity(x.getMessage).`type`("text/plain").build()
+  }
+}
@@ -23,9 +23,6 @@ import org.joda.time.{DateTimeZone, DateTime}
 import java.util.HashMap
 import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.frontend.InvalidInventoryException
-import net.lshift.diffa.adapter.common.ScanEntityValidator
-import org.easymock.EasyMock._
-import org.hamcrest.Matchers._
 
 class InventoryReaderTest {
   val reader = new InventoryReader
@@ -106,7 +103,8 @@ class InventoryReaderTest {
   @Test
   def shouldRejectCSVWithAnInvalidUpdatedValue() {
     try {
-      parseCSV("id,version,updated", "a,v1,2012-03-07T12:31:00Z", "b,v2,garbled")
+      parseCSV("id,version,updated", "a,v1,2012-03-07T12:31:00Z", "b,v2,garbled").results
+      fail("Expected parsing to throw exception")
     } catch {
       case e:InvalidInventoryException => assertEquals("Invalid updated timestamp 'garbled' on line 3: Invalid format: \"garbled\"", e.getMessage)
     }
@@ -115,39 +113,26 @@ class InventoryReaderTest {
   @Test
   def shouldRejectCSVWithIncompleteLine() {
     try {
-      parseCSV("id,version,updated,foo,bar", "a,v1,2012-03-07T12:31:00Z,a,b", "b,v2,2012-03-07T12:31:00Z")
+      parseCSV("id,version,updated,foo,bar", "a,v1,2012-03-07T12:31:00Z,a,b", "b,v2,2012-03-07T12:31:00Z").results
+      fail("Expected parsing to throw exception")
     } catch {
       case e:InvalidInventoryException => assertEquals("Line 3 has 3 elements, but the header had 5", e.getMessage)
     }
   }
 
   @Test
-  def shouldInvokeEntryProcessor() {
-    val reader = new InventoryReader(mockValidator)
-    mockValidator.process(ScanResultEntry.forEntity("a", "v1",
-      new DateTime(2012, 3, 7, 12, 31, 0, 0, DateTimeZone.UTC),
-      (Map("foo" -> "x", "bar" -> "y"))))
-    replay(mockValidator)
-
-    parseCSVWith(reader, Seq("id,version,updated,foo,bar", "a,v1,2012-03-07T12:31:00Z,x,y"))
-    verify(mockValidator)
-  }
+  def shouldPassEachEntryToHandlerBeforeReadingTheNext() {
+    val result = parseCSV("id,version,updated", "a,v1,2012-03-07T12:31:00Z", "b,v2,garbled")
+    var handled = Seq[String]()
 
-  // In a sense, this is redundant with shouldInvokeEntryProcessor, but
-  // We we want to validate that it does use a sane default.
-  @Test
-  def shouldRejectCSVWithInvalidIdByDefault() {
-    val snowman = "\u2603"
     try {
-      parseCSV("id,version,updated,foo,bar", snowman + ",v1,2012-03-07T12:31:00Z,a,b")
+      result.foreach(e => handled :+= e.getId)
       fail("Expected parsing to throw exception")
     } catch {
-      case e:InvalidInventoryException =>
-        assertThat(e.getMessage, containsString(snowman))
+      case e:InvalidInventoryException => assertEquals(Seq("a"), handled)
     }
   }
 
-
   @Test
   def shouldAcceptCSVWithEmptyValues() {
     val result = parseCSV("id,version,updated,foo,bar", "a,v1,2012-03-07T12:31:00Z,x,y", "b,v2,2011-12-31T07:15:12Z,,")
@@ -159,12 +144,7 @@ class InventoryReaderTest {
       result.results)
   }
 
-  lazy val mockValidator = createMock(classOf[ScanEntityValidator])
-
-  private def parseCSVWith(reader: InventoryReader, s: Seq[String]) =
-    reader.readFrom(null, null, null, null, null, new ByteArrayInputStream(s.mkString("\n").getBytes("UTF-8")))
   private def parseCSV(s:String*) =
-    parseCSVWith(this.reader, s)
-
+    reader.readFrom(null, null, null, null, null, new ByteArrayInputStream(s.mkString("\n").getBytes("UTF-8")))
 
 }
\ No newline at end of file
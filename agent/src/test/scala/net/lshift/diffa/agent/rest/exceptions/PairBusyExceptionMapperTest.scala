@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.agent.rest.exceptions
+
+import org.junit.Test
+import org.junit.Assert._
+import java.util.concurrent.TimeoutException
+import net.lshift.diffa.kernel.actors.{PairPolicyClient, PairBusyException}
+import net.lshift.diffa.kernel.config.PairRef
+
+class PairBusyExceptionMapperTest {
+  val mapper = new PairBusyExceptionMapper
+  val pair = PairRef(space = 1L, name = "p1")
+
+  @Test
+  def shouldRespondAsUnavailable() {
+    val response = mapper.toResponse(new PairBusyException(pair, new TimeoutException))
+    assertEquals(503, response.getStatus)
+  }
+
+  @Test
+  def shouldSuggestRetryingOnceThePairHasHadTimeToRespond() {
+    val response = mapper.toResponse(new PairBusyException(pair, new TimeoutException))
+    assertEquals(PairPolicyClient.responseTimeout.toSeconds.toString, response.getMetadata.getFirst("Retry-After"))
+  }
+
+  @Test
+  def shouldNameTheBusyPair() {
+    val response = mapper.toResponse(new PairBusyException(pair, new TimeoutException))
+    assertTrue(response.getEntity.toString.contains(pair.identifier))
+  }
+}
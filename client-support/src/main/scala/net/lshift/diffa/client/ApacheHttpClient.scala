@@ -16,10 +16,9 @@
 
 package net.lshift.diffa.client
 
-import org.apache.http.impl.client.{DefaultHttpRequestRetryHandler, BasicAuthCache, DefaultHttpClient}
+import org.apache.http.impl.client.BasicAuthCache
 import org.apache.http.client.methods.HttpGet
 import org.apache.http.auth.{UsernamePasswordCredentials, AuthScope}
-import org.apache.http.params.{HttpConnectionParams, BasicHttpParams}
 import org.slf4j.LoggerFactory
 import org.apache.http.{NoHttpResponseException, HttpResponse, HttpHost}
 import org.apache.http.protocol.BasicHttpContext
@@ -29,20 +28,16 @@ import net.lshift.diffa.kernel.util.AlertCodes._
 import net.lshift.diffa.kernel.util.AlertCodes
 import net.lshift.diffa.kernel.differencing.ScanFailedException
 import org.apache.commons.io.IOUtils
+import net.lshift.diffa.adapter.scanning.ScanResultEntry
+import java.io.InputStream
 
 class ApacheHttpClient(connectionTimeout: Int,
-                        socketTimeout: Int) extends DiffaHttpClient {
+                       socketTimeout: Int,
+                       connectionPool: HttpConnectionPool = HttpConnectionPool.shared) extends DiffaHttpClient {
 
   private val logger = LoggerFactory.getLogger(getClass)
 
-  def newClient = {
-    val httpParams = new BasicHttpParams
-    HttpConnectionParams.setConnectionTimeout(httpParams,connectionTimeout)
-    HttpConnectionParams.setSoTimeout(httpParams, socketTimeout)
-    val client = new DefaultHttpClient(httpParams)
-    client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false))
-    client
-  }
+  def newClient = connectionPool.newClient(connectionTimeout, socketTimeout)
 
   private def basicAuthContext(targetHost: HttpHost): BasicHttpContext = {
     val authCache = new BasicAuthCache
@@ -54,9 +49,17 @@ class ApacheHttpClient(connectionTimeout: Int,
     context
   }
 
-  override def get(r : DiffaHttpQuery, parser: JsonScanResultParser) = {
+  override def get(r : DiffaHttpQuery, parser: JsonScanResultParser) : Seq[ScanResultEntry] =
+    execute(r, (content: InputStream) => parser.parse(content))
+
+  override def get(r : DiffaHttpQuery, parser: JsonScanResultParser, handler: ScanResultEntry => Unit) {
+    execute(r, (content: InputStream) => parser.parse(content, handler))
+  }
+
+  private def execute[T](r : DiffaHttpQuery, readContent: InputStream => T) : T = {
     val client = newClient
     val req = new HttpGet(r.fullUri)
+    r.accept.foreach(req.setHeader("Accept", _))
     r.basicAuth.foreach { case (user, pass) =>
       client.getCredentialsProvider.setCredentials(
         new AuthScope(r.fullUri.getHost, r.fullUri.getPort),
@@ -66,12 +69,15 @@ class ApacheHttpClient(connectionTimeout: Int,
     val uri = req.getURI
     val targetHost = new HttpHost(uri.getHost, uri.getPort, uri.getScheme)
     var resp: HttpResponse = null
+    var completed = false
     try {
       resp = client.execute(req, basicAuthContext(targetHost))
 
       resp.getStatusLine.getStatusCode match {
         case code: Int if (200 to 299) contains code =>
-          parser.parse(resp.getEntity.getContent)
+          val result = readContent(resp.getEntity.getContent)
+          completed = true
+          result
         case code =>
           logger.warn("%s - Query for URI: %s returned %s".format(
             formatAlertCode(AlertCodes.EXTERNAL_SCAN_ERROR), r.fullUri, resp.getStatusLine))
@@ -89,14 +95,15 @@ class ApacheHttpClient(connectionTimeout: Int,
         logger.error("%s Non HTTP response from %s; %s".format(NON_HTTP_RESPONSE, uri, content))
         throw new ScanFailedException("Non HTTP response from " + uri)
     }
-    // This finally block is very important, so don't nuke it, otherwise the client will leak
+    // This finally block is very important, so don't nuke it, otherwise the pooled connection will leak. A response
+    // that has been read is returned to the pool, whereas anything else is abandoned rather than reading the remainder.
     finally {
       try {
-        resp.getEntity.getContent.close()
+        if (completed) resp.getEntity.getContent.close()
+        else req.abort()
       } catch {
         case _ =>
       }
-      client.getConnectionManager.shutdown()
     }
   }
 }
@@ -32,8 +32,9 @@ import net.lshift.diffa.kernel.config._
 class ContentParticipantRestClient(pair: PairRef,
                                    scanUrl: String,
                                    serviceLimitsView: PairServiceLimitsView,
-                                   credentialsLookup:DomainCredentialsLookup)
-  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup)
+                                   credentialsLookup:DomainCredentialsLookup,
+                                   connectionPool:HttpConnectionPool = HttpConnectionPool.shared)
+  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup, connectionPool)
   with ContentParticipantRef {
 
   val log = LoggerFactory.getLogger(getClass)
@@ -46,8 +47,7 @@ class ContentParticipantRestClient(pair: PairRef,
     def prepareRequest(query:Option[QueryParameterCredentials]) = buildGetRequest(params, query)
     val (httpClient, httpGet) = maybeAuthenticate(prepareRequest)
 
-    try {
-      val response = httpClient.execute(httpGet)
+    executeRequest(httpClient, httpGet) { response =>
       response.getStatusLine.getStatusCode match {
         case 200 => EntityUtils.toString(response.getEntity)
         case 404 => throw new MissingObjectException(identifier)
@@ -56,8 +56,5 @@ class ContentParticipantRestClient(pair: PairRef,
           throw new Exception("Participant content retrieval failed")
       }
     }
-    finally {
-      shutdownImmediate(httpClient)
-    }
   }
 }
\ No newline at end of file
@@ -34,4 +34,10 @@ trait DiffaHttpClient {
   @throws(classOf[IOException])
   def get(query:DiffaHttpQuery, parser: JsonScanResultParser): Seq[ScanResultEntry]
 
+  /**
+   * Streaming variant of get, which passes each entry to the handler as it is parsed off the response.
+   */
+  @throws(classOf[IOException])
+  def get(query:DiffaHttpQuery, parser: JsonScanResultParser, handler: ScanResultEntry => Unit)
+
 }
\ No newline at end of file
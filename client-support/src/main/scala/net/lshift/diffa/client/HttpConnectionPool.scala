@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.client
+
+import java.io.Closeable
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.AtomicLong
+import javax.management.{StandardMBean, ObjectName}
+import org.apache.http.{HttpResponse, HttpRequest, HttpRequestInterceptor}
+import org.apache.http.client.protocol.{ResponseContentEncoding, RequestAcceptEncoding}
+import org.apache.http.impl.client.{DefaultConnectionKeepAliveStrategy, DefaultHttpRequestRetryHandler, DefaultHttpClient}
+import org.apache.http.impl.conn.SchemeRegistryFactory
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager
+import org.apache.http.params.{HttpConnectionParams, BasicHttpParams}
+import org.apache.http.protocol.HttpContext
+import org.slf4j.LoggerFactory
+
+/**
+ * Management interface for the connections held by a HttpConnectionPool.
+ */
+trait HttpConnectionPoolMBean {
+  def getPooledConnectionCount:Int
+  def getMaxConnections:Int
+  def getMaxConnectionsPerRoute:Int
+  def getRequestCount:Long
+}
+
+/**
+ * Keeps the connections made to participants alive between requests, so that the many queries made during a scan
+ * don't each pay for a new connection (and TLS handshake). Connections are pooled by route, meaning that each
+ * participant endpoint has its own set of connections, limited by the maximum number of connections per route.
+ *
+ * The clients handed out share the pool, so must not be shut down. Instead, each response must either be read in
+ * full, or have its request aborted, for its connection to be released.
+ */
+class HttpConnectionPool(val name:String, maxConnectionsPerRoute:Int, maxConnections:Int, keepAliveMillis:Long)
+    extends HttpConnectionPoolMBean with Closeable {
+
+  def this(name:String) = this(name, HttpConnectionPool.defaultMaxConnectionsPerRoute,
+                               HttpConnectionPool.defaultMaxConnections, HttpConnectionPool.defaultKeepAliveMillis)
+
+  private val requests = new AtomicLong
+
+  private val connectionManager = new ThreadSafeClientConnManager(SchemeRegistryFactory.createDefault())
+  connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute)
+  connectionManager.setMaxTotal(maxConnections)
+
+  HttpConnectionPool.register(this)
+
+  /**
+   * Creates a client that uses pooled connections, asks for responses to be compressed and doesn't retry requests.
+   * A timeout of zero is treated as no timeout.
+   */
+  def newClient(connectionTimeout:Int, socketTimeout:Int) = {
+    val httpParams = new BasicHttpParams
+    HttpConnectionParams.setConnectionTimeout(httpParams, connectionTimeout)
+    HttpConnectionParams.setSoTimeout(httpParams, socketTimeout)
+
+    val client = new DefaultHttpClient(connectionManager, httpParams)
+    client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false))
+    client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy {
+      override def getKeepAliveDuration(response:HttpResponse, context:HttpContext) =
+        super.getKeepAliveDuration(response, context) match {
+          case -1L      => keepAliveMillis    // The server didn't say how long, so don't keep it indefinitely
+          case duration => math.min(duration, keepAliveMillis)
+        }
+    })
+    client.addRequestInterceptor(new HttpRequestInterceptor {
+      def process(request:HttpRequest, context:HttpContext) { requests.incrementAndGet() }
+    })
+    client.addRequestInterceptor(new RequestAcceptEncoding)
+    client.addResponseInterceptor(new ResponseContentEncoding)
+    client
+  }
+
+  def getPooledConnectionCount = connectionManager.getConnectionsInPool
+  def getMaxConnections = maxConnections
+  def getMaxConnectionsPerRoute = maxConnectionsPerRoute
+  def getRequestCount = requests.get
+
+  def close() {
+    HttpConnectionPool.unregister(name)
+    connectionManager.shutdown()
+  }
+}
+
+object HttpConnectionPool {
+
+  private val log = LoggerFactory.getLogger(classOf[HttpConnectionPool])
+
+  val defaultMaxConnectionsPerRoute = 10
+  val defaultMaxConnections = 100
+  val defaultKeepAliveMillis = 30000L
+
+  /**
+   * A pool for use by clients that aren't given one explicitly.
+   */
+  lazy val shared = new HttpConnectionPool("shared")
+
+  def objectNameFor(name:String) =
+    new ObjectName("net.lshift.diffa:type=HttpConnectionPool,name=%s".format(ObjectName.quote(name)))
+
+  /**
+   * Publishes the statistics of the given pool over JMX, replacing any statistics previously published under the same
+   * name. Failing to publish them isn't allowed to prevent the pool from being used.
+   */
+  private def register(pool:HttpConnectionPool) {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer
+      val objectName = objectNameFor(pool.name)
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName)
+      }
+      server.registerMBean(new StandardMBean(pool, classOf[HttpConnectionPoolMBean]), objectName)
+    } catch {
+      case e:Exception => log.warn("Unable to publish connection pool statistics for " + pool.name, e)
+    }
+  }
+
+  private def unregister(name:String) {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer
+      val objectName = objectNameFor(name)
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName)
+      }
+    } catch {
+      case e:Exception => log.warn("Unable to withdraw connection pool statistics for " + name, e)
+    }
+  }
+}
@@ -23,10 +23,9 @@ import net.lshift.diffa.kernel.participants.CategoryFunction
 import org.apache.http.message.BasicNameValuePair
 import org.apache.http.client.utils.URLEncodedUtils
 import org.apache.http.impl.client.DefaultHttpClient
-import org.apache.http.params.{HttpConnectionParams, BasicHttpParams}
 import org.apache.http.client.HttpClient
-import net.lshift.diffa.kernel.util.AlertCodes._
-import org.slf4j.LoggerFactory
+import org.apache.http.HttpResponse
+import org.apache.http.util.EntityUtils
 import org.apache.http.auth.{UsernamePasswordCredentials, AuthScope}
 import net.lshift.diffa.kernel.config._
 import com.sun.jersey.core.util.MultivaluedMapImpl
@@ -41,9 +40,8 @@ import org.apache.http.client.entity.UrlEncodedFormEntity
 abstract class InternalRestClient(pair: PairRef,
                                   url: String,
                                   serviceLimitsView: PairServiceLimitsView,
-                                  credentialsLookup:DomainCredentialsLookup) {
-
-  private val logger = LoggerFactory.getLogger(getClass)
+                                  credentialsLookup:DomainCredentialsLookup,
+                                  connectionPool:HttpConnectionPool = HttpConnectionPool.shared) {
 
   protected val uri = new URI(url)
 
@@ -55,7 +53,7 @@ abstract class InternalRestClient(pair: PairRef,
   }
 
   protected def maybeAuthenticate(prepareRequest:Option[QueryParameterCredentials] => HttpUriRequest) = {
-    val httpClient = createHttpClient(new BasicHttpParams)
+    val httpClient = createHttpClient
 
     val request = credentialsLookup.credentialsForUri(pair.space, uri) match {
       case None        => prepareRequest(None)
@@ -119,22 +117,24 @@ abstract class InternalRestClient(pair: PairRef,
     }
   }
 
-  protected def createHttpClient(httpParams: BasicHttpParams): DefaultHttpClient = {
-    HttpConnectionParams.setConnectionTimeout(httpParams,
-      zeroIfUnlimited(ScanConnectTimeout))
-    HttpConnectionParams.setSoTimeout(httpParams,
-      zeroIfUnlimited(ScanReadTimeout))
-
-    new DefaultHttpClient(httpParams)
-  }
+  protected def createHttpClient: DefaultHttpClient =
+    connectionPool.newClient(zeroIfUnlimited(ScanConnectTimeout), zeroIfUnlimited(ScanReadTimeout))
 
-  protected def shutdownImmediate(client: HttpClient) {
+  /**
+   * Executes the given request and handles its response, after which the connection is returned to the pool. Should
+   * the handler fail, the request is aborted instead, since the remainder of the response is of no interest.
+   */
+  protected def executeRequest[T](httpClient: HttpClient, request: HttpUriRequest)(handler: HttpResponse => T): T = {
+    var completed = false
     try {
-      client.getConnectionManager.shutdown
-    } catch {
-      case e =>
-        logger.warn("Could not shut down HTTP client: {} {}",
-          Array[Object](formatAlertCode(ACTION_HTTP_CLEANUP_FAILURE), e.getClass, e.getMessage))
+      val response = httpClient.execute(request)
+      val result = handler(response)
+      EntityUtils.consume(response.getEntity)
+      completed = true
+      result
+    }
+    finally {
+      if (!completed) request.abort()
     }
   }
 
@@ -28,4 +28,12 @@ import java.io.InputStream
 
 trait JsonScanResultParser {
   def parse(stream: InputStream): Seq[ScanResultEntry]
+
+  /**
+   * Parses the stream incrementally, passing each entry to the handler as it is read. Parsers that are able to
+   * should override this so that the result is never materialised in full.
+   */
+  def parse(stream: InputStream, handler: ScanResultEntry => Unit) {
+    parse(stream).foreach(handler)
+  }
 }
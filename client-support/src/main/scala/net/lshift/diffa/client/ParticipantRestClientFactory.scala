@@ -29,7 +29,8 @@ trait ParticipantRestClientFactory {
   def supportsAddress(address: String) = address.startsWith("http://") || address.startsWith("https://")
 }
 
-class ScanningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView)
+class ScanningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView,
+                                           connectionPool:HttpConnectionPool)
   extends ScanningParticipantFactory with ParticipantRestClientFactory {
   def supports(endpoint: Endpoint) = supportsAddress(endpoint.scanUrl)
 
@@ -37,7 +38,7 @@ class ScanningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLo
     val connectTimeout = limits.getEffectiveLimitByNameForPair(pairRef.space, pairRef.name, ScanConnectTimeout)
     val readTimeout =limits.getEffectiveLimitByNameForPair(pairRef.space, pairRef.name, ScanReadTimeout)
 
-    val client = new ApacheHttpClient(connectTimeout, readTimeout)
+    val client = new ApacheHttpClient(connectTimeout, readTimeout, connectionPool)
     val validatorFactory = new CollationOrderEntityValidatorFactory(endpoint.lookupCollation)
 
     val parser = new ValidatingScanResultParser(validatorFactory) with LengthCheckingParser  {
@@ -50,10 +51,11 @@ class ScanningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLo
 
 object ScanningParticipantRestClientFactory {
   def create(pair: PairRef, endpoint: Endpoint, serviceLimitsView: PairServiceLimitsView, credentialsLookup: DomainCredentialsLookup) =
-      new ScanningParticipantRestClientFactory(credentialsLookup, serviceLimitsView).createParticipantRef(endpoint, pair)
+      new ScanningParticipantRestClientFactory(credentialsLookup, serviceLimitsView, HttpConnectionPool.shared).createParticipantRef(endpoint, pair)
 }
 
-class ContentParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView)
+class ContentParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView,
+                                          connectionPool:HttpConnectionPool)
   extends ContentParticipantFactory with ParticipantRestClientFactory {
   def supports(endpoint: Endpoint) = supportsAddress(endpoint.contentRetrievalUrl)
 
@@ -61,10 +63,12 @@ class ContentParticipantRestClientFactory(credentialsLookup:DomainCredentialsLoo
     = new ContentParticipantRestClient(serviceLimitsView = limits,
                                        scanUrl = endpoint.contentRetrievalUrl,
                                        credentialsLookup = credentialsLookup,
-                                       pair = pair)
+                                       pair = pair,
+                                       connectionPool = connectionPool)
 }
 
-class VersioningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView)
+class VersioningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView,
+                                             connectionPool:HttpConnectionPool)
   extends VersioningParticipantFactory with ParticipantRestClientFactory {
   def supports(endpoint: Endpoint) = supportsAddress(endpoint.versionGenerationUrl)
 
@@ -72,5 +76,6 @@ class VersioningParticipantRestClientFactory(credentialsLookup:DomainCredentials
     = new VersioningParticipantRestClient(serviceLimitsView = limits,
                                           scanUrl = endpoint.versionGenerationUrl,
                                           credentialsLookup = credentialsLookup,
-                                          pair = pair)
+                                          pair = pair,
+                                          connectionPool = connectionPool)
 }
\ No newline at end of file
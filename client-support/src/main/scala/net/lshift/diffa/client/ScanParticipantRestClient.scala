@@ -28,6 +28,7 @@ import net.lshift.diffa.kernel.config.QueryParameterCredentials
 import net.lshift.diffa.kernel.config.BasicAuthCredentials
 import scala.Some
 import org.apache.http.NoHttpResponseException
+import net.lshift.diffa.adapter.common.BinaryScanResultHelper
 
 class ScanParticipantRestClient(pair: PairRef,
                                 scanUrl: String,
@@ -39,23 +40,37 @@ class ScanParticipantRestClient(pair: PairRef,
   private val log = LoggerFactory.getLogger(getClass)
 
   def scan(constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction]) : Seq[ScanResultEntry] = {
-    val query = DiffaHttpQuery(scanUrl).accepting("application/json").
+    val query = buildQuery(constraints, aggregations)
+
+    try {
+      this.httpClient.get(query, parser)
+    } catch {
+      case ex => handleHttpError(ex, query)
+    }
+  }
+
+  override def scan(constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction], handler: ScanResultEntry => Unit) {
+    val query = buildQuery(constraints, aggregations)
+
+    try {
+      this.httpClient.get(query, parser, handler)
+    } catch {
+      case ex => handleHttpError(ex, query)
+    }
+  }
+
+  private def buildQuery(constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction]) = {
+    val query = DiffaHttpQuery(scanUrl).accepting(ScanParticipantRestClient.acceptedContentTypes).
       withConstraints(constraints).
       withAggregations(aggregations)
 
     val credentials = credentialsLookup.credentialsForUri(pair.space, new URI(scanUrl))
 
-    val queryWithCredentials = credentials match {
+    credentials match {
       case None => query
       case Some(BasicAuthCredentials(user, password)) => query.withBasicAuth(user, password)
       case Some(QueryParameterCredentials(name, value)) => query.withQuery(Map(name -> Seq(value)))
     }
-
-    try {
-      this.httpClient.get(queryWithCredentials, parser)
-    } catch {
-      case ex => handleHttpError(ex, queryWithCredentials)
-    }
   }
 
   def handleHttpError(ex: Throwable, query: DiffaHttpQuery) = ex match {
@@ -77,4 +92,9 @@ class ScanParticipantRestClient(pair: PairRef,
   }
 }
 
-
+object ScanParticipantRestClient {
+  /**
+   * The binary form is preferred, but participants are free to respond with JSON instead.
+   */
+  val acceptedContentTypes = BinaryScanResultHelper.BINARY_CONTENT_TYPE + ", application/json;q=0.9"
+}
@@ -15,15 +15,38 @@
  */
 package net.lshift.diffa.client
 
-import java.io.{IOException, InputStream}
-import net.lshift.diffa.adapter.common.JSONHelper
+import java.io.{BufferedInputStream, IOException, InputStream}
+import net.lshift.diffa.adapter.common.{BinaryScanResultHelper, JSONHelper}
+import net.lshift.diffa.adapter.scanning.{ScanResultHandler, ScanResultEntry}
 import net.lshift.diffa.schema.servicelimits.ScanResponseSizeLimit
 import net.lshift.diffa.kernel.differencing.ScanLimitBreachedException
 import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
 import scala.collection.JavaConversions._
 
+/**
+ * Parses and validates scan results, which may be in either JSON or the binary form. Participants that don't support
+ * the binary form respond with JSON regardless of what was asked for, so the form is recognised from the result itself.
+ */
 class ValidatingScanResultParser(validatorFactory: ScanEntityValidatorFactory) extends JsonScanResultParser {
-  def parse(s: InputStream) = JSONHelper.readQueryResult(s, validatorFactory.createValidator).toSeq
+  def parse(s: InputStream) = {
+    val buffer = new collection.mutable.ArrayBuffer[ScanResultEntry]
+    parse(s, (entry: ScanResultEntry) => buffer += entry)
+    buffer.toSeq
+  }
+
+  override def parse(s: InputStream, handler: ScanResultEntry => Unit) {
+    val stream = new BufferedInputStream(s)
+    val resultHandler = new ScanResultHandler {
+      def handle(entry: ScanResultEntry) {
+        handler(entry)
+      }
+    }
+
+    if (BinaryScanResultHelper.isBinary(stream))
+      BinaryScanResultHelper.readQueryResult(stream, validatorFactory.createValidator, resultHandler)
+    else
+      JSONHelper.readQueryResult(stream, validatorFactory.createValidator, resultHandler)
+  }
 }
 
 
@@ -31,11 +54,19 @@ trait LengthCheckingParser extends JsonScanResultParser {
   val serviceLimitsView: PairServiceLimitsView
   val pair: PairRef
 
-  abstract override def parse(s: InputStream) = {
+  abstract override def parse(s: InputStream): Seq[ScanResultEntry] = {
+    withLengthChecking(s, (checked: InputStream) => super.parse(checked))
+  }
+
+  abstract override def parse(s: InputStream, handler: ScanResultEntry => Unit) {
+    withLengthChecking(s, (checked: InputStream) => super.parse(checked, handler))
+  }
+
+  private def withLengthChecking[T](s: InputStream, f: InputStream => T) = {
     val responseSizeLimit = serviceLimitsView.getEffectiveLimitByNameForPair(
       pair.space, pair.name, ScanResponseSizeLimit)
     try {
-      super.parse(new LengthCheckingInputStream(s, responseSizeLimit))
+      f(new LengthCheckingInputStream(s, responseSizeLimit))
     } catch {
       case e:IOException if e.getCause.isInstanceOf[ScanLimitBreachedException] => throw e.getCause
     }
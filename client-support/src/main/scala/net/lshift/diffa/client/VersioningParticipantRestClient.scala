@@ -35,8 +35,9 @@ import net.lshift.diffa.kernel.config._
 class VersioningParticipantRestClient(pair: PairRef,
                                       scanUrl: String,
                                       serviceLimitsView: PairServiceLimitsView,
-                                      credentialsLookup:DomainCredentialsLookup)
-  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup)
+                                      credentialsLookup:DomainCredentialsLookup,
+                                      connectionPool:HttpConnectionPool = HttpConnectionPool.shared)
+  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup, connectionPool)
   with VersioningParticipantRef {
 
   val log = LoggerFactory.getLogger(getClass)
@@ -49,8 +50,7 @@ class VersioningParticipantRestClient(pair: PairRef,
     def prepareRequest(query:Option[QueryParameterCredentials]) = buildPostRequest(queryParams, formParams, query)
     val (httpClient, httpPost) = maybeAuthenticate(prepareRequest)
 
-    try {
-      val response = httpClient.execute(httpPost)
+    executeRequest(httpClient, httpPost) { response =>
       response.getStatusLine.getStatusCode match {
         case 200 => JSONHelper.readProcessingResponse(response.getEntity.getContent)
         case _   =>
@@ -58,9 +58,6 @@ class VersioningParticipantRestClient(pair: PairRef,
           throw new Exception("Participant version generation failed")
       }
     }
-    finally {
-      shutdownImmediate(httpClient)
-    }
 
   }
 }
\ No newline at end of file
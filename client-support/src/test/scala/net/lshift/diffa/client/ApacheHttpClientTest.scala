@@ -88,6 +88,21 @@ class ApacheHttpClientTest {
   def shouldThrowScanFailedOn4xxStatus {
     client.get(DiffaHttpQuery(baseUrl + "400"), parser)
   }
+
+  @Test
+  def shouldReuseConnectionToServerForSubsequentRequests {
+    val pool = new HttpConnectionPool("apache-http-client-test")
+    try {
+      val pooledClient = new ApacheHttpClient(0, 0, pool)
+      pooledClient.get(DiffaHttpQuery(baseUrl), parser)
+      pooledClient.get(DiffaHttpQuery(baseUrl), parser)
+
+      assertEquals(2L, pool.getRequestCount)
+      assertEquals(1, pool.getPooledConnectionCount)
+    } finally {
+      pool.close()
+    }
+  }
 }
 
 object ApacheHttpClientTest {
@@ -33,7 +33,7 @@ import net.lshift.diffa.kernel.config.BasicAuthCredentials
 import net.lshift.diffa.kernel.participants.StringPrefixCategoryFunction
 
 class ScanParticipantRestClientTest {
-  final val JSON = "application/json"
+  final val ACCEPTED = ScanParticipantRestClient.acceptedContentTypes
   final val pair = PairRef("key", 702L)
   final val scanUrl = "http://dummy/url"
 
@@ -43,7 +43,7 @@ class ScanParticipantRestClientTest {
   lazy val parser = createMock(classOf[JsonScanResultParser])
   lazy val nullQuery = Map[String, Seq[String]]()
 
-  lazy val scanQuery = DiffaHttpQuery(scanUrl).accepting(JSON)
+  lazy val scanQuery = DiffaHttpQuery(scanUrl).accepting(ACCEPTED)
   val nullAggregations: scala.Seq[CategoryFunction] = Seq()
   val nullConstraints: scala.Seq[ScanConstraint] = Seq()
 
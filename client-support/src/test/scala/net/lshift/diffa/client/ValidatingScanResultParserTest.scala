@@ -55,6 +55,13 @@ class ValidatingScanResultParserTest {
       is(equalTo(Seq(singleEntity))))
   }
 
+  @Test
+  def shouldStreamEntitiesToHandler {
+    val received = new collection.mutable.ListBuffer[ScanResultEntry]
+    parser.parse(singleEntityStream, received += _)
+    assertThat(received.toSeq, is(equalTo(Seq(singleEntity))))
+  }
+
   @Test
   def shouldValidateEachEntity {
     expect(validator.process(singleEntity))
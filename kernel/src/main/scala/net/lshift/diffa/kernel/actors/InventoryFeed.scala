@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.actors
+
+import java.util.concurrent.{CountDownLatch, TimeUnit, ArrayBlockingQueue}
+import java.util.concurrent.atomic.AtomicLong
+import net.lshift.diffa.adapter.scanning.{ScanRequest, ScanResultEntry}
+
+/**
+ * Carries the entries of an inventory from the thread receiving it to the pair actor processing it, one chunk at a
+ * time, and carries the outcome back again.
+ *
+ * At most capacity chunks are held at once, so a producer that gets ahead of the pair is held back rather than the
+ * inventory accumulating in memory. Either side gives up once the other has made no progress for the idle timeout,
+ * so that neither can be left waiting indefinitely.
+ */
+class InventoryFeed(capacity:Int = InventoryFeed.defaultCapacity,
+                    idleTimeoutMillis:Long = InventoryFeed.defaultIdleTimeoutMillis) {
+  import InventoryFeed._
+
+  private val chunks = new ArrayBlockingQueue[Seq[ScanResultEntry]](capacity)
+  private val consumed = new AtomicLong(0)
+  private val finished = new CountDownLatch(1)
+
+  @volatile private var completed = false
+  @volatile private var failure:Throwable = null
+  @volatile private var outcome:Either[Throwable, Seq[ScanRequest]] = null
+
+  /**
+   * The number of entries that have been handed to the pair so far.
+   */
+  def entriesConsumed = consumed.get
+
+  /**
+   * Adds a chunk of entries to the feed, waiting for there to be room for it.
+   */
+  def offer(entries:Seq[ScanResultEntry]) {
+    val deadline = System.currentTimeMillis() + idleTimeoutMillis
+    while (!chunks.offer(entries, pollMillis, TimeUnit.MILLISECONDS)) {
+      checkNotFinished()
+      if (System.currentTimeMillis() > deadline) {
+        throw new InventoryFeedException("Inventory was not taken up for processing within %sms".format(idleTimeoutMillis))
+      }
+    }
+  }
+
+  /**
+   * Indicates that all of the entries of the inventory have been offered.
+   */
+  def complete() {
+    completed = true
+  }
+
+  /**
+   * Indicates that the inventory can't be completed, such as because an entry was invalid. Processing of the
+   * inventory is abandoned.
+   */
+  def fail(reason:Throwable) {
+    failure = reason
+  }
+
+  /**
+   * Waits for the pair to finish processing the inventory, returning the further requests that it made.
+   */
+  def awaitOutcome(timeoutMillis:Long):Seq[ScanRequest] = {
+    if (!finished.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      throw new InventoryFeedException("Inventory was not processed within %sms".format(timeoutMillis))
+    }
+
+    outcome match {
+      case Left(reason)    => throw reason
+      case Right(requests) => requests
+    }
+  }
+
+  /**
+   * Passes each entry of the inventory to the handler as it arrives, returning once the inventory is complete.
+   */
+  def foreach(handler:ScanResultEntry => Unit) {
+    var lastProgress = System.currentTimeMillis()
+
+    while (true) {
+      if (failure != null) {
+        throw new InventoryFeedException("Inventory was abandoned: " + failure.getMessage, failure)
+      }
+
+      // Read the flag before polling, so that a chunk offered before completion can't be missed
+      val wasCompleted = completed
+      chunks.poll(pollMillis, TimeUnit.MILLISECONDS) match {
+        case null =>
+          if (wasCompleted) return
+          if (System.currentTimeMillis() - lastProgress > idleTimeoutMillis) {
+            throw new InventoryFeedException("No inventory entries were received within %sms".format(idleTimeoutMillis))
+          }
+        case chunk =>
+          chunk.foreach(handler)
+          consumed.addAndGet(chunk.size)
+          lastProgress = System.currentTimeMillis()
+      }
+    }
+  }
+
+  /**
+   * Records the outcome of processing the inventory.
+   */
+  def succeed(requests:Seq[ScanRequest]) {
+    outcome = Right(requests)
+    finished.countDown()
+  }
+
+  /**
+   * Records that processing of the inventory failed.
+   */
+  def abort(reason:Throwable) {
+    outcome = Left(reason)
+    finished.countDown()
+  }
+
+  private def checkNotFinished() {
+    if (failure != null) {
+      throw new InventoryFeedException("Inventory was abandoned: " + failure.getMessage, failure)
+    }
+
+    outcome match {
+      case null         =>
+      case Left(reason) => throw new InventoryFeedException("Inventory processing failed: " + reason.getMessage, reason)
+      case Right(_)     => throw new InventoryFeedException("Inventory processing has already finished")
+    }
+  }
+}
+
+object InventoryFeed {
+  val defaultCapacity = 4
+  val defaultIdleTimeoutMillis = 5 * 60 * 1000L
+
+  private val pollMillis = 250L
+
+  /**
+   * Builds a feed that already holds the whole of the given inventory.
+   */
+  def of(entries:Seq[ScanResultEntry]) = {
+    val feed = new InventoryFeed(capacity = 1)
+    feed.offer(entries)
+    feed.complete()
+    feed
+  }
+}
+
+class InventoryFeedException(message:String, cause:Throwable = null) extends RuntimeException(message, cause)
@@ -187,10 +187,11 @@ case class PairActor(pair:DomainPairDef,
       }
     }
     case c:ChangeMessage                   => handleChangeMessage(c)
-    case i:InventoryMessage                => sender ! handleInventoryMessage(i)
+    case c:ChangeBatchMessage              => handleChangeBatchMessage(c)
+    case i:InventoryMessage                => handleInventoryMessage(i)
     case i:StartInventoryMessage           => sender ! handleStartInventoryMessage(i)
     case DifferenceMessage                 => handleDifferenceMessage()
-    case FlushWriterMessage                => writer.flush()
+    case FlushWriterMessage                => writer.checkpoint()
     case c:VersionCorrelationWriterCommand => {
       logger.trace("Received writer command (%s) in non-scanning state - sending cancellation".format(c), c.exception)
       sender ! CancelMessage
@@ -345,12 +346,24 @@ case class PairActor(pair:DomainPairDef,
    */
   def handleChangeMessage(message:ChangeMessage) = {
     policy.onChange(writer, message.event)
-    // if no events have arrived within the timeout period, flush and clear the buffer
+    afterChanges(1)
+  }
+
+  /**
+   * Events out a batch of normal changes, applying them in a single pass of the policy.
+   */
+  def handleChangeBatchMessage(message:ChangeBatchMessage) = {
+    policy.onChanges(writer, message.events)
+    afterChanges(message.events.size)
+  }
+
+  private def afterChanges(count:Int) {
+    // if no events have arrived within the timeout period, make the buffered changes visible
     if (timeSince(lastEventTime) > changeEventBusyTimeoutMillis) {
-      writer.flush()
+      writer.checkpoint()
     }
 
-    actionsRemainingUntilClose -= 1
+    actionsRemainingUntilClose -= count
     if (actionsRemainingUntilClose <= 0) {
       cleanupIndexFilesIfCorrelationStoreBackedByLucene
     }
@@ -367,16 +380,34 @@ case class PairActor(pair:DomainPairDef,
     policy.startInventory(pair.asRef, ep, message.view, writer, message.side)
   }
 
-  def handleInventoryMessage(message:InventoryMessage) = {
+  /**
+   * Processes an inventory as its entries arrive on the message's feed, reporting the outcome back via the feed.
+   */
+  def handleInventoryMessage(message:InventoryMessage) {
+    try {
+      message.entries.succeed(processInventory(message))
+    } catch {
+      case ex:InventoryFeedException =>
+        // The inventory was abandoned or never arrived in full. Nothing has been written for it, so only its sender
+        // needs to know; the actor carries on with its queued messages and scan state intact.
+        logger.warn("%s Inventory was not processed: %s".format(formatAlertCode(pairRef, DIFFERENCING_FAILURE), ex.getMessage))
+        message.entries.abort(ex)
+      case ex =>
+        message.entries.abort(ex)
+        throw ex
+    }
+  }
+
+  private def processInventory(message:InventoryMessage) = {
     val ep = message.side match {
       case UpstreamEndpoint   => us
       case DownstreamEndpoint => ds
     }
 
-    val nextRequests = policy.processInventory(pair.asRef, ep, writer, message.side,
-      message.constraints, message.aggregations, message.entries)
+    val nextRequests = policy.processStreamedInventory(pair.asRef, ep, writer, message.side,
+      message.constraints, message.aggregations, message.entries.foreach)
 
-    // always flush after an inventory
+    // always flush after an inventory, since the replay below records the store versions it reaches as durable
     writer.flush()
 
     actionsRemainingUntilClose -= 1
@@ -588,10 +619,11 @@ case object Cancellation extends Result
  */
 abstract class Deferrable
 case class ChangeMessage(event: PairChangeEvent) extends Deferrable
+case class ChangeBatchMessage(events: Seq[PairChangeEvent]) extends Deferrable
 case object DifferenceMessage extends Deferrable
 case class ScanMessage(scanView:Option[String], initiatingUser:Option[String])
 case class StartInventoryMessage(side:EndpointSide, view:Option[String])
-case class InventoryMessage(side:EndpointSide, constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:Seq[ScanResultEntry])
+case class InventoryMessage(side:EndpointSide, constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:InventoryFeed)
 
 /**
  * This message indicates that this actor should cancel all current and pending scan operations.
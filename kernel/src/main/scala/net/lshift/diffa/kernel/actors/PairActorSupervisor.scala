@@ -27,9 +27,8 @@ import net.lshift.diffa.kernel.differencing._
 import net.lshift.diffa.kernel.events.PairChangeEvent
 import net.lshift.diffa.kernel.config.{PairRef, DiffaPairRef, DomainConfigStore}
 import net.lshift.diffa.kernel.util.EndpointSide
-import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanResultEntry, ScanConstraint}
+import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanConstraint}
 import net.lshift.diffa.kernel.util.AlertCodes._
-import akka.dispatch.Await
 import akka.util.duration._
 import akka.util.Timeout
 import net.lshift.diffa.kernel.scanning.ScanActivityStore
@@ -82,18 +81,20 @@ case class PairActorSupervisor(policyManager:VersionPolicyManager,
 
   def propagateChangeEvent(event:PairChangeEvent) = findActor(event.id) ! ChangeMessage(event)
 
-  // TODO: Pick more appropriate value.
-  implicit val waitTimeout = Timeout(10 seconds)
-  def startInventory(pair: PairRef, side: EndpointSide, view:Option[String]): Seq[ScanRequest] = {
-    val future = (findActor(pair) ? StartInventoryMessage(side, view))
-
-    Await.result(future, waitTimeout.duration).asInstanceOf[Seq[ScanRequest]]
+  def propagateChangeEvents(events:Seq[PairChangeEvent]) {
+    events.groupBy(_.id.pair).foreach { case (pair, pairEvents) =>
+      findActor(pair) ! ChangeBatchMessage(pairEvents)
+    }
   }
 
-  def submitInventory(pair:PairRef, side:EndpointSide, constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:Seq[ScanResultEntry]) = {
-    val res = (findActor(pair) ? InventoryMessage(side, constraints, aggregations, entries))
+  // Callers stop waiting after the response timeout; this only bounds how long an unanswered request is kept around
+  implicit val waitTimeout = Timeout(PairPolicyClient.responseTimeout * 2)
+
+  def startInventory(pair: PairRef, side: EndpointSide, view:Option[String]) =
+    (findActor(pair) ? StartInventoryMessage(side, view)).mapTo[Seq[ScanRequest]]
 
-    Await.result(res, waitTimeout.duration).asInstanceOf[Seq[ScanRequest]]
+  def submitInventory(pair:PairRef, side:EndpointSide, constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:InventoryFeed) {
+    findActor(pair) ! InventoryMessage(side, constraints, aggregations, entries)
   }
 
   def difference(pairRef:PairRef) =
@@ -109,11 +110,7 @@ case class PairActorSupervisor(policyManager:VersionPolicyManager,
     findActor(pair) ! ScanMessage(scanView, initiatingUser)
   }
 
-  def cancelScans(pairRef:PairRef) = {
-    val future = findActor(pairRef) ? CancelMessage
-    Await.result(future, waitTimeout.duration) match {
-      case flag => true
-    }
-  }
+  def cancelScans(pairRef:PairRef) =
+    (findActor(pairRef) ? CancelMessage).map(_ => true)
 
 }
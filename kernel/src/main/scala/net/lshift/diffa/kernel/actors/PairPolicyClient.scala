@@ -20,10 +20,15 @@ import net.jcip.annotations.ThreadSafe
 import net.lshift.diffa.kernel.events.PairChangeEvent
 import net.lshift.diffa.kernel.config.{PairRef, DiffaPairRef}
 import net.lshift.diffa.kernel.util.EndpointSide
-import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanResultEntry, ScanConstraint}
+import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanConstraint}
+import akka.dispatch.{Await, ExecutionContext, Future}
+import akka.util.Duration
+import akka.util.duration._
+import java.util.concurrent.{Executor, TimeoutException}
 
 /**
- * This is a thread safe entry point to an underlying version policy.
+ * This is a thread safe entry point to an underlying version policy. None of the operations block on the pair;
+ * those that have a result return a future of it.
  */
 @ThreadSafe
 trait PairPolicyClient {
@@ -32,16 +37,23 @@ trait PairPolicyClient {
    */
   def propagateChangeEvent(event:PairChangeEvent) : Unit
 
+  /**
+   * Propagates a batch of change events to the underlying policy implementations. Events for the same pair are
+   * delivered together and in the order given.
+   */
+  def propagateChangeEvents(events:Seq[PairChangeEvent]) : Unit
+
   /**
    * Requests that an inventory be initiated, to return the details of what operations need to be performed
    * to begin an inventory on this node.
    */
-  def startInventory(pair: PairRef, side: EndpointSide, view:Option[String]): Seq[ScanRequest]
+  def startInventory(pair: PairRef, side: EndpointSide, view:Option[String]): Future[Seq[ScanRequest]]
 
   /**
-   * Submits an inventory of upstream entries for the given constrained space.
+   * Submits an inventory of entries for the given constrained space. This returns immediately; the pair consumes the
+   * entries as they are offered to the feed, and reports the further requests it makes via the feed's outcome.
    */
-  def submitInventory(pair:PairRef, side:EndpointSide, constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:Seq[ScanResultEntry]): Seq[ScanRequest]
+  def submitInventory(pair:PairRef, side:EndpointSide, constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:InventoryFeed)
 
   /**
    * Runs a replayUnmatchedDifferences report based on stored data for the given pair. Does not scan with the participants
@@ -59,7 +71,50 @@ trait PairPolicyClient {
 
   /**
    * Cancels any scan operation that may be in process.
-   * This is a blocking call, so it will only return after all current and pending scans have been cancelled.
+   * The future completes once all current and pending scans have been cancelled.
    */
-  def cancelScans(pair:PairRef) : Boolean
+  def cancelScans(pair:PairRef) : Future[Boolean]
 }
+
+object PairPolicyClient {
+  /**
+   * How long a caller should wait for a pair to respond before giving up on it.
+   */
+  val responseTimeout = 10 seconds
+
+  /**
+   * Waits for a response from the given pair, for at most the response timeout.
+   */
+  def await[T](pair:PairRef, response:Future[T]):T = {
+    try {
+      Await.result(response, responseTimeout)
+    } catch {
+      case e:TimeoutException => throw new PairBusyException(pair, e)
+    }
+  }
+
+  /**
+   * Waits for responses from several pairs at once, for at most the given timeout in total. Should any pair not
+   * respond in time, the first of those still outstanding is reported as busy.
+   */
+  def awaitAll[T](responses:Seq[(PairRef, Future[T])], timeout:Duration = responseTimeout):Seq[T] = {
+    // Combining the responses does no work of its own, so it can run on whichever thread completes the last of them
+    implicit val executionContext = ExecutionContext.fromExecutor(new Executor {
+      def execute(command:Runnable) { command.run() }
+    })
+
+    try {
+      Await.result(Future.sequence(responses.map { case (_, response) => response }), timeout)
+    } catch {
+      case e:TimeoutException =>
+        val busy = responses.find { case (_, response) => !response.isCompleted }.getOrElse(responses.head)
+        throw new PairBusyException(busy._1, e)
+    }
+  }
+}
+
+/**
+ * Exception for indicating that a pair didn't respond in time, since it was busy with other work.
+ */
+class PairBusyException(val pair:PairRef, cause:Throwable)
+  extends RuntimeException("Pair %s did not respond within %s".format(pair.identifier, PairPolicyClient.responseTimeout), cause)
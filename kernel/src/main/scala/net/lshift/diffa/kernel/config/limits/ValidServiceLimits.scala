@@ -25,9 +25,18 @@ object ValidServiceLimits {
 
   private val definitions = Seq(
     ChangeEventRate,
+    CorrelationStoreCommitAge,
+    CorrelationStoreCommitBytes,
+    CorrelationStoreCommitChanges,
+    CorrelationStoreMemoryMapped,
+    CorrelationStoreMergeFactor,
+    CorrelationStoreMergeThreads,
+    CorrelationStoreRamBuffer,
+    CorrelationStoreShards,
     DiagnosticEventBufferSize,
     ExplainFiles,
     ScanConnectTimeout,
+    ScanParallelism,
     ScanReadTimeout,
     ScanResponseSizeLimit
   ).map(d => (d.key, d)).toMap[String,ServiceLimit]
@@ -37,6 +37,12 @@ trait DiagnosticsManager {
    */
   def writePairExplanationObject(scanId:Option[Long] = None, pair:PairRef, source:String, objName: String, f:OutputStream => Unit)
 
+  /**
+   * Indicates whether explanations are currently being kept for the given pair, so that callers can avoid the cost of
+   * preparing an explanation object that would only be discarded.
+   */
+  def isExplaining(pair:PairRef):Boolean
+
   /**
    * Queries for known events about the given pair.
    */
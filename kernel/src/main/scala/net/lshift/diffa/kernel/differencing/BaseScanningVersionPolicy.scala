@@ -23,21 +23,25 @@ import org.slf4j.LoggerFactory
 import concurrent.SyncVar
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
 import net.lshift.diffa.adapter.common.JSONHelper
-import net.lshift.diffa.kernel.config.{PairRef, DomainConfigStore, DiffaPairRef, Endpoint}
+import net.lshift.diffa.kernel.config.{UnorderedCollationOrdering, PairServiceLimitsView, PairRef, DomainConfigStore, DiffaPairRef, Endpoint}
 import org.joda.time.{DateTimeZone, DateTime, Interval}
 import org.joda.time.format.DateTimeFormat
-import java.io.{OutputStream, PrintWriter}
+import java.io.{BufferedOutputStream, File, FileInputStream, FileOutputStream, OutputStream, PrintWriter}
+import org.apache.commons.io.IOUtils
 import net.lshift.diffa.kernel.diag.{DiagnosticsManager, DiagnosticLevel}
 import net.lshift.diffa.adapter.scanning._
 import collection.JavaConversions._
+import collection.mutable.ListBuffer
 import net.lshift.diffa.kernel.util.{CategoryUtil, DownstreamEndpoint, EndpointSide, UpstreamEndpoint}
+import net.lshift.diffa.schema.servicelimits.{Unlimited, ScanParallelism}
 
 /**
  * Standard behaviours supported by scanning version policies.
  */
 abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFactory,
                                          listener:DifferencingListener,
-                                         diagnostics:DiagnosticsManager)
+                                         diagnostics:DiagnosticsManager,
+                                         limits:PairServiceLimitsView)
     extends VersionPolicy {
   protected val alerter = Alerter.forClass(getClass)
 
@@ -74,6 +78,18 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
     }
   }
 
+  /**
+   * Handles a batch of adapter changes. The current state of every entity in the batch is looked up in one pass
+   * before the changes are applied, rather than individually as each change is written.
+   */
+  def onChanges(writer: LimitedVersionCorrelationWriter, evts: Seq[PairChangeEvent]) {
+    writer match {
+      case extended:ExtendedVersionCorrelationWriter => extended.prefetch(evts.map(_.id))
+      case _                                         =>
+    }
+    evts.foreach(onChange(writer, _))
+  }
+
   def startInventory(pairRef:PairRef, endpoint:Endpoint, view:Option[String], writer: LimitedVersionCorrelationWriter, side:EndpointSide) = {
     val strategy = side match {
       case UpstreamEndpoint   => new UpstreamScanStrategy(endpoint.lookupCollation)
@@ -87,7 +103,13 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
    * Handles an inventory arriving from a adapter.
    */
   def processInventory(pairRef:PairRef, endpoint:Endpoint, writer: LimitedVersionCorrelationWriter, side:EndpointSide,
-                       constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:Seq[ScanResultEntry]) = {
+                       constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:Seq[ScanResultEntry]) =
+    processStreamedInventory(pairRef, endpoint, writer, side, constraints, aggregations,
+      (handler:ScanResultEntry => Unit) => entries.foreach(handler))
+
+  def processStreamedInventory(pairRef:PairRef, endpoint:Endpoint, writer: LimitedVersionCorrelationWriter, side:EndpointSide,
+                               constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation],
+                               entries:(ScanResultEntry => Unit) => Unit) = {
     val strategy = side match {
       case UpstreamEndpoint   => new UpstreamScanStrategy(endpoint.lookupCollation)
       case DownstreamEndpoint => downstreamStrategy(null, null, endpoint.lookupCollation)
@@ -131,6 +153,18 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
     })
   }
 
+  /**
+   * Resolves how many bucket queries may be in flight at once for the given pair. A value of 1 (the default)
+   * preserves the strictly sequential, depth-first descent.
+   */
+  protected def scanParallelism(pair:PairRef) = {
+    limits.getEffectiveLimitByNameForPair(pair.space, pair.name, ScanParallelism) match {
+      case Unlimited.value => ScanParallelism.hardLimit.intValue
+      case n if n < 1      => 1
+      case n               => n
+    }
+  }
+
   private def constraintsOrEmpty(grouped:Seq[Seq[ScanConstraint]]):Seq[Seq[ScanConstraint]] =
     if (grouped.length > 0)
       grouped
@@ -160,8 +194,12 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
                         listener:DifferencingListener,
                         handle:FeedbackHandle) {
 
+      val parallelism = scanParallelism(pair)
+
       if (bucketing.size == 0) {
         scanEntities(scanId, pair, writer, endpoint, constraints, participant, listener, handle)
+      } else if (parallelism > 1) {
+        scanAggregatesInParallel(scanId, pair, writer, endpoint, bucketing, constraints, participant, listener, handle, parallelism)
       } else {
         scanAggregates(scanId, pair, writer, endpoint, bucketing, constraints, participant, listener, handle)
       }
@@ -176,7 +214,56 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
                        participant:Participant,
                        listener:DifferencingListener,
                        handle:FeedbackHandle) {
-      
+
+      narrowAggregates(scanId, pair, endpoint, bucketing, constraints, participant, handle).foreach(o => o match {
+        case AggregateQueryAction(narrowBuckets, narrowConstraints) =>
+          scanAggregates(scanId, pair, writer, endpoint, narrowBuckets, narrowConstraints, participant, listener, handle)
+        case EntityQueryAction(narrowed)    =>
+          scanEntities(scanId, pair, writer, endpoint, narrowed, participant, listener, handle)
+      })
+    }
+
+    /**
+     * Descends the digest tree with up to the given number of sibling bucket queries in flight at once. Mismatches
+     * are still applied through the (synchronized) writer, and since each entity belongs to exactly one bucket the
+     * order in which sibling buckets complete has no bearing on the resulting correlations.
+     */
+    def scanAggregatesInParallel(scanId:Long,
+                                 pair:PairRef,
+                                 writer:LimitedVersionCorrelationWriter,
+                                 endpoint:Endpoint,
+                                 bucketing:Seq[CategoryFunction],
+                                 constraints:Seq[ScanConstraint],
+                                 participant:Participant,
+                                 listener:DifferencingListener,
+                                 handle:FeedbackHandle,
+                                 parallelism:Int) {
+
+      val descent = new ParallelScanDescent(pair.identifier + "-" + name, parallelism)
+
+      def visit(action:QueryAction):Unit = action match {
+        case AggregateQueryAction(narrowBuckets, narrowConstraints) =>
+          narrowAggregates(scanId, pair, endpoint, narrowBuckets, narrowConstraints, participant, handle).
+            foreach(child => descent.submit(visit(child)))
+        case EntityQueryAction(narrowed)    =>
+          scanEntities(scanId, pair, writer, endpoint, narrowed, participant, listener, handle)
+      }
+
+      descent.run(visit(AggregateQueryAction(bucketing, constraints)))
+    }
+
+    /**
+     * Compares the remote and local digests for a single level of bucketing, returning the narrower queries
+     * that need to be made to resolve any differences.
+     */
+    protected def narrowAggregates(scanId:Long,
+                                   pair:PairRef,
+                                   endpoint:Endpoint,
+                                   bucketing:Seq[CategoryFunction],
+                                   constraints:Seq[ScanConstraint],
+                                   participant:Participant,
+                                   handle:FeedbackHandle) : Seq[QueryAction] = {
+
       checkForCancellation(handle, pair)
       diagnostics.logPairEvent(Some(scanId), pair, DiagnosticLevel.TRACE, "Scanning aggregates for %s with (constraints=%s, bucketing=%s)".format(endpoint.name, constraints, bucketing))
 
@@ -198,12 +285,7 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
         JSONHelper.formatQueryResult(os, remoteDigests)
       })
 
-      DigestDifferencingUtils.differenceAggregates(remoteDigests, localDigests, bucketing, constraints).foreach(o => o match {
-        case AggregateQueryAction(narrowBuckets, narrowConstraints) =>
-          scanAggregates(scanId, pair, writer, endpoint, narrowBuckets, narrowConstraints, participant, listener, handle)
-        case EntityQueryAction(narrowed)    =>
-          scanEntities(scanId, pair, writer, endpoint, narrowed, participant, listener, handle)
-      })
+      DigestDifferencingUtils.differenceAggregates(remoteDigests, localDigests, bucketing, constraints)
     }
 
     def scanEntities(scanId:Long,
@@ -217,45 +299,77 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
       checkForCancellation(handle, pair)
       diagnostics.logPairEvent(Some(scanId),  pair, DiagnosticLevel.TRACE, "Scanning entities for %s with (constraints=%s)".format(endpoint.name, constraints))
 
-      val requestTimestamp = new DateTime
-      val remoteVersions = participant.scan(constraints, Seq())
-      val responseTimestamp = new DateTime
-
-      val cachedVersions = getEntities(pair, constraints)
-
-      // Generate a diagnostic object detailing the response provided by the adapter
-      diagnostics.writePairExplanationObject(Some(scanId), pair, "Version Policy", name + "-Entities-" + fileNameFormatter.print(requestTimestamp) + ".json", os => {
-        val pw = new PrintWriter(os)
-        writeCommonHeader(pw, pair, endpoint, requestTimestamp, responseTimestamp)
-        pw.println("Constraints: %s".format(constraints))
-        pw.println("------------------------")
-        pw.flush()
+      val endpointCategories = endpoint.categories.toMap
 
-        JSONHelper.formatQueryResult(os, remoteVersions)
-      })
+      // The response is copied out entry by entry as it streams past, so that it can be attached as an explanation
+      // object without being retained. Since the header can only be written once the response has been consumed,
+      // the entries are staged in a temporary file until then.
+      val responseCopy = if (diagnostics.isExplaining(pair)) Some(File.createTempFile("diffa-entities", ".json")) else None
+      val responseStream = responseCopy.map(f => new BufferedOutputStream(new FileOutputStream(f)))
+      val responseWriter = responseStream.map(new JSONHelper.QueryResultWriter(_))
 
       // Validate that the entities provided meet the constraints of the endpoint
-      val endpointCategories = endpoint.categories.toMap
-      val validRemoteVersions = remoteVersions.filter(entry => {
-        val issues = AttributesUtil.detectAttributeIssues(endpointCategories, constraints, entry.getAttributes.toMap)
-
-        if (issues.size == 0) {
-          true
-        } else {
-          log.warn("Dropping invalid scan result entry " + entry + " due to issues " + issues)
-          diagnostics.logPairEvent(Some(scanId), pair, DiagnosticLevel.ERROR,
-            "The result %s was dropped since it didn't meet the request constraints.  Identified issues were (%s)".format(
+      def validRemoteVersions(handler:ScanResultEntry => Unit) {
+        participant.scan(constraints, Seq(), entry => {
+          checkForCancellation(handle, pair)
+          responseWriter.foreach(_.write(entry))
+
+          val issues = AttributesUtil.detectAttributeIssues(endpointCategories, constraints, entry.getAttributes.toMap)
+
+          if (issues.size == 0) {
+            handler(entry)
+          } else {
+            log.warn("Dropping invalid scan result entry " + entry + " due to issues " + issues)
+            diagnostics.logPairEvent(Some(scanId), pair, DiagnosticLevel.ERROR,
+              "The result %s was dropped since it didn't meet the request constraints.  Identified issues were (%s)".format(
+                entry, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
+            diagnostics.logPairExplanation(Some(scanId), pair, "Version Policy",
+            "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
               entry, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
-          diagnostics.logPairExplanation(Some(scanId), pair, "Version Policy",
-          "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
-            entry, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
+          }
+        })
+      }
 
-          false
+      // The local versions are read according to the endpoint's collation. Where the endpoint promises to deliver
+      // entities in that same order, the two sides can be merged without indexing either of them, and each local
+      // version is only loaded as the remote response reaches it. Otherwise the local side is loaded up front so that
+      // the remote response can be differenced as it streams in.
+      val requestTimestamp = new DateTime
+      try {
+        endpoint.lookupCollation match {
+          case UnorderedCollationOrdering =>
+            DigestDifferencingUtils.differenceEntities(endpointCategories, validRemoteVersions _, getEntities(pair, constraints),
+              constraints, handleMismatch(Some(scanId), pair, writer, _, listener))
+          case collation =>
+            withEntities(pair, constraints, cachedVersions =>
+              DigestDifferencingUtils.differenceSortedEntities(endpointCategories, validRemoteVersions _, cachedVersions, collation,
+                handleMismatch(Some(scanId), pair, writer, _, listener)))
         }
-      })
-
-      DigestDifferencingUtils.differenceEntities(endpointCategories, validRemoteVersions, cachedVersions, constraints)
-        .foreach(handleMismatch(Some(scanId), pair, writer, _, listener))
+        val responseTimestamp = new DateTime
+
+        responseWriter.foreach(_.finish())
+        responseStream.foreach(_.close())
+
+        // Generate a diagnostic object detailing the response provided by the adapter
+        responseCopy.foreach(copy =>
+          diagnostics.writePairExplanationObject(Some(scanId), pair, "Version Policy", name + "-Entities-" + fileNameFormatter.print(requestTimestamp) + ".json", os => {
+            val pw = new PrintWriter(os)
+            writeCommonHeader(pw, pair, endpoint, requestTimestamp, responseTimestamp)
+            pw.println("Constraints: %s".format(constraints))
+            pw.println("------------------------")
+            pw.flush()
+
+            val is = new FileInputStream(copy)
+            try {
+              IOUtils.copy(is, os)
+            } finally {
+              is.close()
+            }
+          }))
+      } finally {
+        responseStream.foreach(_.close())
+        responseCopy.foreach(_.delete())
+      }
     }
 
     private def writeCommonHeader(pw:PrintWriter, pair:PairRef, endpoint:Endpoint, requestTimestamp:DateTime, responseTimestamp:DateTime) = {
@@ -276,21 +390,35 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
 
     def processInventory(pair:PairRef, endpoint:Endpoint, writer:LimitedVersionCorrelationWriter,
                          constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation],
-                         inventoryEntries:Seq[ScanResultEntry], listener: DifferencingListener):Seq[ScanRequest] = {
+                         inventoryEntries:(ScanResultEntry => Unit) => Unit, listener: DifferencingListener):Seq[ScanRequest] = {
       val endpointCategories = endpoint.categories.toMap
 
       if (aggregations.length == 0) {
         val cachedVersions = getEntities(pair, constraints)
 
-        DigestDifferencingUtils.differenceEntities(endpointCategories, inventoryEntries, cachedVersions, constraints)
-          .foreach(handleMismatch(None, pair, writer, _, listener))
+        // Nothing is written until the whole inventory has arrived, so an inventory that is abandoned part way
+        // through leaves the pair untouched
+        val mismatches = new ListBuffer[VersionMismatch]
+        DigestDifferencingUtils.differenceEntities(endpointCategories, inventoryEntries, cachedVersions, constraints,
+          (mismatch:VersionMismatch) => mismatches += mismatch)
+
+        // An inventory can carry a large number of entities, so look up all of the ones to be written at once
+        writer match {
+          case extended:ExtendedVersionCorrelationWriter => extended.prefetch(mismatches.map(m => VersionID(pair, m.id)))
+          case _                                         =>
+        }
+        mismatches.foreach(handleMismatch(None, pair, writer, _, listener))
 
         Seq()
       } else {
+        // Aggregated inventories only carry a digest per bucket, so are simply collected
+        val remoteDigests = new ListBuffer[ScanResultEntry]
+        inventoryEntries(remoteDigests += _)
+
         val localDigests = getAggregates(pair, aggregations, constraints)
         val bucketing = CategoryUtil.categoryFunctionsFor(aggregations, endpointCategories)
 
-        DigestDifferencingUtils.differenceAggregates(inventoryEntries, localDigests, bucketing, constraints).map(o => o match {
+        DigestDifferencingUtils.differenceAggregates(remoteDigests, localDigests, bucketing, constraints).map(o => o match {
           case AggregateQueryAction(narrowBuckets, narrowConstraints) =>
             new ScanRequest(narrowConstraints.toSet[ScanConstraint], narrowBuckets.toSet[ScanAggregation])
           case EntityQueryAction(narrowed)    =>
@@ -317,8 +445,25 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
       }
     }
 
+    def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) : Seq[ScanResultEntry] =
+      withEntities(pair, constraints, _.toList)
+
+    /**
+     * Provides the given function with the local entities that match the given constraints, in the order of the
+     * endpoint's collation. Each entity is only loaded from the store as the function reaches it.
+     */
+    def withEntities[T](pair:PairRef, constraints:Seq[ScanConstraint], f:Iterator[ScanResultEntry] => T) : T = {
+      val cursor = openCorrelations(pair, constraints)
+      try {
+        f(cursor.map(toEntity(_)))
+      } finally {
+        cursor.close()
+      }
+    }
+
     def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) : Seq[ScanResultEntry]
-    def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) : Seq[ScanResultEntry]
+    def openCorrelations(pair:PairRef, constraints:Seq[ScanConstraint]) : CorrelationCursor
+    def toEntity(x:Correlation) : ScanResultEntry
     def handleMismatch(scanId:Option[Long], pair:PairRef, writer: LimitedVersionCorrelationWriter, vm:VersionMismatch, listener:DifferencingListener)
   }
 
@@ -326,16 +471,13 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
     val name = "Upstream"
 
     def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = {
-      val aggregator = new Aggregator(bucketing, collation)
-      stores(pair).queryUpstreams(constraints, aggregator.collectUpstream)
-      aggregator.digests
+      stores(pair).aggregateUpstreams(bucketing, constraints, collation)
     }
 
-    def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) = {
-      stores(pair).queryUpstreams(constraints).map(x => {
-        ScanResultEntry.forEntity(x.id, x.upstreamVsn, x.lastUpdate, mapAsJavaMap(x.upstreamAttributes))
-      })
-    }
+    def openCorrelations(pair:PairRef, constraints:Seq[ScanConstraint]) = stores(pair).openUpstreams(constraints)
+
+    def toEntity(x:Correlation) =
+      ScanResultEntry.forEntity(x.id, x.upstreamVsn, x.lastUpdate, mapAsJavaMap(x.upstreamAttributes))
 
     def handleMismatch(scanId:Option[Long], pair:PairRef, writer: LimitedVersionCorrelationWriter, vm:VersionMismatch, listener:DifferencingListener) = {
       vm match {
@@ -353,15 +495,4 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
       }
     }
   }
-
-  protected class Aggregator(bucketing:Seq[ScanAggregation], collation: Collation) {
-    val builder = new DigestBuilder(bucketing, collation)
-
-    def collectUpstream(id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, vsn:String) =
-      builder.add(id.id, attributes, vsn)
-    def collectDownstream(id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, uvsn:String, dvsn:String) =
-      builder.add(id.id, attributes, dvsn)
-
-    def digests:Seq[ScanResultEntry] = builder.toDigests
-  }
 }
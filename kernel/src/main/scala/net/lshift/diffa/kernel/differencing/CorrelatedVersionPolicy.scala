@@ -21,7 +21,7 @@ import net.lshift.diffa.kernel.participants._
 import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
-import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
 import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstraint, ScanResultEntry}
 
 
@@ -33,8 +33,9 @@ import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstr
  */
 class CorrelatedVersionPolicy(stores:VersionCorrelationStoreFactory,
                               listener:DifferencingListener,
-                              diagnostics:DiagnosticsManager)
-    extends BaseScanningVersionPolicy(stores, listener, diagnostics) {
+                              diagnostics:DiagnosticsManager,
+                              limits:PairServiceLimitsView)
+    extends BaseScanningVersionPolicy(stores, listener, diagnostics, limits) {
 
   def downstreamStrategy(us:UpstreamParticipant, ds:DownstreamParticipant, collation: Collation) =
     new DownstreamCorrelatingScanStrategy(us,ds, collation)
@@ -46,16 +47,13 @@ class CorrelatedVersionPolicy(stores:VersionCorrelationStoreFactory,
 
 
     def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = {
-      val aggregator = new Aggregator(bucketing, collation)
-      stores(pair).queryDownstreams(constraints, aggregator.collectDownstream)
-      aggregator.digests
+      stores(pair).aggregateDownstreams(bucketing, constraints, collation)
     }
 
-    def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) = {
-      stores(pair).queryDownstreams(constraints).map(x => {
-        ScanResultEntry.forEntity(x.id, x.downstreamDVsn, x.lastUpdate, mapAsJavaMap(x.downstreamAttributes))
-      })
-    }
+    def openCorrelations(pair:PairRef, constraints:Seq[ScanConstraint]) = stores(pair).openDownstreams(constraints)
+
+    def toEntity(x:Correlation) =
+      ScanResultEntry.forEntity(x.id, x.downstreamDVsn, x.lastUpdate, mapAsJavaMap(x.downstreamAttributes))
 
     def handleMismatch(scanId:Option[Long], pair:PairRef, writer: LimitedVersionCorrelationWriter, vm:VersionMismatch, listener:DifferencingListener) = {
       vm match {
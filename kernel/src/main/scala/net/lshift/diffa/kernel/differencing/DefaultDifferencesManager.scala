@@ -77,13 +77,33 @@ class DefaultDifferencesManager(
 
     def writeMismatch(id: VersionID, lastUpdate: DateTime, upstreamVsn: String, downstreamVsn: String, origin: MatchOrigin, storeVersion:Long) {
       onMismatch(id, lastUpdate, upstreamVsn, downstreamVsn, origin, Unfiltered)
-      if (storeVersion > latestStoreVersion) {
+      recordStoreVersion(storeVersion)
+    }
+
+    def writeMismatches(mismatches:Seq[Correlation], origin:MatchOrigin) {
+      val (pending, reportable) = mismatches.partition(c => isActivelyMatched(c.asVersionID))
+
+      pending.foreach(c => reportPending(c.asVersionID, c.lastUpdate, c.upstreamVsn, c.downstreamUVsn, origin))
+      reportUnmatched(reportable.map(c => UnmatchedEventDetail(c.asVersionID, c.lastUpdate, c.upstreamVsn, c.downstreamUVsn)), origin)
+
+      mismatches.foreach(c => recordStoreVersion(c.storeVersion))
+    }
+
+    def evictTombstones(tombstones:Iterable[Correlation]) {
+      if (!tombstones.isEmpty) {
+        domainDifferenceStore.addMatchedEvents(tombstones.map(t => (t.asVersionID, t.upstreamVsn)).toSeq)
+        tombstones.foreach(t => recordStoreVersion(t.storeVersion))
+      }
+    }
+
+    private def recordStoreVersion(storeVersion:java.lang.Long) {
+      if (storeVersion != null && storeVersion > latestStoreVersion) {
         latestStoreVersion = storeVersion
       }
     }
 
-    def evictTombstones(tombstones:Iterable[Correlation]) {
-      tombstones.foreach(t => onMatch(t.asVersionID, t.upstreamVsn, TriggeredByScan))
+    def checkpoint() {
+      domainDifferenceStore.recordLatestVersion(pairRef, latestStoreVersion)
     }
 
     def abort() {
@@ -91,7 +111,7 @@ class DefaultDifferencesManager(
     }
 
     def close() {
-      domainDifferenceStore.recordLatestVersion(pairRef, latestStoreVersion)
+      checkpoint()
     }
   }
 
@@ -188,20 +208,21 @@ class DefaultDifferencesManager(
    */
   def onMismatch(id: VersionID, lastUpdate:DateTime, upstreamVsn: String, downstreamVsn: String, origin:MatchOrigin, level:DifferenceFilterLevel) = {
     log.trace("Processing mismatch for " + id + " with upstreamVsn '" + upstreamVsn + "' and downstreamVsn '" + downstreamVsn + "'")
-    matching.getMatcher(id.pair) match {
-      case Some(matcher) => {
-        matcher.isVersionIDActive(id) match {
-          case true  => reportPending(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
-          case false => reportUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
-        }
-      }
-      case None    => {
-        // If no matcher is configured, then report mis-matches immediately
-        reportUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
-      }
+    isActivelyMatched(id) match {
+      case true  => reportPending(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
+      case false => reportUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
     }
   }
 
+  /**
+   * Determines whether the matching manager is still monitoring the given id (ie, it has unexpired events around it).
+   * If no matcher is configured, then mis-matches should be reported immediately.
+   */
+  private def isActivelyMatched(id:VersionID) = matching.getMatcher(id.pair) match {
+    case Some(matcher) => matcher.isVersionIDActive(id)
+    case None          => false
+  }
+
   /**
    * This is the callback that channels match events from the version policy into the domain cache.
    * If the ID is currently in our list of reportable events, generate a match event to reverse it,
@@ -272,6 +293,22 @@ class DefaultDifferencesManager(
   def reportUnmatched(id:VersionID, lastUpdate:DateTime, upstreamVsn: String, downstreamVsn: String, origin: MatchOrigin) {
     log.trace("Report unmatched for %s at %s, upstream %s, downstream %s, origin %s".format(id,lastUpdate, upstreamVsn, downstreamVsn, origin))
     val (status, event) = domainDifferenceStore.addReportableUnmatchedEvent(id, lastUpdate, upstreamVsn, downstreamVsn, new DateTime)
+    onReportedUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin, status, event)
+  }
+
+  def reportUnmatched(events:Seq[UnmatchedEventDetail], origin: MatchOrigin) {
+    if (!events.isEmpty) {
+      log.trace("Report %s unmatched, origin %s".format(events.size, origin))
+      val results = domainDifferenceStore.addReportableUnmatchedEvents(events, new DateTime)
+
+      events.zip(results).foreach { case (e, (status, event)) =>
+        onReportedUnmatched(e.id, e.lastUpdate, e.upstreamVsn, e.downstreamVsn, origin, status, event)
+      }
+    }
+  }
+
+  private def onReportedUnmatched(id:VersionID, lastUpdate:DateTime, upstreamVsn: String, downstreamVsn: String,
+                                  origin: MatchOrigin, status:DifferenceEventStatus, event:DifferenceEvent) {
     differenceListener.onMismatch(id, lastUpdate, upstreamVsn, downstreamVsn, origin, MatcherFiltered)
 
     status match {
@@ -16,33 +16,66 @@
 package net.lshift.diffa.kernel.differencing
 
 import net.lshift.diffa.kernel.config.PairRef
-import scala.collection.mutable.{Map => MutableMap}
 import org.joda.time.{DateTimeZone, Minutes, DateTime}
 import net.lshift.diffa.kernel.util.DateUtils
-import net.lshift.diffa.kernel.util.cache.CacheProvider
+import java.util.concurrent.ConcurrentHashMap
 import scala.collection.JavaConversions._
 
 /**
  * Cache responsible for providing views on aggregated differences.
  *
- * The cache operates using a pair of underlying cache instances - a sequence cache and an aggregate cache. The
- * purposes of the sequence cache is to provide statistics over predictable ranges - as generated by the
- * DifferenceAggregationCachePolicy for a given 'now'. This cache produces validation keys (a combination of the maximum
- * sequence id in a range, and the total count of unmatched differences). The aggregation cache stores time ranged results
- * based upon specific aggregation queries. Each result stores the combined validation key for all sequence cache values
- * that cover it. If a new event arrives (either a mismatch or match), then the appropriate sequence cache (which is
- * calculated based upon 'now' and the event detection time) is invalidated. The next query that arrives will generate
- * a new sequence cache value (which will contain a new validation key) and will thus cause dependent tiles to be
- * marked as invalid and reconstructed.
+ * For each pair, the cache holds the number of unmatched (and unignored) differences detected in each 15 minute tile.
+ * These counts are built from the store the first time that the pair is asked about, and are then maintained by the
+ * store as each difference is reported, matched, ignored or unignored. A request for an aggregate of any size is then
+ * answered by summing the tiles that it covers, without needing to count the differences themselves. Only where the
+ * edge of a requested aggregate falls within a tile that has differences in it does the store need to be asked to
+ * count that part of the tile.
+ *
+ * The store only reports a change once the transaction that made it has committed, so a rolled back change is never
+ * counted. The counts are built from the store without holding any lock that writers need, and are only installed if
+ * no change was reported whilst they were being built; otherwise they are read again. They are local to this node,
+ * and are rebuilt once they reach the refresh interval, which bounds the effect of a change that committed whilst the
+ * counts were being read but was only reported after they had been installed.
  */
-class DifferenceAggregationCache(diffStore:DomainDifferenceStore, cacheProvider:CacheProvider) {
-  val sequenceCache = cacheProvider.getCachedMap[SequenceCacheKey, SequenceCacheValue]("difference.aggregation.sequences")
-  val aggregateCache = cacheProvider.getCachedMap[AggregateCacheKey, AggregateCacheValue]("difference.aggregation.values")
-
-  def onStoreUpdate(pair:PairRef, detectionTime:DateTime) = {
-    // Remove the stored sequence cache value for the given key
-    val k = DifferenceAggregationCachePolicy.sequenceKeyForDetectionTime(pair, now, detectionTime)
-    sequenceCache.evict(k)
+class DifferenceAggregationCache(diffStore:DomainDifferenceStore,
+                                 unmatchedDetectionTimes:(PairRef, (DateTime, Int) => Unit) => Unit,
+                                 refreshMinutes:Int = DifferenceAggregationCache.defaultRefreshMinutes) {
+  import DifferenceAggregationCache._
+
+  private val countsByPair = new ConcurrentHashMap[PairRef, PairCounts]
+
+  /**
+   * Records a committed change to a difference. The previous and current detection times are given when the
+   * difference was (or is now) counted as unmatched, and are None otherwise.
+   */
+  def onEventChanged(pair:PairRef, previous:Option[DateTime], current:Option[DateTime]) {
+    if (previous.map(tileStart) != current.map(tileStart)) {
+      val state = stateFor(pair)
+      state.synchronized {
+        state.changes += 1
+        val counts = state.counts
+        if (counts != null) {
+          counts.synchronized {
+            previous.foreach(t => counts.add(tileStart(t), -1))
+            current.foreach(t => counts.add(tileStart(t), 1))
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Discards the counts for the given pair, so that they will be rebuilt from the store when next needed.
+   */
+  def invalidate(pair:PairRef) {
+    val state = countsByPair.remove(pair)
+    if (state != null) {
+      // A rebuild that is still reading the store mustn't install its counts once they have been discarded
+      state.synchronized {
+        state.changes += 1
+        state.counts = null
+      }
+    }
   }
 
   def retrieveAggregates(pair:PairRef, start:DateTime, end:DateTime, aggregateMinutes:Option[Int]):Seq[AggregateTile] = {
@@ -56,47 +89,38 @@ class DifferenceAggregationCache(diffStore:DomainDifferenceStore, cacheProvider:
       case Some(a) => slice(start, end, a)
     }
 
-    // Work through each aggregate, validate and retrieve it. Retain a session between each call to prevent us having
-    // to ask the cache for sequence cache keys multiple times
-    val session = MutableMap[SequenceCacheKey, SequenceCacheValue]()
-    aggregateBounds.map { case ((bStart, bEnd)) => retrieveAggregate(pair, bStart, bEnd, session) }
+    aggregateBounds.map { case ((bStart, bEnd)) => retrieveAggregate(pair, bStart, bEnd) }
   }
 
   def clear() {
-    sequenceCache.evictAll()
-    aggregateCache.evictAll()
+    countsByPair.keySet.toList.foreach(invalidate(_))
   }
 
-  def retrieveAggregate(pair:PairRef, start:DateTime, end:DateTime, session:MutableMap[SequenceCacheKey, SequenceCacheValue] = MutableMap()) = {
+  def retrieveAggregate(pair:PairRef, start:DateTime, end:DateTime) = {
     if (!DateUtils.safeIsBefore(start, end)) {
       throw new InvalidAggregateRequestException("start time must be before end time")
     }
 
-    // Retrieve the sequence cache values that cover this aggregate, then calculate a maximum value
-    val seqCacheKeys = DifferenceAggregationCachePolicy.sequenceKeysForDetectionTimeRange(
-      pair, now, start, end)
-    val cacheEntries = seqCacheKeys.
-      map(k => session.getOrElseUpdate(k,
-        sequenceCache.readThrough(k, () => retrieveSequenceCacheValue(pair, k.start, k.end))))
-    val validationKey = SequenceCacheValue.combine(cacheEntries).toValidationKey
-
-    // Retrieve the value from the aggregate cache, and validate that it matches or exceeds the max sequence id
-    val key = AggregateCacheKey(pair, start, end)
-    val v = aggregateCache.get(key)
-    val value = if (v != null && v.validationKey == validationKey) {
-      Some(v)
+    val counts = countsFor(pair)
+
+    // Counts the part of the tile starting at the given time that falls within the given bounds. The store only needs
+    // to be asked when the tile isn't empty.
+    def partial(tile:Long, from:DateTime, until:DateTime) =
+      if (counts.synchronized(counts.count(tile)) == 0) 0
+      else diffStore.countUnmatchedEvents(pair, from, until)
+
+    def isAligned(t:DateTime) = t == null || t.getMillis == tileStart(t)
+
+    val count = if (start != null && end != null && tileStart(start) == tileStart(end)) {
+      partial(tileStart(start), start, end)
     } else {
-      None
-    }
+      val leading = if (isAligned(start)) 0 else partial(tileStart(start), start, new DateTime(tileStart(start) + tileMillis))
+      val trailing = if (isAligned(end)) 0 else partial(tileStart(end), new DateTime(tileStart(end)), end)
+
+      val firstWholeTile = Option(start).map(s => if (isAligned(s)) s.getMillis else tileStart(s) + tileMillis)
+      val lastWholeTile = Option(end).map(tileStart)
 
-    val count = value match {
-      case None    =>
-        // Rebuild the value
-        val unmatched = diffStore.countUnmatchedEvents(pair, start, end)
-        aggregateCache.put(key, AggregateCacheValue(unmatched, validationKey))
-        unmatched
-      case Some(v) =>
-        v.count
+      leading + counts.synchronized(counts.sum(firstWholeTile, lastWholeTile)) + trailing
     }
 
     AggregateTile(start, end, count)
@@ -104,6 +128,53 @@ class DifferenceAggregationCache(diffStore:DomainDifferenceStore, cacheProvider:
 
   def now = (new DateTime).withZone(DateTimeZone.UTC)
 
+  private def countsFor(pair:PairRef) = {
+    val state = stateFor(pair)
+    val existing = state.synchronized(state.counts)
+    if (existing != null && existing.builtAt.plusMinutes(refreshMinutes).isAfter(now)) {
+      existing
+    } else {
+      rebuild(pair, state)
+    }
+  }
+
+  /**
+   * Builds the counts for the given pair from the store. Should a change be reported whilst the store is being read,
+   * the read may or may not have seen it, so the counts are built again. If the pair is too busy for a read to go
+   * unchanged, the last counts built are used to answer this request, but aren't kept.
+   */
+  private def rebuild(pair:PairRef, state:PairCounts) = {
+    def attempt(remaining:Int):TileCounts = {
+      val changesBefore = state.synchronized(state.changes)
+      val built = new TileCounts(now)
+      unmatchedDetectionTimes(pair, (detectedAt, count) => built.add(tileStart(detectedAt), count))
+
+      val installed = state.synchronized {
+        if (state.changes == changesBefore) {
+          state.counts = built
+          true
+        } else {
+          false
+        }
+      }
+
+      if (installed || remaining == 0) built else attempt(remaining - 1)
+    }
+
+    attempt(maxRebuildRetries)
+  }
+
+  private def stateFor(pair:PairRef) = {
+    val existing = countsByPair.get(pair)
+    if (existing != null) {
+      existing
+    } else {
+      val created = new PairCounts
+      val raced = countsByPair.putIfAbsent(pair, created)
+      if (raced != null) raced else created
+    }
+  }
+
   private def slice(startTime:DateTime, endTime:DateTime, aggregateMinutes:Int) : Seq[(DateTime, DateTime)] = {
     if (startTime == null || endTime == null) {
       throw new InvalidAggregateRequestException("Both a start and end time must be defined when requesting bucketing")
@@ -120,43 +191,67 @@ class DifferenceAggregationCache(diffStore:DomainDifferenceStore, cacheProvider:
     (0 to (divisions - 1)).
       map(d => (startTime.plusMinutes(d * aggregateMinutes), startTime.plusMinutes((d + 1) * aggregateMinutes)))
   }
+}
+
+object DifferenceAggregationCache {
+  val tileMinutes = 15
+  val tileMillis = tileMinutes * 60 * 1000L
+  val defaultRefreshMinutes = 60
 
-  private def retrieveSequenceCacheValue(pair:PairRef, start:DateTime, end:DateTime):SequenceCacheValue = {
-    SequenceCacheValue(diffStore.maxSequenceId(pair, start, end), diffStore.countUnmatchedEvents(pair, start, end))
+  /**
+   * How many times the counts for a pair are read again when changes keep being reported whilst they are being read.
+   */
+  val maxRebuildRetries = 2
+
+  /**
+   * Works out the start (in millis) of the tile that the given time falls into.
+   */
+  def tileStart(t:DateTime) = t.getMillis - ((t.getMillis % tileMillis) + tileMillis) % tileMillis
+
+  /**
+   * The counts installed for a pair, if any, along with how many changes have been reported for it. Guarded by the
+   * instance lock, which is never held whilst the store is being read.
+   */
+  private class PairCounts {
+    var counts:TileCounts = null
+    var changes = 0L
   }
-}
 
-/**
- * Exception indicating that an aggregate request was badly formed.
- */
-class InvalidAggregateRequestException(msg:String) extends RuntimeException(msg)
+  /**
+   * Counts of unmatched differences, keyed by the start of their tile. Guarded by the instance lock once installed.
+   */
+  private class TileCounts(val builtAt:DateTime) {
+    private val counts = new java.util.TreeMap[java.lang.Long, java.lang.Integer]
 
-/**
- * Key into the sequence cache for a time range on a given pair.
- */
-case class SequenceCacheKey(pair:PairRef, start:DateTime, end:DateTime)
+    def add(tile:Long, delta:Int) {
+      count(tile) + delta match {
+        case 0 => counts.remove(tile)
+        case n => counts.put(tile, n)
+      }
+    }
 
-/**
- * Value stored in the sequence cache, representing the max sequence id found in the region along with the total
- * count of differences.
- */
-case class SequenceCacheValue(maxSeqId:Long, totalCount:Int) {
-  def toValidationKey = maxSeqId + "." + totalCount
-}
-object SequenceCacheValue {
-  def combine(values:Iterable[SequenceCacheValue]) =
-    SequenceCacheValue(values.map(_.maxSeqId).max, values.map(_.totalCount).sum)
-}
+    def count(tile:Long) = Option(counts.get(tile)).map(_.intValue).getOrElse(0)
 
-/**
- * Key into the aggregate cache for a time range on a given pair.
- */
-case class AggregateCacheKey(pair:PairRef, start:DateTime, end:DateTime)
+    /**
+     * Sums the counts of the tiles starting from the first given tile (inclusive) up to the last (exclusive). Either
+     * bound may be absent, in which case the sum is open ended.
+     */
+    def sum(first:Option[Long], last:Option[Long]) = {
+      val range = (first, last) match {
+        case (Some(f), Some(l)) => if (f < l) counts.subMap(f, l) else new java.util.TreeMap[java.lang.Long, java.lang.Integer]
+        case (Some(f), None)    => counts.tailMap(f)
+        case (None, Some(l))    => counts.headMap(l)
+        case (None, None)       => counts
+      }
+      range.values.map(_.intValue).sum
+    }
+  }
+}
 
 /**
- * Value stored in the aggregate cache.
+ * Exception indicating that an aggregate request was badly formed.
  */
-case class AggregateCacheValue(count:Int, validationKey:String)
+class InvalidAggregateRequestException(msg:String) extends RuntimeException(msg)
 
 /**
  * A tile containing the count from a given start to end time.
@@ -114,11 +114,22 @@ trait DifferenceWriter {
    */
   def writeMismatch(id:VersionID, lastUpdated:DateTime, upstreamVsn:String, downstreamVsn:String, origin:MatchOrigin, storeVersion:Long)
 
+  /**
+   * Records a batch of mismatched correlations. The differences that are reportable are written together.
+   */
+  def writeMismatches(mismatches:Seq[Correlation], origin:MatchOrigin)
+
   /**
    * Indicates that the following correlations are tombstones and differences associated with them can be deleted
    */
   def evictTombstones(tombstones:Iterable[Correlation])
 
+  /**
+   * Records the latest store version written so far as the synchronization checkpoint for the pair, so that a
+   * replay interrupted after this point can resume from here rather than starting again.
+   */
+  def checkpoint()
+
   /**
    * Aborts this difference writer. Any locks held by this writer will be released (as per the close method), but no
    * overwrite behaviour will be performed. This allows a consumer that had opened a write session to handle an exception
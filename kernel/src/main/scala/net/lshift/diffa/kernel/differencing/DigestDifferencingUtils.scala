@@ -20,7 +20,7 @@ import collection.mutable.{ListBuffer, HashMap}
 import net.lshift.diffa.kernel.participants._
 import net.lshift.diffa.kernel.config.AggregatingCategoryDescriptor
 import scala.collection.JavaConversions._
-import net.lshift.diffa.adapter.scanning.{ScanConstraint, ScanResultEntry}
+import net.lshift.diffa.adapter.scanning.{Collation, OutOfOrderException, ScanConstraint, ScanResultEntry}
 
 /**
  * Utility methods for differencing sequences of digests.
@@ -60,6 +60,93 @@ object DigestDifferencingUtils {
     result
   }
 
+  /**
+   * Streaming variant of differenceEntities. Only the second (local) side is indexed; entries from the first
+   * (remote) side are compared as the source pushes them, and each mismatch is passed to the handler as soon as it
+   * is known. Memory use is therefore bounded by the size of the local side, regardless of how large the remote
+   * response is.
+   */
+  def differenceEntities(categories:Map[String, AggregatingCategoryDescriptor],
+                         ds1:(ScanResultEntry => Unit) => Unit,
+                         ds2:Seq[ScanResultEntry],
+                         constraints:Seq[ScanConstraint],
+                         handler:VersionMismatch => Unit) {
+    val ds2Ids = indexScanResultById(ds2)
+
+    ds1(ds1Digest => {
+      val label = ds1Digest.getId
+      val (otherMatches, otherDigest) = ds2Ids.remove(label) match {
+        case Some(hs2Digest) => (ds1Digest.getVersion == hs2Digest.getVersion, hs2Digest.getVersion)
+        case None => (false, null)
+      }
+
+      if (!otherMatches) {
+        handler(VersionMismatch(label, AttributesUtil.toTypedMap(categories, ds1Digest.getAttributes.toMap), ds1Digest.getLastUpdated, ds1Digest.getVersion, otherDigest))
+      }
+    })
+
+    // Anything left over was not present on the streamed side at all
+    ds2Ids.foreach { case (label, hs2Digest) =>
+      handler(VersionMismatch(label, AttributesUtil.toTypedMap(categories, hs2Digest.getAttributes.toMap), hs2Digest.getLastUpdated, null, hs2Digest.getVersion))
+    }
+  }
+
+  /**
+   * Merge-join variant of the streaming differenceEntities, for use when both sides are delivered in the order
+   * defined by the given collation. Neither side is indexed; the local side is read in step with the streamed remote
+   * side, so when it is itself read lazily only a constant amount of memory is needed. Attributes are only converted
+   * for entries that actually turn out to be mismatched.
+   *
+   * Since an out of order entry would silently produce incorrect mismatches, both sides are checked as they are
+   * consumed and an OutOfOrderException is raised on the first violation.
+   */
+  def differenceSortedEntities(categories:Map[String, AggregatingCategoryDescriptor],
+                               ds1:(ScanResultEntry => Unit) => Unit,
+                               ds2:Iterator[ScanResultEntry],
+                               collation:Collation,
+                               handler:VersionMismatch => Unit) {
+    val ds2Entries = ds2.buffered
+    var previousDs1Id:String = null
+    var previousDs2Id:String = null
+
+    def nextDs2() = {
+      val entry = ds2Entries.next()
+      if (previousDs2Id != null && !collation.sortsBefore(previousDs2Id, entry.getId)) {
+        throw new OutOfOrderException(entry.getId, previousDs2Id)
+      }
+      previousDs2Id = entry.getId
+      entry
+    }
+
+    def reportDs2Only(hs2Digest:ScanResultEntry) {
+      handler(VersionMismatch(hs2Digest.getId, AttributesUtil.toTypedMap(categories, hs2Digest.getAttributes.toMap), hs2Digest.getLastUpdated, null, hs2Digest.getVersion))
+    }
+
+    ds1(ds1Digest => {
+      val label = ds1Digest.getId
+      if (previousDs1Id != null && !collation.sortsBefore(previousDs1Id, label)) {
+        throw new OutOfOrderException(label, previousDs1Id)
+      }
+      previousDs1Id = label
+
+      // Anything on the local side that sorts before the current remote id cannot be present remotely
+      while (ds2Entries.hasNext && collation.sortsBefore(ds2Entries.head.getId, label)) {
+        reportDs2Only(nextDs2())
+      }
+
+      val otherDigest = if (ds2Entries.hasNext && ds2Entries.head.getId == label) nextDs2().getVersion else null
+
+      if (otherDigest == null || ds1Digest.getVersion != otherDigest) {
+        handler(VersionMismatch(label, AttributesUtil.toTypedMap(categories, ds1Digest.getAttributes.toMap), ds1Digest.getLastUpdated, ds1Digest.getVersion, otherDigest))
+      }
+    })
+
+    // Anything left over sorts after the last streamed entry
+    while (ds2Entries.hasNext) {
+      reportDs2Only(nextDs2())
+    }
+  }
+
   def differenceAggregates(ds1:Seq[ScanResultEntry],
                            ds2:Seq[ScanResultEntry],
                            bucketing:Seq[CategoryFunction],
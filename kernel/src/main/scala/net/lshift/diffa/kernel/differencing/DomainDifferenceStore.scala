@@ -58,6 +58,12 @@ trait DomainDifferenceStore {
    */
   def addReportableUnmatchedEvent(id:VersionID, lastUpdate:DateTime, upstreamVsn:String, downstreamVsn:String, seen:DateTime):(DifferenceEventStatus,DifferenceEvent)
 
+  /**
+   * Adds a batch of reportable unmatched events, each as per addReportableUnmatchedEvent, within a single transaction.
+   * Returns the status and detail of each event, in the order the events were given.
+   */
+  def addReportableUnmatchedEvents(events:Seq[UnmatchedEventDetail], seen:DateTime):Seq[(DifferenceEventStatus,DifferenceEvent)]
+
   /**
    * Upgrades the given pending event to a reportable event. Returns the detail of the event (including a sequence id).
    * Any previous matched event for the same id will be removed. If no event is available to upgrade with the given
@@ -77,6 +83,11 @@ trait DomainDifferenceStore {
    */
   def addMatchedEvent(id:VersionID, vsn:String):DifferenceEvent
 
+  /**
+   * Adds a batch of matched events, each as per addMatchedEvent, within a single transaction.
+   */
+  def addMatchedEvents(events:Seq[(VersionID, String)])
+
   /**
    * Indicates that the given event should be ignored, and not returned in any query. Returns the regenerated object
    * that is marked as ignored.
@@ -163,6 +174,11 @@ trait DomainDifferenceStore {
   def purgeOrphanedEvents : Int
 }
 
+/**
+ * The details of an unmatched event that is being added to the store as part of a batch.
+ */
+case class UnmatchedEventDetail(id:VersionID, lastUpdate:DateTime, upstreamVsn:String, downstreamVsn:String)
+
 case class TileGroup(
   lowerBound:DateTime,
   tiles:Map[DateTime,Int]
@@ -37,6 +37,7 @@ import net.lshift.diffa.kernel.naming.CacheName
 import net.lshift.diffa.kernel.events.VersionID
 import net.lshift.diffa.kernel.lifecycle.PairLifecycleAware
 import net.lshift.diffa.snowflake.IdProvider
+import collection.mutable.ListBuffer
 
 /**
  * Hibernate backed Domain Cache provider.
@@ -48,7 +49,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
   val logger = LoggerFactory.getLogger(getClass)
 
-  val aggregationCache = new DifferenceAggregationCache(this, cacheProvider)
+  val aggregationCache = new DifferenceAggregationCache(this, unmatchedDetectionTimes)
 
   val pendingEvents = cacheProvider.getCachedMap[VersionID, PendingDifferenceEvent]("pending.difference.events")
   val reportedEvents = cacheProvider.getCachedMap[VersionID, InternalReportedDifferenceEvent](CacheName.DIFFS)
@@ -80,7 +81,10 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
   }
 
   def onPairUpdated(pair:PairRef) = extentsByPair.evict(pair)
-  def onPairDeleted(pair:PairRef) = extentsByPair.evict(pair)
+  def onPairDeleted(pair:PairRef) = {
+    extentsByPair.evict(pair)
+    aggregationCache.invalidate(pair)
+  }
 
   def removeDomain(space:Long) = {
 
@@ -89,6 +93,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
         removePendingDifferences(t, space)
         removeLatestRecordedVersion(t, p.asRef)
         orphanExtentForPair(t, p.asRef)
+        aggregationCache.invalidate(p.asRef)
       })
     })
 
@@ -106,6 +111,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     }
 
     extentsByPair.evict(pair)
+    aggregationCache.invalidate(pair)
     preenPendingEventsCache("objId.pair.name", pair.name)
   }
 
@@ -180,6 +186,24 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     })
 
 
+  def addReportableUnmatchedEvents(events:Seq[UnmatchedEventDetail], seen:DateTime) =
+    inBatch(events.map(_.id), (t, batch) => events.map(e => {
+      addReportableMismatch(t, InternalReportedDifferenceEvent(
+        objId = e.id,
+        detectedAt = e.lastUpdate,
+        isMatch = false,
+        upstreamVsn = e.upstreamVsn,
+        downstreamVsn = e.downstreamVsn,
+        lastSeen = seen
+      ), Some(batch))
+    }))
+
+  def addMatchedEvents(events:Seq[(VersionID, String)]) {
+    inBatch(events.map(_._1), (t, batch) => events.foreach {
+      case (id, vsn) => addMatched(t, id, vsn, Some(batch))
+    })
+  }
+
   def upgradePendingUnmatchedEvent(id: VersionID) = {
 
     db.execute(t => {
@@ -226,42 +250,39 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     })
   }
 
-  def addMatchedEvent(id: VersionID, vsn: String) = {
+  def addMatchedEvent(id: VersionID, vsn: String) = db.execute(t => addMatched(t, id, vsn))
 
-    db.execute(t => {
-      // Remove any pending events with the given id
-      val pending = getPendingEvent(t, id)
+  private def addMatched(t:Factory, id: VersionID, vsn: String, batch:Option[StatementBatch] = None) = {
+    // Remove any pending events with the given id
+    val pending = getPendingEvent(t, id)
 
-      if (pending.exists()) {
-        removePendingEvent(t, pending)
-      }
+    if (pending.exists()) {
+      removePendingEvent(t, pending, batch)
+    }
 
-      // Find any existing events we've got for this ID
-      val event = getEventById(t, id)
-
-      if (reportedEventExists(event)) {
-        event.state match {
-          case MatchState.MATCHED => // Ignore. We've already got an event for what we want.
-            event.asDifferenceEvent
-          case MatchState.UNMATCHED | MatchState.IGNORED =>
-            // A difference has gone away. Remove the difference, and add in a match
-            val previousDetectionTime = event.detectedAt
-
-            val newEvent = event.copy(
-              detectedAt = new DateTime,
-              isMatch = true,
-              upstreamVsn = vsn,
-              downstreamVsn = vsn
-            )
-
-            updateAndConvertEvent(t, newEvent, previousDetectionTime)
-        }
-      }
-      else {
-        // No unmatched event. Nothing to do.
-        null
+    // Find any existing events we've got for this ID
+    val event = getEventById(t, id)
+
+    if (reportedEventExists(event)) {
+      event.state match {
+        case MatchState.MATCHED => // Ignore. We've already got an event for what we want.
+          event.asDifferenceEvent
+        case MatchState.UNMATCHED | MatchState.IGNORED =>
+          // A difference has gone away. Remove the difference, and add in a match
+          val newEvent = event.copy(
+            detectedAt = new DateTime,
+            isMatch = true,
+            upstreamVsn = vsn,
+            downstreamVsn = vsn
+          )
+
+          upgradePreviouslyReportedEvent(t, event, newEvent, batch)
       }
-    })
+    }
+    else {
+      // No unmatched event. Nothing to do.
+      null
+    }
   }
 
   def ignoreEvent(space:Long, seqId:String) = {
@@ -284,7 +305,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
         val newEvent = evt.copy(ignored = true)
 
-        updateAndConvertEvent(t, newEvent)
+        upgradePreviouslyReportedEvent(t, evt, newEvent)
 
       } else {
         evt.asDifferenceEvent
@@ -314,7 +335,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
       val newEvent = evt.copy(ignored = false)
 
-      updateAndConvertEvent(t, newEvent)
+      upgradePreviouslyReportedEvent(t, evt, newEvent)
     }
   }
 
@@ -664,8 +685,8 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     pendingEvents.put(pending.objId,pending)
   }
 
-  private def removePendingEvent(f: Factory, pending:PendingDifferenceEvent) = {
-    f.delete(PENDING_DIFFS).where(PENDING_DIFFS.SEQ_ID.equal(pending.oid)).execute()
+  private def removePendingEvent(f: Factory, pending:PendingDifferenceEvent, batch:Option[StatementBatch] = None) = {
+    issue(f.delete(PENDING_DIFFS).where(PENDING_DIFFS.SEQ_ID.equal(pending.oid)), batch)
     pendingEvents.evict(pending.objId)
   }
 
@@ -758,7 +779,123 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
   private def reportedEventExists(event:InternalReportedDifferenceEvent) = event.seqId != NON_EXISTENT_SEQUENCE_ID
 
-  private def addReportableMismatch(t:Factory, reportableUnmatched:InternalReportedDifferenceEvent) : (DifferenceEventStatus, DifferenceEvent) = {
+  /**
+   * The maximum number of entity ids that are looked up by a single query when preparing a batch.
+   */
+  private val batchLookupSize = 500
+
+  /**
+   * Collects the statements issued whilst applying a batch of changes, so that they can be sent to the database as a
+   * single JDBC batch. Statements that are expected to change a row carry the message to fail with if they don't.
+   */
+  private class StatementBatch {
+    private val statements = new ListBuffer[(Query, Option[() => String])]
+
+    def add(query:Query, failureIfUnchanged:Option[() => String]) {
+      statements += ((query, failureIfUnchanged))
+    }
+
+    def execute(t:Factory) {
+      if (!statements.isEmpty) {
+        val rows = t.batch(statements.map(_._1):_*).execute()
+        statements.zip(rows).foreach {
+          case ((_, Some(failure)), 0) => failUnchanged(failure())
+          case _                       =>
+        }
+      }
+    }
+  }
+
+  /**
+   * Executes the given statement, or adds it to the given batch to be executed along with the rest of the batch.
+   */
+  private def issue(query:Query, batch:Option[StatementBatch], failureIfUnchanged:Option[() => String] = None) {
+    batch match {
+      case Some(b) => b.add(query, failureIfUnchanged)
+      case None    =>
+        val rows = query.execute()
+        failureIfUnchanged.foreach(failure => if (rows == 0) failUnchanged(failure()))
+    }
+  }
+
+  private def failUnchanged(msg:String) = {
+    logger.error(msg, new Exception().fillInStackTrace())
+    throw new IllegalStateException(msg)
+  }
+
+  /**
+   * Applies a batch of changes to the events with the given ids within a single transaction. The existing state of
+   * the events is loaded up front with a query per pair, and the statements that the changes produce are sent to the
+   * database together. Since the cached events are updated as each change is applied, they are discarded should the
+   * batch fail.
+   */
+  private def inBatch[T](ids:Seq[VersionID], f:(Factory, StatementBatch) => T) : T = {
+    try {
+      db.execute(t => {
+        prefetchEvents(t, ids)
+
+        val batch = new StatementBatch
+        val result = f(t, batch)
+        batch.execute(t)
+        result
+      })
+    } catch {
+      case e:Exception =>
+        ids.foreach(id => {
+          reportedEvents.evict(id)
+          pendingEvents.evict(id)
+        })
+        throw e
+    }
+  }
+
+  /**
+   * Loads the reported and pending events for any of the given ids that aren't already cached.
+   */
+  private def prefetchEvents(t:Factory, ids:Seq[VersionID]) {
+    ids.distinct.groupBy(_.pair).foreach { case (pair, pairIds) =>
+      pairIds.filter(id => reportedEvents.get(id) == null).grouped(batchLookupSize).foreach(chunk => {
+        val found = t.select(DIFFS.getFields).
+                      select(PAIRS.SPACE, PAIRS.NAME.as(PAIR_NAME_ALIAS)).
+                      select(ESCALATIONS.NAME.as(ESCALATION_NAME_ALIAS)).
+                      from(DIFFS).
+                      join(PAIRS).
+                        on(PAIRS.EXTENT.equal(DIFFS.EXTENT)).
+                      leftOuterJoin(ESCALATION_RULES).
+                        on(ESCALATION_RULES.ID.eq(DIFFS.NEXT_ESCALATION)).
+                      leftOuterJoin(ESCALATIONS).
+                        on(ESCALATIONS.EXTENT.eq(ESCALATION_RULES.EXTENT)).
+                          and(ESCALATIONS.NAME.eq(ESCALATION_RULES.ESCALATION)).
+                      where(PAIRS.SPACE.equal(pair.space)).
+                        and(PAIRS.NAME.equal(pair.name)).
+                        and(DIFFS.ENTITY_ID.in(chunk.map(_.id):_*)).
+                      fetch().
+                      map(new RecordMapper[Record, InternalReportedDifferenceEvent] {
+                        def map(r:Record) = recordToReportedDifferenceEvent(r)
+                      }).
+                      map(e => e.objId -> e).toMap
+
+        chunk.foreach(id => reportedEvents.put(id, found.getOrElse(id, nonExistentReportedEvent)))
+      })
+
+      pairIds.filter(id => pendingEvents.get(id) == null).grouped(batchLookupSize).foreach(chunk => {
+        val found = t.selectFrom(PENDING_DIFFS).
+                      where(PENDING_DIFFS.SPACE.equal(pair.space)).
+                        and(PENDING_DIFFS.PAIR.equal(pair.name)).
+                        and(PENDING_DIFFS.ENTITY_ID.in(chunk.map(_.id):_*)).
+                      fetch().
+                      map(new RecordMapper[PendingDiffsRecord, PendingDifferenceEvent] {
+                        def map(r:PendingDiffsRecord) = recordToPendingDifferenceEvent(r)
+                      }).
+                      map(e => e.objId -> e).toMap
+
+        chunk.foreach(id => pendingEvents.put(id, found.getOrElse(id, PendingDifferenceEvent.nonExistent)))
+      })
+    }
+  }
+
+  private def addReportableMismatch(t:Factory, reportableUnmatched:InternalReportedDifferenceEvent,
+                                    batch:Option[StatementBatch] = None) : (DifferenceEventStatus, DifferenceEvent) = {
     val event = getEventById(t, reportableUnmatched.objId)
 
     if (reportedEventExists(event)) {
@@ -766,28 +903,28 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
         case MatchState.IGNORED =>
           if (identicalEventVersions(event, reportableUnmatched)) {
             // Update the last time it was seen
-            val updatedEvent = updateTimestampForPreviouslyReportedEvent(event, reportableUnmatched.lastSeen)
+            val updatedEvent = updateTimestampForPreviouslyReportedEvent(t, event, reportableUnmatched.lastSeen, batch)
             (UnchangedIgnoredEvent, updatedEvent.asDifferenceEvent)
           } else {
-            (UpdatedIgnoredEvent, ignorePreviouslyReportedEvent(event))
+            (UpdatedIgnoredEvent, ignorePreviouslyReportedEvent(t, event, batch))
           }
         case MatchState.UNMATCHED =>
           // We've already got an unmatched event. See if it matches all the criteria.
           if (identicalEventVersions(event, reportableUnmatched)) {
             // Update the last time it was seen
-            val updatedEvent = updateTimestampForPreviouslyReportedEvent(event, reportableUnmatched.lastSeen)
+            val updatedEvent = updateTimestampForPreviouslyReportedEvent(t, event, reportableUnmatched.lastSeen, batch)
             // No need to update the aggregate cache, since it won't affect the aggregate counts
             (UnchangedUnmatchedEvent, updatedEvent.asDifferenceEvent)
           } else {
             reportableUnmatched.seqId = event.seqId
             reportableUnmatched.extent = event.extent
-            (UpdatedUnmatchedEvent, upgradePreviouslyReportedEvent(t, reportableUnmatched))
+            (UpdatedUnmatchedEvent, upgradePreviouslyReportedEvent(t, event, reportableUnmatched, batch))
           }
 
         case MatchState.MATCHED =>
           // The difference has re-occurred. Remove the match, and add a difference.
           reportableUnmatched.seqId = event.seqId
-          (ReturnedUnmatchedEvent, upgradePreviouslyReportedEvent(t, reportableUnmatched))
+          (ReturnedUnmatchedEvent, upgradePreviouslyReportedEvent(t, event, reportableUnmatched, batch))
       }
     }
     else {
@@ -795,7 +932,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
       val nextSeqId = idProvider.getId()
 
       try {
-        db.execute(t => (NewUnmatchedEvent, createReportedEvent(t, reportableUnmatched, nextSeqId)))
+        db.execute(t => (NewUnmatchedEvent, createReportedEvent(t, reportableUnmatched, nextSeqId, batch)))
       } catch {
         case x: Exception =>
           val pair = reportableUnmatched.objId.pair.name
@@ -812,31 +949,19 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
   private def identicalEventVersions(first:InternalReportedDifferenceEvent, second:InternalReportedDifferenceEvent) =
     first.upstreamVsn == second.upstreamVsn && first.downstreamVsn == second.downstreamVsn
 
-  private def updateAndConvertEvent(t:Factory, evt:InternalReportedDifferenceEvent, previousDetectionTime:DateTime) = {
-    val res = upgradePreviouslyReportedEvent(t, evt)
-    updateAggregateCache(evt.objId.pair, previousDetectionTime)
-    res
-  }
-
-  private def updateAndConvertEvent(t:Factory, evt:InternalReportedDifferenceEvent) = {
-    var res = upgradePreviouslyReportedEvent(t, evt)
-    updateAggregateCache(evt.objId.pair, res.detectedAt)
-    res
-  }
-
 
   /**
    * Does not uprev the sequence id for this event
    */
-  private def updateTimestampForPreviouslyReportedEvent(event:InternalReportedDifferenceEvent, lastSeen:DateTime) = {
+  private def updateTimestampForPreviouslyReportedEvent(t:Factory, event:InternalReportedDifferenceEvent, lastSeen:DateTime,
+                                                       batch:Option[StatementBatch]) = {
 
-    db.execute { t =>
+    issue(
       t.update(DIFFS).
         set(DIFFS.LAST_SEEN,dateTimeToTimestamp(lastSeen)).
         where(DIFFS.SEQ_ID.eq(event.seqId)).
-          and(DIFFS.EXTENT.eq(event.extent)).
-        execute()
-    }
+          and(DIFFS.EXTENT.eq(event.extent)),
+      batch)
 
     event.lastSeen = lastSeen
 
@@ -848,7 +973,9 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
   /**
    * Uprevs the sequence id for this event
    */
-  private def upgradePreviouslyReportedEvent(t:Factory, reportableUnmatched:InternalReportedDifferenceEvent) = {
+  private def upgradePreviouslyReportedEvent(t:Factory, existing:InternalReportedDifferenceEvent,
+                                             reportableUnmatched:InternalReportedDifferenceEvent,
+                                             batch:Option[StatementBatch] = None) = {
 
     val nextSeqId: java.lang.Long = idProvider.getId()
 
@@ -857,7 +984,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     else
       Map()
 
-    val rows =
+    val update =
       t.update(DIFFS).
           set(DIFFS.SEQ_ID, nextSeqId).
           set(DIFFS.ENTITY_ID, reportableUnmatched.objId.id).
@@ -869,17 +996,18 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
           set(DIFFS.IGNORED, java.lang.Boolean.valueOf(reportableUnmatched.ignored)).
           set(escalationChanges).
         where(DIFFS.SEQ_ID.eq(reportableUnmatched.seqId)).
-          and(DIFFS.EXTENT.eq(reportableUnmatched.extent)).
-        execute()
+          and(DIFFS.EXTENT.eq(reportableUnmatched.extent))
 
-    if (rows == 0) {
-      val pair = reportableUnmatched.objId.pair.name
-      val space = reportableUnmatched.objId.pair.space
+    // The event is captured now, since it will have been given its new sequence id by the time a batch is executed
+    val previous = reportableUnmatched.copy()
+    issue(update, batch, Some(() => {
+      val pair = previous.objId.pair.name
+      val space = previous.objId.pair.space
       val alert = formatAlertCode(space, pair, INCONSISTENT_DIFF_STORE)
-      val msg = " %s No rows updated for previously reported diff %s, next sequence id was %s".format(alert, reportableUnmatched, nextSeqId)
-      logger.error(msg, new Exception().fillInStackTrace())
-      throw new IllegalStateException(msg)
-    }
+      " %s No rows updated for previously reported diff %s, next sequence id was %s".format(alert, previous, nextSeqId)
+    }))
+
+    updateAggregateCache(Some(existing), reportableUnmatched)
 
     updateSequenceValueAndCache(reportableUnmatched, nextSeqId)
   }
@@ -893,24 +1021,24 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
   /**
    * Uprevs the sequence id for this event
    */
-  private def ignorePreviouslyReportedEvent(event:InternalReportedDifferenceEvent) = {
+  private def ignorePreviouslyReportedEvent(t:Factory, event:InternalReportedDifferenceEvent, batch:Option[StatementBatch]) = {
 
     val nextSeqId: java.lang.Long = idProvider.getId()
 
-    db.execute { t =>
+    issue(
       t.update(DIFFS).
           set(DIFFS.LAST_SEEN, dateTimeToTimestamp(event.lastSeen)).
           set(DIFFS.IGNORED, java.lang.Boolean.TRUE).
           set(DIFFS.SEQ_ID, nextSeqId).
         where(DIFFS.SEQ_ID.equal(event.seqId)).
-          and(DIFFS.EXTENT.equal(event.extent)).
-        execute()
-    }
+          and(DIFFS.EXTENT.equal(event.extent)),
+      batch)
 
     updateSequenceValueAndCache(event, nextSeqId)
   }
 
-  private def createReportedEvent(t: Factory, evt:InternalReportedDifferenceEvent, nextSeqId: Long) = {
+  private def createReportedEvent(t: Factory, evt:InternalReportedDifferenceEvent, nextSeqId: Long,
+                                  batch:Option[StatementBatch] = None) = {
 
     // I would have like to have done this extent lookup as a subselect in the insert statement
     // but we need the value of the extent to put back into the cache.
@@ -919,22 +1047,23 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
     val extent = getExtent(t, evt.objId.pair)
 
-    t.insertInto(DIFFS).
-        set(DIFFS.SEQ_ID, nextSeqId:LONG).
-        set(DIFFS.EXTENT, extent:LONG).
-        set(DIFFS.ENTITY_ID, evt.objId.id).
-        set(DIFFS.IS_MATCH, java.lang.Boolean.valueOf(evt.isMatch)).
-        set(DIFFS.DETECTED_AT, dateTimeToTimestamp(evt.detectedAt)).
-        set(DIFFS.LAST_SEEN, dateTimeToTimestamp(evt.lastSeen)).
-        set(DIFFS.UPSTREAM_VSN, evt.upstreamVsn).
-        set(DIFFS.DOWNSTREAM_VSN, evt.downstreamVsn).
-        set(DIFFS.IGNORED, java.lang.Boolean.valueOf(evt.ignored)).
-      execute()
+    issue(
+      t.insertInto(DIFFS).
+          set(DIFFS.SEQ_ID, nextSeqId:LONG).
+          set(DIFFS.EXTENT, extent:LONG).
+          set(DIFFS.ENTITY_ID, evt.objId.id).
+          set(DIFFS.IS_MATCH, java.lang.Boolean.valueOf(evt.isMatch)).
+          set(DIFFS.DETECTED_AT, dateTimeToTimestamp(evt.detectedAt)).
+          set(DIFFS.LAST_SEEN, dateTimeToTimestamp(evt.lastSeen)).
+          set(DIFFS.UPSTREAM_VSN, evt.upstreamVsn).
+          set(DIFFS.DOWNSTREAM_VSN, evt.downstreamVsn).
+          set(DIFFS.IGNORED, java.lang.Boolean.valueOf(evt.ignored)),
+      batch)
 
 
     evt.extent = extent
 
-    updateAggregateCache(evt.objId.pair, evt.detectedAt)
+    updateAggregateCache(None, evt)
     updateSequenceValueAndCache(evt, nextSeqId)
   }
 
@@ -956,8 +1085,36 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     })
   }
 
-  private def updateAggregateCache(pair:PairRef, detectedAt:DateTime) =
-    aggregationCache.onStoreUpdate(pair, detectedAt)
+  private def updateAggregateCache(previous:Option[InternalReportedDifferenceEvent], current:InternalReportedDifferenceEvent) {
+    def unmatchedDetectionTime(evt:InternalReportedDifferenceEvent) =
+      if (evt.state == MatchState.UNMATCHED) Some(evt.detectedAt) else None
+
+    // Capture the times now, since the events may be changed again before the transaction commits
+    val pair = current.objId.pair
+    val previousTime = previous.flatMap(unmatchedDetectionTime)
+    val currentTime = unmatchedDetectionTime(current)
+    db.afterCommit(aggregationCache.onEventChanged(pair, previousTime, currentTime))
+  }
+
+  /**
+   * Streams the detection times of the unmatched events for the given pair, along with how many were detected at
+   * each time, so that the aggregation cache can build its tile counts.
+   */
+  private def unmatchedDetectionTimes(pair:PairRef, handler:(DateTime, Int) => Unit) = db.execute { t =>
+    val cursor = t.select(DIFFS.DETECTED_AT, count(DIFFS.SEQ_ID)).
+                   from(DIFFS).
+                   join(PAIRS).
+                     on(PAIRS.EXTENT.equal(DIFFS.EXTENT)).
+                   where(PAIRS.SPACE.equal(pair.space)).
+                     and(PAIRS.NAME.equal(pair.name)).
+                     and(DIFFS.IS_MATCH.equal(false)).
+                     and(DIFFS.IGNORED.equal(false)).
+                   groupBy(DIFFS.DETECTED_AT).
+                   fetchLazy()
+
+    db.processAsStream(cursor, (r:Record) =>
+      handler(timestampToDateTime(r.getValue(DIFFS.DETECTED_AT)), r.getValue(1).asInstanceOf[java.lang.Number].intValue()))
+  }
 
   private def removeLatestRecordedVersion(t:Factory, pair: PairRef) = {
     t.delete(STORE_CHECKPOINTS).
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import java.util.concurrent.atomic.{AtomicReference, AtomicInteger}
+import java.util.concurrent.{TimeUnit, CountDownLatch, ThreadFactory, Executors}
+
+/**
+ * Runs the steps of a digest tree descent on a bounded pool of worker threads. A step may submit further steps
+ * (ie, the sub-buckets of a mismatched bucket) and the descent is complete once no steps remain outstanding.
+ *
+ * Steps never block waiting on other steps, so the pool can't deadlock regardless of the depth of the tree. The first
+ * failure (including a ScanCancelledException) stops any further steps from being started, and is rethrown from run
+ * once all in-flight steps have finished.
+ */
+class ParallelScanDescent(name:String, parallelism:Int) {
+
+  private val threadCount = new AtomicInteger(0)
+  private val executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory {
+    def newThread(r: Runnable) = {
+      val t = new Thread(r, "%s-scan-%s".format(name, threadCount.incrementAndGet()))
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  private val outstanding = new AtomicInteger(0)
+  private val failure = new AtomicReference[Throwable]
+  private val finished = new CountDownLatch(1)
+
+  /**
+   * Queues a step of the descent. Steps submitted after a failure has been recorded are dropped.
+   */
+  def submit(step: => Unit) {
+    if (failure.get == null) {
+      outstanding.incrementAndGet()
+      executor.execute(new Runnable {
+        def run() {
+          try {
+            if (failure.get == null) step
+          } catch {
+            case t => failure.compareAndSet(null, t)
+          } finally {
+            // Child steps are submitted before their parent completes, so the count only reaches zero once the
+            // whole tree has been visited.
+            if (outstanding.decrementAndGet() == 0 || failure.get != null) {
+              finished.countDown()
+            }
+          }
+        }
+      })
+    }
+  }
+
+  /**
+   * Runs the descent from the given root step, blocking until it has either completed or failed.
+   */
+  def run(root: => Unit) {
+    try {
+      submit(root)
+      finished.await()
+    } finally {
+      executor.shutdown()
+      executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+
+    val t = failure.get
+    if (t != null) {
+      throw t
+    }
+  }
+}
@@ -21,7 +21,7 @@ import net.lshift.diffa.kernel.events._
 import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
-import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
 import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstraint, ScanResultEntry}
 
 /**
@@ -32,8 +32,9 @@ import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstr
  * Compliance with this policy could also be achieved by the downstream simply recording the versions of received
  * upstream events.
  */
-class SameVersionPolicy(stores:VersionCorrelationStoreFactory, listener:DifferencingListener, diagnostics:DiagnosticsManager)
-    extends BaseScanningVersionPolicy(stores, listener, diagnostics) {
+class SameVersionPolicy(stores:VersionCorrelationStoreFactory, listener:DifferencingListener, diagnostics:DiagnosticsManager,
+                        limits:PairServiceLimitsView)
+    extends BaseScanningVersionPolicy(stores, listener, diagnostics, limits) {
 
   def downstreamStrategy(us:UpstreamParticipant, ds:DownstreamParticipant, collation: Collation) =
     new DownstreamSameScanStrategy(collation)
@@ -42,17 +43,13 @@ class SameVersionPolicy(stores:VersionCorrelationStoreFactory, listener:Differen
     val name = "DownstreamSame"
 
     def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = {
-
-      val aggregator = new Aggregator(bucketing, collation)
-      stores(pair).queryDownstreams(constraints, aggregator.collectDownstream)
-      aggregator.digests
+      stores(pair).aggregateDownstreams(bucketing, constraints, collation)
     }
 
-    def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) = {
-      stores(pair).queryDownstreams(constraints).map(x => {
-        ScanResultEntry.forEntity(x.id, x.downstreamDVsn, x.lastUpdate, mapAsJavaMap(x.downstreamAttributes))
-      })
-    }
+    def openCorrelations(pair:PairRef, constraints:Seq[ScanConstraint]) = stores(pair).openDownstreams(constraints)
+
+    def toEntity(x:Correlation) =
+      ScanResultEntry.forEntity(x.id, x.downstreamDVsn, x.lastUpdate, mapAsJavaMap(x.downstreamAttributes))
 
     def handleMismatch(scanId:Option[Long], pair:PairRef, writer: LimitedVersionCorrelationWriter, vm:VersionMismatch, listener:DifferencingListener) = {
       vm match {
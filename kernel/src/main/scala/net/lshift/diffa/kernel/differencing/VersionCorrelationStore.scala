@@ -20,7 +20,8 @@ import java.io.Closeable
 import net.lshift.diffa.kernel.events.VersionID
 import org.joda.time.{LocalDate, DateTimeZone, DateTime}
 import org.slf4j.LoggerFactory
-import net.lshift.diffa.adapter.scanning.ScanConstraint
+import net.lshift.diffa.adapter.scanning.{Collation, DigestBuilder, ScanAggregation, ScanConstraint, ScanResultEntry}
+import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.config.PairRef
 import net.lshift.diffa.kernel.util.{CategoryChange, EndpointSide}
 
@@ -55,6 +56,15 @@ trait VersionCorrelationStore extends Closeable {
    */
   def tombstoneVersions(fromVersion:Option[Long]) : Iterable[Correlation]
 
+  /**
+   * Visits the unmatched versions (within the given constraints) and the tombstones that have been stored since the
+   * given store version. These are provided to the handler a page at a time, as the unmatched versions and tombstones
+   * of that page, and in ascending store version order, so that only a single page needs to be held at once.
+   */
+  def unmatchedAndTombstoneVersions(usConstraints:Seq[ScanConstraint], dsConstraints:Seq[ScanConstraint],
+                                    fromVersion:Option[Long], pageSize:Int,
+                                    handler:(Seq[Correlation], Seq[Correlation]) => Unit)
+
   /**
    * Retrieves the current pairing information for the given pairKey/id.
    */
@@ -93,11 +103,46 @@ trait VersionCorrelationStore extends Closeable {
    */
   def queryUpstreams(constraints:Seq[ScanConstraint]) : Seq[Correlation]
 
+  /**
+   * Builds digests of the upstream versions that match the given constraints, bucketed by the given aggregations.
+   * The versions are expected to be provided in the order defined by the given collation.
+   */
+  def aggregateUpstreams(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) : Seq[ScanResultEntry] = {
+    val builder = new DigestBuilder(bucketing, collation)
+    queryUpstreams(constraints, (id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, vsn:String) =>
+      builder.add(id.id, attributes, vsn))
+    builder.toDigests
+  }
+
+  /**
+   * Builds digests of the downstream versions that match the given constraints, bucketed by the given aggregations.
+   * The versions are expected to be provided in the order defined by the given collation.
+   */
+  def aggregateDownstreams(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) : Seq[ScanResultEntry] = {
+    val builder = new DigestBuilder(bucketing, collation)
+    queryDownstreams(constraints, (id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, uvsn:String, dvsn:String) =>
+      builder.add(id.id, attributes, dvsn))
+    builder.toDigests
+  }
+
   /**
    * Queries for all downstream versions for the given pair based on the given constraints.
    */
   def queryDownstreams(constraints:Seq[ScanConstraint]) : Seq[Correlation]
 
+  /**
+   * Opens a cursor over the upstream versions that match the given constraints, in the same order as queryUpstreams.
+   * Stores that can read versions in order straight from their storage should override this to load each version
+   * only as it is reached.
+   */
+  def openUpstreams(constraints:Seq[ScanConstraint]) : CorrelationCursor = CorrelationCursor.of(queryUpstreams(constraints))
+
+  /**
+   * Opens a cursor over the downstream versions that match the given constraints, in the same order as
+   * queryDownstreams.
+   */
+  def openDownstreams(constraints:Seq[ScanConstraint]) : CorrelationCursor = CorrelationCursor.of(queryDownstreams(constraints))
+
   /**
    * Ensures that if a given list of category changes were made for a given endpoint side, then the datastore
    * would remain in a valid state.
@@ -106,11 +151,31 @@ trait VersionCorrelationStore extends Closeable {
    *  A before or after being missing would mean an addition or removal, respectively.
    */
   def ensureUpgradeable(side:EndpointSide, changes:Seq[CategoryChange])
+
+  /**
+   * Removes all correlations from the store.
+   */
+  def reset()
+}
+
+/**
+ * A forward-only view over a series of correlations. A cursor may hold resources in its store until it has been
+ * closed, so must always be closed once it is no longer needed.
+ */
+trait CorrelationCursor extends Iterator[Correlation] with Closeable
+
+object CorrelationCursor {
+  def of(correlations:Seq[Correlation]):CorrelationCursor = new CorrelationCursor {
+    private val underlying = correlations.iterator
+    def hasNext = underlying.hasNext
+    def next() = underlying.next()
+    def close() {}
+  }
 }
 
 object VersionCorrelationStore {
   val schemaVersionKey = "correlationStore.schemaVersion"
-  val currentSchemaVersion = 1
+  val currentSchemaVersion = 2
 }
 
 /**
@@ -150,11 +215,23 @@ trait ExtendedVersionCorrelationWriter extends LimitedVersionCorrelationWriter w
    */
   def isDirty: Boolean
 
+  /**
+   * Looks up the current state of each of the given correlations in a single pass over the store, so that a series of
+   * writes to them made before the next flush doesn't need to look each of them up individually.
+   */
+  def prefetch(ids:Iterable[VersionID])
+
   /**
    * Flushes any pending changes to the store, making them permanent.
    */
   def flush(): Unit
 
+  /**
+   * Makes any pending changes visible to queries against the store. Depending upon how the store is configured, the
+   * changes may only be made permanent by a later checkpoint or flush, allowing several to share one commit.
+   */
+  def checkpoint(): Unit
+
   /**
    * Removes all correlations from the store.
    */
@@ -166,7 +243,7 @@ trait ExtendedVersionCorrelationWriter extends LimitedVersionCorrelationWriter w
   def rollback() : Unit
 
   /**
-   * Clears all tombstones from the store. This method will internally perform a <code>flush</code>, so any
+   * Clears all tombstones from the store. This method will internally perform a <code>checkpoint</code>, so any
    * pending updates will also be written as part of this operation.
    */
   def clearTombstones()
@@ -40,6 +40,12 @@ trait VersionPolicy {
    */
   def onChange(writer: LimitedVersionCorrelationWriter, evt:PairChangeEvent) : Unit
 
+  /**
+   * Indicates to the policy that a batch of changes has occurred, to be applied in the order given. This is
+   * equivalent to calling onChange for each event, but allows the policy to share work across the batch.
+   */
+  def onChanges(writer: LimitedVersionCorrelationWriter, evts:Seq[PairChangeEvent]) : Unit
+
   /**
    * Requests that the policy return details of how to start an inventory.
    */
@@ -51,6 +57,14 @@ trait VersionPolicy {
   def processInventory(pairRef:PairRef, endpoint:Endpoint, writer: LimitedVersionCorrelationWriter, side:EndpointSide,
                        constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:Seq[ScanResultEntry]):Seq[ScanRequest]
 
+  /**
+   * Requests that the policy process an inventory of changes whose entries are pushed to the given handler as they
+   * arrive, so that the inventory need never be held in memory in full.
+   */
+  def processStreamedInventory(pairRef:PairRef, endpoint:Endpoint, writer: LimitedVersionCorrelationWriter, side:EndpointSide,
+                               constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation],
+                               entries:(ScanResultEntry => Unit) => Unit):Seq[ScanRequest]
+
   /**
    * Requests that the policy scan the upstream participants for the given pairing. Differences that are
    * detected will be reported to the listener provided.
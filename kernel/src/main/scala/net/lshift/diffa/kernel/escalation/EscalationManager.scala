@@ -31,11 +31,13 @@ import net.lshift.diffa.kernel.actors.AbstractActorSupervisor
 import akka.actor.{ActorSystem, Props, Actor}
 import scala.collection.JavaConversions._
 import java.util.{Timer, TimerTask}
+import java.util.concurrent.ConcurrentHashMap
 import net.lshift.diffa.kernel.frontend.EscalationDef
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
 import org.josql.filters.DefaultObjectFilter
 import org.josql.QueryParseException
 import net.lshift.diffa.kernel.config.{BreakerHelper, ConfigValidationException, PairRef, DomainConfigStore}
+import net.lshift.diffa.kernel.util.TimingWheel
 
 /**
  * This deals with escalating mismatches based on configurable escalation policies.
@@ -45,10 +47,15 @@ import net.lshift.diffa.kernel.config.{BreakerHelper, ConfigValidationException,
  * appear. Entity level escalation is managed in a persistent manner. When a candidate difference
  * is detected elsewhere in the system (currently the DifferenceManager), initiateEscalation should
  * be called with the event. Valid escalations will be identified and ordered (based upon their delay),
- * and then the first escalation will be scheduled for the difference. Periodically, the manager will
- * identify differences that have a pending escalation, and trigger this. Once an escalation has been
+ * and then the first escalation will be scheduled for the difference. Once an escalation has been
  * triggered, the difference will be progressed, and have the next escalation scheduled (or none if no
  * more valid escalations are configured).
+ *
+ * The times at which escalations are due are tracked in memory with a timing wheel, which is loaded from the
+ * difference store on startup and kept up to date as escalations are scheduled. The store is only asked for the
+ * differences with a pending escalation once the wheel indicates that one has become due. Since the store remains
+ * the record of what is scheduled, an entry in the wheel for an escalation that has since been unscheduled (eg, because
+ * the difference was matched) simply finds nothing to escalate.
  */
 class EscalationManager(val config:DomainConfigStore,
                         val systemConfig:SystemConfigStore,
@@ -91,12 +98,33 @@ class EscalationManager(val config:DomainConfigStore,
   }
 
   val timer = new Timer()
-  val escalateTask = new TimerTask { def run() { escalateDiffs() } }
+  val escalateTask = new TimerTask { def run() { escalateDueDiffs() } }
   val period = 1
 
+  /**
+   * The differences with a scheduled escalation, keyed by their id. Guarded by the wheel lock.
+   */
+  private val wheel = new TimingWheel[VersionID](period * 1000, System.currentTimeMillis())
+
+  /**
+   * Compiled escalation rules, keyed by the text of the rule. Since a filter can't be shared between threads whilst
+   * it is being applied, each is locked whilst in use.
+   */
+  private val ruleFilters = new ConcurrentHashMap[String, DefaultObjectFilter]
+
   def start() {
     systemConfig.listPairs.foreach(p => startActor(p.asRef))
 
+    // Escalate anything that fell due whilst the agent was down, and load everything else into the wheel
+    val now = DateTime.now()
+    diffs.pendingEscalatees(now.plusYears(EscalationManager.escalationHorizonYears), d => {
+      if (d.nextEscalationTime == null || !d.nextEscalationTime.isAfter(now)) {
+        escalateDiff(d)
+      } else {
+        wheel.synchronized { wheel.schedule(d.objId, d.nextEscalationTime.getMillis) }
+      }
+    })
+
     timer.schedule(escalateTask, period * 1000, period * 1000)
   }
 
@@ -137,17 +165,29 @@ class EscalationManager(val config:DomainConfigStore,
   }
 
   def findEscalations(pair: PairRef, diff:DifferenceEvent) = {
+    val view = DifferenceEventRuleView(diff)
     config.getPairDef(pair).escalations.
       filter(e => {
         if (e.rule == null) {
           true
         } else {
-          val filter = new DefaultObjectFilter(e.rule, classOf[DifferenceEventRuleView])
-          filter.accept(DifferenceEventRuleView(diff))
+          val filter = ruleFilter(e.rule)
+          filter.synchronized { filter.accept(view) }
         }
     })
   }
 
+  private def ruleFilter(rule:String) = {
+    val existing = ruleFilters.get(rule)
+    if (existing != null) {
+      existing
+    } else {
+      val compiled = new DefaultObjectFilter(rule, classOf[DifferenceEventRuleView])
+      val raced = ruleFilters.putIfAbsent(rule, compiled)
+      if (raced != null) raced else compiled
+    }
+  }
+
   def findEscalationsForPair(pair: PairRef, eventType:String) = {
     config.getPairDef(pair).escalations.
       filter(e => e.rule == eventType && e.actionType == REPORT)
@@ -163,6 +203,20 @@ class EscalationManager(val config:DomainConfigStore,
     diffs.pendingEscalatees(DateTime.now(), escalateDiff(_))
   }
 
+  /**
+   * Escalates the differences that are due, should the wheel indicate that there are any.
+   */
+  def escalateDueDiffs() {
+    escalateDueDiffs(System.currentTimeMillis())
+  }
+
+  def escalateDueDiffs(nowMillis:Long) {
+    val due = wheel.synchronized { wheel.advance(nowMillis) }
+    if (!due.isEmpty) {
+      escalateDiffs()
+    }
+  }
+
   def escalateDiff(diff:DifferenceEvent) {
     findActor(diff.objId) ! Escalate(diff)
     progressDiff(diff)
@@ -181,7 +235,9 @@ class EscalationManager(val config:DomainConfigStore,
     }
 
     selectedEscalation match {
-      case None       => diffs.scheduleEscalation(diff, null, null)
+      case None       =>
+        diffs.scheduleEscalation(diff, null, null)
+        wheel.synchronized { wheel.cancel(diff.objId) }
       case Some(esc)  =>
           // It is altogether possible that the escalation might already be due. We won't worry about that here, and
           // just let it be triggered on the next escalation run - otherwise we could end up getting stuck here for
@@ -190,11 +246,18 @@ class EscalationManager(val config:DomainConfigStore,
           // TODO: Do we enforce a minimum time between escalations?
         val escalateTime = diff.detectedAt.plusSeconds(esc.delay)
         diffs.scheduleEscalation(diff, esc.name, escalateTime)
+        wheel.synchronized { wheel.schedule(diff.objId, escalateTime.getMillis) }
     }
   }
 }
 
 object EscalationManager {
+  /**
+   * How far ahead to look for scheduled escalations when loading them on startup. Escalation delays are given in
+   * seconds, so anything scheduled is well within this.
+   */
+  val escalationHorizonYears = 100
+
   def validateRule(rule:String, path:String) {
     if (rule == null) return
 
@@ -19,12 +19,13 @@ package net.lshift.diffa.kernel.frontend
 import net.lshift.diffa.kernel.matching.MatchingManager
 import org.slf4j.{Logger, LoggerFactory}
 import net.lshift.diffa.kernel.events._
-import net.lshift.diffa.kernel.config.DomainConfigStore
-import net.lshift.diffa.kernel.differencing.AttributesUtil
+import net.lshift.diffa.kernel.config.{CategoryDescriptor, DomainConfigStore}
+import net.lshift.diffa.kernel.differencing.{EntityValidator, AttributesUtil}
 import scala.collection.JavaConversions._
-import net.lshift.diffa.kernel.diag.DiagnosticsManager
+import net.lshift.diffa.kernel.diag.{DiagnosticLevel, DiagnosticsManager}
 import net.lshift.diffa.adapter.changes.ChangeEvent
-import net.lshift.diffa.kernel.actors.PairPolicyClient
+import net.lshift.diffa.adapter.common.InvalidEntityException
+import net.lshift.diffa.kernel.actors.{InventoryFeed, PairPolicyClient}
 import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanResultEntry, ScanConstraint}
 import net.lshift.diffa.kernel.util.{MissingObjectException, DownstreamEndpoint, UpstreamEndpoint, CategoryUtil}
 
@@ -46,45 +47,76 @@ class Changes(val domainConfig:DomainConfigStore,
 
     evt.ensureContainsMandatoryFields();
 
+    pairEventBuilder(space, endpoint)(evt).foreach(changeEventClient.propagateChangeEvent(_))
+  }
+
+  /**
+   * Indicates that a batch of changes has occurred within a adapter. The endpoint and its pairs are only resolved
+   * once for the batch, and the valid events are provided to each pair's policy together. If any event is missing
+   * mandatory fields, none of the batch is processed.
+   */
+  def onChanges(space:Long, endpoint:String, evts:Seq[ChangeEvent]) {
+    log.debug("Received %s change events for %s %s".format(evts.size, space, endpoint))
+
+    evts.foreach(_.ensureContainsMandatoryFields())
+
+    val toPairEvents = pairEventBuilder(space, endpoint)
+    val pairEvts = evts.flatMap(toPairEvents)
+
+    if (!pairEvts.isEmpty) {
+      changeEventClient.propagateChangeEvents(pairEvts)
+    }
+  }
+
+  /**
+   * Builds a function that converts a change event for the given endpoint into the valid events for each of the
+   * pairs that the endpoint belongs to, notifying any matchers of them as it goes.
+   */
+  private def pairEventBuilder(space:Long, endpoint:String) : ChangeEvent => Seq[PairChangeEvent] = {
     val targetEndpoint = domainConfig.getEndpoint(space, endpoint)
-    val evtAttributes:Map[String, String] = if (evt.getAttributes != null) evt.getAttributes.toMap else Map()
-    val typedAttributes = targetEndpoint.schematize(evtAttributes)
-
-    domainConfig.listPairsForEndpoint(space, endpoint).foreach(pair => {
-      val pairEvt = if (pair.upstreamName == endpoint) {
-        UpstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
-      } else {
-        if (pair.versionPolicyName == "same" || evt.getParentVersion == null) {
-          DownstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
+    val endpointCategories = targetEndpoint.categories.toMap
+    val initialConstraints = targetEndpoint.initialConstraints(None)
+    val pairs = domainConfig.listPairsForEndpoint(space, endpoint)
+
+    (evt:ChangeEvent) => {
+      val evtAttributes:Map[String, String] = if (evt.getAttributes != null) evt.getAttributes.toMap else Map()
+      val typedAttributes = targetEndpoint.schematize(evtAttributes)
+
+      pairs.flatMap(pair => {
+        val pairEvt = if (pair.upstreamName == endpoint) {
+          UpstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
         } else {
-          DownstreamCorrelatedPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getParentVersion, evt.getVersion)
+          if (pair.versionPolicyName == "same" || evt.getParentVersion == null) {
+            DownstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
+          } else {
+            DownstreamCorrelatedPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getParentVersion, evt.getVersion)
+          }
         }
-      }
 
-      // Validate that the entities provided meet the constraints of the endpoint
-      val endpointCategories = targetEndpoint.categories.toMap
-      val issues = AttributesUtil.detectAttributeIssues(
-        endpointCategories, targetEndpoint.initialConstraints(None), evtAttributes, typedAttributes)
-
-      if (issues.size > 0) {
-        log.warn("Dropping invalid pair event " + pairEvt + " due to issues " + issues)
-        diagnostics.logPairExplanation(None, pair.asRef, "Version Policy",
-          "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
-            pairEvt, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
-      } else {
-        // TODO: Write a test to enforce that the matching manager processes first. This is necessary to ensure
-        //    that the DifferencesManager doesn't emit spurious events.
-
-        // If there is a matcher available, notify it first
-        mm.getMatcher(pair.asRef) match {
-          case None =>
-          case Some(matcher) => matcher.onChange(pairEvt, () => {})
-        }
+        // Validate that the entities provided meet the constraints of the endpoint
+        val issues = AttributesUtil.detectAttributeIssues(
+          endpointCategories, initialConstraints, evtAttributes, typedAttributes)
 
-        // Propagate the change event to the corresponding policy
-        changeEventClient.propagateChangeEvent(pairEvt)
-      }
-    })
+        if (issues.size > 0) {
+          log.warn("Dropping invalid pair event " + pairEvt + " due to issues " + issues)
+          diagnostics.logPairExplanation(None, pair.asRef, "Version Policy",
+            "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
+              pairEvt, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
+          None
+        } else {
+          // TODO: Write a test to enforce that the matching manager processes first. This is necessary to ensure
+          //    that the DifferencesManager doesn't emit spurious events.
+
+          // If there is a matcher available, notify it first
+          mm.getMatcher(pair.asRef) match {
+            case None =>
+            case Some(matcher) => matcher.onChange(pairEvt, () => {})
+          }
+
+          Some(pairEvt)
+        }
+      })
+    }
   }
 
   def startInventory(space:Long, endpoint: String, view:Option[String]):Seq[ScanRequest] = {
@@ -98,44 +130,103 @@ class Changes(val domainConfig:DomainConfigStore,
       }
     })
 
-    domainConfig.listPairsForEndpoint(space, endpoint).foreach(pair => {
+    // Ask all of the pairs at once, so that the wait is only as long as the slowest of them
+    val responses = domainConfig.listPairsForEndpoint(space, endpoint).map(pair => {
       val side = pair.withoutDomain.whichSide(targetEndpoint)
 
       // Propagate the change event to the corresponding policy
-      requests ++= changeEventClient.startInventory(pair.asRef, side, view)
+      (pair.asRef, changeEventClient.startInventory(pair.asRef, side, view))
     })
+    PairPolicyClient.awaitAll(responses).foreach(r => requests ++= r)
 
     requests.toSeq
   }
 
-  def submitInventory(space:Long, endpoint:String, view:Option[String], constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:Seq[ScanResultEntry]):Seq[ScanRequest] = {
+  /**
+   * Submits an inventory of entries, read from the given source, to each of the pairs that the endpoint belongs to.
+   * The entries are validated as they are read, and handed on to the pairs in chunks, so that the inventory is never
+   * held in memory in full. If any entry is invalid, the inventory is abandoned by all of the pairs.
+   */
+  def submitInventory(space:Long, endpoint:String, view:Option[String], constraints:Seq[ScanConstraint], aggregations:Seq[ScanAggregation], entries:(ScanResultEntry => Unit) => Unit):Seq[ScanRequest] = {
     val targetEndpoint = domainConfig.getEndpoint(space, endpoint)
     val endpointCategories = CategoryUtil.fuseViewCategories(targetEndpoint.categories.toMap, targetEndpoint.views, view)
     val fullConstraints = CategoryUtil.mergeAndValidateConstraints(endpointCategories, constraints)
 
-    // Validate the provided entries
-    entries.zipWithIndex.foreach { case (entry,idx) =>
-      val issues = AttributesUtil.detectAttributeIssues(endpointCategories, fullConstraints, entry.getAttributes.toMap)
-
-      if (issues.size > 0) {
-        throw new InvalidInventoryException(
-          "Entry %s was invalid. Identified issues were: %s".format(
-            idx+1,
-            issues.map { case (k, v) => k + ": " + v }.mkString(", ")
-          ))
-      }
+    // Each pair starts processing the inventory straight away, taking entries from its feed as they are validated.
+    // Should handing the inventory to a pair fail, the pairs that already have it are told to abandon it, rather than
+    // being left waiting for entries that will never arrive.
+    val handedOut = new scala.collection.mutable.ListBuffer[(DomainPairDef, InventoryFeed)]
+    try {
+      domainConfig.listPairsForEndpoint(space, endpoint).foreach(pair => {
+        val side = if (pair.upstreamName == endpoint) UpstreamEndpoint else DownstreamEndpoint
+        val feed = new InventoryFeed
+
+        changeEventClient.submitInventory(pair.asRef, side, fullConstraints, aggregations, feed)
+        handedOut += ((pair, feed))
+      })
+    } catch {
+      case ex =>
+        handedOut.foreach { case (_, feed) => feed.fail(ex) }
+        throw ex
     }
+    val feeds = handedOut.toList
+
+    val pipeline = new InventoryPipeline(
+      validate = (entry, idx) => validateInventoryEntry(endpointCategories, fullConstraints, entry, idx),
+      deliver = chunk => feeds.foreach { case (_, feed) => feed.offer(chunk) },
+      abort = reason => feeds.foreach { case (_, feed) => feed.fail(reason) },
+      progress = received => if (received % Changes.inventoryProgressInterval == 0) {
+        feeds.foreach { case (pair, _) =>
+          diagnostics.logPairEvent(None, pair.asRef, DiagnosticLevel.INFO,
+            "Received %s inventory entries for %s so far".format(received, endpoint))
+        }
+      })
+    val received = pipeline.run(entries)
+    feeds.foreach { case (_, feed) => feed.complete() }
 
     val nextRequests = scala.collection.mutable.Set[ScanRequest]()
-    domainConfig.listPairsForEndpoint(space, endpoint).foreach(pair => {
-      val side = if (pair.upstreamName == endpoint) UpstreamEndpoint else DownstreamEndpoint
-
-      // Propagate the change event to the corresponding policy
-      nextRequests ++= changeEventClient.submitInventory(pair.asRef, side, fullConstraints, aggregations, entries)
-    })
+    feeds.foreach { case (pair, feed) =>
+      nextRequests ++= feed.awaitOutcome(Changes.inventoryTimeoutMillis)
+      diagnostics.logPairEvent(None, pair.asRef, DiagnosticLevel.INFO,
+        "Processed inventory of %s entries for %s".format(received, endpoint))
+    }
 
     nextRequests.toSeq
   }
+
+  private def validateInventoryEntry(endpointCategories:Map[String, CategoryDescriptor], constraints:Seq[ScanConstraint],
+                                     entry:ScanResultEntry, idx:Int) {
+    try {
+      EntityValidator.process(entry)
+    } catch {
+      case error:InvalidEntityException =>
+        // Entries are numbered from the second line, since the first line of an inventory is its header
+        throw new InvalidInventoryException("Invalid parsed result on line: %s: %s".format(idx + 2, error.getMessage))
+    }
+
+    val attributes = if (entry.getAttributes != null) entry.getAttributes.toMap else Map[String, String]()
+    val issues = AttributesUtil.detectAttributeIssues(endpointCategories, constraints, attributes)
+
+    if (issues.size > 0) {
+      throw new InvalidInventoryException(
+        "Entry %s was invalid. Identified issues were: %s".format(
+          idx+1,
+          issues.map { case (k, v) => k + ": " + v }.mkString(", ")
+        ))
+    }
+  }
+}
+
+object Changes {
+  /**
+   * How long to wait for the pairs to finish processing an inventory once it has been received in full.
+   */
+  val inventoryTimeoutMillis = 10 * 60 * 1000L
+
+  /**
+   * How often, in entries, to report progress on receiving an inventory.
+   */
+  val inventoryProgressInterval = InventoryPipeline.defaultChunkSize * 100
 }
 
 /**
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.frontend
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference, AtomicInteger}
+import java.util.concurrent.{Semaphore, TimeUnit, ThreadFactory, Executors}
+import net.lshift.diffa.adapter.scanning.ScanResultEntry
+import collection.mutable.ArrayBuffer
+
+/**
+ * Validates the entries of an inventory on a bounded pool of worker threads as they are read, handing each validated
+ * chunk of entries on for delivery. The entries are validated and delivered in chunks of up to chunkSize, in no
+ * particular order.
+ *
+ * Only a bounded number of chunks are in flight at once, so a reader that gets ahead of validation or delivery is
+ * held back rather than the inventory accumulating in memory. The first failure, whether in reading, validating or
+ * delivering, stops any further chunks from being started, is passed to abort straight away (so that anything waiting
+ * on delivery can give up) and is rethrown from run once all in-flight chunks have finished.
+ */
+class InventoryPipeline(validate:(ScanResultEntry, Int) => Unit,
+                        deliver:Seq[ScanResultEntry] => Unit,
+                        abort:Throwable => Unit,
+                        progress:Long => Unit = _ => (),
+                        parallelism:Int = InventoryPipeline.defaultParallelism,
+                        chunkSize:Int = InventoryPipeline.defaultChunkSize) {
+
+  private val threadCount = new AtomicInteger(0)
+  private val executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory {
+    def newThread(r: Runnable) = {
+      val t = new Thread(r, "inventory-%s".format(threadCount.incrementAndGet()))
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  private val maxInFlight = parallelism * 2
+  private val inFlight = new Semaphore(maxInFlight)
+  private val failure = new AtomicReference[Throwable]
+  private val delivered = new AtomicLong(0)
+
+  /**
+   * Reads the whole of the inventory from the given source, returning the number of entries delivered.
+   */
+  def run(source:(ScanResultEntry => Unit) => Unit):Long = {
+    try {
+      var chunk = new ArrayBuffer[ScanResultEntry](chunkSize)
+      var read = 0
+
+      source(entry => {
+        val t = failure.get
+        if (t != null) throw t
+
+        chunk += entry
+        read += 1
+        if (chunk.size == chunkSize) {
+          submit(chunk, read - chunk.size)
+          chunk = new ArrayBuffer[ScanResultEntry](chunkSize)
+        }
+      })
+
+      if (!chunk.isEmpty) submit(chunk, read - chunk.size)
+    } catch {
+      case t => fail(t)
+    } finally {
+      // Wait for everything in flight to finish
+      inFlight.acquireUninterruptibly(maxInFlight)
+      executor.shutdown()
+      executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+
+    val t = failure.get
+    if (t != null) {
+      throw t
+    }
+
+    delivered.get
+  }
+
+  private def submit(chunk:Seq[ScanResultEntry], firstIndex:Int) {
+    inFlight.acquire()
+    executor.execute(new Runnable {
+      def run() {
+        try {
+          if (failure.get == null) {
+            chunk.zipWithIndex.foreach { case (entry, idx) => validate(entry, firstIndex + idx) }
+            deliver(chunk)
+            progress(delivered.addAndGet(chunk.size))
+          }
+        } catch {
+          case t => fail(t)
+        } finally {
+          inFlight.release()
+        }
+      }
+    })
+  }
+
+  private def fail(t:Throwable) {
+    if (failure.compareAndSet(null, t)) {
+      abort(t)
+    }
+  }
+}
+
+object InventoryPipeline {
+  val defaultParallelism = Runtime.getRuntime.availableProcessors
+  val defaultChunkSize = 1000
+}
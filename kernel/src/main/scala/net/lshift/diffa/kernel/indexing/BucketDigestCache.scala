@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import scala.collection.JavaConversions._
+import collection.mutable.{HashMap, HashSet}
+import org.slf4j.LoggerFactory
+import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstraint, ScanResultEntry}
+import net.lshift.diffa.kernel.participants.CategoryFunction
+import net.lshift.diffa.kernel.indexing.LuceneVersionCorrelationHandler.StoreParticipantType
+
+/**
+ * Receives notification of changes to the correlations held by a LuceneWriter, once they are visible to readers.
+ */
+trait CorrelationChangeListener {
+  /**
+   * Indicates that one side of a correlation has changed. The before and after values are the attributes of that side,
+   * and are None when the side was (or has become) absent.
+   */
+  def onCorrelationChanged(side:StoreParticipantType, before:Option[Map[String, String]], after:Option[Map[String, String]])
+
+  /**
+   * Indicates that the store has changed in a way that cannot be described by individual changes (eg, a reset).
+   */
+  def onAllCorrelationsChanged()
+}
+
+/**
+ * Retains the local digests produced for each combination of bucketing and constraints requested by a scan, so
+ * that a subsequent scan of an unchanged store doesn't need to re-read and re-hash every stored version.
+ *
+ * The digests are the same MD5 over the ordered versions of each bucket that the adapters produce, so a bucket can't
+ * be derived from its children and a change to any entity within a bucket requires it to be recomputed. Changes
+ * reported by the writer therefore mark only the buckets (of each cached query) that the entity was or is now in as
+ * dirty, and the next lookup recomputes just those buckets with a narrowed query. Where the bucket can't be narrowed
+ * to, the whole query is recomputed instead.
+ */
+class BucketDigestCache(maxEntries:Int = BucketDigestCache.defaultMaxEntries) extends CorrelationChangeListener {
+
+  private val log = LoggerFactory.getLogger(getClass)
+
+  /**
+   * Produces the digests for the given side of the store, with the given aggregations and constraints.
+   */
+  type DigestSource = (StoreParticipantType, Seq[ScanAggregation], Seq[ScanConstraint], Collation) => Seq[ScanResultEntry]
+
+  private case class Key(side:StoreParticipantType, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation)
+
+  private class Entry {
+    // Guarded by the cache lock
+    var stale = true
+    val dirty = new HashSet[Seq[String]]
+
+    // Guarded by the entry lock
+    val digests = new HashMap[Seq[String], List[ScanResultEntry]]
+  }
+
+  private val entries = new java.util.LinkedHashMap[Key, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest:java.util.Map.Entry[Key, Entry]) = size > maxEntries
+  }
+
+  def digests(side:StoreParticipantType,
+              bucketing:Seq[ScanAggregation],
+              constraints:Seq[ScanConstraint],
+              collation:Collation,
+              source:DigestSource) : Seq[ScanResultEntry] = {
+    val entry = synchronized {
+      val key = Key(side, bucketing, constraints, collation)
+      entries.get(key) match {
+        case null =>
+          val created = new Entry
+          entries.put(key, created)
+          created
+        case existing => existing
+      }
+    }
+
+    // Holding the entry lock prevents two scans of the same query from refreshing it at once, whilst changes can
+    // still be recorded against it from the writer.
+    entry.synchronized {
+      val (stale, dirty) = synchronized {
+        val result = (entry.stale, entry.dirty.toList)
+        entry.stale = false
+        entry.dirty.clear()
+        result
+      }
+
+      try {
+        if (stale || !dirty.isEmpty && !refreshBuckets(entry, side, bucketing, constraints, collation, dirty, source)) {
+          entry.digests.clear()
+          source(side, bucketing, constraints, collation).foreach(d => addDigest(entry, bucketing, d))
+        }
+      } catch {
+        case t =>
+          synchronized { entry.stale = true }
+          throw t
+      }
+
+      entry.digests.values.flatten.toList
+    }
+  }
+
+  def onCorrelationChanged(side:StoreParticipantType, before:Option[Map[String, String]], after:Option[Map[String, String]]) {
+    synchronized {
+      // Several cached queries will generally share the same bucketing, so only work out each set of buckets once
+      val bucketsByAggregation = new HashMap[Seq[ScanAggregation], Seq[Seq[String]]]
+
+      entries.foreach { case (key, entry) =>
+        if (key.side == side && !entry.stale) {
+          val buckets = bucketsByAggregation.getOrElseUpdate(key.bucketing,
+            Seq(before, after).flatten.distinct.flatMap(attrs => bucketsFor(key.bucketing, attrs)).distinct)
+          entry.dirty ++= buckets
+        }
+      }
+    }
+  }
+
+  def onAllCorrelationsChanged() {
+    synchronized {
+      entries.values.foreach(_.stale = true)
+    }
+  }
+
+  /**
+   * Recomputes each of the given buckets with a query narrowed to just that bucket. Returns false if the buckets
+   * couldn't be narrowed to, in which case the entry needs to be recomputed in full.
+   */
+  private def refreshBuckets(entry:Entry, side:StoreParticipantType, bucketing:Seq[ScanAggregation],
+                             constraints:Seq[ScanConstraint], collation:Collation, dirty:Seq[Seq[String]],
+                             source:DigestSource) = {
+    val functions = bucketing.collect { case f:CategoryFunction => f }
+
+    if (functions.size != bucketing.size) {
+      false
+    } else {
+      try {
+        // The original constraints are retained alongside the bucket constraints, so that the narrowed query can
+        // never include anything that the full query wouldn't have.
+        val narrowed = dirty.map(bucket => bucket -> (constraints ++ functions.zip(bucket).map {
+          case (f, name) => f.constrain(None, name)
+        }))
+
+        narrowed.foreach { case (bucket, bucketConstraints) =>
+          entry.digests.remove(bucket)
+          source(side, bucketing, bucketConstraints, collation).foreach(d => addDigest(entry, bucketing, d))
+        }
+        true
+      } catch {
+        case e:Exception =>
+          log.debug("Unable to narrow to buckets %s for %s; recomputing all digests".format(dirty, bucketing), e)
+          false
+      }
+    }
+  }
+
+  private def addDigest(entry:Entry, bucketing:Seq[ScanAggregation], digest:ScanResultEntry) {
+    val bucket = bucketing.map(a => digest.getAttributes.get(a.getAttributeName))
+    entry.digests(bucket) = digest :: entry.digests.getOrElse(bucket, Nil)
+  }
+
+  private def bucketsFor(bucketing:Seq[ScanAggregation], attributes:Map[String, String]) : Option[Seq[String]] = {
+    val values = bucketing.map(a => attributes.get(a.getAttributeName))
+
+    // An entity without all of the aggregated attributes couldn't have been included in an aggregate query
+    if (values.exists(_.isEmpty)) {
+      None
+    } else {
+      try {
+        Some(bucketing.zip(values).map { case (a, value) => a.bucket(value.get) })
+      } catch {
+        case e:Exception => None
+      }
+    }
+  }
+}
+
+object BucketDigestCache {
+  val defaultMaxEntries = 1000
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import java.lang.management.ManagementFactory
+import javax.management.{StandardMBean, ObjectName}
+import org.slf4j.LoggerFactory
+import net.lshift.diffa.kernel.config.PairRef
+
+/**
+ * Management interface for the commit statistics of a correlation store.
+ */
+trait CommitStatisticsMBean {
+  def getCommitCount:Long
+  def getCommittedChangeCount:Long
+  def getCheckpointCount:Long
+  def getUncommittedChangeCount:Long
+  def getLastCommitMillis:Double
+  def getMaxCommitMillis:Double
+  def getMeanCommitMillis:Double
+}
+
+/**
+ * Records how often a LuceneWriter commits, how many changes each commit covers and how long the commits take.
+ */
+class CommitStatistics extends CommitStatisticsMBean {
+
+  private var commits = 0L
+  private var committedChanges = 0L
+  private var checkpoints = 0L
+  private var uncommittedChanges = 0L
+  private var lastCommitNanos = 0L
+  private var maxCommitNanos = 0L
+  private var totalCommitNanos = 0L
+
+  def recordCheckpoint(pendingChanges:Long) = synchronized {
+    checkpoints += 1
+    uncommittedChanges = pendingChanges
+  }
+
+  def recordCommit(changes:Long, nanos:Long) = synchronized {
+    commits += 1
+    committedChanges += changes
+    uncommittedChanges = 0
+    lastCommitNanos = nanos
+    maxCommitNanos = math.max(maxCommitNanos, nanos)
+    totalCommitNanos += nanos
+  }
+
+  def recordRollback() = synchronized {
+    uncommittedChanges = 0
+  }
+
+  def getCommitCount = synchronized { commits }
+  def getCommittedChangeCount = synchronized { committedChanges }
+  def getCheckpointCount = synchronized { checkpoints }
+  def getUncommittedChangeCount = synchronized { uncommittedChanges }
+  def getLastCommitMillis = synchronized { toMillis(lastCommitNanos) }
+  def getMaxCommitMillis = synchronized { toMillis(maxCommitNanos) }
+  def getMeanCommitMillis = synchronized { if (commits == 0) 0.0 else toMillis(totalCommitNanos) / commits }
+
+  private def toMillis(nanos:Long) = nanos / 1000000.0
+}
+
+object CommitStatistics {
+
+  private val log = LoggerFactory.getLogger(classOf[CommitStatistics])
+
+  def objectNameFor(pair:PairRef, shard:Option[Int] = None) = {
+    val name = "net.lshift.diffa:type=CorrelationStore,space=%s,pair=%s".format(pair.space, ObjectName.quote(pair.name))
+    new ObjectName(shard.map(s => name + ",shard=" + s).getOrElse(name))
+  }
+
+  /**
+   * Publishes the given statistics over JMX, replacing any statistics previously published for the same pair (and
+   * shard, for a sharded store). Failing to publish statistics isn't allowed to prevent the store from being used.
+   */
+  def register(pair:PairRef, statistics:CommitStatistics, shard:Option[Int] = None) {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer
+      val name = objectNameFor(pair, shard)
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name)
+      }
+      server.registerMBean(new StandardMBean(statistics, classOf[CommitStatisticsMBean]), name)
+    } catch {
+      case e:Exception => log.warn("Unable to publish correlation store statistics for " + pair, e)
+    }
+  }
+
+  def unregister(pair:PairRef, shard:Option[Int] = None) {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer
+      val name = objectNameFor(pair, shard)
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name)
+      }
+    } catch {
+      case e:Exception => log.warn("Unable to withdraw correlation store statistics for " + pair, e)
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
+import net.lshift.diffa.schema.servicelimits.{CorrelationStoreCommitBytes, CorrelationStoreCommitAge, CorrelationStoreCommitChanges}
+
+/**
+ * Describes when changes that have been made visible in a correlation store need to be committed to disk. A commit
+ * is due once any of the thresholds that are set (ie, non-zero) is reached. When none of them are set, every
+ * checkpoint is committed, so that changes are durable as soon as they are visible.
+ */
+case class CommitThresholds(changes:Int = 0, ageMillis:Long = 0, bytes:Long = 0) {
+
+  def isGroupCommitEnabled = changes > 0 || ageMillis > 0 || bytes > 0
+
+  def isCommitDue(uncommittedChanges:Int, uncommittedAgeMillis:Long, uncommittedBytes:Long) =
+    !isGroupCommitEnabled ||
+      (changes > 0 && uncommittedChanges >= changes) ||
+      (ageMillis > 0 && uncommittedAgeMillis >= ageMillis) ||
+      (bytes > 0 && uncommittedBytes >= bytes)
+}
+
+object CommitThresholds {
+
+  val commitEveryCheckpoint = CommitThresholds()
+
+  /**
+   * Resolves the thresholds that apply to the given pair, which may be set for the pair, its domain or system-wide.
+   */
+  def forPair(pair:PairRef, limits:PairServiceLimitsView) = CommitThresholds(
+    changes = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreCommitChanges),
+    ageMillis = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreCommitAge),
+    bytes = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreCommitBytes)
+  )
+}
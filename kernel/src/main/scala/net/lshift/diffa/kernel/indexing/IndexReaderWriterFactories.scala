@@ -2,9 +2,9 @@ package net.lshift.diffa.kernel.indexing
 
 import org.apache.lucene.store.Directory
 import org.apache.lucene.util.Version
-import org.apache.lucene.analysis.standard.StandardAnalyzer
+import org.apache.lucene.analysis.KeywordAnalyzer
 import java.io.Closeable
-import org.apache.lucene.index.{IndexReader, IndexWriterConfig, IndexWriter}
+import org.apache.lucene.index._
 
 /**
  * Create an IndexWriter
@@ -14,16 +14,38 @@ trait IndexWriterFactory {
 }
 
 object IndexWriterFactory {
-  private val defaultWriterFactory = new IndexWriterFactory {
+  private val defaultWriterFactory = forProfile(StorageProfile.default)
+
+  def defaultFactory = defaultWriterFactory
+
+  /**
+   * Creates writers that buffer and merge segments as described by the given profile. Every field is indexed without
+   * being analyzed, so the analyzer is never actually asked to tokenize anything; a keyword analyzer is configured
+   * simply to avoid the cost of setting up a standard one.
+   */
+  def forProfile(profile: StorageProfile) = new IndexWriterFactory {
     def createIndexWriter(index: Directory) = {
       val version = Version.LUCENE_34
-      val config = new IndexWriterConfig(version, new StandardAnalyzer(version))
+      val config = new IndexWriterConfig(version, new KeywordAnalyzer)
+      config.setRAMBufferSizeMB(profile.ramBufferMb)
+
+      val mergePolicy = new TieredMergePolicy
+      mergePolicy.setSegmentsPerTier(profile.mergeFactor)
+      mergePolicy.setMaxMergeAtOnce(profile.mergeFactor)
+      config.setMergePolicy(mergePolicy)
+
+      if (profile.mergeThreads > 0) {
+        val scheduler = new ConcurrentMergeScheduler
+        // The number of pending merges must be raised first, since it may never be lower than the number of threads
+        scheduler.setMaxMergeCount(profile.mergeThreads + 2)
+        scheduler.setMaxThreadCount(profile.mergeThreads)
+        config.setMergeScheduler(scheduler)
+      }
+
       val writer = new IndexWriter(index, config)
       (writer, writer)
     }
   }
-
-  def defaultFactory = defaultWriterFactory
 }
 
 /**
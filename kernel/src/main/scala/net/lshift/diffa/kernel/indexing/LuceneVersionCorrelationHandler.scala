@@ -16,8 +16,8 @@
 package net.lshift.diffa.kernel.indexing
 
 import net.lshift.diffa.kernel.events.VersionID
-import org.apache.lucene.document.Document
-import net.lshift.diffa.kernel.config.{PairRef, DiffaPairRef}
+import org.apache.lucene.document.{NumericField, FieldSelectorResult, FieldSelector, Document}
+import net.lshift.diffa.kernel.config.{UnicodeCollationOrdering, PairRef, DiffaPairRef}
 import net.lshift.diffa.kernel.differencing.Correlation
 import net.lshift.diffa.kernel.differencing.Correlation._
 import collection.mutable.HashMap
@@ -26,6 +26,7 @@ import org.joda.time.format.ISODateTimeFormat
 import org.joda.time.{LocalDate, DateTime, DateTimeZone}
 import scala.collection.JavaConversions._
 import org.apache.lucene.index.{Term, IndexReader}
+import org.apache.lucene.util.IndexableBinaryStringTools
 
 /**
  * Utility that provides common Lucene document to Diffa Correlation routines.
@@ -35,22 +36,27 @@ object LuceneVersionCorrelationHandler {
   trait StoreParticipantType {
     def prefix:String
     def presenceIndicator:String
+    def versionFields:Seq[String]
   }
   case object Upstream extends StoreParticipantType {
     val prefix = "up."
     val presenceIndicator = "hasUpstream"
+    val versionFields = Seq("uvsn")
   }
   case object Downstream extends StoreParticipantType {
     val prefix = "down."
     val presenceIndicator = "hasDownstream"
+    val versionFields = Seq("duvsn", "ddvsn")
   }
 
-  def withSearcher[T](writer:LuceneWriter, f:IndexSearcher => T) = {
-    val searcher = new IndexSearcher(writer.getReader)
-    val result = f(searcher)
-    searcher.close()
-    result
-  }
+  def withSearcher[T](writer:LuceneWriter, f:IndexSearcher => T) = writer.withReader(reader => {
+    val searcher = new IndexSearcher(reader)
+    try {
+      f(searcher)
+    } finally {
+      searcher.close()
+    }
+  })
 
   def retrieveCurrentDoc(writer:LuceneWriter, id:VersionID) : Option[Document] = withSearcher(writer, s => {
     val hits = s.search(queryForId(id), 1)
@@ -71,8 +77,8 @@ object LuceneVersionCorrelationHandler {
       id = doc.get("id"),
       upstreamAttributes = findAttributes(doc, "up."),
       downstreamAttributes = findAttributes(doc, "down."),
-      lastUpdate = parseDate(doc.get("lastUpdated")),
-      timestamp = parseDate(doc.get("timestamp")),
+      lastUpdate = readDateTime(doc, "lastUpdated"),
+      timestamp = readDateTime(doc, "timestamp"),
       upstreamVsn = doc.get("uvsn"),
       storeVersion = parseLong(doc.get("store.version")),
       downstreamUVsn = doc.get("duvsn"),
@@ -91,6 +97,27 @@ object LuceneVersionCorrelationHandler {
     attrs
   }
 
+  /**
+   * Selects only the stored fields needed to report the version of the given participant, so that the remaining fields
+   * of each correlation don't need to be read from the index.
+   */
+  def projectionFor(part:StoreParticipantType, includeLastUpdated:Boolean) = new FieldSelector {
+    def accept(fieldName:String) =
+      if (fieldName == "id" || fieldName.startsWith(part.prefix) || part.versionFields.contains(fieldName) ||
+          (includeLastUpdated && fieldName == "lastUpdated")) {
+        FieldSelectorResult.LOAD
+      } else {
+        FieldSelectorResult.NO_LOAD
+      }
+  }
+
+  /**
+   * Extracts the attributes with the given prefix from a (possibly projected) document.
+   */
+  def projectAttributes(doc:Document, prefix:String) =
+    doc.getFields.foldLeft(Map[String, String]())((attrs, f) =>
+      if (f.name.startsWith(prefix)) attrs + (f.name.substring(prefix.size) -> f.stringValue) else attrs)
+
   def queryForId(id:VersionID) = {
     val query = new BooleanQuery
     query.add(new TermQuery(new Term("id", id.id)), BooleanClause.Occur.MUST)
@@ -100,6 +127,40 @@ object LuceneVersionCorrelationHandler {
   private def parseBool(bs:String) = bs != null && bs.equals("1")
   private def parseLong(number:String) = if (number == null) 0L else number.toLong
 
+  /**
+   * The indexed (but unstored) field holding the unicode collation key of each id, encoded so that its terms sort in
+   * the same order as the ids do under unicode collation.
+   */
+  val unicodeSortKeyField = "id.unicode"
+
+  def unicodeSortKey(id:String) = {
+    val key = UnicodeCollationOrdering.sortKey(id)
+    val encoded = new Array[Char](IndexableBinaryStringTools.getEncodedLength(key, 0, key.length))
+    IndexableBinaryStringTools.encode(key, 0, key.length, encoded, 0, encoded.length)
+    new String(encoded)
+  }
+
+  /**
+   * The field that a date or date time attribute is indexed in for range constraints. The attribute's value is held as
+   * a string in the attribute field itself, whilst this field holds it as a trie-encoded number of milliseconds since
+   * the epoch, so that a range constraint only needs to visit a handful of terms however long the range is.
+   */
+  def rangeFieldName(attributeField:String) = "range." + attributeField
+  def rangeFieldPrefix(part:StoreParticipantType) = rangeFieldName(part.prefix)
+
+  def dateTimeMillis(dt:DateTime) = dt.getMillis
+  def dateMillis(dt:LocalDate) = dt.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis
+
+  /**
+   * Reads a date time that is stored as a number of milliseconds since the epoch. Documents indexed under the first
+   * version of the schema stored date times as ISO strings, so these are still parsed should they be encountered.
+   */
+  def readDateTime(doc:Document, name:String):DateTime = doc.getFieldable(name) match {
+    case null           => null
+    case n:NumericField => new DateTime(n.getNumericValue.longValue, DateTimeZone.UTC)
+    case f              => parseDate(f.stringValue)
+  }
+
   def parseDate(ds:String) = {
     if (ds != null) {
       ISODateTimeFormat.dateTimeParser.parseDateTime(ds).withZone(DateTimeZone.UTC)
@@ -122,6 +183,8 @@ object LuceneVersionCorrelationHandler {
     tombstonedQuery
   }
 
+  def isTombstone(c:Correlation) = c.upstreamVsn == null && c.downstreamUVsn == null && c.downstreamDVsn == null
+
   def hasUpstream(doc:Document) = parseBool(doc.get(Upstream.presenceIndicator))
   def hasDownstream(doc:Document) = parseBool(doc.get(Downstream.presenceIndicator))
 }
\ No newline at end of file
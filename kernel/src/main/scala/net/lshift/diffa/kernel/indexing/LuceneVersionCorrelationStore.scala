@@ -32,6 +32,7 @@ import org.apache.lucene.index.{IndexReader, Term}
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import net.lshift.diffa.kernel.config._
 import net.lshift.diffa.kernel.util._
+import org.apache.lucene.util.{ReaderUtil, OpenBitSet}
 
 /**
  * Implementation of the VersionCorrelationStore that utilises Lucene to store (and index) the version information
@@ -42,7 +43,11 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
                                     index:Directory,
                                     configStore:SystemConfigStore,
                                     domainConfigStore: DomainConfigStore,
-                                    diagnostics:DiagnosticsManager)
+                                    diagnostics:DiagnosticsManager,
+                                    limits:PairServiceLimitsView,
+                                    shard:Option[Int] = None,
+                                    storeVersions:StoreVersionSequence = new StoreVersionSequence,
+                                    profile:StorageProfile = StorageProfile.default)
     extends VersionCorrelationStore
     with Closeable {
 
@@ -54,20 +59,45 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
   val schemaKey = VersionCorrelationStore.schemaVersionKey
 
   configStore.maybeSystemConfigOption(schemaKey) match {
-    case None          => configStore.setSystemConfigOption(schemaKey,version)
-    case Some(x)       => {
-      // Check to see if we're up to date
-      if (x != version) {
-        // We're not up to date, so perform an upgrade
-        // Ticket #323 - We need to migrate from this version, but we currently don't have the capability to do this
-        val msg = "%s: Do not have the ability the migrate the correlation store from version %s (see ticket #323), exiting now"
-        log.error(msg.format(AlertCodes.INVALID_SYSTEM_CONFIGURATION, x))
-        throw new InvalidSystemConfigurationException("Cannot migrate correlation store")
-      }
-    }
+    case None                                => configStore.setSystemConfigOption(schemaKey,version)
+    case Some(x) if x == version             => // Up to date
+    case Some(x) if isUpgradeableVersion(x)  =>
+      // Each index records the version that it was written with, and is upgraded as it is opened (see below), so
+      // the system-wide version only needs to record that this version of the schema is now in use.
+      log.info("Correlation stores written with schema version %s will be upgraded to version %s as they are opened".format(x, version))
+      configStore.setSystemConfigOption(schemaKey, version)
+    case Some(x)                             => schemaVersionUnsupported(x)
+  }
+
+  val writer = new LuceneWriter(index, diagnostics, indexWriterFactory = IndexWriterFactory.forProfile(profile),
+                                commitThresholds = () => CommitThresholds.forPair(pair, limits),
+                                storeVersions = storeVersions)
+
+  writer.schemaVersion match {
+    case current if current == VersionCorrelationStore.currentSchemaVersion => // Up to date
+    case earlier if earlier < VersionCorrelationStore.currentSchemaVersion  =>
+      log.info("Upgrading the correlation store for %s from schema version %s".format(pair.identifier, earlier))
+      writer.upgradeSchema(earlier)
+    case later                                                              =>
+      writer.close()
+      schemaVersionUnsupported(later.toString)
   }
+  writer.ensureSortKeys()
+  CommitStatistics.register(pair, writer.commitStatistics, shard)
+
+  // Local digests are retained between scans, and refreshed from the changes that the writer reports
+  private val digestCache = new BucketDigestCache
+  writer.changeListener = Some(digestCache)
+
+  private def isUpgradeableVersion(v:String) =
+    v.forall(_.isDigit) && !v.isEmpty && v.toInt >= 1 && v.toInt < VersionCorrelationStore.currentSchemaVersion
 
-  val writer = new LuceneWriter(index, diagnostics)
+  private def schemaVersionUnsupported(v:String) = {
+    // The store was written by a later version of the agent, so can't be read by this one
+    val msg = "%s: Do not have the ability the migrate the correlation store from version %s, exiting now"
+    log.error(msg.format(AlertCodes.INVALID_SYSTEM_CONFIGURATION, v))
+    throw new InvalidSystemConfigurationException("Cannot migrate correlation store")
+  }
 
   def openWriter() = writer // TODO: rename this - openWriter is a misnomer; probably should be getWriter
 
@@ -85,18 +115,61 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
     })
   }
 
+  def unmatchedAndTombstoneVersions(usConstraints:Seq[ScanConstraint], dsConstraints:Seq[ScanConstraint],
+                                    fromVersion:Option[Long], pageSize:Int,
+                                    handler:(Seq[Correlation], Seq[Correlation]) => Unit) {
+    // Store versions are unique and ascending, so each page can continue from the last version of the previous one
+    // without needing to hold anything else between pages.
+    var cursor = fromVersion
+    var more = true
+    while (more) {
+      val page = unmatchedAndTombstonePage(usConstraints, dsConstraints, cursor, pageSize)
+
+      if (!page.isEmpty) {
+        val (tombstones, mismatches) = page.partition(isTombstone(_))
+        handler(mismatches, tombstones)
+        cursor = Some(page.last.storeVersion.longValue)
+      }
+      more = page.size == pageSize
+    }
+  }
+
+  /**
+   * Retrieves up to a page of the unmatched versions and tombstones stored after the given store version, in
+   * ascending store version order.
+   */
+  def unmatchedAndTombstonePage(usConstraints:Seq[ScanConstraint], dsConstraints:Seq[ScanConstraint],
+                                fromVersion:Option[Long], pageSize:Int) = {
+    val unmatched = new BooleanQuery
+    unmatched.add(new TermQuery(new Term("isMatched", "0")), BooleanClause.Occur.MUST)
+    applyConstraints(unmatched, usConstraints, Upstream, true)
+    applyConstraints(unmatched, dsConstraints, Downstream, true)
+
+    val either = new BooleanQuery
+    either.add(unmatched, BooleanClause.Occur.SHOULD)
+    either.add(createTombstoneQuery, BooleanClause.Occur.SHOULD)
+
+    val query = new BooleanQuery
+    query.add(either, BooleanClause.Occur.MUST)
+    maybeAddStoreVersionConstraint(query, fromVersion)
+
+    val byStoreVersion = new Sort(new SortField("store.version", FieldCache.NUMERIC_UTILS_LONG_PARSER))
+    withSearcher(writer, s => {
+      s.search(query, pageSize, byStoreVersion).scoreDocs.map(d => docToCorrelation(s.doc(d.doc), pair)).toSeq
+    })
+  }
+
   private def searchForCorrelations(fromVersion:Option[Long], f:BooleanQuery => Any) = {
     val query = new BooleanQuery
     f(query)
     maybeAddStoreVersionConstraint(query, fromVersion)
     withSearcher(writer, s => {
-      val idOnlyCollector = new DocIdOnlyCollector
-      s.search(query, idOnlyCollector)
-      idOnlyCollector.allCorrelations(s)
+      val collector = new CorrelationCollector
+      s.search(query, collector)
+      collector.correlations
     })
   }
 
-
   private def maybeAddStoreVersionConstraint(query:BooleanQuery, fromVersion:Option[Long]) = fromVersion match {
     case None          => // ignore
     case Some(version) =>
@@ -110,25 +183,161 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
     }
   }
 
-  def queryUpstreams(constraints:Seq[ScanConstraint]) = {
-    val query = new BooleanQuery
-    applyConstraints(query, constraints, Upstream, false)
+  def queryUpstreams(constraints:Seq[ScanConstraint]) =
+    retrieveSortedCorrelations(participantQuery(Upstream, constraints), orderingFor(UpstreamEndpoint))
 
-    withSearcher(writer, s => {
-      val idOnlyCollector = new DocIdOnlyCollector
-      s.search(preventEmptyQuery(query), idOnlyCollector)
-      idOnlyCollector.allSortedCorrelations(s, orderingFor(UpstreamEndpoint)).filter(c => c.upstreamVsn != null)
+  def queryDownstreams(constraints:Seq[ScanConstraint]) =
+    retrieveSortedCorrelations(participantQuery(Downstream, constraints), orderingFor(DownstreamEndpoint))
+
+  override def openUpstreams(constraints:Seq[ScanConstraint]):CorrelationCursor =
+    new SortedCorrelationCursor(participantQuery(Upstream, constraints), orderingFor(UpstreamEndpoint), null)
+
+  override def openDownstreams(constraints:Seq[ScanConstraint]):CorrelationCursor =
+    new SortedCorrelationCursor(participantQuery(Downstream, constraints), orderingFor(DownstreamEndpoint), null)
+
+  /**
+   * Opens a cursor over the correlations that the given participant is present in, in the order of the given
+   * collation. Only the id and the fields of the given participant are loaded, so the other participant's side of
+   * each correlation is left empty.
+   */
+  def openParticipant(part:StoreParticipantType, constraints:Seq[ScanConstraint], ordering:Collation,
+                      includeLastUpdated:Boolean):CorrelationCursor =
+    new SortedCorrelationCursor(participantQuery(part, constraints), ordering, projectionFor(part, includeLastUpdated))
+
+  override def queryUpstreams(constraints:Seq[ScanConstraint], handler:UpstreamVersionHandler) {
+    visitParticipant(Upstream, constraints, orderingFor(UpstreamEndpoint), true, (id, doc, attributes) => {
+      val lastUpdate = readDateTime(doc, "lastUpdated")
+      if (log.isTraceEnabled) {
+        log.trace("US: id = %s; attributes = %s; lastUpdate = %s; uvsn = %s".format(id, attributes, lastUpdate, doc.get("uvsn")))
+      }
+      handler(VersionID(pair, id), attributes, lastUpdate, doc.get("uvsn"))
     })
+  }
+
+  override def queryDownstreams(constraints:Seq[ScanConstraint], handler:DownstreamVersionHandler) {
+    visitParticipant(Downstream, constraints, orderingFor(DownstreamEndpoint), true, (id, doc, attributes) => {
+      val lastUpdate = readDateTime(doc, "lastUpdated")
+      if (log.isTraceEnabled) {
+        log.trace("DS: id = %s; attributes = %s; lastUpdate = %s; uvsn = %s; dvsn = %s".format(id, attributes, lastUpdate, doc.get("duvsn"), doc.get("ddvsn")))
+      }
+      handler(VersionID(pair, id), attributes, lastUpdate, doc.get("duvsn"), doc.get("ddvsn"))
+    })
+  }
+
+  override def aggregateUpstreams(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) =
+    digestCache.digests(Upstream, bucketing, constraints, collation, buildDigests)
+
+  override def aggregateDownstreams(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) =
+    digestCache.digests(Downstream, bucketing, constraints, collation, buildDigests)
 
+  /**
+   * Digests the versions of the given participant straight from the index. Only the version and attributes of each
+   * correlation are needed for this, so the last update isn't loaded or parsed.
+   */
+  private def buildDigests(part:StoreParticipantType, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) = {
+    val vsnField = part match {
+      case Upstream   => "uvsn"
+      case Downstream => "ddvsn"
+    }
+    val builder = new DigestBuilder(bucketing, collation)
+    visitParticipant(part, constraints, collation, false, (id, doc, attributes) => builder.add(id, attributes, doc.get(vsnField)))
+    builder.toDigests.toSeq
   }
-  def queryDownstreams(constraints:Seq[ScanConstraint]) = {
+
+  /**
+   * Builds a query for the correlations where the given participant is present, and matches the given constraints.
+   */
+  private def participantQuery(part:StoreParticipantType, constraints:Seq[ScanConstraint]) = {
     val query = new BooleanQuery
-    applyConstraints(query, constraints, Downstream, false)
+    applyConstraints(query, constraints, part, false)
+
+    // Correlations without this participant would be discarded anyway, so exclude them before anything is loaded
+    query.add(new TermQuery(new Term(part.presenceIndicator, "1")), BooleanClause.Occur.MUST)
+    query
+  }
+
+  private def retrieveSortedCorrelations(query:Query, ordering:Collation) = {
+    val correlations = new ListBuffer[Correlation]
+    // A null field selector loads every stored field, which is needed to build a complete correlation
+    visitSorted(query, ordering, null, (id, doc) => correlations += docToCorrelation(doc, pair))
+    correlations.toSeq
+  }
+
+  /**
+   * Loads each correlation matching the given query as the cursor reaches it, in the order of the given collation.
+   * The cursor holds on to the reader that it was opened with, so it isn't affected by writes made whilst it is open.
+   * A null projection loads every stored field, which is needed to build a complete correlation.
+   */
+  private class SortedCorrelationCursor(query:Query, ordering:Collation, projection:FieldSelector) extends CorrelationCursor {
+    private val (reader, release) = writer.acquireReader()
+    private val searcher = new IndexSearcher(reader)
+    private var closed = false
+    private val docs = try {
+      sortedDocs(searcher, query, ordering)
+    } catch {
+      case ex => close(); throw ex
+    }
+
+    def hasNext = !closed && (docs.hasNext || { close(); false })
+    def next() = {
+      if (!hasNext) throw new NoSuchElementException
+      docToCorrelation(searcher.doc(docs.next(), projection), pair)
+    }
+
+    def close() {
+      if (!closed) {
+        closed = true
+        searcher.close()
+        release()
+      }
+    }
+  }
 
-    val idOnlyCollector = new DocIdOnlyCollector
-    val searcher = new IndexSearcher(writer.getReader)
-    searcher.search(preventEmptyQuery(query), idOnlyCollector)
-    idOnlyCollector.allSortedCorrelations(searcher, orderingFor(DownstreamEndpoint)).filter(c => c.downstreamUVsn != null)
+  /**
+   * Visits the id, projected document and attributes of each correlation that the given participant is present in,
+   * in the order of the given collation.
+   */
+  private def visitParticipant(part:StoreParticipantType, constraints:Seq[ScanConstraint], ordering:Collation,
+                               includeLastUpdated:Boolean, f:(String, Document, Map[String, String]) => Unit) {
+    visitSorted(participantQuery(part, constraints), ordering, projectionFor(part, includeLastUpdated),
+      (id, doc) => f(id, doc, projectAttributes(doc, part.prefix)))
+  }
+
+  /**
+   * Visits each document matching the given query in the order of the given collation. Only the stored fields
+   * accepted by the projection (which must include the id) are loaded, and then only as each document is visited.
+   */
+  private def visitSorted(query:Query, ordering:Collation, projection:FieldSelector, f:(String, Document) => Unit) {
+    withSearcher(writer, s => {
+      sortedDocs(s, query, ordering).foreach(d => {
+        val doc = s.doc(d, projection)
+        f(doc.get("id"), doc)
+      })
+    })
+  }
+
+  /**
+   * Finds the documents matching the given query, iterating over them in the order of the given collation. For the
+   * ascii and unicode collations the index already holds the ids in order, as the terms of the id and the unicode
+   * sort key respectively, so the matches are ordered by the ordinals of those terms in the field cache. Any other
+   * collation requires every matching id to be compared in memory up front.
+   */
+  private def sortedDocs(searcher:IndexSearcher, query:Query, ordering:Collation):Iterator[Int] = {
+    def matchingDocs = {
+      val collector = new MatchCollector(searcher.maxDoc)
+      searcher.search(query, collector)
+      collector.matches
+    }
+
+    ordering match {
+      case UnorderedCollationOrdering => new MatchIterator(matchingDocs)
+      case _:AsciiCollation           => termOrderedDocs(searcher.getIndexReader, "id", matchingDocs)
+      case _:UnicodeCollation         => termOrderedDocs(searcher.getIndexReader, unicodeSortKeyField, matchingDocs)
+      case _                          =>
+        val collector = new SortKeyCollector
+        searcher.search(query, collector)
+        collector.sortedKeys(ordering).iterator.map(_.doc)
+    }
   }
 
   def orderingFor(side: EndpointSide): Collation = {
@@ -189,17 +398,20 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
       case r:RangeConstraint          => {
         val tq = r match {
           case t:TimeRangeConstraint =>
-            new TermRangeQuery(prefix + t.getAttributeName, formatDateTime(t.getStart), formatDateTime(t.getEnd), true, true)
+            NumericRangeQuery.newLongRange(rangeFieldName(prefix + t.getAttributeName),
+              optionalMillis(t.getStart)(dateTimeMillis), optionalMillis(t.getEnd)(dateTimeMillis), true, true)
           case d:DateRangeConstraint =>
-            new TermRangeQuery(prefix + d.getAttributeName, formatDate(d.getStart), formatDate(d.getEnd), true, true)
+            // The end date is included in full, by excluding everything from the start of the following day
+            NumericRangeQuery.newLongRange(rangeFieldName(prefix + d.getAttributeName),
+              optionalMillis(d.getStart)(dateMillis), optionalMillis(d.getEnd)(end => dateMillis(end.plusDays(1))), true, false)
           case i:IntegerRangeConstraint =>
             NumericRangeQuery.newIntRange(prefix + i.getAttributeName, i.getStart, i.getEnd, true, true)
         }
         partQuery.add(tq, BooleanClause.Occur.MUST)
       }
       case s:StringPrefixConstraint => {
-        val wq = new WildcardQuery(new Term(prefix + s.getAttributeName, s.getPrefix + "*"))
-        partQuery.add(wq, BooleanClause.Occur.MUST)
+        val pq = new PrefixQuery(new Term(prefix + s.getAttributeName, s.getPrefix))
+        partQuery.add(pq, BooleanClause.Occur.MUST)
       }
       case s:SetConstraint  => {
         val setMatchQuery = new BooleanQuery
@@ -227,33 +439,168 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
     }
   }
 
-  private def preventEmptyQuery(query: BooleanQuery): Query =
-    if (query.getClauses.length == 0)
-      new MatchAllDocsQuery()
-    else
-      query
+  /**
+   * Converts an optional bound of a range into milliseconds since the epoch, leaving an absent bound as null (which
+   * leaves that end of a numeric range open).
+   */
+  private def optionalMillis[T](bound:T)(millis:T => Long):java.lang.Long = if (bound != null) millis(bound) else null
+
 
-  private class DocIdOnlyCollector extends org.apache.lucene.search.Collector {
-    val docIds = new ListBuffer[Int]
+  /**
+   * Records the matching documents as a set, which needs only a bit per document in the index.
+   */
+  private class MatchCollector(maxDoc:Int) extends org.apache.lucene.search.Collector {
+    val matches = new OpenBitSet(maxDoc)
     private var docBase:Int = 0
 
     def acceptsDocsOutOfOrder = true
     def setNextReader(reader: IndexReader, docBase: Int) = this.docBase = docBase
-    def collect(doc: Int) = docIds.add(docBase + doc)
+    def collect(doc: Int) { matches.fastSet(docBase + doc) }
     def setScorer(scorer: Scorer) = {}   // Not needed
+  }
 
-    def allCorrelations(searcher:IndexSearcher) = {
-      docIds.map(id => {
-        val doc = searcher.doc(id)
-        docToCorrelation(doc, pair)
-      })
+  /**
+   * Iterates over a set of matching documents in the order that they appear in the index.
+   */
+  private class MatchIterator(matches:OpenBitSet) extends Iterator[Int] {
+    private var nextDoc = matches.nextSetBit(0)
+
+    def hasNext = nextDoc >= 0
+    def next() = {
+      if (nextDoc < 0) throw new NoSuchElementException
+      val doc = nextDoc
+      nextDoc = matches.nextSetBit(doc + 1)
+      doc
     }
+  }
+
+  /**
+   * Iterates over a set of matching documents in the order of the terms of the given field, which must hold a single
+   * term for every document. The matches in each segment are sorted by the ordinals of their terms, which the field
+   * cache holds per segment, and the segments are then merged by comparing the terms at their heads. The work done is
+   * therefore in proportion to the number of matches, however large the index.
+   */
+  private def termOrderedDocs(reader:IndexReader, field:String, matches:OpenBitSet):Iterator[Int] = {
+    val segments = new java.util.ArrayList[IndexReader]
+    ReaderUtil.gatherSubReaders(segments, reader)
+
+    val queue = new scala.collection.mutable.PriorityQueue[SegmentCursor]()(EarliestTermFirst)
+    var docBase = 0
+    segments.foreach(segment => {
+      val cursor = new SegmentCursor(segment, field, matches, docBase)
+      if (!cursor.isExhausted) queue.enqueue(cursor)
+      docBase += segment.maxDoc
+    })
+
+    new Iterator[Int] {
+      def hasNext = !queue.isEmpty
+      def next() = {
+        if (queue.isEmpty) throw new NoSuchElementException
+        val cursor = queue.dequeue()
+        val doc = cursor.doc
+        cursor.advance()
+        if (!cursor.isExhausted) queue.enqueue(cursor)
+        doc
+      }
+    }
+  }
 
-    def allSortedCorrelations(searcher:IndexSearcher, ordering: Collation) =
-      allCorrelations(searcher).sortWith((a, b) => ordering.sortsBefore(a.id, b.id))
+  /**
+   * The matching documents of a single segment, in the order of the ordinals of their terms. Each is held as its
+   * ordinal and segment-relative document number packed into a long, so that sorting them is a primitive sort.
+   */
+  private class SegmentCursor(segment:IndexReader, field:String, matches:OpenBitSet, docBase:Int) {
+    private val index = FieldCache.DEFAULT.getStringIndex(segment, field)
+    private val keys = {
+      val found = new scala.collection.mutable.ArrayBuilder.ofLong
+      var d = matches.nextSetBit(docBase)
+      while (d >= 0 && d < docBase + segment.maxDoc) {
+        val local = d - docBase
+        found += (index.order(local).toLong << 32) | local
+        d = matches.nextSetBit(d + 1)
+      }
+      val sorted = found.result()
+      java.util.Arrays.sort(sorted)
+      sorted
+    }
+    private var position = 0
+
+    def isExhausted = position >= keys.length
+    def doc = docBase + (keys(position) & 0xffffffffL).toInt
+    def term = index.lookup((keys(position) >>> 32).toInt)
+    def advance() { position += 1 }
+  }
+
+  /**
+   * Orders segment cursors for a max-first priority queue, so that the cursor whose next term is earliest comes out
+   * first. Documents without a term sort first, as they do within a segment.
+   */
+  private object EarliestTermFirst extends Ordering[SegmentCursor] {
+    def compare(a:SegmentCursor, b:SegmentCursor) = {
+      val byTerm = (a.term, b.term) match {
+        case (null, null) => 0
+        case (null, _)    => 1
+        case (_, null)    => -1
+        case (x, y)       => y.compareTo(x)
+      }
+      if (byTerm != 0) byTerm else b.doc - a.doc
+    }
+  }
+
+  private case class SortKey(id:String, doc:Int)
+
+  /**
+   * Collects the id of each matching document from the field cache, allowing the matches to be ordered by a collation
+   * that the index doesn't hold keys for without loading any of their stored fields.
+   */
+  private class SortKeyCollector extends org.apache.lucene.search.Collector {
+    private val keys = new java.util.ArrayList[SortKey]
+    private var ids:Array[String] = null
+    private var docBase:Int = 0
+
+    def acceptsDocsOutOfOrder = true
+    def setNextReader(reader: IndexReader, docBase: Int) = {
+      this.docBase = docBase
+      this.ids = FieldCache.DEFAULT.getStrings(reader, "id")
+    }
+    def collect(doc: Int) { keys.add(SortKey(ids(doc), docBase + doc)) }
+    def setScorer(scorer: Scorer) = {}   // Not needed
+
+    def sortedKeys(ordering:Collation):Seq[SortKey] = ordering match {
+      case collation:KeyedCollation =>
+        // Compute each id's sort key once up front, rather than twice for every comparison made whilst sorting
+        val keyed = keys.map(k => (collation.sortKey(k.id), k)).toArray
+        java.util.Arrays.sort(keyed, new java.util.Comparator[(Array[Byte], SortKey)] {
+          def compare(a:(Array[Byte], SortKey), b:(Array[Byte], SortKey)) = SortKeys.compare(a._1, b._1)
+        })
+        keyed.map(_._2)
+      case _ =>
+        java.util.Collections.sort(keys, new java.util.Comparator[SortKey] {
+          def compare(a:SortKey, b:SortKey) =
+            if (ordering.sortsBefore(a.id, b.id)) -1
+            else if (ordering.sortsBefore(b.id, a.id)) 1
+            else 0
+        })
+        keys
+    }
+  }
+
+  /**
+   * Builds a correlation for each matching document as it is collected, rather than retaining the ids of every match
+   * until the search is complete.
+   */
+  private class CorrelationCollector extends org.apache.lucene.search.Collector {
+    val correlations = new ListBuffer[Correlation]
+    private var reader:IndexReader = null
+
+    def acceptsDocsOutOfOrder = true
+    def setNextReader(reader: IndexReader, docBase: Int) = this.reader = reader
+    def collect(doc: Int) { correlations += docToCorrelation(reader.document(doc), pair) }
+    def setScorer(scorer: Scorer) = {}   // Not needed
   }
 
   def close = {
+    CommitStatistics.unregister(pair, shard)
     openWriter.close
     index.close
   }
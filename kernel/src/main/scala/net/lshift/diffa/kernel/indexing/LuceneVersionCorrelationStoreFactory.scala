@@ -17,39 +17,91 @@
 package net.lshift.diffa.kernel.indexing
 
 import java.io.File
-import net.lshift.diffa.kernel.differencing.VersionCorrelationStoreFactory
+import java.util.concurrent.{ThreadFactory, Executors}
+import java.util.concurrent.atomic.AtomicInteger
+import net.lshift.diffa.kernel.differencing.{VersionCorrelationStore, VersionCorrelationStoreFactory}
 import scala.collection.mutable.HashMap
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import org.apache.commons.io.FileUtils
-import org.apache.lucene.store.{SimpleFSDirectory, NIOFSDirectory}
 import org.slf4j.LoggerFactory
-import net.lshift.diffa.kernel.config.{PairRef, DomainConfigStore, DiffaPairRef}
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef, DomainConfigStore, DiffaPairRef}
+import net.lshift.diffa.schema.servicelimits.{Unlimited, CorrelationStoreShards}
 
 /**
- * Factory that creates LuceneVersionCorrelationStore instances.
+ * Factory that creates LuceneVersionCorrelationStore instances, or for pairs that are configured to be split across
+ * several indexes, ShardedVersionCorrelationStore instances.
  */
 class LuceneVersionCorrelationStoreFactory(
   baseDir: String,
   configStore: SystemConfigStore,
   domainConfigStore: DomainConfigStore,
-  diagnostics:DiagnosticsManager
+  diagnostics:DiagnosticsManager,
+  limits:PairServiceLimitsView
 ) extends VersionCorrelationStoreFactory {
 
   import LuceneVersionCorrelationStoreFactory._
 
-  private val stores = HashMap[PairRef, LuceneVersionCorrelationStore]()
-  
-  def apply(pair: PairRef) =
-    stores.getOrElseUpdate(pair,
-      new LuceneVersionCorrelationStore(pair, luceneDirectory(pair), configStore, domainConfigStore, diagnostics))
+  private val stores = HashMap[PairRef, VersionCorrelationStore]()
 
-  private def directory(pair: PairRef) = new File(baseDir, pair.identifier)
+  // Shared by all of the sharded stores, which use it to index and query their shards in parallel
+  private val shardThreadCount = new AtomicInteger(0)
+  private val shardExecutor = Executors.newFixedThreadPool(Runtime.getRuntime.availableProcessors, new ThreadFactory {
+    def newThread(r: Runnable) = {
+      val t = new Thread(r, "correlation-shards-%s".format(shardThreadCount.incrementAndGet()))
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  def apply(pair: PairRef) = stores.getOrElseUpdate(pair, createStore(pair))
+
+  private def createStore(pair: PairRef):VersionCorrelationStore = {
+    val profile = StorageProfile.forPair(pair, limits)
+    shardCount(pair) match {
+      case 1 =>
+        new LuceneVersionCorrelationStore(pair, profile.openDirectory(directory(pair)), configStore, domainConfigStore,
+                                          diagnostics, limits, profile = profile)
+      case n =>
+        val storeVersions = new StoreVersionSequence
+        val shards = (0 until n).map(i =>
+          new LuceneVersionCorrelationStore(pair, profile.openDirectory(shardDirectory(pair, i)), configStore,
+                                            domainConfigStore, diagnostics, limits, Some(i), storeVersions, profile))
+        new ShardedVersionCorrelationStore(pair, shards, shardExecutor)
+    }
+  }
 
-  private def luceneDirectory(pair: PairRef) =
-    directoryClass.getConstructor(classOf[File]).newInstance(directory(pair))
+  /**
+   * Determines how many shards the store for the given pair is split across. The placement of each correlation depends
+   * upon the number of shards, so a store that already exists keeps the layout it was created with; a change to the
+   * limit only applies once the store has been removed (eg, when the pair is recreated).
+   */
+  private def shardCount(pair: PairRef) = {
+    val configured = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreShards) match {
+      case Unlimited.value => CorrelationStoreShards.hardLimit.intValue
+      case n if n < 1      => 1
+      case n               => n
+    }
 
+    val existing = Option(directory(pair).listFiles).filter(!_.isEmpty)
+    val actual = existing match {
+      case None        => configured   // Nothing has been stored yet
+      case Some(files) => files.count(f => f.isDirectory && f.getName.startsWith(shardPrefix)) match {
+        case 0     => 1                // An unsharded index
+        case count => count
+      }
+    }
 
+    if (actual != configured) {
+      log.warn("The correlation store for %s has %s shard(s), rather than the %s configured, since it already exists".format(
+        pair.identifier, actual, configured))
+    }
+    actual
+  }
+
+  private def directory(pair: PairRef) = new File(baseDir, pair.identifier)
+
+  private def shardDirectory(pair: PairRef, shard: Int) = new File(directory(pair), shardPrefix + shard)
 
   def remove(pair: PairRef) {
     close(pair)
@@ -68,6 +120,7 @@ class LuceneVersionCorrelationStoreFactory(
 
   def close() {
     stores.keys.foreach(close(_))
+    shardExecutor.shutdown()
   }
 
 }
@@ -76,14 +129,5 @@ object LuceneVersionCorrelationStoreFactory {
 
   val log = LoggerFactory.getLogger(classOf[LuceneVersionCorrelationStoreFactory])
 
-  lazy val directoryClass = {
-    val os = System.getProperty("os.name")
-    if (os != null && os.toLowerCase.indexOf("win") >= 0) {
-      log.warn("Detected Windows OS, so using SimpleFSDirectory implementation. "
-             + "See http://lucene.apache.org/java/3_5_0/api/core/org/apache/lucene/store/FSDirectory.html for further details.")
-      classOf[SimpleFSDirectory]
-    } else {
-      classOf[NIOFSDirectory]
-    }
-  }
+  val shardPrefix = "shard-"
 }
\ No newline at end of file
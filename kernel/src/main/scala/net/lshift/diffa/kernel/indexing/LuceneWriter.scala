@@ -20,18 +20,21 @@ import org.slf4j.LoggerFactory
 import net.lshift.diffa.kernel.events.VersionID
 import net.lshift.diffa.kernel.differencing._
 import org.joda.time.{LocalDate, DateTimeZone, DateTime}
+import org.joda.time.format.ISODateTimeFormat
 import org.apache.lucene.document.{NumericField, Fieldable, Field, Document}
-import collection.mutable.HashMap
+import collection.mutable.{ListBuffer, HashMap}
 import scala.collection.JavaConversions._
 import org.apache.lucene.index.{IndexReader, IndexWriter, Term}
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
-import java.util.concurrent.ConcurrentHashMap
 import java.io.Closeable
+import org.apache.lucene.search.{Scorer, Collector, IndexSearcher, TermRangeQuery, MatchAllDocsQuery, BooleanClause, BooleanQuery}
 
 
 class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
                    indexWriterFactory: IndexWriterFactory = IndexWriterFactory.defaultFactory,
-                   indexReaderFactory: IndexReaderFactory = IndexReaderFactory.defaultFactory)
+                   indexReaderFactory: IndexReaderFactory = IndexReaderFactory.defaultFactory,
+                   commitThresholds: () => CommitThresholds = () => CommitThresholds.commitEveryCheckpoint,
+                   storeVersions: StoreVersionSequence = new StoreVersionSequence)
   extends ExtendedVersionCorrelationWriter {
 
   import LuceneVersionCorrelationHandler._
@@ -40,7 +43,24 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
 
   private val maxBufferSize = 10000
 
+  /**
+   * Records the commits made by this writer, for publishing as metrics.
+   */
+  val commitStatistics = new CommitStatistics
+
+  // Changes that have been handed to the index writer (and so are visible to readers), but not yet committed
+  private var uncommittedChanges = 0
+  private var uncommittedBytes = 0L
+  private var firstUncommittedChangeTime = 0L
+
   private val updatedDocs = HashMap[VersionID, Document]()
+  private val prefetchedDocs = HashMap[VersionID, Option[Document]]()
+  private val pendingChanges = ListBuffer[(VersionID, StoreParticipantType, Option[Map[String, String]])]()
+
+  /**
+   * If set, is informed of changes to the correlations in this index once they become visible to readers.
+   */
+  @volatile var changeListener:Option[CorrelationChangeListener] = None
   private var isClosed: Boolean = _ // This is effectively true whenever the writer/closeableWriter are closed or undefined.
   private var (closeableWriter: Closeable, writer: IndexWriter) = createIndexWriter(index)
 
@@ -73,40 +93,100 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     }
     // TODO: we don't really need to eagerly create a new writer, since it will be created as needed on next use.
     getWriter    // We need to create a new writer, since rollback will have closed the previous one
+    retireReader()
+    prefetchedDocs.clear()
+    pendingChanges.clear()
+    clearUncommitted()
+    commitStatistics.recordRollback()
+    changeListener.foreach(_.onAllCorrelationsChanged())
     log.info("Writer rolled back")
   }
 
   def close() {
     writerLock.synchronized {
+      // Closing the index writer would commit any outstanding changes anyway, but without recording the store version
+      if (!isClosed && uncommittedChanges > 0) {
+        commit()
+      }
       closeableWriter.close
       isClosed = true
     }
 
-    val toClose = readers.remove(writer)
-    if (toClose != null) {
-      toClose.foreach(_.close())
+    retireReader()
+  }
+
+  /**
+   * A reader that is shared between searches. Once it has been replaced, it is closed as soon as the last search
+   * using it completes. Guarded by the reader lock.
+   */
+  private class SharedReader(closeable:Closeable, val reader:IndexReader) {
+    var users = 0
+    var retired = false
+
+    def release() {
+      users -= 1
+      maybeClose()
     }
 
+    def retire() {
+      retired = true
+      maybeClose()
+    }
+
+    private def maybeClose() {
+      if (retired && users == 0) closeable.close()
+    }
   }
 
-  val readers = new ConcurrentHashMap[IndexWriter, List[Closeable]]()
+  private final val readerLock = new Object
+  private var currentReader:SharedReader = null
 
-  // TODO: examine for race conditions.
-  def getReader: IndexReader = {
-    val (closeableReader, reader) = indexReaderFactory.createIndexReader(getWriter)
-    val readerList = readers.get(getWriter)
-    val list = closeableReader :: (if (readerList != null) {
-      readerList
-    } else {
-      List[Closeable]()
-    })
-    if (readers.putIfAbsent(getWriter, list) != null)
-      readers.replace(getWriter, list)
-    reader
+  /**
+   * Provides the given function with a near-real-time reader over the index. The same reader is shared by every
+   * caller until the writer next hands changes to the index, so that looking up a correlation doesn't require a
+   * reader to be opened each time.
+   */
+  def withReader[T](f:IndexReader => T):T = {
+    val (reader, release) = acquireReader()
+    try {
+      f(reader)
+    } finally {
+      release()
+    }
+  }
+
+  /**
+   * Provides the current near-real-time reader for use beyond the scope of a single call, such as by a cursor. The
+   * reader stays open, even once the writer has moved on to a newer one, until the returned function is called.
+   */
+  def acquireReader():(IndexReader, () => Unit) = {
+    val shared = readerLock.synchronized {
+      if (currentReader == null) {
+        val (closeableReader, reader) = indexReaderFactory.createIndexReader(getWriter)
+        currentReader = new SharedReader(closeableReader, reader)
+      }
+      currentReader.users += 1
+      currentReader
+    }
+
+    (shared.reader, () => readerLock.synchronized { shared.release() })
+  }
+
+  /**
+   * Ensures that the next reader requested reflects the current state of the writer.
+   */
+  private def retireReader() {
+    readerLock.synchronized {
+      if (currentReader != null) {
+        currentReader.retire()
+        currentReader = null
+      }
+    }
   }
 
   private val VERSION_LABEL = "latest.store.version"
-  private var latestVersion : Long = getReader.getCommitUserData match {
+  private val SCHEMA_LABEL = "schema.version"
+  storeVersions.advanceTo(withReader(_.getCommitUserData match {
     case null     => 0L
     case userData => {
       userData.get(VERSION_LABEL) match {
@@ -114,7 +194,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
         case version => version.toLong
       }
     }
-  }
+  }))
 
   def storeUpstreamVersion(id:VersionID, attributes:scala.collection.immutable.Map[String,TypedAttribute], lastUpdated: DateTime, vsn: String, scanId:Option[Long]) = {
     log.trace("Indexing upstream " + id + " with attributes: " + attributes + " lastupdated at " + lastUpdated + " with version " + vsn)
@@ -122,7 +202,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     def extractKeyFields(doc:Document) = Map("uvsn" -> doc.get("uvsn")) ++ findAttributes(doc, "up.")
     val newFields = Map("uvsn" -> vsn) ++ AttributesUtil.toUntypedMap(attributes)
 
-    doDocUpdate(id, scanId, lastUpdated, extractKeyFields, newFields, "upstream", doc => {
+    doDocUpdate(id, scanId, lastUpdated, extractKeyFields, newFields, Upstream, doc => {
       // Update all of the upstream attributes
       applyAttributes(doc, "up.", attributes)
       updateField(doc, boolField(Upstream.presenceIndicator, true))
@@ -138,7 +218,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     val newFields = Map("duvsn" -> uvsn, "ddvsn" -> dvsn) ++ AttributesUtil.toUntypedMap(attributes)
 
     log.trace("Indexing downstream " + id + " with attributes: " + attributes)
-    doDocUpdate(id, scanId, lastUpdated, extractKeyFields, newFields, "downstream", doc => {
+    doDocUpdate(id, scanId, lastUpdated, extractKeyFields, newFields, Downstream, doc => {
       // Update all of the upstream attributes
       applyAttributes(doc, "down.", attributes)
       updateField(doc, boolField(Downstream.presenceIndicator, true))
@@ -148,10 +228,10 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
   }
 
   def clearUpstreamVersion(id:VersionID, scanId:Option[Long]) = {
-    doClearAttributes(id, scanId, "upstream", doc => {
+    doClearAttributes(id, scanId, Upstream, doc => {
       // Remove all the upstream attributes. Convert to list as middle-step to prevent ConcurrentModificationEx - see #177
       doc.getFields.toList.foreach(f => {
-        if (f.name.startsWith("up.")) doc.removeField(f.name)
+        if (f.name.startsWith("up.") || f.name.startsWith(rangeFieldPrefix(Upstream))) doc.removeField(f.name)
       })
       updateField(doc, boolField(Upstream.presenceIndicator, false))
       doc.removeField("uvsn")
@@ -159,10 +239,10 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
   }
 
   def clearDownstreamVersion(id:VersionID, scanId:Option[Long]) = {
-    doClearAttributes(id, scanId, "downstream", doc => {
+    doClearAttributes(id, scanId, Downstream, doc => {
       // Remove all the upstream attributes. Convert to list as middle-step to prevent ConcurrentModificationEx - see #177
       doc.getFields.toList.foreach(f => {
-        if (f.name.startsWith("down.")) doc.removeField(f.name)
+        if (f.name.startsWith("down.") || f.name.startsWith(rangeFieldPrefix(Downstream))) doc.removeField(f.name)
       })
       updateField(doc, boolField(Downstream.presenceIndicator, false))
       doc.removeField("duvsn")
@@ -170,50 +250,199 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     })
   }
 
-  def isDirty = updatedDocs.size > 0
+  def isDirty = updatedDocs.size > 0 || uncommittedChanges > 0
+
+  /**
+   * Adds a unicode sort key to any document that was indexed before sort keys were introduced, so that every document
+   * can be found by walking the sort keys in order.
+   */
+  def ensureSortKeys() {
+    val missingSortKey = new BooleanQuery
+    missingSortKey.add(new MatchAllDocsQuery, BooleanClause.Occur.MUST)
+    missingSortKey.add(new TermRangeQuery(unicodeSortKeyField, null, null, true, true), BooleanClause.Occur.MUST_NOT)
+
+    val updated = withReader(reader => {
+      val docs = new ListBuffer[Int]
+      val searcher = new IndexSearcher(reader)
+      try {
+        searcher.search(missingSortKey, new Collector {
+          private var docBase = 0
+          def acceptsDocsOutOfOrder = true
+          def setNextReader(reader:IndexReader, docBase:Int) { this.docBase = docBase }
+          def collect(doc:Int) { docs += docBase + doc }
+          def setScorer(scorer:Scorer) {}
+        })
+      } finally {
+        searcher.close()
+      }
+
+      docs.foreach(d => {
+        val doc = reader.document(d)
+        doc.add(sortKeyField(doc.get("id")))
+        getWriter.updateDocument(new Term("id", doc.get("id")), doc)
+      })
+      docs.size
+    })
+
+    if (updated > 0) {
+      log.info("Added sort keys to %s existing correlations".format(updated))
+      recordUncommitted(updated, 0L)
+      retireReader()
+      commit()
+    }
+  }
+
+  /**
+   * The version of the schema that the documents in the index were written with. An index that was last committed
+   * before the version was recorded has the first version of the schema, unless there is nothing in it.
+   */
+  def schemaVersion = withReader(reader => Option(reader.getCommitUserData).flatMap(d => Option(d.get(SCHEMA_LABEL))) match {
+    case Some(version)              => version.toInt
+    case None if reader.numDocs > 0 => 1
+    case None                       => VersionCorrelationStore.currentSchemaVersion
+  })
+
+  /**
+   * Rewrites every document in the index, which was written with the given earlier version of the schema, in the
+   * current version of the schema.
+   */
+  def upgradeSchema(fromVersion:Int) {
+    val upgraded = withReader(reader => {
+      var count = 0
+      (0 until reader.maxDoc).filterNot(reader.isDeleted(_)).foreach(d => {
+        val doc = reader.document(d)
+        if (fromVersion < 2) {
+          upgradeToTypedDates(doc)
+        }
+        if (doc.getFieldable(unicodeSortKeyField) == null) {
+          doc.add(sortKeyField(doc.get("id")))
+        }
+        getWriter.updateDocument(new Term("id", doc.get("id")), doc)
+        count += 1
+      })
+      count
+    })
+
+    log.info("Upgraded %s correlations from schema version %s to %s".format(
+      upgraded, fromVersion, VersionCorrelationStore.currentSchemaVersion))
+    recordUncommitted(upgraded, 0L)
+    retireReader()
+    commit()
+  }
+
+  /**
+   * The first version of the schema held the last update and timestamp of each correlation, and the values of date
+   * and date time attributes, as ISO strings only. The types of the attributes aren't recorded in the index, so any
+   * attribute whose value is an ISO date or date time is given a range field. Its string field is left indexed, so an
+   * attribute that merely looks like a date can still be queried as before.
+   */
+  private def upgradeToTypedDates(doc:Document) {
+    Seq("lastUpdated", "timestamp").foreach(name => doc.getFieldable(name) match {
+      case null           =>
+      case n:NumericField =>
+      case f              => updateField(doc, longField(name, dateTimeMillis(parseDate(f.stringValue)), indexed = false))
+    })
+
+    doc.getFields.toList.foreach {
+      case n:NumericField => // Integer attributes were already indexed as numbers
+      case f if f.name.startsWith(Upstream.prefix) || f.name.startsWith(Downstream.prefix) =>
+        isoMillis(f.stringValue).foreach(millis => updateField(doc, longField(rangeFieldName(f.name), millis)))
+      case _              =>
+    }
+  }
+
+  private val isoDate = "\\d{4}-\\d{2}-\\d{2}".r
+
+  private def isoMillis(value:String):Option[Long] = {
+    try {
+      value match {
+        case null                                      => None
+        case isoDate()                                 => Some(dateMillis(LocalDate.parse(value)))
+        case v if v.length > 10 && v.charAt(10) == 'T' => Some(ISODateTimeFormat.dateTimeParser.parseDateTime(v).getMillis)
+        case _                                         => None
+      }
+    } catch {
+      case ex:IllegalArgumentException => None
+    }
+  }
+
+  def prefetch(ids:Iterable[VersionID]) {
+    val toFetch = ids.filterNot(id => updatedDocs.contains(id) || prefetchedDocs.contains(id)).toSeq.distinct
+
+    if (toFetch.size > 0) {
+      withReader(reader => {
+        val termDocs = reader.termDocs()
+        try {
+          // Visiting the ids in term order allows each seek to continue from where the last one left off
+          toFetch.sortBy(_.id).foreach(id => {
+            termDocs.seek(new Term("id", id.id))
+            prefetchedDocs(id) = if (termDocs.next()) Some(reader.document(termDocs.doc())) else None
+          })
+        } finally {
+          termDocs.close()
+        }
+      })
+    }
+  }
 
   def clearTombstones() {
     prepareFlush()
     getWriter.deleteDocuments(createTombstoneQuery)
-    flushInternal()
+    retireReader()
+    recordUncommitted(1, 0)
+    maybeCommit()
   }
 
   def flush() {
-    if (prepareFlush()) {
-      flushInternal()
+    prepareFlush()
+    if (uncommittedChanges > 0) {
+      commit()
     }
   }
 
+  def checkpoint() {
+    prepareFlush()
+    maybeCommit()
+  }
+
   def reset() {
     getWriter.deleteAll()
     getWriter.commit()
+    clearUncommitted()
+    retireReader()
     updatedDocs.clear()
+    prefetchedDocs.clear()
+    pendingChanges.clear()
+    changeListener.foreach(_.onAllCorrelationsChanged())
   }
 
   private def prepareUpdate(id: VersionID, doc: Document) = {
     updatedDocs.put(id, doc)
     if (updatedDocs.size >= maxBufferSize) {
-      flush()
+      checkpoint()
     }
   }
 
+  /**
+   * Finds the latest version of the document for the given id, preferring any pending update or prefetched copy
+   * over a lookup in the index.
+   */
+  private def currentDoc(id:VersionID) = updatedDocs.get(id) match {
+    case Some(doc) => Some(doc)
+    case None      => prefetchedDocs.getOrElse(id, retrieveCurrentDoc(this, id))
+  }
+
   private def getCurrentOrNewDoc(id:VersionID) = {
-    if (updatedDocs.contains(id)) {
-      updatedDocs(id)
-    } else {
-      val doc = retrieveCurrentDoc(this, id)
-
-      doc match {
-        case None => {
-          // Nothing in the index yet for this document, or it's pending deletion
-          val doc = new Document
-          doc.add(new Field("id", id.id, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO))
-          doc.add(new Field(Upstream.presenceIndicator, "0", Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO))
-          doc.add(new Field(Downstream.presenceIndicator, "0", Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO))
-          doc
-        }
-        case Some(doc) => doc
+    currentDoc(id) match {
+      case None => {
+        // Nothing in the index yet for this document, or it's pending deletion
+        val doc = new Document
+        doc.add(new Field("id", id.id, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO))
+        doc.add(new Field(Upstream.presenceIndicator, "0", Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO))
+        doc.add(new Field(Downstream.presenceIndicator, "0", Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO))
+        doc
       }
+      case Some(doc) => doc
     }
   }
 
@@ -222,9 +451,10 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
                           lastUpdatedIn:DateTime,
                           extractFields:Document => Map[String, String],
                           newFields:Map[String, String],
-                          sectionName:String,
+                          part:StoreParticipantType,
                           f:Document => Unit) = {
     val doc = getCurrentOrNewDoc(id)
+    val sectionName = sectionNameFor(part)
 
     val currentFields = extractFields(doc)
     val changedFields = summariseChanges(currentFields, newFields)
@@ -235,6 +465,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
         changedFields.map { case (k, (ov, nv)) => k + ": " + ov + " -> " + nv }.mkString(", ")))
 
       // Increment the version counter and update the entry
+      recordChange(id, part, doc)
       updateStoreVersion(doc)
       f(doc)
 
@@ -244,9 +475,9 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
         case d    => d
       }
 
-      val oldLastUpdate = parseDate(doc.get("lastUpdated"))
+      val oldLastUpdate = readDateTime(doc, "lastUpdated")
       if (oldLastUpdate == null || lastUpdated.isAfter(oldLastUpdate)) {
-        updateField(doc, dateTimeField("lastUpdated", lastUpdated, indexed = false))
+        updateField(doc, longField("lastUpdated", dateTimeMillis(lastUpdated), indexed = false))
       }
 
       // Update the matched status
@@ -254,7 +485,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
       updateField(doc, boolField("isMatched", isMatched))
 
       // Update the timestamp
-      updateField(doc, dateTimeField("timestamp", new DateTime().withZone(DateTimeZone.UTC), indexed = false))
+      updateField(doc, longField("timestamp", System.currentTimeMillis(), indexed = false))
 
       prepareUpdate(id, doc)
     }
@@ -263,22 +494,18 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
   }
 
   private def updateStoreVersion(doc:Document) = {
-    latestVersion += 1
-    updateField(doc, longField("store.version", latestVersion))
+    updateField(doc, longField("store.version", storeVersions.next()))
   }
 
-  private def doClearAttributes(id:VersionID, scanId:Option[Long], sectionName:String, f:Document => Unit) = {
-    val currentDoc =
-      if (updatedDocs.contains(id))
-        Some(updatedDocs(id))
-      else
-        retrieveCurrentDoc(this, id)
+  private def doClearAttributes(id:VersionID, scanId:Option[Long], part:StoreParticipantType, f:Document => Unit) = {
+    val sectionName = sectionNameFor(part)
 
-    currentDoc match {
+    currentDoc(id) match {
       case None => Correlation.asDeleted(id, new DateTime)
       case Some(doc) => {
 
         // Increment the version counter and update the entry
+        recordChange(id, part, doc)
         updateStoreVersion(doc)
         f(doc)
 
@@ -295,15 +522,45 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     }
   }
 
+  private def sectionNameFor(part:StoreParticipantType) = part match {
+    case Upstream   => "upstream"
+    case Downstream => "downstream"
+  }
+
+  /**
+   * Records the state of the given part of a document before it is changed, so that the change listener can be told
+   * about it once the updated document has been handed to the index.
+   */
+  private def recordChange(id:VersionID, part:StoreParticipantType, doc:Document) {
+    if (changeListener.isDefined) {
+      pendingChanges += ((id, part, partAttributes(doc, part)))
+    }
+  }
+
+  private def partAttributes(doc:Document, part:StoreParticipantType) = {
+    val present = part match {
+      case Upstream   => hasUpstream(doc)
+      case Downstream => hasDownstream(doc)
+    }
+    if (present) Some(findAttributes(doc, part.prefix).toMap) else None
+  }
+
+  private def notifyChanges() {
+    changeListener.foreach(l => pendingChanges.foreach { case (id, part, before) =>
+      l.onCorrelationChanged(part, before, updatedDocs.get(id).flatMap(doc => partAttributes(doc, part)))
+    })
+    pendingChanges.clear()
+  }
+
   private def applyAttributes(doc:Document, prefix:String, attributes:Map[String, TypedAttribute]) = {
     attributes.foreach { case (k, v) => {
       val vF = v match {
-        case StringAttribute(s)     => stringField(prefix + k, s)
-        case DateAttribute(dt)      => dateField(prefix + k, dt)
-        case DateTimeAttribute(dt)  => dateTimeField(prefix + k, dt)
-        case IntegerAttribute(intV) => intField(prefix + k, intV)
+        case StringAttribute(s)     => Seq(stringField(prefix + k, s))
+        case DateAttribute(dt)      => dateFields(prefix + k, dt)
+        case DateTimeAttribute(dt)  => dateTimeFields(prefix + k, dt)
+        case IntegerAttribute(intV) => Seq(intField(prefix + k, intV))
       }
-      updateField(doc, vF)
+      vF.foreach(updateField(doc, _))
     } }
   }
 
@@ -314,16 +571,18 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
 
   private def stringField(name:String, value:String, indexed:Boolean = true) =
     new Field(name, value, Field.Store.YES, indexConfig(indexed), Field.TermVector.NO)
-  private def dateTimeField(name:String, dt:DateTime, indexed:Boolean = true) =
-    new Field(name, formatDateTime(dt), Field.Store.YES, indexConfig(indexed), Field.TermVector.NO)
-  private def dateField(name:String, dt:LocalDate, indexed:Boolean = true) =
-    new Field(name, formatDate(dt), Field.Store.YES, indexConfig(indexed), Field.TermVector.NO)
+  private def dateTimeFields(name:String, dt:DateTime) =
+    Seq(stringField(name, formatDateTime(dt), indexed = false), longField(rangeFieldName(name), dateTimeMillis(dt)))
+  private def dateFields(name:String, dt:LocalDate) =
+    Seq(stringField(name, formatDate(dt), indexed = false), longField(rangeFieldName(name), dateMillis(dt)))
   private def intField(name:String, value:Int, indexed:Boolean = true) =
     (new NumericField(name, Field.Store.YES, indexed)).setIntValue(value)
   private def longField(name:String, value:Long, indexed:Boolean = true) =
     (new NumericField(name, Field.Store.YES, indexed)).setLongValue(value)
   private def boolField(name:String, value:Boolean, indexed:Boolean = true) =
     new Field(name, if (value) "1" else "0", Field.Store.YES, indexConfig(indexed), Field.TermVector.NO)
+  private def sortKeyField(id:String) =
+    new Field(unicodeSortKeyField, unicodeSortKey(id), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO)
   private def indexConfig(indexed:Boolean) = if (indexed) Field.Index.NOT_ANALYZED_NO_NORMS else Field.Index.NO
 
    /**
@@ -350,20 +609,66 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     result.toMap
   }
 
-  private def prepareFlush() = {
-    if (isDirty) {
+  /**
+   * Hands any buffered documents to the index writer, making them visible to readers without committing them.
+   */
+  private def prepareFlush() {
+    if (updatedDocs.size > 0) {
+      var bytes = 0L
       updatedDocs.foreach { case (id, doc) =>
+        // The sort key isn't stored, so is missing from any document that was read back from the index
+        if (doc.getFieldable(unicodeSortKeyField) == null) {
+          doc.add(sortKeyField(id.id))
+        }
         getWriter.updateDocument(new Term("id", id.id), doc)
+        bytes += approximateSize(doc)
+      }
+      recordUncommitted(updatedDocs.size, bytes)
+
+      // The updates are now visible to a new reader, so make sure that listeners won't be served from the old one
+      retireReader()
+      notifyChanges()
+      updatedDocs.clear()
+      prefetchedDocs.clear()
+    }
+  }
+
+  private def approximateSize(doc:Document) = doc.getFields.foldLeft(0L)((size, f) =>
+    size + f.name.length + (if (f.stringValue != null) f.stringValue.length else 0))
+
+  private def recordUncommitted(changes:Int, bytes:Long) {
+    if (uncommittedChanges == 0) {
+      firstUncommittedChangeTime = System.currentTimeMillis()
+    }
+    uncommittedChanges += changes
+    uncommittedBytes += bytes
+  }
+
+  private def clearUncommitted() {
+    uncommittedChanges = 0
+    uncommittedBytes = 0L
+  }
+
+  /**
+   * Commits any changes that have been made visible, if the commit thresholds say that a commit is due.
+   */
+  private def maybeCommit() {
+    if (uncommittedChanges > 0) {
+      val age = System.currentTimeMillis() - firstUncommittedChangeTime
+      if (commitThresholds().isCommitDue(uncommittedChanges, age, uncommittedBytes)) {
+        commit()
+      } else {
+        commitStatistics.recordCheckpoint(uncommittedChanges)
       }
-      true
-    } else {
-      false
     }
   }
 
-  private def flushInternal() {
-    getWriter.commit(Map(VERSION_LABEL -> latestVersion.toString))
-    updatedDocs.clear()
+  private def commit() {
+    val start = System.nanoTime()
+    getWriter.commit(Map(VERSION_LABEL -> storeVersions.current.toString,
+                         SCHEMA_LABEL -> VersionCorrelationStore.currentSchemaVersion.toString))
+    commitStatistics.recordCommit(uncommittedChanges, System.nanoTime() - start)
+    clearUncommitted()
     log.trace("Writer flushed")
   }
-}
+}
\ No newline at end of file
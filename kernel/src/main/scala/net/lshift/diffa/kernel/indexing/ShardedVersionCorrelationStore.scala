@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2010-2011 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.indexing
+
+import java.util.Comparator
+import java.util.concurrent.{ExecutionException, Callable, ExecutorService}
+import scala.collection.JavaConversions._
+import org.joda.time.DateTime
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.differencing._
+import net.lshift.diffa.adapter.scanning._
+import net.lshift.diffa.kernel.config.{UnorderedCollationOrdering, PairRef}
+import net.lshift.diffa.kernel.util.{CategoryChange, DownstreamEndpoint, EndpointSide, UpstreamEndpoint}
+
+/**
+ * A correlation store for a very large pair, split across several Lucene indexes that each hold the correlations
+ * whose ids hash to them. Each shard has its own index writer, so the indexing of a checkpoint (and the merges that it
+ * leads to) proceeds on several cores at once, and queries are run against every shard in parallel. Where a query's
+ * results must be in collation order, as they must be for digesting and entity scans, the ordered results of each
+ * shard are merged as they are read.
+ *
+ * The shards draw their store versions from a single sequence, so these remain unique and ascending across the store.
+ */
+class ShardedVersionCorrelationStore(val pair:PairRef,
+                                     shards:IndexedSeq[LuceneVersionCorrelationStore],
+                                     executor:ExecutorService)
+    extends VersionCorrelationStore {
+
+  import LuceneVersionCorrelationHandler._
+
+  // Digests span every shard, so are cached here rather than by the shards, and invalidated by changes to any of them
+  private val digestCache = new BucketDigestCache
+  shards.foreach(_.writer.changeListener = Some(digestCache))
+
+  private val writer = new ShardedWriter
+
+  def openWriter() = writer
+
+  private def shardFor(id:String) = shards(ShardedVersionCorrelationStore.shardOf(id, shards.size))
+
+  def unmatchedVersions(usConstraints:Seq[ScanConstraint], dsConstraints:Seq[ScanConstraint], fromVersion:Option[Long]) =
+    inParallel(shards.map(s => () => s.unmatchedVersions(usConstraints, dsConstraints, fromVersion))).flatten
+
+  def tombstoneVersions(fromVersion:Option[Long]) =
+    inParallel(shards.map(s => () => s.tombstoneVersions(fromVersion))).flatten
+
+  def unmatchedAndTombstoneVersions(usConstraints:Seq[ScanConstraint], dsConstraints:Seq[ScanConstraint],
+                                    fromVersion:Option[Long], pageSize:Int,
+                                    handler:(Seq[Correlation], Seq[Correlation]) => Unit) {
+    var cursor = fromVersion
+    var more = true
+    while (more) {
+      val pages = inParallel(shards.map(s => () => s.unmatchedAndTombstonePage(usConstraints, dsConstraints, cursor, pageSize)))
+      val merged = pages.flatten.sortBy(_.storeVersion.longValue)
+
+      // A shard that filled its page may have further versions beyond it, so only the versions up to the last one of
+      // the shortest such page are known to be complete. Anything after that is fetched again with the next pages.
+      val fullPages = pages.filter(_.size == pageSize)
+      val complete =
+        if (fullPages.isEmpty) merged
+        else {
+          val limit = fullPages.map(_.last.storeVersion.longValue).min
+          merged.takeWhile(_.storeVersion.longValue <= limit)
+        }
+
+      complete.grouped(pageSize).foreach(page => {
+        val (tombstones, mismatches) = page.partition(isTombstone(_))
+        handler(mismatches, tombstones)
+      })
+
+      if (!complete.isEmpty) {
+        cursor = Some(complete.last.storeVersion.longValue)
+      }
+      more = !fullPages.isEmpty
+    }
+  }
+
+  def retrieveCurrentCorrelation(id:VersionID) = shardFor(id.id).retrieveCurrentCorrelation(id)
+
+  def queryUpstreams(constraints:Seq[ScanConstraint]) = drain(openUpstreams(constraints))
+
+  def queryDownstreams(constraints:Seq[ScanConstraint]) = drain(openDownstreams(constraints))
+
+  override def openUpstreams(constraints:Seq[ScanConstraint]) =
+    openMerged(orderingFor(UpstreamEndpoint), _.openUpstreams(constraints))
+
+  override def openDownstreams(constraints:Seq[ScanConstraint]) =
+    openMerged(orderingFor(DownstreamEndpoint), _.openDownstreams(constraints))
+
+  override def queryUpstreams(constraints:Seq[ScanConstraint], handler:UpstreamVersionHandler) {
+    val ordering = orderingFor(UpstreamEndpoint)
+    visit(openMerged(ordering, _.openParticipant(Upstream, constraints, ordering, true)), c =>
+      handler(VersionID(pair, c.id), c.upstreamAttributes.toMap, c.lastUpdate, c.upstreamVsn))
+  }
+
+  override def queryDownstreams(constraints:Seq[ScanConstraint], handler:DownstreamVersionHandler) {
+    val ordering = orderingFor(DownstreamEndpoint)
+    visit(openMerged(ordering, _.openParticipant(Downstream, constraints, ordering, true)), c =>
+      handler(VersionID(pair, c.id), c.downstreamAttributes.toMap, c.lastUpdate, c.downstreamUVsn, c.downstreamDVsn))
+  }
+
+  override def aggregateUpstreams(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) =
+    digestCache.digests(Upstream, bucketing, constraints, collation, buildDigests)
+
+  override def aggregateDownstreams(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) =
+    digestCache.digests(Downstream, bucketing, constraints, collation, buildDigests)
+
+  /**
+   * Digests the versions of the given participant from every shard. A bucket's digest covers its versions in order,
+   * so can't be combined from digests built by each shard; instead, the versions of the shards are merged into order.
+   */
+  private def buildDigests(part:StoreParticipantType, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) = {
+    val builder = new DigestBuilder(bucketing, collation)
+    visit(openMerged(collation, _.openParticipant(part, constraints, collation, false)), c => part match {
+      case Upstream   => builder.add(c.id, c.upstreamAttributes, c.upstreamVsn)
+      case Downstream => builder.add(c.id, c.downstreamAttributes, c.downstreamDVsn)
+    })
+    builder.toDigests.toSeq
+  }
+
+  def orderingFor(side:EndpointSide) = shards.head.orderingFor(side)
+
+  def ensureUpgradeable(side:EndpointSide, changes:Seq[CategoryChange]) {
+    // Each shard holds a disjoint part of the store, so the store is upgradeable exactly when every shard is
+    shards.foreach(_.ensureUpgradeable(side, changes))
+  }
+
+  def close() {
+    shards.foreach(_.close())
+  }
+
+  def reset() {
+    writer.reset()
+  }
+
+  private def drain(cursor:CorrelationCursor) = {
+    try {
+      cursor.toList
+    } finally {
+      cursor.close()
+    }
+  }
+
+  private def visit(cursor:CorrelationCursor, f:Correlation => Unit) {
+    try {
+      cursor.foreach(f)
+    } finally {
+      cursor.close()
+    }
+  }
+
+  /**
+   * Opens a cursor on every shard in parallel, which runs the query against each of them, and merges the cursors into
+   * the order of the given collation. Should opening any of them fail, those that were opened are closed again.
+   */
+  private def openMerged(ordering:Collation, open:LuceneVersionCorrelationStore => CorrelationCursor):CorrelationCursor = {
+    val opened = shards.map(s => executor.submit(new Callable[CorrelationCursor] { def call = open(s) })).map(f =>
+      try {
+        Right(f.get)
+      } catch {
+        case e:ExecutionException => Left(e.getCause)
+      })
+
+    opened.collectFirst { case Left(e) => e } match {
+      case Some(e) =>
+        opened.foreach { case Right(c) => c.close(); case _ => }
+        throw e
+      case None =>
+        new MergedCursor(opened.collect { case Right(c) => c }, ordering)
+    }
+  }
+
+  private def inParallel[T](tasks:Seq[() => T]):Seq[T] =
+    tasks.map(t => executor.submit(new Callable[T] { def call = t() })).map(f =>
+      try {
+        f.get
+      } catch {
+        case e:ExecutionException => throw e.getCause
+      })
+
+  /**
+   * Merges cursors that are each in the order of the given collation into a single cursor in that order. Since an id
+   * only ever belongs to one shard, the cursors never hold the same id.
+   */
+  private class MergedCursor(cursors:Seq[CorrelationCursor], ordering:Collation) extends CorrelationCursor {
+    private val unordered = cursors.iterator.flatMap(c => c)
+    private val pending = new java.util.PriorityQueue[BufferedIterator[Correlation]](math.max(cursors.size, 1),
+      new Comparator[BufferedIterator[Correlation]] {
+        def compare(a:BufferedIterator[Correlation], b:BufferedIterator[Correlation]) =
+          if (ordering.sortsBefore(a.head.id, b.head.id)) -1
+          else if (ordering.sortsBefore(b.head.id, a.head.id)) 1
+          else 0
+      })
+
+    if (ordering != UnorderedCollationOrdering) {
+      cursors.foreach(c => if (c.hasNext) pending.add(c.buffered))
+    }
+
+    def hasNext = if (ordering == UnorderedCollationOrdering) unordered.hasNext else !pending.isEmpty
+
+    def next() = {
+      if (ordering == UnorderedCollationOrdering) {
+        unordered.next()
+      } else {
+        val cursor = pending.poll()
+        if (cursor == null) throw new NoSuchElementException
+        val correlation = cursor.next()
+        if (cursor.hasNext) pending.add(cursor)
+        correlation
+      }
+    }
+
+    def close() {
+      cursors.foreach(_.close())
+    }
+  }
+
+  /**
+   * Presents the writers of the shards as a single writer, passing each change to the shard that the id belongs to.
+   * Checkpoints and flushes are applied to the shards in parallel, since that is where the indexing work is done.
+   */
+  private class ShardedWriter extends ExtendedVersionCorrelationWriter {
+
+    private def writerFor(id:VersionID) = shardFor(id.id).writer
+
+    def storeUpstreamVersion(id:VersionID, attributes:Map[String, TypedAttribute], lastUpdated:DateTime, vsn:String, scanId:Option[Long]) =
+      writerFor(id).storeUpstreamVersion(id, attributes, lastUpdated, vsn, scanId)
+
+    def storeDownstreamVersion(id:VersionID, attributes:Map[String, TypedAttribute], lastUpdated:DateTime, uvsn:String, dvsn:String, scanId:Option[Long]) =
+      writerFor(id).storeDownstreamVersion(id, attributes, lastUpdated, uvsn, dvsn, scanId)
+
+    def clearUpstreamVersion(id:VersionID, scanId:Option[Long]) = writerFor(id).clearUpstreamVersion(id, scanId)
+
+    def clearDownstreamVersion(id:VersionID, scanId:Option[Long]) = writerFor(id).clearDownstreamVersion(id, scanId)
+
+    def isDirty = shards.exists(_.writer.isDirty)
+
+    def prefetch(ids:Iterable[VersionID]) {
+      val byShard = ids.groupBy(id => ShardedVersionCorrelationStore.shardOf(id.id, shards.size))
+      inParallel(byShard.toSeq.map { case (shard, shardIds) => () => shards(shard).writer.prefetch(shardIds) })
+    }
+
+    def flush() { allWriters(_.flush()) }
+    def checkpoint() { allWriters(_.checkpoint()) }
+    def reset() { allWriters(_.reset()) }
+    def rollback() { allWriters(_.rollback()) }
+    def clearTombstones() { allWriters(_.clearTombstones()) }
+
+    def close() {
+      shards.foreach(_.writer.close())
+    }
+
+    private def allWriters(f:LuceneWriter => Unit) {
+      inParallel(shards.map(s => () => f(s.writer)))
+    }
+  }
+}
+
+object ShardedVersionCorrelationStore {
+  /**
+   * Determines which of the given number of shards an id belongs to. This relies upon String.hashCode, whose value is
+   * defined by the language, so ids are found in the same shard every time the store is opened.
+   */
+  def shardOf(id:String, shardCount:Int) = (id.hashCode & Int.MaxValue) % shardCount
+}
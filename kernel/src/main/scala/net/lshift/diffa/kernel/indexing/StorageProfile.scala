@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import java.io.File
+import org.apache.lucene.store.{FSDirectory, MMapDirectory, SimpleFSDirectory, NIOFSDirectory}
+import org.apache.lucene.util.Constants
+import org.slf4j.LoggerFactory
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
+import net.lshift.diffa.schema.servicelimits._
+
+/**
+ * Describes how a correlation store is held on disk and how its index is written. The defaults match those of the
+ * index itself, aside from the directory, which is chosen to suit the platform.
+ *
+ * @param memoryMapped whether the index is read through memory-mapped files, which avoids copying index data into
+ *                     the heap, but requires a 64-bit JVM to map a large index.
+ * @param ramBufferMb  the memory that changes are buffered in before a new segment is written.
+ * @param mergeFactor  the number of similarly sized segments that are allowed before they are merged.
+ * @param mergeThreads the number of merges that may run at once, or 0 to leave this to the index.
+ */
+case class StorageProfile(memoryMapped:Boolean = false,
+                          ramBufferMb:Int = StorageProfile.defaultRamBufferMb,
+                          mergeFactor:Int = StorageProfile.defaultMergeFactor,
+                          mergeThreads:Int = 0) {
+
+  import StorageProfile._
+
+  def openDirectory(dir:File):FSDirectory = {
+    if (memoryMapped) {
+      if (!Constants.JRE_IS_64BIT) {
+        log.warn("Memory-mapping the correlation store at %s on a 32-bit JVM, which limits the size of index it can map".format(dir))
+      }
+      new MMapDirectory(dir)
+    } else {
+      platformDirectoryClass.getConstructor(classOf[File]).newInstance(dir)
+    }
+  }
+}
+
+object StorageProfile {
+
+  val log = LoggerFactory.getLogger(classOf[StorageProfile])
+
+  val defaultRamBufferMb = 16
+  val defaultMergeFactor = 10
+
+  val default = StorageProfile()
+
+  lazy val platformDirectoryClass:Class[_ <: FSDirectory] = {
+    val os = System.getProperty("os.name")
+    if (os != null && os.toLowerCase.indexOf("win") >= 0) {
+      log.warn("Detected Windows OS, so using SimpleFSDirectory implementation. "
+             + "See http://lucene.apache.org/java/3_5_0/api/core/org/apache/lucene/store/FSDirectory.html for further details.")
+      classOf[SimpleFSDirectory]
+    } else {
+      classOf[NIOFSDirectory]
+    }
+  }
+
+  /**
+   * Resolves the profile that applies to the given pair, which may be set for the pair, its domain or system-wide.
+   */
+  def forPair(pair:PairRef, limits:PairServiceLimitsView) = StorageProfile(
+    memoryMapped = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreMemoryMapped) > 0,
+    ramBufferMb = atLeastOne(limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreRamBuffer), CorrelationStoreRamBuffer),
+    mergeFactor = math.max(2, atLeastOne(limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreMergeFactor), CorrelationStoreMergeFactor)),
+    mergeThreads = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CorrelationStoreMergeThreads) match {
+      case Unlimited.value => CorrelationStoreMergeThreads.hardLimit.intValue
+      case n               => math.max(n, 0)
+    }
+  )
+
+  private def atLeastOne(value:Int, limit:ServiceLimit) = value match {
+    case Unlimited.value => limit.hardLimit.intValue
+    case n if n < 1      => 1
+    case n               => n
+  }
+}
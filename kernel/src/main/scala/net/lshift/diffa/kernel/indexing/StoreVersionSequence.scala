@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Issues the store versions given to correlations as they change. The shards of a store share a single sequence, so
+ * that store versions remain unique and ascending across the store as a whole.
+ */
+class StoreVersionSequence {
+  private val latest = new AtomicLong
+
+  def current = latest.get
+
+  def next() = latest.incrementAndGet()
+
+  /**
+   * Ensures that the sequence continues from at least the given version, such as the latest version committed by an
+   * index that is being reopened.
+   */
+  def advanceTo(version:Long) {
+    var current = latest.get
+    while (current < version && !latest.compareAndSet(current, version)) {
+      current = latest.get
+    }
+  }
+}
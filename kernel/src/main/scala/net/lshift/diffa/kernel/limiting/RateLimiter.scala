@@ -48,17 +48,23 @@ class RateLimiter(eventsPerSecondFn: () => Int, clock: Clock = SystemClock) exte
   }
 
   private val tokenBucket = TokenBucket(params, clock)
-  private val acceptFn: () => Boolean = if (eventsPerSecondFn() == Unlimited.value) {
-    () => true
+  private val acceptFn: Int => Boolean = if (eventsPerSecondFn() == Unlimited.value) {
+    _ => true
   } else {
-    () => tokenBucket.tryConsume
+    permits => tokenBucket.tryConsume(permits)
   }
 
-  def accept() = acceptFn()
+  def accept() = acceptFn(1)
+  def accept(permits: Int) = acceptFn(permits)
 }
 
 trait Limiter {
   def accept(): Boolean
+
+  /**
+   * Accepts the given number of actions together, or none of them. A refusal doesn't count towards the limit.
+   */
+  def accept(permits: Int): Boolean
 }
 
 trait TypedLimiter[ActionType] {
@@ -22,6 +22,7 @@ object TokenBucket {
 
 trait TokenBucket {
   def tryConsume: Boolean
+  def tryConsume(tokens: Long): Boolean
   def refill()
 }
 
@@ -29,12 +30,17 @@ class FixedIntervalTokenBucket(params: TokenBucketParameters, clock: Clock) {
   private var lastDrip = clock.currentTimeMillis
   private var volume: Long = params.initialVolume
 
-  def tryConsume: Boolean = {
+  def tryConsume: Boolean = tryConsume(1)
+
+  /**
+   * Consumes the given number of tokens if the bucket holds that many, and otherwise consumes none.
+   */
+  def tryConsume(tokens: Long): Boolean = {
     synchronized {
       refill()
 
-      if (volume > 0) {
-        volume -= 1
+      if (volume >= tokens) {
+        volume -= tokens
         true
       } else {
         false
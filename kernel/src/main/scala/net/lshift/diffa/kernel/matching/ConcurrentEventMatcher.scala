@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.matching
+
+import net.lshift.diffa.kernel.events._
+import collection.mutable.ListBuffer
+import org.slf4j.{Logger, LoggerFactory}
+import net.lshift.diffa.kernel.frontend.DomainPairDef
+import java.util.concurrent.{CopyOnWriteArrayList, ConcurrentLinkedQueue, ConcurrentHashMap}
+import scala.collection.JavaConversions._
+
+/**
+ * In memory event matcher that allows events for different entities to be matched concurrently.
+ *
+ * The pending events are held in concurrent maps, with the changes for any one entity serialised by one of a fixed
+ * set of locks chosen by the entity's id. Rather than each matcher having its own ordering of pending events, the
+ * expiry of every pending event is scheduled with an expiry wheel that is shared by all of the matchers. Listeners are
+ * informed, and events acknowledged, once the locks have been released.
+ */
+class ConcurrentEventMatcher(val pair:DomainPairDef, expiryWheel:EventExpiryWheel,
+                             stripes:Int = ConcurrentEventMatcher.defaultStripes) extends EventMatcher {
+  private val log:Logger = LoggerFactory.getLogger(getClass)
+
+  private val listenerList = new CopyOnWriteArrayList[MatchingStatusListener]
+  private val entries = new ConcurrentHashMap[TxnIdVsn, PendingTxn]
+  private val inProgress = new ConcurrentHashMap[VersionID, java.lang.Integer]
+  private val locks = Array.fill(stripes)(new Object)
+
+  @volatile private var disposed = false
+
+  private class PendingTxn(val idVsn:TxnIdVsn, val eventAckCallback:() => Unit) {
+    @volatile var expiry:EventExpiryWheel.Timeout = null
+  }
+
+  def listeners:Seq[MatchingStatusListener] = listenerList.toList
+
+  def addListener(l: MatchingStatusListener) = {
+    listenerList.add(l)
+  }
+
+  def onChange(evt: PairChangeEvent, eventAckCallback: () => Unit) = {
+    log.debug("Received event " + evt)
+
+    val expiry = System.currentTimeMillis() + pair.matchingTimeout * 1000L
+    val idVsn = evt match {
+      case UpstreamPairChangeEvent(id, _, _, vsn) => TxnIdVsn(id, vsn, UpstreamSource)
+      case DownstreamPairChangeEvent(id, _, _, vsn) => TxnIdVsn(id, vsn, DownstreamSource)
+      case DownstreamCorrelatedPairChangeEvent(id, _, _, uvsn, _) => TxnIdVsn(id, uvsn, DownstreamSource)
+    }
+    val txn = new PendingTxn(idVsn, eventAckCallback)
+
+    // See if we have an event to match by trying to find the inverse of this event. Otherwise index this one, replacing
+    // any identical event that is still pending.
+    val (matched, replaced) = lockFor(idVsn.id).synchronized {
+      entries.remove(idVsn.inverse) match {
+        case null     =>
+          val previous = entries.put(idVsn, txn)
+          if (previous == null) versionEntered(idVsn.id)
+          (None, Option(previous))
+        case possible =>
+          versionLeft(idVsn.id)
+          (Some(possible), None)
+      }
+    }
+
+    matched match {
+      case Some(other) =>
+        cancelExpiry(other)
+        onMatched(txn, other)
+      case None        =>
+        // The expiry is scheduled once the entry is visible, so an expiry can never precede its entry
+        txn.expiry = expiryWheel.schedule(expiry, () => expireTxn(txn))
+        replaced.foreach(previous => {
+          cancelExpiry(previous)
+          previous.eventAckCallback()
+        })
+    }
+  }
+
+  def isVersionIDActive(id: VersionID) = inProgress.containsKey(id)
+
+  def dispose = {
+    log.debug("Disposing analyzer for pair: " + pair)
+    disposed = true
+    entries.values.foreach(cancelExpiry(_))
+  }
+
+  private def expireTxn(txn:PendingTxn) {
+    val idVsn = txn.idVsn
+    val expired = lockFor(idVsn.id).synchronized {
+      val removed = entries.remove(idVsn, txn)
+      if (removed) versionLeft(idVsn.id)
+      removed
+    }
+
+    if (expired && !disposed) {
+      idVsn.source match {
+        case UpstreamSource   =>
+          log.debug("Processing event for expired upstream: " + idVsn.id + "; listeners = " + listenerList.size)
+          fireListeners(l => l.onUpstreamExpired(idVsn.id, idVsn.vsn))
+        case DownstreamSource =>
+          log.debug("Processing event for expired downstream: " + idVsn.id + "; listeners = " + listenerList.size)
+          fireListeners(l => l.onDownstreamExpired(idVsn.id, idVsn.vsn))
+      }
+      txn.eventAckCallback()
+    }
+  }
+
+  private def onMatched(a:PendingTxn, b:PendingTxn) = {
+    log.debug("Processing event for matched pair: " + a.idVsn.id + "; listeners = " + listenerList.size)
+
+    // Emit an event indicating the match, then ack both the messages
+    fireListeners(l => l.onPaired(a.idVsn.id, a.idVsn.vsn))
+    a.eventAckCallback()
+    b.eventAckCallback()
+  }
+
+  private def fireListeners(f:(MatchingStatusListener) => Unit) = listenerList.foreach(l => f(l))
+
+  private def cancelExpiry(txn:PendingTxn) {
+    // The expiry may not have been scheduled yet, in which case the entry being gone will cause it to be ignored
+    val expiry = txn.expiry
+    if (expiry != null) expiry.cancel()
+  }
+
+  private def lockFor(id:VersionID) = locks((id.hashCode & Int.MaxValue) % stripes)
+
+  // Both of these are called with the lock for the id held, so the count for any given id is never contended
+  private def versionEntered(id: VersionID) {
+    inProgress.get(id) match {
+      case null    => inProgress.put(id, 1)
+      case current => inProgress.put(id, current + 1)
+    }
+  }
+  private def versionLeft(id: VersionID) {
+    inProgress.get(id) match {
+      case null    => // Ignore
+      case current =>
+        if (current == 1) inProgress.remove(id)
+        else inProgress.put(id, current - 1)
+    }
+  }
+}
+
+object ConcurrentEventMatcher {
+  val defaultStripes = 64
+}
+
+/**
+ * A hashed timing wheel that runs tasks once their deadline has passed, shared by all of the matchers in an agent.
+ *
+ * Scheduling a task only adds it to a queue. A single thread moves newly scheduled tasks into the slots of the wheel,
+ * and runs the tasks in each slot whose deadline has passed as it reaches the slot, so the work done per tick is only
+ * proportional to the number of tasks in that slot. Tasks are run on the wheel's thread, outside of any of the
+ * matchers' locks.
+ */
+class EventExpiryWheel(tickMillis:Long = EventExpiryWheel.defaultTickMillis,
+                       slotCount:Int = EventExpiryWheel.defaultSlotCount) {
+  import EventExpiryWheel._
+
+  private val log:Logger = LoggerFactory.getLogger(getClass)
+
+  private val scheduled = new ConcurrentLinkedQueue[Timeout]
+  private val slots = Array.fill(slotCount)(new ListBuffer[Timeout])   // Only used by the wheel thread
+
+  @volatile private var running = true
+  private val worker = new Thread { override def run = turn }
+  worker.setName("EventExpiryWheel")
+  worker.setDaemon(true)
+  worker.start
+
+  def schedule(deadlineMillis:Long, task:() => Unit) = {
+    val timeout = new Timeout(deadlineMillis, task)
+    scheduled.add(timeout)
+    timeout
+  }
+
+  def dispose {
+    log.debug("Disposing EventExpiryWheel")
+
+    running = false
+    worker.interrupt()
+    worker.join(10000)
+  }
+
+  private def turn {
+    var tick = System.currentTimeMillis() / tickMillis
+
+    while (running) {
+      try {
+        val now = System.currentTimeMillis()
+        val sleepMillis = (tick + 1) * tickMillis - now
+        if (sleepMillis > 0) Thread.sleep(sleepMillis)
+
+        tick += 1
+        transferScheduled(tick)
+
+        val slot = slots((tick % slotCount).toInt)
+        val deadline = tick * tickMillis
+        val due = slot.filter(t => t.deadline <= deadline)
+        slot --= due
+        due.foreach(t => if (!t.isCancelled) {
+          try {
+            t.task()
+          } catch {
+            case ex:Exception => log.error("Caught exception whilst expiring event", ex)
+          }
+        })
+
+        // Drop anything that has been cancelled whilst waiting for a later rotation
+        if (slot.exists(_.isCancelled)) slot --= slot.filter(_.isCancelled)
+      } catch {
+        case ex:InterruptedException => // Check whether we are still running
+        case ex:Exception            => log.error("Caught exception in expiry wheel thread", ex)
+      }
+    }
+  }
+
+  private def transferScheduled(tick:Long) {
+    var timeout = scheduled.poll()
+    while (timeout != null) {
+      if (!timeout.isCancelled) {
+        // Anything that is already due is placed in the slot about to be processed
+        val deadlineTick = scala.math.max((timeout.deadline + tickMillis - 1) / tickMillis, tick)
+        slots((deadlineTick % slotCount).toInt) += timeout
+      }
+      timeout = scheduled.poll()
+    }
+  }
+}
+
+object EventExpiryWheel {
+  val defaultTickMillis = 100L
+  val defaultSlotCount = 512
+
+  class Timeout(val deadline:Long, val task:() => Unit) {
+    @volatile private var cancelled = false
+
+    def cancel() { cancelled = true }
+    def isCancelled = cancelled
+  }
+}
@@ -30,8 +30,8 @@ class LocalEventMatchingManager(systemConfigStore: SystemConfigStore,
 
   val log = LoggerFactory.getLogger(getClass)
 
-  private val reaper = new LocalEventMatcherReaper
-  private val matchers = new HashMap[PairRef, LocalEventMatcher]
+  private val expiryWheel = new EventExpiryWheel
+  private val matchers = new HashMap[PairRef, ConcurrentEventMatcher]
   private val listeners = new ListBuffer[MatchingStatusListener]
 
   // Create a matcher for each pre-existing pair
@@ -56,7 +56,7 @@ class LocalEventMatchingManager(systemConfigStore: SystemConfigStore,
 
   def close: Unit = {
     matchers.values foreach (m => m.dispose)
-    reaper.dispose
+    expiryWheel.dispose
   }
 
   def addListener(l:MatchingStatusListener) {
@@ -71,7 +71,7 @@ class LocalEventMatchingManager(systemConfigStore: SystemConfigStore,
     // TODO demote this statement
     log.info("Updating matcher for " + pair)
 
-    val newMatcher = new LocalEventMatcher(pair, reaper)
+    val newMatcher = new ConcurrentEventMatcher(pair, expiryWheel)
 
     matchers.remove(pair.asRef) match {
       case Some(matcher) => {
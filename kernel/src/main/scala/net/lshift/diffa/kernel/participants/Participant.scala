@@ -30,6 +30,14 @@ trait Participant
    */
   def scan(constraints:Seq[ScanConstraint], aggregations:Seq[CategoryFunction]): Seq[ScanResultEntry]
 
+  /**
+   * Scans this adapter, passing each result entry to the given handler as it is received rather than
+   * returning the complete result.
+   */
+  def scan(constraints:Seq[ScanConstraint], aggregations:Seq[CategoryFunction], handler:ScanResultEntry => Unit) {
+    scan(constraints, aggregations).foreach(handler)
+  }
+
   /**
    * Requests that the adapter return a serialized form of the item with the given identifier.
    */
@@ -17,7 +17,7 @@
 package net.lshift.diffa.kernel.participants
 
 import collection.mutable.ListBuffer
-import net.lshift.diffa.adapter.scanning.ScanConstraint
+import net.lshift.diffa.adapter.scanning.{ScanResultEntry, ScanConstraint}
 import net.lshift.diffa.kernel.config.{PairRef, Endpoint}
 
 /**
@@ -79,6 +79,13 @@ class ParticipantFactory() {
       case Some(spart) => spart.scan(constraints, aggregations)
     }
 
+    override def scan(constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction], handler: ScanResultEntry => Unit) {
+      scanning match {
+        case None        => throw new InvalidParticipantOperationException(partName, "scanning")
+        case Some(spart) => spart.scan(constraints, aggregations, handler)
+      }
+    }
+
   }
 
   private class CompositeUpstreamParticipant(partName:String, scanning:Option[ScanningParticipantRef], content:Option[ContentParticipantRef])
@@ -13,6 +13,14 @@ trait ScanningParticipantRef {
    * Scans this adapter with the given constraints and aggregations.
    */
   def scan(constraints:Seq[ScanConstraint], aggregations:Seq[CategoryFunction]): Seq[ScanResultEntry]
+
+  /**
+   * Scans this adapter, passing each result entry to the given handler as it is received. Implementations that
+   * can consume the response incrementally should override this to avoid materialising the whole result.
+   */
+  def scan(constraints:Seq[ScanConstraint], aggregations:Seq[CategoryFunction], handler:ScanResultEntry => Unit) {
+    scan(constraints, aggregations).foreach(handler)
+  }
 }
 
 /**
@@ -18,6 +18,8 @@ package net.lshift.diffa.kernel.reporting
 import net.lshift.diffa.kernel.config.{PairRef, PairReportType, DomainConfigStore}
 import net.lshift.diffa.kernel.differencing.DomainDifferenceStore
 import org.apache.http.impl.client.DefaultHttpClient
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager
+import org.apache.http.util.EntityUtils
 import net.lshift.diffa.kernel.diag.{DiagnosticLevel, DiagnosticsManager}
 import org.apache.http.client.methods.HttpPost
 import org.apache.commons.io.FileUtils
@@ -33,6 +35,9 @@ import net.lshift.diffa.kernel.util.MissingObjectException
 class ReportManager(configStore:DomainConfigStore, diffStore:DomainDifferenceStore, diagnostics:DiagnosticsManager) {
   import PairReportType._
 
+  // Reports are posted with a single long-lived client, so that connections to report targets can be reused
+  private val client = new DefaultHttpClient(new ThreadSafeClientConnManager)
+
   /**
    * Executes a report with the given name for the given pair.
    * @throws MissingObjectException if the requested report doesn't exist.
@@ -87,7 +92,6 @@ class ReportManager(configStore:DomainConfigStore, diffStore:DomainDifferenceSto
   }
 
   private def postReport(target:String, reportFile:File) {
-    val client = new DefaultHttpClient
     val reportLength = reportFile.length()
     val fileStream = new FileInputStream(reportFile)
 
@@ -96,7 +100,10 @@ class ReportManager(configStore:DomainConfigStore, diffStore:DomainDifferenceSto
       val entity = new InputStreamEntity(fileStream, reportLength)
       entity.setContentType("text/csv")
       reportPost.setEntity(entity)
-      client.execute(reportPost)
+
+      // The response is read in full so that the connection is released back to the client
+      val response = client.execute(reportPost)
+      EntityUtils.consume(response.getEntity)
     } finally {
       fileStream.close()
     }
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2010-2011 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.scheduler
+
+import org.slf4j.{LoggerFactory, Logger}
+import net.lshift.diffa.kernel.actors.{ActivePairManager, InventoryFeed, PairPolicyClient}
+import net.lshift.diffa.kernel.config.{PairRef, DomainConfigStore}
+import net.lshift.diffa.kernel.differencing.{PairScanState, PairScanListener}
+import net.lshift.diffa.kernel.events.PairChangeEvent
+import net.lshift.diffa.kernel.lifecycle.{NotificationCentre, AgentLifecycleAware}
+import net.lshift.diffa.kernel.util.EndpointSide
+import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanConstraint}
+import collection.mutable
+
+/**
+ * Decides when the scans requested of pairs are actually started, so that the number of scans running at once is
+ * limited both overall and for any one endpoint. Every scan holds index writers for its pair and makes requests of
+ * the participants behind both of its endpoints, so these limits bound the load that scanning places on the agent and
+ * on any participant backend shared between pairs.
+ *
+ * Scans that can't be started straight away are queued, with at most one queued scan per pair. Scans requested by a
+ * user are started before scheduled ones; otherwise, the pair whose last scan finished longest ago goes first. A queued
+ * scan whose endpoints are busy doesn't hold up scans of pairs whose endpoints are not.
+ *
+ * A scan's slot is released when its pair reports that it has left the scanning state, or when the pair's actor is
+ * replaced or stopped, since a scan that was running in the old actor will never report that it has finished. For the
+ * latter, the orchestrator must be registered as an active pair manager after the actor supervisor.
+ *
+ * All other operations are passed straight through to the underlying client.
+ */
+class ScanOrchestrator(underlying:PairPolicyClient,
+                       domainConfig:DomainConfigStore,
+                       maxConcurrentScans:Int,
+                       maxConcurrentScansPerEndpoint:Int)
+    extends PairPolicyClient
+    with PairScanListener
+    with ActivePairManager
+    with AgentLifecycleAware {
+
+  private val log:Logger = LoggerFactory.getLogger(getClass)
+
+  private case class PendingScan(pair:PairRef, view:Option[String], initiatingUser:Option[String], requestedAt:Long) {
+    def priority = if (initiatingUser.isDefined) 1 else 0
+  }
+
+  // All guarded by this
+  private val pending = new mutable.HashMap[PairRef, PendingScan]
+  private val running = new mutable.HashMap[PairRef, Seq[String]]
+  private val endpointScans = new mutable.HashMap[String, Int]
+  private val lastFinished = new mutable.HashMap[PairRef, Long]
+
+  override def onAgentInstantiationCompleted(nc:NotificationCentre) {
+    nc.registerForPairScanEvents(this)
+  }
+
+  def propagateChangeEvent(event:PairChangeEvent) = underlying.propagateChangeEvent(event)
+  def propagateChangeEvents(events:Seq[PairChangeEvent]) = underlying.propagateChangeEvents(events)
+  def startInventory(pair:PairRef, side:EndpointSide, view:Option[String]) = underlying.startInventory(pair, side, view)
+  def submitInventory(pair:PairRef, side:EndpointSide, constraints:Seq[ScanConstraint],
+                      aggregations:Seq[ScanAggregation], entries:InventoryFeed) =
+    underlying.submitInventory(pair, side, constraints, aggregations, entries)
+  def difference(pairRef:PairRef) = underlying.difference(pairRef)
+
+  /**
+   * Queues a scan of the given pair, starting it as soon as the limits allow. A scan requested for a pair that
+   * already has one queued replaces it, unless the queued scan was requested by a user and this one wasn't.
+   */
+  def scanPair(pair:PairRef, scanView:Option[String], initiatingUser:Option[String]) {
+    val requested = PendingScan(pair, scanView, initiatingUser, System.currentTimeMillis())
+
+    synchronized {
+      pending.get(pair) match {
+        case Some(queued) if queued.priority > requested.priority =>
+          log.debug("Ignoring scan request for %s, since a higher priority scan is already queued".format(pair.identifier))
+        case _ =>
+          pending(pair) = requested
+      }
+    }
+
+    dispatch()
+  }
+
+  /**
+   * Drops any queued scan of the pair, as well as cancelling any that is running.
+   */
+  def cancelScans(pair:PairRef) = {
+    synchronized { pending.remove(pair) }
+    underlying.cancelScans(pair)
+  }
+
+  def pairScanStateChanged(pair:PairRef, scanState:PairScanState) {
+    if (scanState != PairScanState.SCANNING) {
+      release(pair)
+    }
+  }
+
+  /**
+   * Releases the slot of any scan of the pair that was running in the actor that has just been replaced.
+   */
+  def startActor(pair:PairRef) {
+    release(pair)
+  }
+
+  /**
+   * Forgets the pair, dropping any queued scan of it and releasing the slot of any that was running.
+   */
+  def stopActor(pair:PairRef) {
+    synchronized { pending.remove(pair) }
+    release(pair)
+    synchronized { lastFinished.remove(pair) }
+  }
+
+  /**
+   * The number of scans that are waiting for the limits to allow them to start.
+   */
+  def queuedScanCount = synchronized { pending.size }
+
+  /**
+   * The number of scans that have been started and not yet finished.
+   */
+  def runningScanCount = synchronized { running.size }
+
+  /**
+   * Starts as many of the queued scans as the limits allow. The scans are started once the lock has been released,
+   * since starting a scan notifies the pair scan listeners.
+   */
+  private def dispatch() {
+    val toStart = synchronized {
+      val started = new mutable.ListBuffer[PendingScan]
+      val candidates = pending.values.toSeq.sortBy(s => (-s.priority, lastFinished.getOrElse(s.pair, 0L), s.requestedAt))
+
+      candidates.foreach(scan => {
+        if (running.size < maxConcurrentScans && !running.contains(scan.pair)) {
+          endpointsOf(scan.pair) match {
+            case None            =>
+              pending.remove(scan.pair)     // The pair has gone away, so there is nothing to scan
+            case Some(endpoints) =>
+              if (endpoints.forall(e => endpointScans.getOrElse(e, 0) < maxConcurrentScansPerEndpoint)) {
+                pending.remove(scan.pair)
+                running(scan.pair) = endpoints
+                endpoints.foreach(e => endpointScans(e) = endpointScans.getOrElse(e, 0) + 1)
+                started += scan
+              }
+          }
+        }
+      })
+
+      started.toSeq
+    }
+
+    toStart.foreach(scan => {
+      try {
+        underlying.scanPair(scan.pair, scan.view, scan.initiatingUser)
+      } catch {
+        case ex =>
+          log.error("Failed to start scan of %s".format(scan.pair.identifier), ex)
+          pairScanStateChanged(scan.pair, PairScanState.FAILED)
+      }
+    })
+  }
+
+  /**
+   * Releases the slot held by the running scan of the given pair, if there is one, and starts whatever that allows.
+   */
+  private def release(pair:PairRef) {
+    val released = synchronized {
+      running.remove(pair) match {
+        case None            => false
+        case Some(endpoints) =>
+          endpoints.foreach(e => endpointScans(e) -= 1)
+          lastFinished(pair) = System.currentTimeMillis()
+          true
+      }
+    }
+
+    if (released) dispatch()
+  }
+
+  private def endpointsOf(pair:PairRef) = {
+    try {
+      val pairDef = domainConfig.getPairDef(pair)
+      Some(Seq(pairDef.upstreamName, pairDef.downstreamName).distinct.map(e => "%s/%s".format(pair.space, e)))
+    } catch {
+      case ex =>
+        log.warn("Unable to find the endpoints of %s, so dropping its queued scan".format(pair.identifier), ex)
+        None
+    }
+  }
+}
@@ -28,6 +28,10 @@ import net.lshift.diffa.kernel.config.{PairRef, Endpoint, DiffaPairRef}
  */
 object StoreSynchronizationUtils {
 
+  /**
+   * The number of correlations that are read from the store and written to the differences manager at a time.
+   */
+  val replayPageSize = 1000
 
   /**
    * Runs a simple replayUnmatchedDifferences for the pair.
@@ -39,15 +43,17 @@ object StoreSynchronizationUtils {
     val diffWriter = diffsManager.createDifferenceWriter(pair.space, pair.name, overwrite = true)
     try {
       val version = diffsManager.lastRecordedVersion(pair)
-      
-      // Run a query for mismatched versions, and report each one. Note that we always sync using the default view -
-      // given we're doing an incremental sync, this shouldn't see changes other than the ones that we've found in the
-      // view, and will ensure that we don't miss syncing realtime changes that affect sequence versioning.
-      store.unmatchedVersions(upstream.initialConstraints(None), downstream.initialConstraints(None), version).foreach(
-        corr => diffWriter.writeMismatch(corr.asVersionID, corr.lastUpdate, corr.upstreamVsn, corr.downstreamUVsn, origin, corr.storeVersion))
 
-      val tombstones = store.tombstoneVersions(version)
-      diffWriter.evictTombstones(tombstones)
+      // Run a query for mismatched versions and tombstones, and report each one. Note that we always sync using the
+      // default view - given we're doing an incremental sync, this shouldn't see changes other than the ones that
+      // we've found in the view, and will ensure that we don't miss syncing realtime changes that affect sequence
+      // versioning. Since the pages arrive in store version order, the progress can be recorded after each one.
+      store.unmatchedAndTombstoneVersions(upstream.initialConstraints(None), downstream.initialConstraints(None),
+        version, replayPageSize, (mismatches, tombstones) => {
+          diffWriter.writeMismatches(mismatches, origin)
+          diffWriter.evictTombstones(tombstones)
+          diffWriter.checkpoint()
+        })
 
       // Now that the diffs are in sync, we can purge the the tombstones.
       writer.clearTombstones()
@@ -61,4 +67,4 @@ object StoreSynchronizationUtils {
     }
   }
 
-}
\ No newline at end of file
+}
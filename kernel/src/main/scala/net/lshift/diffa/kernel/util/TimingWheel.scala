@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.util
+
+import collection.mutable.{HashMap, ListBuffer}
+
+/**
+ * A hierarchical timing wheel, which tracks when each of a set of keys is next due and hands back the keys that have
+ * become due as time is advanced.
+ *
+ * Each level of the wheel has a fixed number of slots, with each slot in a level spanning a whole rotation of the
+ * level below. A key is placed in the lowest level that can represent its due time, and is cascaded down to the
+ * level below as the wheel reaches its slot. Scheduling, cancelling and advancing by a tick are therefore constant
+ * time, regardless of how many keys are being tracked or how far in the future they are due.
+ *
+ * Cancelled and rescheduled keys are not removed from their slots, but are discarded once their slot is reached.
+ *
+ * This class is not thread safe.
+ */
+class TimingWheel[K](tickMillis:Long, startMillis:Long,
+                     levels:Int = TimingWheel.defaultLevels, slotBits:Int = TimingWheel.defaultSlotBits) {
+
+  private case class Entry(key:K, tick:Long)
+
+  private val slotCount = 1 << slotBits
+  private val slotMask = slotCount - 1
+
+  private val wheels = Array.fill(levels, slotCount)(new ListBuffer[Entry])
+  private val overflow = new ListBuffer[Entry]
+  private val due = new ListBuffer[Entry]
+  private val scheduled = new HashMap[K, Long]
+
+  private var currentTick = startMillis / tickMillis
+
+  /**
+   * The number of keys that are scheduled.
+   */
+  def size = scheduled.size
+
+  /**
+   * Schedules the given key to become due at the given time, replacing any existing schedule for it. A key scheduled
+   * for a time that has already passed will be handed back by the next advance.
+   */
+  def schedule(key:K, dueMillis:Long) {
+    val tick = scala.math.max(ticksFor(dueMillis), currentTick)
+    if (scheduled.get(key) != Some(tick)) {
+      scheduled(key) = tick
+      place(Entry(key, tick))
+    }
+  }
+
+  def cancel(key:K) {
+    scheduled.remove(key)
+  }
+
+  /**
+   * Moves the wheel on to the given time, returning the keys that have become due.
+   */
+  def advance(nowMillis:Long):Seq[K] = {
+    val result = new ListBuffer[K]
+
+    def expire(entries:Seq[Entry]) = entries.foreach(e => if (isCurrent(e)) {
+      scheduled.remove(e.key)
+      result += e.key
+    })
+
+    expire(takeAll(due))
+
+    // Keys are only handed back once their due time has passed, so their tick is rounded up whilst now is rounded down
+    val targetTick = nowMillis / tickMillis
+    while (currentTick < targetTick) {
+      currentTick += 1
+
+      // Cascade from the top down, so that keys moved out of a higher level are cascaded on from the levels below
+      // should they land in the slot being reached there too
+      if (isOnBoundary(levels)) takeAll(overflow).foreach(place(_))
+      (levels - 1 to 1 by -1).foreach(level => {
+        if (isOnBoundary(level)) {
+          takeAll(wheels(level)(slotFor(currentTick, level))).foreach(place(_))
+        }
+      })
+
+      expire(takeAll(wheels(0)(slotFor(currentTick, 0))))
+      expire(takeAll(due))
+    }
+
+    result.toList
+  }
+
+  private def place(entry:Entry) {
+    if (isCurrent(entry)) {
+      if (entry.tick <= currentTick) {
+        due += entry
+      } else {
+        (0 until levels).find(level => (entry.tick >> ((level + 1) * slotBits)) == (currentTick >> ((level + 1) * slotBits))) match {
+          case Some(level) => wheels(level)(slotFor(entry.tick, level)) += entry
+          case None        => overflow += entry
+        }
+      }
+    }
+  }
+
+  private def isCurrent(entry:Entry) = scheduled.get(entry.key) == Some(entry.tick)
+  private def isOnBoundary(level:Int) = (currentTick & ((1L << (level * slotBits)) - 1)) == 0
+  private def slotFor(tick:Long, level:Int) = ((tick >> (level * slotBits)) & slotMask).toInt
+  private def ticksFor(millis:Long) = (millis + tickMillis - 1) / tickMillis
+
+  private def takeAll(entries:ListBuffer[Entry]) = {
+    val taken = entries.toList
+    entries.clear()
+    taken
+  }
+}
+
+object TimingWheel {
+  val defaultLevels = 4
+  val defaultSlotBits = 8
+}
@@ -43,6 +43,7 @@ import org.junit.experimental.theories.{DataPoint, Theories, Theory}
 import org.junit.{Ignore, Test, After, Before}
 import net.lshift.diffa.kernel.frontend.DomainPairDef
 import net.lshift.diffa.kernel.scanning.{ScanStatement, ScanActivityStore}
+import collection.mutable.ListBuffer
 
 @Ignore
 @RunWith(classOf[Theories])
@@ -184,14 +185,13 @@ class PairActorTest {
   }
 
   def expectDifferencesReplay(assertFlush:Boolean = true, writerCloseMonitor:Object = null) = {
-    if (assertFlush) writer.flush(); expectLastCall.atLeastOnce()
+    if (assertFlush) { writer.flush(); expectLastCall.atLeastOnce() }
     diagnostics.logPairEvent(EasyMock.anyObject[Option[Long]](),
                              EasyMock.eq(pairRef),
                              EasyMock.eq(DiagnosticLevel.INFO),
                              EasyMock.eq("Calculating differences")); expectLastCall
-    expect(store.unmatchedVersions(anyObject[Seq[ScanConstraint]], anyObject[Seq[ScanConstraint]], EasyMock.eq[Option[Long]](None))).andReturn(Seq())
-    expect(store.tombstoneVersions(None)).andReturn(Seq())
-    diffWriter.evictTombstones(Seq()); expectLastCall
+    store.unmatchedAndTombstoneVersions(anyObject[Seq[ScanConstraint]], anyObject[Seq[ScanConstraint]],
+      EasyMock.eq[Option[Long]](None), anyInt, anyObject[(Seq[Correlation], Seq[Correlation]) => Unit]); expectLastCall
     writer.clearTombstones(); expectLastCall
     diffWriter.close()
 
@@ -213,6 +213,7 @@ class PairActorTest {
 
   def expectWriterRollback() {
     expect(writer.flush()).atLeastOnce
+    expect(writer.checkpoint()).anyTimes
     expect(writer.rollback())
   }
 
@@ -251,9 +252,8 @@ class PairActorTest {
   def runDifference = {
     val monitor = new Object
     writer.flush(); expectLastCall.atLeastOnce()
-    expect(store.unmatchedVersions(anyObject[Seq[ScanConstraint]], anyObject[Seq[ScanConstraint]], EasyMock.eq[Option[Long]](None))).andReturn(Seq())
-    expect(store.tombstoneVersions(None)).andReturn(Seq())
-    diffWriter.evictTombstones(Seq()); expectLastCall
+    store.unmatchedAndTombstoneVersions(anyObject[Seq[ScanConstraint]], anyObject[Seq[ScanConstraint]],
+      EasyMock.eq[Option[Long]](None), anyInt, anyObject[(Seq[Correlation], Seq[Correlation]) => Unit]); expectLastCall
     writer.clearTombstones(); expectLastCall
     diffWriter.close(); expectLastCall().andAnswer(new IAnswer[Unit] {
       def answer = { monitor.synchronized { monitor.notifyAll } }
@@ -428,7 +428,7 @@ class PairActorTest {
     replay(store, writer, diffWriter, versionPolicy)
 
     supervisor.startActor(pair.asRef)
-    assertTrue(supervisor.cancelScans(pair.asRef))
+    assertTrue(PairPolicyClient.await(pair.asRef, supervisor.cancelScans(pair.asRef)))
   }
 
 
@@ -450,7 +450,7 @@ class PairActorTest {
           // in to process the cancellation. Notifying the main test thread that the request
           // returned true is the same thing as assertTrue(supervisor.cancelScans(pairKey))
           // except that the assertion is effectively on the main test thread.
-          if (supervisor.cancelScans(pair.asRef)) {
+          if (PairPolicyClient.await(pair.asRef, supervisor.cancelScans(pair.asRef))) {
             responseMonitor.synchronized{ responseMonitor.notifyAll() }
           }
         }
@@ -550,7 +550,7 @@ class PairActorTest {
     val event = buildUpstreamEvent()
     val monitor = new Object
 
-    expect(writer.flush()).atLeastOnce
+    expect(writer.checkpoint()).atLeastOnce
     writer.close
     expect(versionPolicy.onChange(writer, event)).andAnswer(new IAnswer[Unit] {
       def answer = {
@@ -572,6 +572,33 @@ class PairActorTest {
     verify(versionPolicy)
   }
 
+  @Test
+  def propagateChangeBatch = {
+    val events = Seq(buildUpstreamEvent(), buildUpstreamEvent())
+    val monitor = new Object
+
+    expect(writer.checkpoint()).atLeastOnce
+    writer.close
+    expect(versionPolicy.onChanges(writer, events)).andAnswer(new IAnswer[Unit] {
+      def answer = {
+        monitor.synchronized {
+          monitor.notifyAll
+        }
+      }
+    })
+    replay(store, diffWriter, versionPolicy, writer)
+
+    supervisor.startActor(pair.asRef)
+    supervisor.propagateChangeEvents(events)
+
+    // propagateChangeEvents is an aysnc call, so yield the test thread to allow the actor to invoke the policy
+    monitor.synchronized {
+      monitor.wait(1000)
+    }
+
+    verify(versionPolicy)
+  }
+
   @Test
   def propagateUpstreamInventory() { propagateInventory(upstream, UpstreamEndpoint) }
 
@@ -584,15 +611,28 @@ class PairActorTest {
     val constraints = Seq(new SetConstraint("foo", Set("a", "b")))
     val entries = Seq(ScanResultEntry.forEntity("id1", "v1", new DateTime, Map("foo" -> "a")))
 
-    expect(versionPolicy.processInventory(pairRef, endpoint, writer, side, constraints, aggregations, entries)).andReturn(Seq())
-    expectDifferencesReplay(assertFlush = true, writerCloseMonitor = monitor)
+    val feed = InventoryFeed.of(entries)
+
+    expect(versionPolicy.processStreamedInventory(EasyMock.eq(pairRef), EasyMock.eq(endpoint), EasyMock.eq(writer),
+      EasyMock.eq(side), EasyMock.eq(constraints), EasyMock.eq(aggregations),
+      EasyMock.anyObject[(ScanResultEntry => Unit) => Unit])).andAnswer(new IAnswer[Seq[ScanRequest]] {
+        def answer = {
+          val streamed = EasyMock.getCurrentArguments()(6).asInstanceOf[(ScanResultEntry => Unit) => Unit]
+          val received = new ListBuffer[ScanResultEntry]
+          streamed(received += _)
+          assertEquals(entries, received.toSeq)
+          Seq()
+        }
+      })
+    expectDifferencesReplay(writerCloseMonitor = monitor)
 
     replay(store, diffWriter, versionPolicy, writer)
 
     supervisor.startActor(pair.asRef)
-    supervisor.submitInventory(pairRef, side, constraints, aggregations, entries)
+    supervisor.submitInventory(pairRef, side, constraints, aggregations, feed)
 
-    // submitInventory is an aysnc call, so yield the test thread to allow the actor to invoke the policy
+    // submitInventory is an aysnc call, so wait for the actor to report the outcome of processing the inventory
+    assertEquals(Seq(), feed.awaitOutcome(1000))
     monitor.synchronized {
       monitor.wait(1000)
     }
@@ -607,6 +647,7 @@ class PairActorTest {
 
     reset(writer)
     expect(writer.flush).anyTimes
+    expect(writer.checkpoint).anyTimes
     expect(versionPolicy.onChange(writer, event)).times(scenario.actionCount).andAnswer(new IAnswer[Unit] {
       def answer = {
         monitor.synchronized {
@@ -640,7 +681,7 @@ class PairActorTest {
   def scheduledFlush {
     val mailbox = new LinkedBlockingQueue[Object]
     
-    expect(writer.flush()).andStubAnswer(new IAnswer[Unit] {
+    expect(writer.checkpoint()).andStubAnswer(new IAnswer[Unit] {
       def answer = {
         mailbox.add(new Object)
         null
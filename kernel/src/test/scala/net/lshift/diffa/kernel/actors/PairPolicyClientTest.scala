@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.actors
+
+import org.junit.Test
+import org.junit.Assert._
+import akka.dispatch.{Future, Promise, ExecutionContext}
+import akka.util.duration._
+import java.util.concurrent.Executor
+import net.lshift.diffa.kernel.config.PairRef
+
+/**
+ * Test cases for waiting on the responses of pairs.
+ */
+class PairPolicyClientTest {
+  implicit val executionContext = ExecutionContext.fromExecutor(new Executor {
+    def execute(command:Runnable) { command.run() }
+  })
+
+  val p1 = PairRef(space = 1L, name = "p1")
+  val p2 = PairRef(space = 1L, name = "p2")
+
+  @Test
+  def shouldReturnResponseOfPair() {
+    assertEquals("a", PairPolicyClient.await(p1, Promise.successful("a")))
+  }
+
+  @Test
+  def shouldReturnResponsesOfAllPairsInOrder() {
+    val slow = Promise[String]()
+    val responses = Seq(p1 -> slow, p2 -> Promise.successful("b"))
+
+    new Thread {
+      override def run() {
+        Thread.sleep(50)
+        slow.complete(Right("a"))
+      }
+    }.start()
+
+    assertEquals(Seq("a", "b"), PairPolicyClient.awaitAll(responses))
+  }
+
+  @Test
+  def shouldReturnNoResponsesWhenNoPairsWereAsked() {
+    assertEquals(Seq(), PairPolicyClient.awaitAll(Seq[(PairRef, Future[String])]()))
+  }
+
+  @Test
+  def shouldReportFirstOutstandingPairAsBusy() {
+    val responses = Seq(p1 -> Promise.successful("a"), p2 -> Promise[String]())
+
+    try {
+      PairPolicyClient.awaitAll(responses, 100 milliseconds)
+      fail("Expected p2 to be reported as busy")
+    } catch {
+      case e:PairBusyException => assertEquals(p2, e.pair)
+    }
+  }
+
+  @Test
+  def shouldWaitAgainstASingleDeadlineForAllPairs() {
+    val responses = Seq(p1 -> Promise[String](), p2 -> Promise[String]())
+
+    val start = System.currentTimeMillis()
+    try {
+      PairPolicyClient.awaitAll(responses, 200 milliseconds)
+      fail("Expected the pairs to be reported as busy")
+    } catch {
+      case e:PairBusyException => assertEquals(p1, e.pair)
+    }
+    assertTrue("Waited for each pair in turn", System.currentTimeMillis() - start < 400)
+  }
+
+  @Test(expected = classOf[IllegalStateException])
+  def shouldPropagateFailureOfAnyPair() {
+    val responses = Seq(
+      p1 -> Promise.successful("a"),
+      p2 -> Promise.failed[String](new IllegalStateException("broken")))
+
+    PairPolicyClient.awaitAll(responses)
+  }
+}
@@ -204,6 +204,16 @@ class LocalDiagnosticsManagerTest {
     assertTrue(content.contains("[Test Case] Attached object upstream.123.json"))
   }
 
+  @Test
+  def shouldOnlyReportPairsThatKeepExplanationFilesAsExplaining() {
+    expect(serviceLimitsStore.getEffectiveLimitByNameForPair(spaceId, "silent", ExplainFiles)).andReturn(0).atLeastOnce()
+    expect(serviceLimitsStore.getEffectiveLimitByNameForPair(spaceId, "explained", ExplainFiles)).andReturn(1).atLeastOnce()
+    replay(serviceLimitsStore)
+
+    assertFalse(diagnostics.isExplaining(PairRef("silent", spaceId)))
+    assertTrue(diagnostics.isExplaining(PairRef("explained", spaceId)))
+  }
+
   @Test
   def shouldCreateMultipleOutputsWhenMultipleNonQuietRunsHaveBeenMade() {
     val pairKey = "explained_20_2"
@@ -39,6 +39,7 @@ import net.lshift.diffa.kernel.config.system.SystemConfigStore
 import net.lshift.diffa.kernel.util.{DownstreamEndpoint, UpstreamEndpoint, NonCancellingFeedbackHandle}
 import org.joda.time.{DateTime, LocalDate}
 import net.lshift.diffa.kernel.frontend.DomainPairDef
+import net.lshift.diffa.schema.servicelimits.ServiceLimit
 
 /**
  * Framework and scenario definitions for data-driven policy tests.
@@ -71,6 +72,10 @@ abstract class AbstractDataDrivenPolicyTest {
 
   val feedbackHandle = new NonCancellingFeedbackHandle
 
+  val serviceLimitsView = new PairServiceLimitsView {
+    def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit.defaultLimit.intValue
+  }
+
   val listener = createStrictMock("listener", classOf[DifferencingListener])
   EasyMock.checkOrder(listener, false)   // Not all adapter operations are going to be strictly ordered
 
@@ -382,8 +387,8 @@ abstract class AbstractDataDrivenPolicyTest {
   }
   protected def expectUpstreamStoreQuery(pair:PairRef, bucketing:Seq[CategoryFunction], constraints:Seq[ScanConstraint],
                                          storeResp:Seq[Bucket]) {
-    store.queryUpstreams(asUnorderedList(constraints), anyUnitF4)
-      expectLastCall[Unit].andAnswer(UpstreamVersionAnswer(pair, storeResp))
+    expect(store.aggregateUpstreams(asUnorderedList(bucketing), asUnorderedList(constraints), anyObject[Collation])).
+      andAnswer(UpstreamVersionAnswer(pair, storeResp))
   }
   protected def expectDownstreamAggregateScan(pair:PairRef, bucketing:Seq[CategoryFunction], constraints:Seq[ScanConstraint],
                                               partResp:Seq[Bucket], storeResp:Seq[Bucket]) {
@@ -392,12 +397,13 @@ abstract class AbstractDataDrivenPolicyTest {
   }
   protected def expectDownstreamStoreQuery(pair:PairRef, bucketing:Seq[CategoryFunction], constraints:Seq[ScanConstraint],
                                            storeResp:Seq[Bucket]) {
-    store.queryDownstreams(asUnorderedList(constraints), anyUnitF5)
-      expectLastCall[Unit].andAnswer(DownstreamVersionAnswer(pair, storeResp))
+    expect(store.aggregateDownstreams(asUnorderedList(bucketing), asUnorderedList(constraints), anyObject[Collation])).
+      andAnswer(DownstreamVersionAnswer(pair, storeResp))
   }
 
   protected def expectUpstreamEntityScan(pair:PairRef, constraints:Seq[ScanConstraint], partResp:Seq[Vsn], storeResp:Seq[Vsn]) {
-    expect(usMock.scan(asUnorderedList(constraints), EasyMock.eq(Seq()))).andReturn(participantEntityResponse(partResp))
+    usMock.scan(asUnorderedList(constraints), EasyMock.eq(Seq()), anyUnitF1[ScanResultEntry])
+      expectLastCall[Unit].andAnswer(streamingAnswer(participantEntityResponse(partResp)))
     expectUpstreamStoreQuery(pair, constraints, storeResp)
   }
   protected def expectUpstreamStoreQuery(pair:PairRef, constraints:Seq[ScanConstraint], storeResp:Seq[Vsn]) {
@@ -405,10 +411,11 @@ abstract class AbstractDataDrivenPolicyTest {
       Correlation(id = v.id, upstreamAttributes = v.strAttrs, lastUpdate = v.lastUpdated, upstreamVsn = v.vsn)
     })
 
-    expect(store.queryUpstreams(asUnorderedList(constraints))).andReturn(correlations)
+    expect(store.openUpstreams(asUnorderedList(constraints))).andReturn(CorrelationCursor.of(correlations))
   }
   protected def expectDownstreamEntityScan(pair:PairRef, constraints:Seq[ScanConstraint], partResp:Seq[Vsn], storeResp:Seq[Vsn]) {
-    expect(dsMock.scan(asUnorderedList(constraints), EasyMock.eq(Seq()))).andReturn(participantEntityResponse(partResp))
+    dsMock.scan(asUnorderedList(constraints), EasyMock.eq(Seq()), anyUnitF1[ScanResultEntry])
+      expectLastCall[Unit].andAnswer(streamingAnswer(participantEntityResponse(partResp)))
     expectDownstreamStoreQuery(pair, constraints, storeResp)
   }
   protected def expectDownstreamStoreQuery(pair:PairRef, constraints:Seq[ScanConstraint], storeResp:Seq[Vsn]) {
@@ -416,7 +423,7 @@ abstract class AbstractDataDrivenPolicyTest {
       Correlation(id = v.id, downstreamAttributes = v.strAttrs, lastUpdate = v.lastUpdated, downstreamDVsn = v.vsn)
     })
 
-    expect(store.queryDownstreams(asUnorderedList(constraints))).andReturn(correlations)
+    expect(store.openDownstreams(asUnorderedList(constraints))).andReturn(CorrelationCursor.of(correlations))
   }
 
   protected def expectUpstreamEntityStore(pair:PairRef, entities:Seq[Vsn], matched:Boolean, scanId:Option[Long]) {
@@ -441,32 +448,21 @@ abstract class AbstractDataDrivenPolicyTest {
   protected def participantEntityResponse(entities:Seq[Vsn]):Seq[ScanResultEntry] =
     entities.map(e => ScanResultEntry.forEntity(e.id, e.vsn, e.lastUpdated, e.strAttrs))
 
-  protected abstract class VersionAnswer[T] extends IAnswer[Unit] {
+  protected abstract class VersionAnswer extends IAnswer[Seq[ScanResultEntry]] {
     def res:Seq[Bucket]
 
-    def answer {
+    def answer:Seq[ScanResultEntry] = {
       val args = EasyMock.getCurrentArguments
-      val cb = args(1).asInstanceOf[T]
+      val builder = new DigestBuilder(args(0).asInstanceOf[Seq[ScanAggregation]], args(2).asInstanceOf[Collation])
 
-      // Answer with entities from each bucket's children
-      answerEntities(res.flatMap(b => b.allVsns), cb)
+      // Answer with digests of the entities from each bucket's children
+      res.flatMap(b => b.allVsns).foreach(v => builder.add(v.id, v.strAttrs, v.vsn))
+      builder.toDigests
     }
-
-    def answerEntities(entities:Seq[Vsn], cb:T):Unit
   }
 
-  protected case class UpstreamVersionAnswer(pair:PairRef, res:Seq[Bucket])
-      extends VersionAnswer[Function4[VersionID, Map[String, String], DateTime, String, Unit]] {
-    def answerEntities(entities:Seq[Vsn], cb:Function4[VersionID, Map[String, String], DateTime, String, Unit]) {
-      entities.foreach(v => cb(VersionID(pair, v.id), v.strAttrs, v.lastUpdated, v.vsn))
-    }
-  }
-  protected case class DownstreamVersionAnswer(pair:PairRef, res:Seq[Bucket])
-      extends VersionAnswer[Function5[VersionID, Map[String, String], DateTime, String, String, Unit]] {
-    def answerEntities(entities:Seq[Vsn], cb:Function5[VersionID, Map[String, String], DateTime, String, String, Unit]) {
-      entities.foreach(v => cb(VersionID(pair, v.id), v.strAttrs, v.lastUpdated, v.vsn, v.vsn))
-    }
-  }
+  protected case class UpstreamVersionAnswer(pair:PairRef, res:Seq[Bucket]) extends VersionAnswer
+  protected case class DownstreamVersionAnswer(pair:PairRef, res:Seq[Bucket]) extends VersionAnswer
 
   def traverseFirstBranch(tx1:Tx, tx2:Tx)(cb:((Tx, Tx) => Unit)) {
       cb(tx1, tx2)
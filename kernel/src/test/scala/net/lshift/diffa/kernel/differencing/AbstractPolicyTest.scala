@@ -35,6 +35,7 @@ import net.lshift.diffa.adapter.scanning._
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
 import net.lshift.diffa.kernel.frontend.DomainPairDef
+import net.lshift.diffa.schema.servicelimits.ServiceLimit
 
 /**
  * Base class for the various policy tests.
@@ -66,6 +67,10 @@ abstract class AbstractPolicyTest {
 
   val feedbackHandle = new NonCancellingFeedbackHandle
 
+  val serviceLimitsView = new PairServiceLimitsView {
+    def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit.defaultLimit.intValue
+  }
+
   val listener = createStrictMock("listener", classOf[DifferencingListener])
   val diffWriter = createStrictMock("diffWriter", classOf[DifferenceWriter])
 
@@ -289,25 +294,27 @@ abstract class AbstractPolicyTest {
   //
 
   protected case class UpstreamVersion(id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, vsn:String)
-  protected case class UpstreamVersionAnswer(hs:Seq[UpstreamVersion]) extends IAnswer[Unit] {
-    def answer {
+  protected case class UpstreamVersionAnswer(hs:Seq[UpstreamVersion]) extends IAnswer[Seq[ScanResultEntry]] {
+    def answer:Seq[ScanResultEntry] = {
       val args = EasyMock.getCurrentArguments
-      val cb = args(1).asInstanceOf[Function4[VersionID, Map[String, String], DateTime, String, Unit]]
+      val builder = new DigestBuilder(args(0).asInstanceOf[Seq[ScanAggregation]], args(2).asInstanceOf[Collation])
 
       hs.foreach { case UpstreamVersion(id, attributes, lastUpdate, vsn) =>
-        cb(id, attributes, lastUpdate, vsn)
+        builder.add(id.id, attributes, vsn)
       }
+      builder.toDigests
     }
   }
   protected case class DownstreamVersion(id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, usvn:String, dsvn:String)
-  protected case class DownstreamVersionAnswer(hs:Seq[DownstreamVersion]) extends IAnswer[Unit] {
-    def answer {
+  protected case class DownstreamVersionAnswer(hs:Seq[DownstreamVersion]) extends IAnswer[Seq[ScanResultEntry]] {
+    def answer:Seq[ScanResultEntry] = {
       val args = EasyMock.getCurrentArguments
-      val cb = args(1).asInstanceOf[Function5[VersionID, Map[String, String], DateTime, String, String, Unit]]
+      val builder = new DigestBuilder(args(0).asInstanceOf[Seq[ScanAggregation]], args(2).asInstanceOf[Collation])
 
       hs.foreach { case DownstreamVersion(id, attributes, lastUpdate, uvsn, dvsn) =>
-        cb(id, attributes, lastUpdate, uvsn, dvsn)
+        builder.add(id.id, attributes, dvsn)
       }
+      builder.toDigests
     }
   }
 
@@ -318,8 +325,8 @@ abstract class AbstractPolicyTest {
 
   protected def expectUpstreamAggregateScan(pair:DomainPairDef, bucketing:Seq[CategoryFunction], constraints:Seq[ScanConstraint], partResp:Seq[ScanResultEntry], storeResp:Seq[UpstreamVersion]) {
     expect(usMock.scan(constraints, bucketing)).andReturn(partResp)
-    store.queryUpstreams(EasyMock.eq(constraints), anyUnitF4)
-      expectLastCall[Unit].andAnswer(UpstreamVersionAnswer(storeResp))
+    expect(store.aggregateUpstreams(EasyMock.eq(bucketing), EasyMock.eq(constraints), anyObject[Collation])).
+      andAnswer(UpstreamVersionAnswer(storeResp))
   }
 
   protected def expectDownstreamAggregateScan(bucketing:Seq[CategoryFunction], constraints: Seq[ScanConstraint], partResp: Seq[ScanResultEntry],
@@ -329,12 +336,13 @@ abstract class AbstractPolicyTest {
 
   protected def expectDownstreamAggregateScan(pair:DomainPairDef, bucketing:Seq[CategoryFunction], constraints:Seq[ScanConstraint], partResp:Seq[ScanResultEntry], storeResp:Seq[DownstreamVersion]) {
     expect(dsMock.scan(constraints, bucketing)).andReturn(partResp)
-    store.queryDownstreams(EasyMock.eq(constraints), anyUnitF5)
-      expectLastCall[Unit].andAnswer(DownstreamVersionAnswer(storeResp))
+    expect(store.aggregateDownstreams(EasyMock.eq(bucketing), EasyMock.eq(constraints), anyObject[Collation])).
+      andAnswer(DownstreamVersionAnswer(storeResp))
   }
 
   protected def expectUpstreamEntityScan(constraints:Seq[ScanConstraint], partResp:Seq[ScanResultEntry], storeResp:Seq[UpstreamVersion]) {
-    expect(usMock.scan(constraints, Seq())).andReturn(partResp)
+    usMock.scan(EasyMock.eq(constraints), EasyMock.eq(Seq()), anyUnitF1[ScanResultEntry])
+      expectLastCall[Unit].andAnswer(streamingAnswer(partResp))
     val correlations = storeResp.map(r => {
       val c = new Correlation()
       c.id = r.id.id
@@ -344,10 +352,11 @@ abstract class AbstractPolicyTest {
       c
     })
 
-    expect(store.queryUpstreams(EasyMock.eq(constraints))).andReturn(correlations)
+    expect(store.openUpstreams(EasyMock.eq(constraints))).andReturn(CorrelationCursor.of(correlations))
   }
   protected def expectDownstreamEntityScan2(constraints:Seq[ScanConstraint], partResp:Seq[ScanResultEntry], storeResp:Seq[DownstreamVersion]) {
-    expect(dsMock.scan(constraints, Seq())).andReturn(partResp)
+    dsMock.scan(EasyMock.eq(constraints), EasyMock.eq(Seq()), anyUnitF1[ScanResultEntry])
+      expectLastCall[Unit].andAnswer(streamingAnswer(partResp))
     val correlations = storeResp.map(r => {
       val c = new Correlation      
       c.id = r.id.id
@@ -357,7 +366,7 @@ abstract class AbstractPolicyTest {
       c
     })
 
-    expect(store.queryDownstreams(EasyMock.eq(constraints))).andReturn(correlations)
+    expect(store.openDownstreams(EasyMock.eq(constraints))).andReturn(CorrelationCursor.of(correlations))
   }
 
   protected def toStrMap(attrs:Map[String, TypedAttribute]) = attrs.map { case (k, v) => k -> v.value }.toMap
@@ -22,11 +22,12 @@ import collection.immutable.HashSet
 import net.lshift.diffa.kernel.util.DateUtils._
 import net.lshift.diffa.kernel.util.FullDateTimes._
 import net.lshift.diffa.kernel.participants._
-import collection.mutable.HashMap
+import collection.mutable.{ListBuffer, HashMap}
 import org.joda.time.DateTime
 import net.lshift.diffa.kernel.config.RangeCategoryDescriptor
 import scala.collection.JavaConversions._
-import net.lshift.diffa.adapter.scanning.{TimeRangeConstraint, ScanResultEntry}
+import net.lshift.diffa.adapter.scanning.{OutOfOrderException, TimeRangeConstraint, ScanResultEntry}
+import net.lshift.diffa.kernel.config.AsciiCollationOrdering
 
 /**
  * Test cases for the DigestDifferencingUtils object.
@@ -120,6 +121,73 @@ class DigestDifferencingUtilsTest {
     assertEquals(HashSet(VersionMismatch("id1",  attributes, JAN_1_2010, "v1", "v2")), HashSet(actions: _*))
   }
 
+  @Test
+  def shouldReportMismatchesWhilstStreamingFirstList {
+    val a = Seq(ScanResultEntry.forEntity("id1", "v1", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id2", "v2", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id3", "v3", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())))
+    val b = Seq(ScanResultEntry.forEntity("id2", "v2", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id3", "v3-old", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id4", "v4", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())))
+
+    val mismatches = new ListBuffer[VersionMismatch]
+    DigestDifferencingUtils.differenceEntities(dateTimeOnlyAttrs, (h:ScanResultEntry => Unit) => a.foreach(h), b, Seq(),
+      mismatches += _)
+
+    val attributes = Map("bizDateTime" -> DateTimeAttribute(JAN_1_2010))
+    assertEquals(HashSet(VersionMismatch("id1", attributes, JAN_1_2010, "v1", null),
+                         VersionMismatch("id3", attributes, JAN_1_2010, "v3", "v3-old"),
+                         VersionMismatch("id4", attributes, JAN_1_2010, null, "v4")), HashSet(mismatches: _*))
+  }
+
+  @Test
+  def shouldReportMismatchesInOrderWhenMergingSortedLists {
+    val a = Seq(ScanResultEntry.forEntity("id1", "v1", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id2", "v2", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id3", "v3", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id5", "v5", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())))
+    val b = Seq(ScanResultEntry.forEntity("id0", "v0", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id2", "v2", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id3", "v3-old", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id4", "v4", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())),
+                ScanResultEntry.forEntity("id6", "v6", JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString())))
+
+    val mismatches = new ListBuffer[VersionMismatch]
+    DigestDifferencingUtils.differenceSortedEntities(dateTimeOnlyAttrs, (h:ScanResultEntry => Unit) => a.foreach(h), b.iterator,
+      AsciiCollationOrdering, mismatches += _)
+
+    val attributes = Map("bizDateTime" -> DateTimeAttribute(JAN_1_2010))
+    assertEquals(Seq(VersionMismatch("id0", attributes, JAN_1_2010, null, "v0"),
+                     VersionMismatch("id1", attributes, JAN_1_2010, "v1", null),
+                     VersionMismatch("id3", attributes, JAN_1_2010, "v3", "v3-old"),
+                     VersionMismatch("id4", attributes, JAN_1_2010, null, "v4"),
+                     VersionMismatch("id5", attributes, JAN_1_2010, "v5", null),
+                     VersionMismatch("id6", attributes, JAN_1_2010, null, "v6")), mismatches.toSeq)
+  }
+
+  @Test
+  def shouldReportSameMismatchesWhenMergingSortedListsAsWhenHashing {
+    val a = (0 until 100).filter(_ % 3 != 0).map(i => ScanResultEntry.forEntity("id%03d".format(i), "v" + i, JAN_1_2010, Map[String,String]()))
+    val b = (0 until 100).filter(_ % 5 != 0).map(i => ScanResultEntry.forEntity("id%03d".format(i), "v" + (i % 7), JAN_1_2010, Map[String,String]()))
+
+    val hashed = new ListBuffer[VersionMismatch]
+    val merged = new ListBuffer[VersionMismatch]
+    DigestDifferencingUtils.differenceEntities(Map(), (h:ScanResultEntry => Unit) => a.foreach(h), b, Seq(), hashed += _)
+    DigestDifferencingUtils.differenceSortedEntities(Map(), (h:ScanResultEntry => Unit) => a.foreach(h), b.iterator,
+      AsciiCollationOrdering, merged += _)
+
+    assertEquals(HashSet(hashed: _*), HashSet(merged: _*))
+  }
+
+  @Test(expected = classOf[OutOfOrderException])
+  def shouldRejectOutOfOrderStreamWhenMergingSortedLists {
+    val a = Seq(ScanResultEntry.forEntity("id2", "v2", JAN_1_2010, Map[String,String]()),
+                ScanResultEntry.forEntity("id1", "v1", JAN_1_2010, Map[String,String]()))
+
+    DigestDifferencingUtils.differenceSortedEntities(Map(), (h:ScanResultEntry => Unit) => a.foreach(h), Iterator(),
+      AsciiCollationOrdering, _ => ())
+  }
+
   @Test
   def shouldRequestIndividualOnMissingDayVersionsInFirstList {
     val a = Seq()
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import org.junit.Assert._
+import org.junit.Assume._
+import org.hamcrest.CoreMatchers._
+import org.junit.{Test, Before}
+import org.joda.time.DateTime
+import scala.collection.JavaConversions._
+import net.lshift.diffa.adapter.scanning.ScanResultEntry
+import net.lshift.diffa.kernel.config.{AsciiCollationOrdering, RangeCategoryDescriptor}
+import net.lshift.diffa.kernel.util.FullDateTimes._
+
+/**
+ * Compares the hash based and merge-join entity differencing strategies over large, sorted entity lists.
+ */
+class EntityDifferencingPerfTest {
+
+  @Before
+  def checkPerformanceTestingEnabled {
+    assumeThat(System.getProperty("diffa.perftest"), is(equalTo("1")))
+  }
+
+  private val entityCount = Integer.valueOf(System.getProperty("diffa.perf.entityCount", "1000000")).intValue
+  private val categories = Map("bizDateTime" -> new RangeCategoryDescriptor("datetime"))
+  private val attributes = Map("bizDateTime" -> JAN_1_2010.toString())
+
+  // Every tenth entity differs in version, and every hundredth is only present on one side
+  private lazy val remote = (0 until entityCount).filter(_ % 100 != 0).map(i =>
+    ScanResultEntry.forEntity("id%09d".format(i), "v" + i, JAN_1_2010, attributes))
+  private lazy val local = (0 until entityCount).filter(_ % 100 != 50).map(i =>
+    ScanResultEntry.forEntity("id%09d".format(i), if (i % 10 == 5) "old" + i else "v" + i, JAN_1_2010, attributes))
+
+  @Test
+  def shouldDifferenceLargeSortedListsWithHashing() {
+    var count = 0
+    withTiming("difference " + entityCount + " entities by hashing") {
+      DigestDifferencingUtils.differenceEntities(categories, (h:ScanResultEntry => Unit) => remote.foreach(h), local, Seq(),
+        _ => count += 1)
+    }
+    assertEquals(expectedMismatches, count)
+  }
+
+  @Test
+  def shouldDifferenceLargeSortedListsWithMergeJoin() {
+    var count = 0
+    withTiming("difference " + entityCount + " entities by merge-join") {
+      DigestDifferencingUtils.differenceSortedEntities(categories, (h:ScanResultEntry => Unit) => remote.foreach(h), local.iterator,
+        AsciiCollationOrdering, _ => count += 1)
+    }
+    assertEquals(expectedMismatches, count)
+  }
+
+  private def expectedMismatches = (0 until entityCount).count(i => i % 100 == 0 || i % 100 == 50 || i % 10 == 5)
+
+  private def withTiming(name:String)(f: => Unit):Unit = {
+    val start = new DateTime
+
+    println("Starting to " + name)
+    f
+
+    println("Took " + ((new DateTime).getMillis - start.getMillis) + "ms to " + name)
+  }
+}
@@ -180,6 +180,39 @@ class JooqDomainDifferenceStoreTest {
     assertEquals("dV", unmatched.head.downstreamVsn)
   }
 
+  @Test
+  def shouldReportStatusOfEachEventInABatch() {
+    val timestamp = currentDateTime
+    val (_, existing) = domainDiffStore.addReportableUnmatchedEvent(VersionID(PairRef("pair2", space.id), "id1"), timestamp, "uV", "dV", timestamp)
+
+    val results = domainDiffStore.addReportableUnmatchedEvents(Seq(
+      UnmatchedEventDetail(VersionID(PairRef("pair2", space.id), "id1"), timestamp, "uV", "dV"),
+      UnmatchedEventDetail(VersionID(PairRef("pair2", space.id), "id2"), timestamp, "uV", "dV"),
+      UnmatchedEventDetail(VersionID(PairRef("pair2", space.id), "id2"), timestamp, "uV2", "dV")), timestamp)
+
+    assertEquals(Seq(UnchangedUnmatchedEvent, NewUnmatchedEvent, UpdatedUnmatchedEvent), results.map(_._1))
+    assertEquals(existing.seqId, results(0)._2.seqId)
+
+    val interval = new Interval(timestamp.minusDays(1), timestamp.plusDays(1))
+    val unmatched = domainDiffStore.retrieveUnmatchedEvents(space.id, interval).sortBy(_.objId.id)
+    assertEquals(Seq("id1", "id2"), unmatched.map(_.objId.id))
+    assertEquals("uV2", unmatched(1).upstreamVsn)
+  }
+
+  @Test
+  def shouldRemoveEachUnmatchedEventInABatchOfMatches() {
+    val timestamp = currentDateTime
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(PairRef("pair2", space.id), "id1"), timestamp, "uV", "dV", timestamp)
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(PairRef("pair2", space.id), "id2"), timestamp, "uV", "dV", timestamp)
+
+    domainDiffStore.addMatchedEvents(Seq(
+      (VersionID(PairRef("pair2", space.id), "id1"), "uV"),
+      (VersionID(PairRef("pair2", space.id), "id3"), "uV")))
+
+    val interval = new Interval(timestamp.minusDays(1), timestamp.plusDays(1))
+    assertEquals(Seq("id2"), domainDiffStore.retrieveUnmatchedEvents(space.id, interval).map(_.objId.id))
+  }
+
   @Test(expected = classOf[IllegalArgumentException])
   def shouldNotBeAbleToIgnoreDifferenceViaWrongDomain() {
     val timestamp = new DateTime()
@@ -873,6 +906,56 @@ class JooqDomainDifferenceStoreTest {
     assertTrue(tileGroup.get.tiles.isEmpty)
   }
 
+  @Test
+  def aggregatesWithUnalignedBoundsShouldOnlyCountEventsWithinBounds() {
+    val pair = PairRef("pair1", space.id)
+    val tileStart = new DateTime(2008,9,7,10,0,0,0, DateTimeZone.UTC)
+
+    domainDiffStore.clearAllDifferences
+
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "11a"), tileStart.plusMinutes(2), "", "", tileStart)
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "11b"), tileStart.plusMinutes(10), "", "", tileStart)
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "11c"), tileStart.plusMinutes(20), "", "", tileStart)
+    val (_, ignored) = domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "11d"), tileStart.plusMinutes(40), "", "", tileStart)
+
+    def aggregate(start:DateTime, end:DateTime) = domainDiffStore.retrieveAggregates(pair, start, end, None).head.count
+
+    assertEquals(4, aggregate(tileStart, tileStart.plusHours(1)))
+    assertEquals(3, aggregate(tileStart.plusMinutes(5), tileStart.plusMinutes(45)))
+    assertEquals(1, aggregate(tileStart.plusMinutes(5), tileStart.plusMinutes(14)))
+    assertEquals(3, aggregate(null, tileStart.plusMinutes(25)))
+
+    domainDiffStore.ignoreEvent(space.id, ignored.seqId)
+    domainDiffStore.addMatchedEvent(VersionID(pair, "11a"), "")
+
+    assertEquals(2, aggregate(tileStart, null))
+  }
+
+  @Test
+  def aggregatesShouldNotCountEventsFromAFailedBatch() {
+    val pair = PairRef("pair1", space.id)
+    val tileStart = new DateTime(2008,9,7,10,0,0,0, DateTimeZone.UTC)
+
+    domainDiffStore.clearAllDifferences
+
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "12a"), tileStart.plusMinutes(2), "", "", tileStart)
+
+    def aggregate = domainDiffStore.retrieveAggregates(pair, tileStart, tileStart.plusHours(1), None).head.count
+    assertEquals(1, aggregate)
+
+    // The second event belongs to a pair that doesn't exist, so the whole batch is rolled back
+    try {
+      domainDiffStore.addReportableUnmatchedEvents(Seq(
+        UnmatchedEventDetail(VersionID(pair, "12b"), tileStart.plusMinutes(10), "", ""),
+        UnmatchedEventDetail(VersionID(PairRef("no-such-pair", space.id), "12c"), tileStart.plusMinutes(10), "", "")), tileStart)
+      fail("Expected the batch to fail")
+    } catch {
+      case e:IllegalStateException => // Expected
+    }
+
+    assertEquals(1, aggregate)
+  }
+
   private def validateZoomRange(timestamp:DateTime, pair:PairRef, zoomLevel:Int, eventTimes:DateTime*) = {
 
     val expectedTiles = new scala.collection.mutable.HashMap[DateTime,Int]
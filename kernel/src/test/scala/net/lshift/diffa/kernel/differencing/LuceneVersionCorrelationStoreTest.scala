@@ -26,10 +26,15 @@ import net.lshift.diffa.kernel.participants._
 import net.lshift.diffa.kernel.indexing.{LuceneVersionCorrelationStore, LuceneVersionCorrelationStoreFactory}
 import scala.collection.JavaConversions._
 import org.apache.lucene.store.{MMapDirectory, FSDirectory, RAMDirectory}
+import org.apache.lucene.analysis.KeywordAnalyzer
+import org.apache.lucene.document.{NumericField, Field, Document}
+import org.apache.lucene.index.{IndexWriterConfig, IndexWriter}
+import org.apache.lucene.util.Version
 import java.io.File
 import org.junit.runner.RunWith
 import org.junit.experimental.theories.{DataPoints, Theory, DataPoint, Theories}
 import org.easymock.EasyMock
+import org.apache.commons.codec.digest.DigestUtils
 import org.joda.time.{LocalDate, DateTime}
 import net.lshift.diffa.adapter.scanning._
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
@@ -39,6 +44,7 @@ import net.lshift.diffa.kernel.util.{CategoryChange, UpstreamEndpoint}
 import net.lshift.diffa.kernel.config._
 import org.junit.{Ignore, Before, Test}
 import net.lshift.diffa.kernel.frontend.DomainPairDef
+import net.lshift.diffa.schema.servicelimits.ServiceLimit
 
 /**
  * Test cases for the Hibernate backed VersionCorrelationStore.
@@ -113,6 +119,25 @@ class LuceneVersionCorrelationStoreTest {
     verifyUnmatched(0, writer)
   }
 
+  @Test
+  def unmatchedAndTombstoneVersionsShouldBeVisitedInPagesOfStoreVersionOrder {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id3"), emptyAttributes, DEC_31_2009, "uvsn3", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), emptyAttributes, DEC_31_2009, "uvsn1", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), emptyAttributes, DEC_31_2009, "uvsn2", None)
+    writer.storeDownstreamVersion(VersionID(pair, "id2"), emptyAttributes, DEC_31_2009, "uvsn2", "dvsn2", None)
+    writer.flush()
+    writer.clearUpstreamVersion(VersionID(pair, "id3"), None)
+    writer.flush()
+
+    val pages = new ListBuffer[(Seq[String], Seq[String])]
+    store.unmatchedAndTombstoneVersions(Seq(), Seq(), None, 1, (mismatches, tombstones) => {
+      pages += ((mismatches.map(_.id), tombstones.map(_.id)))
+    })
+
+    assertEquals(Seq((Seq("id1"), Seq()), (Seq(), Seq("id3"))), pages.toSeq)
+  }
+
   @Test
   def identicalVersionsShouldNotUpdateMaterialTimestamp {
     val writer = store.openWriter()
@@ -167,6 +192,9 @@ class LuceneVersionCorrelationStoreTest {
     log.info("Writer load test: %s s".format(time))
   }
 
+  private def stringDigest(bucket:String, vsns:String*) =
+    ScanResultEntry.forAggregate(DigestUtils.md5Hex(vsns.mkString), Map("someString" -> bucket))
+
   private def validateLastMaterialUpdate(id:VersionID, expected:DateTime) = {
     val c1 = store.retrieveCurrentCorrelation(id).get
     assertEquals(expected, c1.lastUpdate)
@@ -441,6 +469,75 @@ class LuceneVersionCorrelationStoreTest {
       collector.downstreamObjs.toList)
   }
 
+  @Test
+  def queryUpstreamsShouldOnlyReportUpstreamDetailsOfCorrelationsWithUpstreams = {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), stringMap("up"), DEC_1_2009, "upstreamVsn-id1", None)
+    writer.storeDownstreamVersion(VersionID(pair, "id1"), intMap(5), DEC_2_2009, "upstreamVsn-id1", "downstreamVsn-id1", None)
+    writer.storeDownstreamVersion(VersionID(pair, "id2"), intMap(6), DEC_2_2009, "upstreamVsn-id2", "downstreamVsn-id2", None)
+    writer.flush()
+
+    val collector = new Collector
+    store.queryUpstreams(List(), collector.collectUpstream)
+    assertEquals(
+      List(CollectedUpstreamDetail(VersionID(pair, "id1"), Map("someString" -> "up"), DEC_2_2009, "upstreamVsn-id1")),
+      collector.upstreamObjs.toList)
+  }
+
+  @Test
+  def writesToPrefetchedCorrelationsShouldBuildOnTheirStoredState = {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), stringMap("a"), DEC_1_2009, "v1", None)
+    writer.flush()
+
+    writer.prefetch(Seq(VersionID(pair, "id1"), VersionID(pair, "id2")))
+    val matched = writer.storeDownstreamVersion(VersionID(pair, "id1"), stringMap("a"), DEC_1_2009, "v1", "v1", None)
+    val created = writer.storeDownstreamVersion(VersionID(pair, "id2"), stringMap("a"), DEC_1_2009, "v2", "v2", None)
+    writer.flush()
+
+    assertTrue(matched.isMatched.booleanValue)
+    assertEquals("v1", matched.upstreamVsn)
+    assertFalse(created.isMatched.booleanValue)
+    assertEquals(Seq("id2"), store.unmatchedVersions(Seq(), Seq(), None).map(_.id).toSeq)
+  }
+
+  @Test
+  def cachedUpstreamDigestsShouldReflectSubsequentChanges = {
+    val bucketing = Seq(ByNameCategoryFunction("someString"))
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), stringMap("a"), DEC_1_2009, "v1", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), stringMap("a"), DEC_1_2009, "v2", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id3"), stringMap("b"), DEC_1_2009, "v3", None)
+    writer.flush()
+
+    assertEquals(Set(stringDigest("a", "v1", "v2"), stringDigest("b", "v3")),
+      store.aggregateUpstreams(bucketing, Seq(), AsciiCollationOrdering).toSet)
+
+    // Move id2 into the same bucket as id3, change id3 and then remove id1, leaving the first bucket empty
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), stringMap("b"), DEC_1_2009, "v2", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id3"), stringMap("b"), DEC_1_2009, "v3-new", None)
+    writer.clearUpstreamVersion(VersionID(pair, "id1"), None)
+    writer.flush()
+
+    assertEquals(Set(stringDigest("b", "v2", "v3-new")),
+      store.aggregateUpstreams(bucketing, Seq(), AsciiCollationOrdering).toSet)
+  }
+
+  @Test
+  def cachedDownstreamDigestsShouldBeDiscardedWhenChangesAreRolledBack = {
+    val bucketing = Seq(ByNameCategoryFunction("someString"))
+    val writer = store.openWriter()
+    writer.storeDownstreamVersion(VersionID(pair, "id1"), stringMap("a"), DEC_1_2009, "u1", "d1", None)
+    writer.flush()
+
+    assertEquals(Set(stringDigest("a", "d1")), store.aggregateDownstreams(bucketing, Seq(), AsciiCollationOrdering).toSet)
+
+    writer.storeDownstreamVersion(VersionID(pair, "id1"), stringMap("a"), DEC_1_2009, "u2", "d2", None)
+    writer.rollback()
+
+    assertEquals(Set(stringDigest("a", "d1")), store.aggregateDownstreams(bucketing, Seq(), AsciiCollationOrdering).toSet)
+  }
+
   @Test
   def queryUpstreamRangeCanReturnResultsWithUnicodeCollation = {
     val writer = storeWithUnicodeOrder.openWriter()
@@ -473,6 +570,93 @@ class LuceneVersionCorrelationStoreTest {
       collector.downstreamObjs.toList)
   }
 
+  @Test
+  def upstreamCursorShouldReturnCorrelationsInUnicodeOrder = {
+    val ids = Seq("foo", "FooBarWithSuffix", "\u00e9t\u00e9", "Apple", "banana", "apple", "e", "f")
+    val writer = storeWithUnicodeOrder.openWriter()
+    ids.foreach(id => writer.storeUpstreamVersion(VersionID(pairWithUnicodeOrder, id), emptyAttributes, DEC_1_2009, "v-" + id, None))
+    writer.flush()
+
+    val cursor = storeWithUnicodeOrder.openUpstreams(Seq())
+    val correlations = try { cursor.toList } finally { cursor.close() }
+
+    assertEquals(ids.sortWith(UnicodeCollationOrdering.sortsBefore), correlations.map(_.id))
+    assertEquals(correlations.map("v-" + _.id), correlations.map(_.upstreamVsn))
+  }
+
+  @Test
+  def downstreamCursorShouldOnlyReturnMatchingCorrelationsInAsciiOrder = {
+    val writer = store.openWriter()
+    Seq("id3", "id1", "id2").foreach(id =>
+      writer.storeDownstreamVersion(VersionID(pair, id), bizDateTimeMap(DEC_1_2009), DEC_1_2009, "u-" + id, "d-" + id, None))
+    writer.storeDownstreamVersion(VersionID(pair, "id0"), bizDateTimeMap(DEC_2_2009), DEC_2_2009, "u-id0", "d-id0", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id4"), bizDateTimeMap(DEC_1_2009), DEC_1_2009, "u-id4", None)
+    writer.flush()
+
+    val cursor = store.openDownstreams(Seq(new TimeRangeConstraint("bizDateTime", DEC_1_2009, endOfDay(DEC_1_2009))))
+    try {
+      assertEquals("id1", cursor.next().id)
+
+      // The cursor reads from the index as it was when the cursor was opened
+      writer.clearDownstreamVersion(VersionID(pair, "id2"), None)
+      writer.flush()
+
+      assertEquals(List("id2", "id3"), cursor.map(_.id).toList)
+    } finally {
+      cursor.close()
+    }
+  }
+
+  @Test
+  def storeWrittenWithFirstSchemaVersionShouldBeUpgradedToTypedDates = {
+    // Write a correlation as the first version of the schema did, with its dates held only as ISO strings
+    val dir = new RAMDirectory
+    val legacyWriter = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_34, new KeywordAnalyzer))
+    val doc = new Document
+    def add(name:String, value:String, index:Field.Index = Field.Index.NOT_ANALYZED_NO_NORMS) =
+      doc.add(new Field(name, value, Field.Store.YES, index, Field.TermVector.NO))
+    add("id", "id1")
+    add("hasUpstream", "1")
+    add("hasDownstream", "0")
+    add("isMatched", "0")
+    add("uvsn", "v1")
+    add("up.bizDate", "2010-07-01")
+    add("up.bizDateTime", JUL_1_2010_1.toString)
+    add("up.someString", "2010-07-01T00:00:00")
+    add("lastUpdated", DEC_1_2009.toString, Field.Index.NO)
+    doc.add(new NumericField("store.version", Field.Store.YES, true).setLongValue(1L))
+    legacyWriter.addDocument(doc)
+    legacyWriter.close()
+
+    val upgraded = new LuceneVersionCorrelationStore(pair, dir, dummyConfigStore, dummyDomainConfigStore, dummyDiagnostics, defaultLimits)
+    try {
+      val byDate = upgraded.queryUpstreams(Seq(new DateRangeConstraint("bizDate", JUL_1_2010.toLocalDate, JUL_31_2010.toLocalDate)))
+      assertEquals(Seq("id1"), byDate.map(_.id))
+      val byDateTime = upgraded.queryUpstreams(Seq(new TimeRangeConstraint("bizDateTime", JUL_2010, END_JUL_2010)))
+      assertEquals(Seq("id1"), byDateTime.map(_.id))
+      val byString = upgraded.queryUpstreams(Seq(new StringPrefixConstraint("someString", "2010-07")))
+      assertEquals(Seq("id1"), byString.map(_.id))
+
+      val correlation = byDate.head
+      assertEquals(DEC_1_2009, correlation.lastUpdate)
+      assertEquals(Map("bizDate" -> "2010-07-01", "bizDateTime" -> JUL_1_2010_1.toString, "someString" -> "2010-07-01T00:00:00"),
+                   correlation.upstreamAttributes.toMap)
+    } finally {
+      upgraded.close
+    }
+  }
+
+  @Test
+  def dateRangeShouldIncludeTheWholeOfItsLastDay = {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), bizDateTimeMap(JUL_1_2010_1), DEC_1_2009, "v1", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), bizDateTimeMap(AUG_11_2010_1), DEC_1_2009, "v2", None)
+    writer.flush()
+
+    val constraints = Seq(new DateRangeConstraint("bizDateTime", JUL_1_2010.toLocalDate.minusYears(5), JUL_1_2010.toLocalDate))
+    assertEquals(Seq("id1"), store.queryUpstreams(constraints).map(_.id))
+  }
+
   @Test
   def storedUpstreamShouldBeRetrievable = {
     val timestamp = new DateTime()
@@ -776,8 +960,12 @@ object LuceneVersionCorrelationStoreTest {
   val dummyDiagnostics = EasyMock.createNiceMock(classOf[DiagnosticsManager])
   EasyMock.replay(dummyDiagnostics)
 
+  val defaultLimits = new PairServiceLimitsView {
+    def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit.defaultLimit.intValue
+  }
+
   val stores = new LuceneVersionCorrelationStoreFactory("target", dummyConfigStore,
-    dummyDomainConfigStore, dummyDiagnostics)
+    dummyDomainConfigStore, dummyDiagnostics, defaultLimits)
 
   // Helper methods for various constraint/attribute scenarios
   def bizDateTimeSeq(d:DateTime) = Seq(d.toString())
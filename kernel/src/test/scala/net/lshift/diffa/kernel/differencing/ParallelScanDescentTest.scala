@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.differencing
+
+import org.junit.Test
+import org.junit.Assert._
+import java.util.concurrent.atomic.AtomicInteger
+import net.lshift.diffa.kernel.config.PairRef
+
+class ParallelScanDescentTest {
+
+  @Test
+  def shouldVisitEveryNodeOfTree() {
+    val descent = new ParallelScanDescent("test", 4)
+    val visited = new AtomicInteger(0)
+
+    // A tree of depth 3 with a fan-out of 5 at each level
+    def visit(depth:Int):Unit = {
+      visited.incrementAndGet()
+      if (depth < 3) {
+        (1 to 5).foreach(_ => descent.submit(visit(depth + 1)))
+      }
+    }
+
+    descent.run(visit(0))
+
+    assertEquals(1 + 5 + 25 + 125, visited.get)
+  }
+
+  @Test
+  def shouldNotExceedConfiguredParallelism() {
+    val descent = new ParallelScanDescent("test", 3)
+    val active = new AtomicInteger(0)
+    val peak = new AtomicInteger(0)
+
+    descent.run {
+      (1 to 20).foreach(_ => descent.submit {
+        val current = active.incrementAndGet()
+        peak.synchronized { if (current > peak.get) peak.set(current) }
+        Thread.sleep(5)
+        active.decrementAndGet()
+      })
+    }
+
+    assertTrue("Peak parallelism was " + peak.get, peak.get <= 3)
+  }
+
+  @Test(expected = classOf[ScanCancelledException])
+  def shouldPropagateCancellationToCaller() {
+    val descent = new ParallelScanDescent("test", 2)
+
+    descent.run {
+      (1 to 10).foreach(i => descent.submit {
+        if (i == 5) throw new ScanCancelledException(PairRef("p", 1L))
+      })
+    }
+  }
+}
@@ -20,5 +20,5 @@ package net.lshift.diffa.kernel.differencing
  * Concrete implementation of the Data Driven Policy test for same versions.
  */
 class SameVersionPolicyDataDrivenTest extends AbstractDataDrivenPolicyTest {
-  val policy = new SameVersionPolicy(stores, listener, diagnostics)
+  val policy = new SameVersionPolicy(stores, listener, diagnostics, serviceLimitsView)
 }
\ No newline at end of file
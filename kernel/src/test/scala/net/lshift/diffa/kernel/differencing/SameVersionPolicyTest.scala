@@ -34,7 +34,7 @@ import net.lshift.diffa.adapter.scanning.ScanResultEntry
  * Test cases for the same version policy.
  */
 class SameVersionPolicyTest extends AbstractPolicyTest {
-  val policy = new SameVersionPolicy(stores, listener, diagnostics)
+  val policy = new SameVersionPolicy(stores, listener, diagnostics, serviceLimitsView)
 
   def downstreamVersionFor(v:String) = v
 
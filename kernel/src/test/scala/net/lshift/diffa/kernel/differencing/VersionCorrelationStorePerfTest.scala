@@ -26,8 +26,8 @@ import net.lshift.diffa.kernel.events._
 import org.slf4j.LoggerFactory
 import net.lshift.diffa.kernel.indexing.LuceneVersionCorrelationStore
 import ch.qos.logback.classic.Level
-import net.lshift.diffa.adapter.scanning.TimeRangeConstraint
-import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.adapter.scanning.{DateAggregation, DateGranularityEnum, TimeRangeConstraint}
+import net.lshift.diffa.kernel.config.{UnicodeCollationOrdering, AsciiCollationOrdering, PairRef}
 
 /**
  * Performance test for the version correlation store.
@@ -71,6 +71,11 @@ class VersionCorrelationStorePerfTest {
       assertEquals(vsnCount, res.length)
     }
 
+    withTiming("aggregate upstream versions") {
+      val digests = stores(pair).aggregateUpstreams(Seq(new DateAggregation("bizDate", DateGranularityEnum.Daily)), Seq(), AsciiCollationOrdering)
+      println("Built " + digests.length + " upstream digests")
+    }
+
     withTiming("load downstream versions") {
       val writer = stores(pair).openWriter()
       for (i <- 0 until vsnCount) {
@@ -86,6 +91,29 @@ class VersionCorrelationStorePerfTest {
     }
   }
 
+  @Test
+  def canAggregateWithEachCollation() {
+    val vsnCount = Integer.valueOf(System.getProperty("diffa.perf.versionCount", "1000")).intValue
+
+    withTiming("load upstream versions") {
+      val writer = stores(pair).openWriter()
+      for (i <- 0 until vsnCount) {
+        // Mix the case of the ids, so that the two collations order them differently
+        val id = if (i % 2 == 0) "id" + i else "ID" + i
+        writer.storeUpstreamVersion(VersionID(pair, id), attributes(i), JUL_1_2010_1, "version" + i, None)
+      }
+      writer.flush()
+    }
+
+    val bucketing = Seq(new DateAggregation("bizDate", DateGranularityEnum.Daily))
+    Seq(AsciiCollationOrdering, UnicodeCollationOrdering).foreach(collation => {
+      withTiming("aggregate upstream versions with %s collation".format(collation.name)) {
+        val digests = stores(pair).aggregateUpstreams(bucketing, Seq(), collation)
+        println("Built " + digests.length + " upstream digests")
+      }
+    })
+  }
+
   private def withTiming(name:String)(f: => Unit):Unit = {
     val start = new DateTime
 
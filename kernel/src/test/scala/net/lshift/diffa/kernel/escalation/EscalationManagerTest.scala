@@ -242,6 +242,81 @@ class EscalationManagerTest {
     verifyAll()
   }
 
+  @Test
+  def escalationLoadedOnStartShouldOnlyBeSoughtOnceDue() {
+    val now = new DateTime
+    val event = DifferenceEvent(seqId = "123", objId = VersionID(pair, "id1"), nextEscalation = "e1",
+      nextEscalationTime = now.plusHours(1))
+
+    expect(systemConfig.listPairs).andReturn(Seq())
+    expect(diffs.pendingEscalatees(anyTimestamp, anyUnitF1)).andAnswer(new IAnswer[Unit] {
+      def answer() {
+        EasyMock.getCurrentArguments()(1).asInstanceOf[(DifferenceEvent) => Unit](event)
+      }
+    }).once()
+    replayAll()
+
+    escalationManager.start()
+    escalationManager.escalateDueDiffs(now.plusMinutes(30).getMillis)
+    verifyAll()
+
+    expectDueEscalationsToBeSought()
+    escalationManager.escalateDueDiffs(now.plusHours(2).getMillis)
+    verify(diffs)
+  }
+
+  @Test
+  def progressedEscalationShouldOnlyBeSoughtOnceDue() {
+    val now = new DateTime
+    val event = DifferenceEvent(seqId = "123", objId = VersionID(pair, "id1"), upstreamVsn = "u", downstreamVsn = "d",
+      detectedAt = now, nextEscalation = null)
+
+    expectDelayedEscalation()
+    diffs.scheduleEscalation(event, "e1", now.plusHours(1)); expectLastCall
+    replayAll()
+
+    escalationManager.initiateEscalation(event)
+    escalationManager.escalateDueDiffs(now.plusMinutes(30).getMillis)
+    verifyAll()
+
+    expectDueEscalationsToBeSought()
+    escalationManager.escalateDueDiffs(now.plusHours(2).getMillis)
+    verify(diffs)
+  }
+
+  @Test
+  def unscheduledEscalationShouldNotBeSought() {
+    val now = new DateTime
+    val event = DifferenceEvent(seqId = "123", objId = VersionID(pair, "id1"), upstreamVsn = "u", downstreamVsn = "d",
+      detectedAt = now, nextEscalation = null)
+
+    expectDelayedEscalation()
+    diffs.scheduleEscalation(event, "e1", now.plusHours(1)); expectLastCall
+    diffs.scheduleEscalation(event, null, null); expectLastCall
+    replayAll()
+
+    escalationManager.initiateEscalation(event)
+
+    // There are no further escalations to progress to, so the scheduled one is cancelled
+    event.nextEscalation = "e1"
+    escalationManager.progressDiff(event)
+
+    // The store is strictly mocked, so any attempt to find due escalations would fail here
+    escalationManager.escalateDueDiffs(now.plusHours(2).getMillis)
+    verifyAll()
+  }
+
+  private def expectDelayedEscalation() {
+    expect(configStore.getPairDef(pair)).andStubReturn(DomainPairDef(escalations =
+      Set(EscalationDef(name = "e1", action = "a1", actionType = EscalationActionType.REPAIR, delay = 3600))))
+  }
+
+  private def expectDueEscalationsToBeSought() {
+    reset(diffs)
+    expect(diffs.pendingEscalatees(anyTimestamp, anyUnitF1)).once()
+    replay(diffs)
+  }
+
   def resetAll() {
     reset(configStore, systemConfig, actionsClient, diffs)
     EasyMock4Classes.reset(reportManager)
@@ -17,7 +17,10 @@ package net.lshift.diffa.kernel.frontend
 
 import net.lshift.diffa.kernel.StoreReferenceContainer
 import org.easymock.EasyMock._
-import net.lshift.diffa.kernel.actors.PairPolicyClient
+import org.easymock.{IAnswer, EasyMock}
+import org.junit.Assert._
+import org.hamcrest.Matchers._
+import net.lshift.diffa.kernel.actors.{InventoryFeed, PairPolicyClient}
 import net.lshift.diffa.kernel.matching.MatchingManager
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import org.junit.{Test, BeforeClass, AfterClass}
@@ -29,6 +32,10 @@ import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.config.{Space, SetCategoryDescriptor, Domain, PairRef}
 import net.lshift.diffa.schema.environment.TestDatabaseEnvironments
 import org.apache.commons.lang.RandomStringUtils
+import net.lshift.diffa.adapter.scanning.{ScanRequest, ScanAggregation, ScanConstraint, ScanResultEntry}
+import net.lshift.diffa.kernel.util.{EndpointSide, DownstreamEndpoint, UpstreamEndpoint}
+import java.util.concurrent.{Executor, CopyOnWriteArrayList}
+import akka.dispatch.{Promise, ExecutionContext}
 
 class ChangesTest {
   private val storeReferences = ChangesTest.storeReferences
@@ -73,6 +80,96 @@ class ChangesTest {
     changes.onChange(space.id, "e2", ChangeEvent.forChange("id1", "v1", now))
     verify(changeEventClient, matchingManager)
   }
+
+  @Test
+  def shouldPropagateValidChangesOfBatchTogether() {
+    changeEventClient.propagateChangeEvents(Seq(
+      DownstreamPairChangeEvent(VersionID(pairRef, "id1"), Map("s" -> StringAttribute("a")), now, "v1"),
+      DownstreamPairChangeEvent(VersionID(pairRef, "id3"), Map("s" -> StringAttribute("b")), now, "v3"))); expectLastCall
+    expect(matchingManager.getMatcher(anyObject[PairRef])).andStubReturn(None)
+    replay(changeEventClient, matchingManager)
+
+    changes.onChanges(space.id, "e2", Seq(
+      ChangeEvent.forChange("id1", "v1", now, Map("s" -> "a")),
+      ChangeEvent.forChange("id2", "v2", now, Map("s" -> "c")),
+      ChangeEvent.forChange("id3", "v3", now, Map("s" -> "b"))))
+    verify(changeEventClient, matchingManager)
+  }
+
+  @Test
+  def shouldFeedValidInventoryToPairs() {
+    val received = new CopyOnWriteArrayList[ScanResultEntry]
+    expectInventorySubmission(DownstreamEndpoint).andAnswer(new IAnswer[Unit] {
+      def answer {
+        val feed = EasyMock.getCurrentArguments()(4).asInstanceOf[InventoryFeed]
+        new Thread {
+          override def run() {
+            feed.foreach(e => received.add(e))
+            feed.succeed(Seq())
+          }
+        }.start()
+      }
+    })
+    replay(changeEventClient)
+
+    val entries = Seq(
+      ScanResultEntry.forEntity("id1", "v1", now, Map("s" -> "a")),
+      ScanResultEntry.forEntity("id2", "v2", now, Map("s" -> "b")))
+    assertEquals(Seq(), changes.submitInventory(space.id, "e2", None, Seq(), Seq(), entries.foreach))
+    assertEquals(entries, received.toSeq)
+    verify(changeEventClient)
+  }
+
+  @Test
+  def shouldRejectInventoryWithInvalidId() {
+    val snowman = "\u2603"
+    expectInventorySubmission(UpstreamEndpoint)
+    replay(changeEventClient)
+
+    try {
+      changes.submitInventory(space.id, "e1", None, Seq(), Seq(), Seq(ScanResultEntry.forEntity(snowman, "v1", now)).foreach)
+      fail("Expected inventory to be rejected")
+    } catch {
+      case e:InvalidInventoryException =>
+        assertThat(e.getMessage, containsString("line: 2"))
+        assertThat(e.getMessage, containsString(snowman))
+    }
+  }
+
+  @Test
+  def shouldRejectInventoryWithInvalidAttributes() {
+    expectInventorySubmission(DownstreamEndpoint)
+    replay(changeEventClient)
+
+    try {
+      changes.submitInventory(space.id, "e2", None, Seq(), Seq(), Seq(
+        ScanResultEntry.forEntity("id1", "v1", now, Map("s" -> "a")),
+        ScanResultEntry.forEntity("id2", "v2", now, Map("s" -> "c"))).foreach)
+      fail("Expected inventory to be rejected")
+    } catch {
+      case e:InvalidInventoryException => assertThat(e.getMessage, containsString("Entry 2 was invalid"))
+    }
+  }
+
+  @Test
+  def shouldCollectScanRequestsOfPairsStartingInventory() {
+    implicit val executionContext = ExecutionContext.fromExecutor(new Executor {
+      def execute(command:Runnable) { command.run() }
+    })
+
+    val request = new ScanRequest(new java.util.HashSet[ScanConstraint], new java.util.HashSet[ScanAggregation])
+    expect(changeEventClient.startInventory(pairRef, UpstreamEndpoint, None)).andReturn(Promise.successful(Seq(request)))
+    replay(changeEventClient)
+
+    assertEquals(Seq(request), changes.startInventory(space.id, "e1", None))
+    verify(changeEventClient)
+  }
+
+  private def expectInventorySubmission(side:EndpointSide) = {
+    changeEventClient.submitInventory(EasyMock.eq(pairRef), EasyMock.eq(side), anyObject[Seq[ScanConstraint]],
+      anyObject[Seq[ScanAggregation]], anyObject[InventoryFeed])
+    expectLastCall[Unit]
+  }
 }
 
 object ChangesTest {
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import org.junit.Test
+import org.junit.Assert._
+import scala.collection.JavaConversions._
+import collection.mutable.ListBuffer
+import net.lshift.diffa.adapter.scanning._
+import net.lshift.diffa.kernel.participants.ByNameCategoryFunction
+import net.lshift.diffa.kernel.config.AsciiCollationOrdering
+import net.lshift.diffa.kernel.indexing.LuceneVersionCorrelationHandler.{StoreParticipantType, Upstream, Downstream}
+
+class BucketDigestCacheTest {
+
+  val cache = new BucketDigestCache
+  val bucketing = Seq(ByNameCategoryFunction("someString"))
+
+  // Records each query made of the source, answering with a single digest per bucket named in the query
+  val queries = new ListBuffer[Seq[ScanConstraint]]
+  var version = "v1"
+
+  def source(side:StoreParticipantType, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation) = {
+    queries += constraints
+    val buckets = constraints.collect { case s:SetConstraint => s.getValues.toSeq }.flatten match {
+      case Seq() => Seq("a", "b")
+      case named => named
+    }
+    buckets.map(b => ScanResultEntry.forAggregate(version + b, Map("someString" -> b)))
+  }
+
+  def digests(side:StoreParticipantType) =
+    cache.digests(side, bucketing, Seq(), AsciiCollationOrdering, source).map(_.getVersion).toSet
+
+  @Test
+  def shouldOnlyQuerySourceOnceForUnchangedStore {
+    assertEquals(Set("v1a", "v1b"), digests(Upstream))
+    assertEquals(Set("v1a", "v1b"), digests(Upstream))
+
+    assertEquals(1, queries.size)
+  }
+
+  @Test
+  def shouldRecomputeOnlyChangedBucket {
+    digests(Upstream)
+
+    version = "v2"
+    cache.onCorrelationChanged(Upstream, Some(Map("someString" -> "a")), Some(Map("someString" -> "a")))
+
+    assertEquals(Set("v2a", "v1b"), digests(Upstream))
+    assertEquals(Seq(Seq(), Seq(new SetConstraint("someString", Set("a")))), queries.toSeq)
+  }
+
+  @Test
+  def shouldIgnoreChangesToOtherSide {
+    digests(Upstream)
+
+    version = "v2"
+    cache.onCorrelationChanged(Downstream, Some(Map("someString" -> "a")), None)
+
+    assertEquals(Set("v1a", "v1b"), digests(Upstream))
+    assertEquals(1, queries.size)
+  }
+
+  @Test
+  def shouldRecomputeEverythingWhenAllCorrelationsChange {
+    digests(Upstream)
+
+    version = "v2"
+    cache.onAllCorrelationsChanged()
+
+    assertEquals(Set("v2a", "v2b"), digests(Upstream))
+    assertEquals(Seq(Seq(), Seq()), queries.toSeq)
+  }
+
+  @Test
+  def shouldRecomputeAfterFailedRefresh {
+    digests(Upstream)
+    cache.onCorrelationChanged(Upstream, None, Some(Map("someString" -> "b")))
+
+    try {
+      cache.digests(Upstream, bucketing, Seq(), AsciiCollationOrdering, (_, _, _, _) => throw new RuntimeException("failed"))
+      fail("Expected the source failure to be propagated")
+    } catch {
+      case e:RuntimeException => assertEquals("failed", e.getMessage)
+    }
+
+    version = "v2"
+    assertEquals(Set("v2a", "v2b"), digests(Upstream))
+  }
+}
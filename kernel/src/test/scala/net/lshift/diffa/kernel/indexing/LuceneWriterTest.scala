@@ -20,9 +20,14 @@ import org.easymock.classextension.EasyMock._
 import org.easymock.EasyMock.expect
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import org.junit.{Before, Test}
-import org.apache.lucene.store.Directory
+import org.apache.lucene.store.{RAMDirectory, Directory}
 import org.apache.lucene.index.{IndexReader, IndexWriter}
 import java.io.Closeable
+import org.junit.Assert._
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.differencing.TypedAttribute
+import org.joda.time.DateTime
 
 /**
  * Specifications of required behaviour of the LuceneWriter.
@@ -36,13 +41,25 @@ class LuceneWriterTest {
   val indexReader = createMock("indexReader", classOf[IndexReader])
   val closeableIndexReader = createMock("closeableIndexReader", classOf[Closeable])
 
+  var readersOpened = 0
+  var readersClosed = 0
+
   val diagnostics = createMock("diagnosticsManager", classOf[DiagnosticsManager])
   val luceneWriter = new LuceneWriter(index, diagnostics,
     new IndexWriterFactory {
       def createIndexWriter(index: Directory) = (closeableIndexWriter, indexWriter)
     },
     new IndexReaderFactory {
-      def createIndexReader(writer: IndexWriter) = (closeableIndexReader, indexReader)
+      def createIndexReader(writer: IndexWriter) = {
+        readersOpened += 1
+        val closeable = new Closeable {
+          def close() {
+            readersClosed += 1
+            closeableIndexReader.close()
+          }
+        }
+        (closeable, indexReader)
+      }
     })
 
   @Before
@@ -59,6 +76,26 @@ class LuceneWriterTest {
     verify(closeableIndexReader)
   }
 
+  @Test
+  def indexReaderShouldBeReusedBetweenReads {
+    luceneWriter.withReader(r => r)
+    luceneWriter.withReader(r => r)
+
+    assertEquals(1, readersOpened)
+  }
+
+  @Test
+  def replacedIndexReaderShouldNotBeClosedWhilstInUse {
+    luceneWriter.withReader(r => {
+      luceneWriter.rollback()
+      assertEquals(0, readersClosed)
+    })
+
+    assertEquals(1, readersClosed)
+    luceneWriter.withReader(r => r)
+    assertEquals(2, readersOpened)
+  }
+
   @Test
   def indexWriterShouldBeClosedOnClose {
     expect(closeableIndexWriter.close).once
@@ -67,4 +104,55 @@ class LuceneWriterTest {
     luceneWriter.close
     verify(closeableIndexWriter)
   }
+
+  @Test
+  def checkpointShouldMakeChangesVisibleWithoutCommittingBeforeThresholdIsReached {
+    val writer = groupCommittingWriter(changes = 3)
+
+    store(writer, "id1", "id2")
+    writer.checkpoint()
+
+    assertEquals(0L, writer.commitStatistics.getCommitCount)
+    assertEquals(2L, writer.commitStatistics.getUncommittedChangeCount)
+    assertEquals(2, writer.withReader(_.numDocs))
+    assertTrue(writer.isDirty)
+  }
+
+  @Test
+  def checkpointShouldCommitOnceThresholdIsReached {
+    val writer = groupCommittingWriter(changes = 3)
+
+    store(writer, "id1", "id2")
+    writer.checkpoint()
+    store(writer, "id3")
+    writer.checkpoint()
+
+    assertEquals(1L, writer.commitStatistics.getCommitCount)
+    assertEquals(3L, writer.commitStatistics.getCommittedChangeCount)
+    assertEquals(0L, writer.commitStatistics.getUncommittedChangeCount)
+    assertFalse(writer.isDirty)
+  }
+
+  @Test
+  def flushShouldAlwaysCommit {
+    val writer = groupCommittingWriter(changes = 3)
+
+    store(writer, "id1")
+    writer.flush()
+
+    assertEquals(1L, writer.commitStatistics.getCommitCount)
+    assertFalse(writer.isDirty)
+  }
+
+  private def groupCommittingWriter(changes:Int) = {
+    val diagnostics = createNiceMock(classOf[DiagnosticsManager])
+    replay(diagnostics)
+
+    new LuceneWriter(new RAMDirectory, diagnostics, commitThresholds = () => CommitThresholds(changes = changes))
+  }
+
+  private def store(writer:LuceneWriter, ids:String*) {
+    ids.foreach(id =>
+      writer.storeUpstreamVersion(VersionID(PairRef("pair", 1L), id), Map[String, TypedAttribute](), new DateTime, "v-" + id, None))
+  }
 }
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+import org.junit.{Before, Test}
+import org.junit.Assert._
+import java.io.File
+import collection.mutable.ListBuffer
+import org.apache.commons.io.FileUtils
+import net.lshift.diffa.adapter.scanning._
+import net.lshift.diffa.kernel.config._
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.differencing.{VersionCorrelationStore, Correlation, StringAttribute, LuceneVersionCorrelationStoreTest}
+import net.lshift.diffa.kernel.participants.ByNameCategoryFunction
+import net.lshift.diffa.kernel.util.FullDateTimes._
+import net.lshift.diffa.schema.servicelimits.{ServiceLimit, CorrelationStoreShards}
+
+class ShardedVersionCorrelationStoreTest {
+  import ShardedVersionCorrelationStoreTest._
+  import LuceneVersionCorrelationStoreTest.{pair, pairWithUnicodeOrder}
+
+  val store = stores(pair)
+  val storeWithUnicodeOrder = stores(pairWithUnicodeOrder)
+  val unshardedStore = LuceneVersionCorrelationStoreTest.stores(pair)
+
+  val ids = (0 until 200).map("id" + _) ++ Seq("foo", "FooBarWithSuffix", "\u00e9t\u00e9", "Apple", "banana", "apple")
+
+  @Before
+  def cleanupStores {
+    store.reset
+    storeWithUnicodeOrder.reset
+    unshardedStore.reset
+  }
+
+  @Test
+  def storeShouldBeShardedWhenLimitAllows {
+    assertTrue(store.isInstanceOf[ShardedVersionCorrelationStore])
+    assertEquals(shardCount, new File(baseDir, pair.identifier).listFiles.count(_.getName.startsWith("shard-")))
+  }
+
+  @Test
+  def upstreamsShouldBeMergedInUnicodeOrder {
+    val writer = storeWithUnicodeOrder.openWriter()
+    ids.foreach(id => writer.storeUpstreamVersion(VersionID(pairWithUnicodeOrder, id), Map(), DEC_1_2009, "v-" + id, None))
+    writer.flush()
+
+    val correlations = storeWithUnicodeOrder.queryUpstreams(Seq())
+    assertEquals(ids.sortWith(UnicodeCollationOrdering.sortsBefore), correlations.map(_.id))
+    assertEquals(correlations.map("v-" + _.id), correlations.map(_.upstreamVsn))
+  }
+
+  @Test
+  def correlationShouldBeRetrievedFromItsShard {
+    val writer = store.openWriter()
+    ids.foreach(id => writer.storeDownstreamVersion(VersionID(pair, id), Map(), DEC_1_2009, "u-" + id, "d-" + id, None))
+    writer.flush()
+
+    ids.foreach(id => {
+      val correlation = store.retrieveCurrentCorrelation(VersionID(pair, id))
+      assertEquals(Some("d-" + id), correlation.map(_.downstreamDVsn))
+    })
+  }
+
+  @Test
+  def unmatchedAndTombstoneVersionsShouldBePagedInStoreVersionOrderAcrossShards {
+    val writer = store.openWriter()
+    ids.foreach(id => writer.storeUpstreamVersion(VersionID(pair, id), Map(), DEC_1_2009, "v-" + id, None))
+    writer.flush()
+    ids.take(50).foreach(id => writer.clearUpstreamVersion(VersionID(pair, id), None))
+    writer.flush()
+
+    val mismatches = new ListBuffer[Correlation]
+    val tombstones = new ListBuffer[Correlation]
+    store.unmatchedAndTombstoneVersions(Seq(), Seq(), None, 7, (m, t) => {
+      assertTrue(m.size + t.size <= 7)
+      mismatches ++= m
+      tombstones ++= t
+    })
+
+    assertEquals(ids.drop(50).toSet, mismatches.map(_.id).toSet)
+    assertEquals(ids.take(50).toSet, tombstones.map(_.id).toSet)
+
+    val storeVersions = (mismatches ++ tombstones).map(_.storeVersion.longValue).sorted
+    assertEquals(ids.size, storeVersions.distinct.size)
+  }
+
+  @Test
+  def digestsShouldMatchThoseOfAnUnshardedStore {
+    Seq(store, unshardedStore).foreach(s => {
+      val writer = s.openWriter()
+      ids.foreach(id =>
+        writer.storeUpstreamVersion(VersionID(pair, id), Map("someString" -> StringAttribute(id.take(3))), DEC_1_2009, "v-" + id, None))
+      writer.flush()
+    })
+
+    val bucketing = Seq(ByNameCategoryFunction("someString"))
+    assertEquals(unshardedStore.aggregateUpstreams(bucketing, Seq(), AsciiCollationOrdering).toSet,
+                 store.aggregateUpstreams(bucketing, Seq(), AsciiCollationOrdering).toSet)
+  }
+}
+
+object ShardedVersionCorrelationStoreTest {
+  import LuceneVersionCorrelationStoreTest.{dummyConfigStore, dummyDomainConfigStore, dummyDiagnostics}
+
+  val baseDir = "target/sharded"
+  val shardCount = 4
+
+  FileUtils.deleteDirectory(new File(baseDir))
+
+  val shardedLimits = new PairServiceLimitsView {
+    def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit match {
+      case CorrelationStoreShards => shardCount
+      case _                      => limit.defaultLimit.intValue
+    }
+  }
+
+  val stores = new LuceneVersionCorrelationStoreFactory(baseDir, dummyConfigStore, dummyDomainConfigStore,
+    dummyDiagnostics, shardedLimits)
+}
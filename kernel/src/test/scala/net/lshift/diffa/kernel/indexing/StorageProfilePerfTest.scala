@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+import org.junit.Assert._
+import org.junit.Assume._
+import org.hamcrest.CoreMatchers._
+import org.junit.{Test, Before}
+import java.io.File
+import org.apache.commons.io.FileUtils
+import org.joda.time.DateTime
+import net.lshift.diffa.adapter.scanning.{DateAggregation, DateGranularityEnum, TimeRangeConstraint}
+import net.lshift.diffa.kernel.config.AsciiCollationOrdering
+import net.lshift.diffa.kernel.differencing.{LuceneVersionCorrelationStoreTest, IntegerAttribute, DateTimeAttribute}
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.util.FullDateTimes._
+
+/**
+ * Measures the ingest and query throughput of a correlation store under each of a number of storage profiles, as a
+ * guide to choosing the profile for a large pair.
+ */
+class StorageProfilePerfTest {
+  import LuceneVersionCorrelationStoreTest.{pair, dummyConfigStore, dummyDomainConfigStore, dummyDiagnostics, defaultLimits}
+
+  @Before
+  def checkPerformanceTestingEnabled {
+    assumeThat(System.getProperty("diffa.perftest"), is(equalTo("1")))
+  }
+
+  private val vsnCount = Integer.valueOf(System.getProperty("diffa.perf.versionCount", "100000")).intValue
+  private val queryCount = Integer.valueOf(System.getProperty("diffa.perf.queryCount", "20")).intValue
+
+  private def attributes(idx:Int) = Map("bizDate" -> DateTimeAttribute(JUL_8_2010_1.plusSeconds(idx)), "someInt" -> IntegerAttribute(idx))
+
+  @Test def defaultProfile() { runProfile("default", StorageProfile.default) }
+  @Test def memoryMappedProfile() { runProfile("mmap", StorageProfile(memoryMapped = true)) }
+  @Test def largeBufferProfile() { runProfile("large-buffer", StorageProfile(memoryMapped = true, ramBufferMb = 256)) }
+  @Test def wideMergeProfile() { runProfile("wide-merge", StorageProfile(memoryMapped = true, ramBufferMb = 256, mergeFactor = 30, mergeThreads = 4)) }
+
+  private def runProfile(name:String, profile:StorageProfile) {
+    val dir = new File("target/profiles", name)
+    FileUtils.deleteDirectory(dir)
+
+    val store = new LuceneVersionCorrelationStore(pair, profile.openDirectory(dir), dummyConfigStore, dummyDomainConfigStore,
+                                                  dummyDiagnostics, defaultLimits, profile = profile)
+    try {
+      withThroughput(name, "store upstream versions", vsnCount) {
+        val writer = store.openWriter()
+        for (i <- 0 until vsnCount) {
+          writer.storeUpstreamVersion(VersionID(pair, "id" + i), attributes(i), JUL_1_2010_1, "version" + i, None)
+        }
+        writer.flush()
+      }
+
+      withThroughput(name, "store downstream versions", vsnCount) {
+        val writer = store.openWriter()
+        for (i <- 0 until vsnCount by 2) {
+          writer.storeDownstreamVersion(VersionID(pair, "id" + i), attributes(i), JUL_1_2010_1, "version" + i, "dvsn" + i, None)
+        }
+        writer.flush()
+      }
+
+      val constraints = Seq(new TimeRangeConstraint("bizDate", JUL_2010, END_JUL_2010))
+      withThroughput(name, "query unmatched versions", queryCount) {
+        for (i <- 0 until queryCount) {
+          assertEquals(vsnCount / 2, store.unmatchedVersions(constraints, Seq(), None).size)
+        }
+      }
+
+      withThroughput(name, "read upstream versions in order", queryCount) {
+        for (i <- 0 until queryCount) {
+          val cursor = store.openUpstreams(constraints)
+          try {
+            assertEquals(vsnCount, cursor.size)
+          } finally {
+            cursor.close()
+          }
+        }
+      }
+
+      val bucketing = Seq(new DateAggregation("bizDate", DateGranularityEnum.Daily))
+      withThroughput(name, "aggregate upstream versions", queryCount) {
+        for (i <- 0 until queryCount) {
+          // Change a version each time, so that its bucket has to be digested from the index again
+          store.openWriter().storeUpstreamVersion(VersionID(pair, "id0"), attributes(0), JUL_1_2010_1, "version-" + i, None)
+          store.openWriter().flush()
+          store.aggregateUpstreams(bucketing, Seq(), AsciiCollationOrdering)
+        }
+      }
+    } finally {
+      store.close
+    }
+  }
+
+  private def withThroughput(profile:String, name:String, operations:Int)(f: => Unit) {
+    val start = new DateTime
+    f
+    val elapsed = (new DateTime).getMillis - start.getMillis
+    println("[%s] Took %sms to %s (%s/sec)".format(profile, elapsed, name, (operations * 1000L) / scala.math.max(elapsed, 1)))
+  }
+}
@@ -49,6 +49,19 @@ class ChangeEventRateLimiterTest {
     Assert.assertTrue("First event should be accepted", limiter.accept())
   }
 
+  @Test
+  def rateLimiterShouldAcceptOrRefuseBatchOfEventsAsAWhole() {
+    setRateLimit(3)
+    limiter = new RateLimiter(
+      () => rateLimitView.getEffectiveLimitByNameForDomain(space, ChangeEventRate),
+      rateClock)
+
+    Assert.assertTrue("A batch within the limit should be accepted", limiter.accept(2))
+    Assert.assertFalse("A batch beyond the remaining limit should be refused", limiter.accept(2))
+    Assert.assertTrue("A refused batch shouldn't count towards the limit", limiter.accept(1))
+    Assert.assertFalse("The limit should have been reached", limiter.accept())
+  }
+
   @Theory
   def givenDefaultConfigurationRateLimiterShouldRejectSubsequentEventsWhileLimited(scenario: Scenario) {
     doForScenario[WithinLimitInterval](scenario, { d =>
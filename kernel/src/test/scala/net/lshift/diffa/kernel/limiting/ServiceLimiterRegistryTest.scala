@@ -49,6 +49,7 @@ object ServiceLimiterRegistryTest {
 
   val dummyLimiter = new Limiter {
     def accept() = false
+    def accept(permits: Int) = false
   }
 
   @DataPoints
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.matching
+
+import net.lshift.diffa.kernel.util.{ConcurrentJunitRunner, Concurrent}
+import org.junit.runner.RunWith
+import org.junit.After
+import net.lshift.diffa.kernel.frontend.DomainPairDef
+
+/**
+ * Runs the standard matcher tests against the lock-striped matcher.
+ */
+@RunWith(classOf[ConcurrentJunitRunner])
+@Concurrent(threads = 20)
+class ConcurrentEventMatcherTest extends AbstractMatcherTest {
+  val expiryWheel = new EventExpiryWheel
+
+  @After
+  def closeExpiryWheel {
+    expiryWheel.dispose
+  }
+
+  def createMatcher(id: String, timeout: Int) =
+    new ConcurrentEventMatcher(DomainPairDef(key = id, domain = "domain", matchingTimeout = timeout), expiryWheel)
+}
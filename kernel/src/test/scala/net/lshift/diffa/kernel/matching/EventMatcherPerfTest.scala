@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.matching
+
+import org.junit.Assert._
+import org.junit.Assume._
+import org.hamcrest.CoreMatchers._
+import org.junit.{Test, Before}
+import org.joda.time.DateTime
+import java.util.concurrent.{TimeUnit, Executors}
+import java.util.concurrent.atomic.AtomicInteger
+import net.lshift.diffa.kernel.events.{DownstreamPairChangeEvent, UpstreamPairChangeEvent, VersionID}
+import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.frontend.DomainPairDef
+
+/**
+ * Compares the throughput of the original matcher with the lock-striped matcher, with many threads sending balanced
+ * pairs of events for a number of pairs.
+ */
+class EventMatcherPerfTest {
+
+  @Before
+  def checkPerformanceTestingEnabled {
+    assumeThat(System.getProperty("diffa.perftest"), is(equalTo("1")))
+  }
+
+  private val eventCount = Integer.valueOf(System.getProperty("diffa.perf.eventCount", "200000")).intValue
+  private val threads = Integer.valueOf(System.getProperty("diffa.perf.threads", "16")).intValue
+  private val pairCount = 8
+
+  private val pairs = (0 until pairCount).map(i => DomainPairDef(key = "pair" + i, domain = "domain", matchingTimeout = 30))
+
+  @Test
+  def shouldMatchEventsWithLocalMatcher() {
+    val reaper = new LocalEventMatcherReaper
+    try {
+      runMatchers("local", pairs.map(p => new LocalEventMatcher(p, reaper)))
+    } finally {
+      reaper.dispose
+    }
+  }
+
+  @Test
+  def shouldMatchEventsWithConcurrentMatcher() {
+    val expiryWheel = new EventExpiryWheel
+    try {
+      runMatchers("concurrent", pairs.map(p => new ConcurrentEventMatcher(p, expiryWheel)))
+    } finally {
+      expiryWheel.dispose
+    }
+  }
+
+  private def runMatchers(name:String, matchers:Seq[EventMatcher]) {
+    val paired = new AtomicInteger(0)
+    matchers.foreach(_.addListener(new MatchingStatusListener {
+      def onPaired(id:VersionID, vsn:String) { paired.incrementAndGet() }
+      def onUpstreamExpired(id:VersionID, vsn:String) {}
+      def onDownstreamExpired(id:VersionID, vsn:String) {}
+    }))
+
+    val executor = Executors.newFixedThreadPool(threads)
+    val start = new DateTime
+    val perThread = eventCount / threads
+
+    (0 until threads).foreach(t => executor.execute(new Runnable {
+      def run() {
+        val now = new DateTime
+        (0 until perThread).foreach(i => {
+          val matcher = matchers(i % matchers.size)
+          val id = VersionID(PairRef("pair" + (i % matchers.size), 0), "id-" + t + "-" + i)
+          matcher.onChange(UpstreamPairChangeEvent(id, Map(), now, "v" + i), () => ())
+          matcher.onChange(DownstreamPairChangeEvent(id, Map(), now, "v" + i), () => ())
+        })
+      }
+    }))
+    executor.shutdown()
+    executor.awaitTermination(10, TimeUnit.MINUTES)
+
+    val elapsed = (new DateTime).getMillis - start.getMillis
+    println("Matched %s pairs of events with the %s matcher in %sms (%s pairs/sec)".format(
+      perThread * threads, name, elapsed, (perThread * threads * 1000L) / scala.math.max(elapsed, 1)))
+
+    matchers.foreach(_.dispose)
+    assertEquals(perThread * threads, paired.get)
+  }
+}
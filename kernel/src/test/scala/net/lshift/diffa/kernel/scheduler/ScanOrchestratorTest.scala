@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2010-2011 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.scheduler
+
+import org.junit.Test
+import org.easymock.EasyMock._
+import org.junit.Assert._
+import net.lshift.diffa.kernel.actors.PairPolicyClient
+import net.lshift.diffa.kernel.config.DomainConfigStore
+import net.lshift.diffa.kernel.differencing.PairScanState
+import net.lshift.diffa.kernel.frontend.DomainPairDef
+
+/**
+ * Test cases for the ScanOrchestrator.
+ */
+class ScanOrchestratorTest {
+  val pairPolicyClient = createMock(classOf[PairPolicyClient])
+  val domainConfig = createMock(classOf[DomainConfigStore])
+
+  val space = 1L
+  val ab = pairDef("ab", "a", "b")
+  val ac = pairDef("ac", "a", "c")
+  val de = pairDef("de", "d", "e")
+  val fg = pairDef("fg", "f", "g")
+
+  @Test
+  def shouldQueueScansBeyondGlobalLimitUntilARunningScanFinishes() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 1, 10)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    replay(pairPolicyClient, domainConfig)
+
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(de.asRef, None, None)
+    verify(pairPolicyClient)
+    assertEquals(1, orchestrator.queuedScanCount)
+
+    reset(pairPolicyClient)
+    pairPolicyClient.scanPair(de.asRef, None, None); expectLastCall
+    replay(pairPolicyClient)
+
+    orchestrator.pairScanStateChanged(ab.asRef, PairScanState.UP_TO_DATE)
+    verify(pairPolicyClient)
+    assertEquals(0, orchestrator.queuedScanCount)
+    assertEquals(1, orchestrator.runningScanCount)
+  }
+
+  @Test
+  def shouldNotHoldUpScansOfPairsWithIdleEndpoints() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 10, 1)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    pairPolicyClient.scanPair(de.asRef, None, None); expectLastCall
+    replay(pairPolicyClient, domainConfig)
+
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(ac.asRef, None, None)     // Shares endpoint a with the running scan
+    orchestrator.scanPair(de.asRef, None, None)
+    verify(pairPolicyClient)
+    assertEquals(1, orchestrator.queuedScanCount)
+  }
+
+  @Test
+  def shouldStartScansRequestedByUsersBeforeScheduledScans() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 1, 10)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    replay(pairPolicyClient, domainConfig)
+
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(de.asRef, None, None)
+    orchestrator.scanPair(fg.asRef, None, Some("user"))
+
+    reset(pairPolicyClient)
+    pairPolicyClient.scanPair(fg.asRef, None, Some("user")); expectLastCall
+    replay(pairPolicyClient)
+
+    orchestrator.pairScanStateChanged(ab.asRef, PairScanState.UP_TO_DATE)
+    verify(pairPolicyClient)
+  }
+
+  @Test
+  def shouldStartScanOfLeastRecentlyScannedPairFirst() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 1, 10)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    pairPolicyClient.scanPair(ac.asRef, None, None); expectLastCall
+    replay(pairPolicyClient, domainConfig)
+
+    // ab has been scanned, whereas de never has been
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.pairScanStateChanged(ab.asRef, PairScanState.UP_TO_DATE)
+    orchestrator.scanPair(ac.asRef, None, None)
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(de.asRef, None, None)
+    verify(pairPolicyClient)
+
+    reset(pairPolicyClient)
+    pairPolicyClient.scanPair(de.asRef, None, None); expectLastCall
+    replay(pairPolicyClient)
+
+    orchestrator.pairScanStateChanged(ac.asRef, PairScanState.UP_TO_DATE)
+    verify(pairPolicyClient)
+  }
+
+  @Test
+  def shouldDropQueuedScanWhenScansAreCancelled() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 1, 10)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    expect(pairPolicyClient.cancelScans(de.asRef)).andReturn(null)
+    replay(pairPolicyClient, domainConfig)
+
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(de.asRef, None, None)
+    orchestrator.cancelScans(de.asRef)
+    orchestrator.pairScanStateChanged(ab.asRef, PairScanState.UP_TO_DATE)
+
+    verify(pairPolicyClient)
+    assertEquals(0, orchestrator.runningScanCount)
+  }
+
+  @Test
+  def shouldReleaseSlotOfScanWhoseActorWasStopped() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 1, 10)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    replay(pairPolicyClient, domainConfig)
+
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(de.asRef, None, None)
+
+    reset(pairPolicyClient)
+    pairPolicyClient.scanPair(de.asRef, None, None); expectLastCall
+    replay(pairPolicyClient)
+
+    // The pair is deleted mid-scan, so its actor never reports that the scan finished
+    orchestrator.stopActor(ab.asRef)
+    verify(pairPolicyClient)
+    assertEquals(0, orchestrator.queuedScanCount)
+    assertEquals(1, orchestrator.runningScanCount)
+  }
+
+  @Test
+  def shouldReleaseSlotOfScanWhoseActorWasReplaced() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 1, 10)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    replay(pairPolicyClient, domainConfig)
+
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(ab.asRef, None, None)     // Queued behind the running scan of the same pair
+
+    reset(pairPolicyClient)
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    replay(pairPolicyClient)
+
+    // The pair is updated mid-scan, so the scan is lost with the actor that was replaced
+    orchestrator.startActor(ab.asRef)
+    verify(pairPolicyClient)
+    assertEquals(0, orchestrator.queuedScanCount)
+    assertEquals(1, orchestrator.runningScanCount)
+  }
+
+  @Test
+  def shouldDropQueuedScanOfStoppedPair() {
+    val orchestrator = new ScanOrchestrator(pairPolicyClient, domainConfig, 1, 10)
+
+    pairPolicyClient.scanPair(ab.asRef, None, None); expectLastCall
+    replay(pairPolicyClient, domainConfig)
+
+    orchestrator.scanPair(ab.asRef, None, None)
+    orchestrator.scanPair(de.asRef, None, None)
+    orchestrator.stopActor(de.asRef)
+    orchestrator.pairScanStateChanged(ab.asRef, PairScanState.UP_TO_DATE)
+
+    verify(pairPolicyClient)
+    assertEquals(0, orchestrator.queuedScanCount)
+    assertEquals(0, orchestrator.runningScanCount)
+  }
+
+  private def pairDef(key:String, upstream:String, downstream:String) = {
+    val pair = DomainPairDef(key = key, space = space, upstreamName = upstream, downstreamName = downstream)
+    expect(domainConfig.getPairDef(pair.asRef)).andStubReturn(pair)
+    pair
+  }
+}
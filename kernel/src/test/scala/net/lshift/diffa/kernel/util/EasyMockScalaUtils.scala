@@ -101,6 +101,18 @@ object EasyMockScalaUtils {
     null
   }
 
+  /**
+   * Answers a streaming call (one whose final argument is a handler function) by feeding each of the given
+   * values to the handler in turn.
+   */
+  def streamingAnswer[T](values:Seq[T]) = new IAnswer[Unit] {
+    def answer() {
+      val args = EasyMock.getCurrentArguments
+      val handler = args(args.length - 1).asInstanceOf[T => Unit]
+      values.foreach(handler)
+    }
+  }
+
   val emptyAnswer = new IAnswer[Unit] {
     def answer() {}
   }
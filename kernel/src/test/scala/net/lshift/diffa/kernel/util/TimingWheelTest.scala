@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.util
+
+import org.junit.Test
+import org.junit.Assert._
+
+class TimingWheelTest {
+
+  // Small levels, so that cascading between levels and the overflow are exercised with modest times
+  val wheel = new TimingWheel[String](tickMillis = 1000, startMillis = 0, levels = 2, slotBits = 2)
+
+  @Test
+  def shouldOnlyHandBackKeysOnceTheyAreDue {
+    wheel.schedule("a", 2500)
+
+    assertEquals(Seq(), wheel.advance(2000))
+    assertEquals(Seq("a"), wheel.advance(3000))
+    assertEquals(Seq(), wheel.advance(4000))
+    assertEquals(0, wheel.size)
+  }
+
+  @Test
+  def shouldHandBackKeysScheduledInThePastOnNextAdvance {
+    wheel.advance(5000)
+    wheel.schedule("a", 1000)
+
+    assertEquals(Seq("a"), wheel.advance(5000))
+  }
+
+  @Test
+  def shouldCascadeKeysFromHigherLevelsAndOverflow {
+    wheel.schedule("level1", 9000)
+    wheel.schedule("overflow", 40000)
+
+    assertEquals(Seq(), wheel.advance(8000))
+    assertEquals(Seq("level1"), wheel.advance(9000))
+    assertEquals(Seq(), wheel.advance(39000))
+    assertEquals(Seq("overflow"), wheel.advance(40000))
+  }
+
+  @Test
+  def shouldNotHandBackCancelledKeys {
+    wheel.schedule("a", 2000)
+    wheel.schedule("b", 2000)
+    wheel.cancel("a")
+
+    assertEquals(Seq("b"), wheel.advance(10000))
+  }
+
+  @Test
+  def shouldOnlyHandBackRescheduledKeysAtTheirNewTime {
+    wheel.schedule("a", 2000)
+    wheel.schedule("a", 6000)
+
+    assertEquals(Seq(), wheel.advance(5000))
+    assertEquals(Seq("a"), wheel.advance(6000))
+  }
+}
@@ -19,7 +19,7 @@ import java.sql.{Timestamp, Connection}
 import javax.sql.DataSource
 import org.springframework.jdbc.core.JdbcTemplate
 import org.springframework.jdbc.core.ConnectionCallback
-import org.springframework.transaction.support.{TransactionCallback, TransactionTemplate}
+import org.springframework.transaction.support.{TransactionSynchronizationAdapter, TransactionSynchronizationManager, TransactionCallback, TransactionTemplate}
 import org.springframework.transaction.TransactionStatus
 import org.springframework.jdbc.datasource.DataSourceTransactionManager
 import org.jooq.conf.{RenderNameStyle, Settings}
@@ -55,6 +55,20 @@ class DatabaseFacade(dataSource: DataSource, dialect: String) {
         throw e.getCause
     }
 
+  /**
+   * Runs the given action once the current transaction has committed, or straight away if there is no transaction.
+   * The action is dropped if the transaction rolls back.
+   */
+  def afterCommit(f: => Unit) {
+    if (TransactionSynchronizationManager.isSynchronizationActive) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter {
+        override def afterCommit() { f }
+      })
+    } else {
+      f
+    }
+  }
+
   def processAsStream[R <: Record](cursor: Cursor[R], handler: R => Unit) = try {
     while (cursor.hasNext) {
       handler(cursor.fetchOne())
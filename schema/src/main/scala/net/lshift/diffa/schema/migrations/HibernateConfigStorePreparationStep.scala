@@ -199,6 +199,10 @@ object HibernateConfigStorePreparationStep {
    * Note that these steps should be executed in strictly ascending order.
    */
   val migrationSteps = Seq(
-    Step0054
+    Step0054,
+    Step0055,
+    Step0056,
+    Step0057,
+    Step0058
   )
 }
\ No newline at end of file
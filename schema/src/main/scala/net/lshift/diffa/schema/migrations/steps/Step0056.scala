@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.migrations.steps
+
+import net.lshift.diffa.schema.migrations.{MigrationUtil, MigrationStep}
+import net.lshift.hibernate.migrations.MigrationBuilder
+import net.lshift.diffa.schema.servicelimits.{CorrelationStoreCommitAge, CorrelationStoreCommitBytes, CorrelationStoreCommitChanges}
+import org.hibernate.cfg.Configuration
+
+/**
+ * Define the limits that control how changes to a pair's correlation store are grouped into commits.
+ */
+object Step0056 extends MigrationStep {
+
+  def versionId = 56
+
+  def name = "Add correlation store group commit limits"
+
+  def createMigration(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    MigrationUtil.insertLimit(migration, CorrelationStoreCommitChanges)
+    MigrationUtil.insertLimit(migration, CorrelationStoreCommitAge)
+    MigrationUtil.insertLimit(migration, CorrelationStoreCommitBytes)
+
+    migration
+  }
+}
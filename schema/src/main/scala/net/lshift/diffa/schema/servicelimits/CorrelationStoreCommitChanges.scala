@@ -0,0 +1,23 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.schema.servicelimits
+
+object CorrelationStoreCommitChanges extends ServiceLimit {
+  def key = "correlation.store.commit.changes"
+  def description = "The number of changes to a pair's correlation store that may be grouped into a single commit (0 disables this threshold)"
+  def defaultLimit = 0
+  def hardLimit = 100000
+}